@@ -83,6 +83,8 @@ public class HTTPClientFactory {
     
     private Authenticator _authenticator = null;
     
+    private UpstreamConnectionPool _connectionPool = null;
+    
     private List _clientList = new ArrayList();
     private List _availableClients = new ArrayList();
     
@@ -146,6 +148,8 @@ public class HTTPClientFactory {
     
     public static void invalidateInstance(){
         URLFetcher.cleanCachedBasicCredentials();
+        // pooled connections may use proxy or client cert that are not valid anymore
+        UpstreamConnectionPool.getInstance().clear();
         _instance = null;
     }
     
@@ -210,6 +214,17 @@ public class HTTPClientFactory {
         return _authenticator;
     }
     
+    /**
+     * @param connectionPool pool for keep-alive upstream connections, null to disable pooling
+     */
+    public void setConnectionPool(UpstreamConnectionPool connectionPool) {
+        _connectionPool = connectionPool;
+    }
+    
+    public UpstreamConnectionPool getConnectionPool() {
+        return _connectionPool;
+    }
+    
     public HTTPClient getHTTPClient() {
         URLFetcher uf = new URLFetcher();
         uf.setHttpProxy(_httpProxy, _httpProxyPort);
@@ -219,6 +234,7 @@ public class HTTPClientFactory {
         uf.setLocalDomainName(_localDomainName);
         uf.setTimeouts(_connectTimeout, _readTimeout);
         uf.setAuthenticator(_authenticator);
+        uf.setConnectionPool(_connectionPool);
         return uf;
     }
     
@@ -231,6 +247,17 @@ public class HTTPClientFactory {
         uf.setLocalDomainName(_localDomainName);
         uf.setTimeouts(_connectTimeout, _readTimeout);
         uf.setAuthenticator(_authenticator);
+        uf.setConnectionPool(_connectionPool);
+        return uf.getConnectedSocket(url, makeSslHandshake);
+    }
+    
+    /**
+     * @param channelBacked if true socket to server is created from SocketChannel
+     * so it can be forwarded with selector
+     */
+    public Socket getConnectedSocket(HttpUrl url, boolean makeSslHandshake, boolean channelBacked) throws IOException{
+        URLFetcher uf = (URLFetcher) getHTTPClient();
+        uf.setUseSocketChannel(channelBacked);
         return uf.getConnectedSocket(url, makeSslHandshake);
     }
     
@@ -245,6 +272,7 @@ public class HTTPClientFactory {
         int readTime = readTimeout > -1 ? readTimeout : _readTimeout;
         uf.setTimeouts(connectTime, readTime);
         uf.setAuthenticator(_authenticator);
+        uf.setConnectionPool(_connectionPool);
         return uf;
     }
     
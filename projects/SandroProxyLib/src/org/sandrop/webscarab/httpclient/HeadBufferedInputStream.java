@@ -0,0 +1,210 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.httpclient;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Buffered stream used for reading HTTP message heads from a connection.
+ * Head lines are found directly in the buffer so reading the head does not
+ * need a read call on socket (and ssl engine) for every byte. Bytes read over
+ * the end of the head stay in the buffer and are returned by following reads,
+ * so stream must be kept for the whole connection and used for body and for
+ * next message on keep-alive connection.
+ */
+public class HeadBufferedInputStream extends FilterInputStream {
+    
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    
+    private byte[] _buf;
+    private int _pos = 0;
+    private int _count = 0;
+    
+    public HeadBufferedInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+    
+    public HeadBufferedInputStream(InputStream in, int size) {
+        super(in);
+        _buf = new byte[size];
+    }
+    
+    /**
+     * reads a line up to and including the LF or CRLF. 
+     * @param maxLength longest line that is accepted 
+     * @return the line without CR or CRLF, or null if stream ended before any byte was read
+     * @throws IOException if line is longer than maxLength or propagated from stream
+     */
+    public String readLine(int maxLength) throws IOException {
+        int scanned = 0;
+        while (true) {
+            for (int i = _pos + scanned; i < _count; i++) {
+                byte b = _buf[i];
+                if (b == 10 || b == 13) {
+                    String line = newString(_pos, i - _pos);
+                    _pos = i + 1;
+                    if (b == 13) {
+                        // 10 is unix LF, but DOS does 13+10, so skip the 10 if we got 13
+                        if (_pos < _count || fill()) {
+                            if (_buf[_pos] == 10) {
+                                _pos++;
+                            }
+                        }
+                    }
+                    return line;
+                }
+            }
+            scanned = _count - _pos;
+            if (scanned > maxLength) {
+                throw new IOException("Line is longer than " + maxLength + " bytes");
+            }
+            if (!fill()) {
+                if (scanned == 0) {
+                    return null;
+                }
+                String line = newString(_pos, scanned);
+                _pos = _count;
+                return line;
+            }
+        }
+    }
+    
+    /**
+     * @return number of bytes already read from underlying stream that were not consumed yet
+     */
+    public int getBuffered() {
+        return _count - _pos;
+    }
+    
+    /**
+     * @return bytes read from underlying stream that were not consumed yet, 
+     * they are not returned by this stream any more
+     */
+    public byte[] takeBuffered() {
+        byte[] buffered = new byte[_count - _pos];
+        System.arraycopy(_buf, _pos, buffered, 0, buffered.length);
+        _pos = 0;
+        _count = 0;
+        return buffered;
+    }
+    
+    public int read() throws IOException {
+        if (_pos >= _count && !fill()) {
+            return -1;
+        }
+        return _buf[_pos++] & 0xFF;
+    }
+    
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+    
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int buffered = _count - _pos;
+        if (buffered > 0) {
+            int got = Math.min(buffered, len);
+            System.arraycopy(_buf, _pos, b, off, got);
+            _pos += got;
+            return got;
+        }
+        // body data goes directly to caller
+        return in.read(b, off, len);
+    }
+    
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        int buffered = _count - _pos;
+        if (buffered > 0) {
+            int skipped = (int) Math.min(buffered, n);
+            _pos += skipped;
+            return skipped;
+        }
+        return in.skip(n);
+    }
+    
+    public int available() throws IOException {
+        return (_count - _pos) + in.available();
+    }
+    
+    public boolean markSupported() {
+        return false;
+    }
+    
+    public void mark(int readlimit) {
+    }
+    
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+    
+    /**
+     * reads more bytes at the end of unconsumed ones, buffer grows if it is full
+     * @return false on end of stream
+     */
+    private boolean fill() throws IOException {
+        int buffered = _count - _pos;
+        if (_pos > 0) {
+            System.arraycopy(_buf, _pos, _buf, 0, buffered);
+            _pos = 0;
+            _count = buffered;
+        }
+        if (_count == _buf.length) {
+            byte[] buf = new byte[_buf.length * 2];
+            System.arraycopy(_buf, 0, buf, 0, _count);
+            _buf = buf;
+        }
+        int got = in.read(_buf, _count, _buf.length - _count);
+        if (got <= 0) {
+            return false;
+        }
+        _count += got;
+        return true;
+    }
+    
+    @SuppressWarnings("deprecation")
+    private String newString(int offset, int length) {
+        // bytes are taken as ISO-8859-1 chars like in Message.readLine
+        return new String(_buf, 0, offset, length);
+    }
+    
+    public String toString() {
+        return this.getClass().getName() + " on a " + in.getClass().getName() + " (" + getBuffered() + " buffered)";
+    }
+}
@@ -0,0 +1,403 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.httpclient;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKey;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Writes TLS master secrets of intercepted and upstream connections in NSS 
+ * key log format (SSLKEYLOGFILE) so captures of the real network traffic can 
+ * be decrypted by wireshark whatever cipher suite was negotiated. Optionally 
+ * the same lines are written as pcapng Decryption Secrets Blocks, that file 
+ * can be merged with a capture so keys travel with the packets.
+ * 
+ * SSLSession has no api for master secret, it is taken from encoded 
+ * OpenSSL session on android and from session field on JSSE. TLS 1.3 
+ * secrets are not reachable that way so connections using key log are 
+ * limited to TLS 1.2, see restrictProtocols.
+ */
+public class TlsKeyLog {
+    
+    public static final String KEY_LOG_FILE = "sslkeylog.txt";
+    public static final String KEY_LOG_PCAPNG_FILE = "sslkeylog.pcapng";
+    
+    private static final int PCAPNG_SHB = 0x0A0D0D0A;
+    private static final int PCAPNG_DSB = 0x0000000A;
+    private static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+    private static final int SECRETS_TYPE_TLS = 0x544c534b;
+    
+    private static final int MAX_REMEMBERED_SESSIONS = 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    
+    private static TlsKeyLog _instance = null;
+    
+    private static Logger _logger = Logger.getLogger(TlsKeyLog.class.getName());
+    
+    // how master secret is read from session of given class, null if it can not be
+    private static Map<Class<?>, Object> _accessors = new HashMap<Class<?>, Object>();
+    private static final Object NO_ACCESSOR = new Object();
+    private static volatile boolean _sessionsReadable = true;
+    
+    private OutputStream _out;
+    private OutputStream _pcapngOut;
+    private File _file;
+    
+    // resumed sessions are logged once
+    private Map<String, Boolean> _logged = new LinkedHashMap<String, Boolean>(16, 0.75f, true){
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_REMEMBERED_SESSIONS;
+        }
+    };
+    
+    private AtomicLong _written = new AtomicLong(0);
+    private AtomicLong _missed = new AtomicLong(0);
+    
+    private TlsKeyLog(File dir, boolean writePcapng) throws IOException{
+        _file = new File(dir, KEY_LOG_FILE);
+        _out = new FileOutputStream(_file, true);
+        if (writePcapng){
+            File pcapngFile = new File(dir, KEY_LOG_PCAPNG_FILE);
+            boolean newFile = !pcapngFile.exists() || pcapngFile.length() == 0;
+            _pcapngOut = new FileOutputStream(pcapngFile, true);
+            if (newFile){
+                _pcapngOut.write(sectionHeaderBlock());
+                _pcapngOut.flush();
+            }
+        }
+    }
+    
+    /**
+     * starts appending secrets to key log in dir, replaces previous key log
+     */
+    public static synchronized TlsKeyLog init(File dir, boolean writePcapng) throws IOException{
+        release();
+        _instance = new TlsKeyLog(dir, writePcapng);
+        _logger.info("TLS key log " + _instance._file.getAbsolutePath());
+        return _instance;
+    }
+    
+    /**
+     * @return active key log or null if secrets are not logged
+     */
+    public static synchronized TlsKeyLog getInstance(){
+        return _instance;
+    }
+    
+    public static synchronized void release(){
+        if (_instance != null){
+            _instance.close();
+            _instance = null;
+        }
+    }
+    
+    /**
+     * Removes protocols whose secrets can not be logged from socket, must be 
+     * called before handshake.
+     */
+    public static void restrictProtocols(SSLSocket socket){
+        String[] enabled = socket.getEnabledProtocols();
+        List<String> protocols = new ArrayList<String>(enabled.length);
+        for (String protocol : enabled) {
+            if (!protocol.startsWith("TLSv1.3")){
+                protocols.add(protocol);
+            }
+        }
+        if (protocols.size() != enabled.length && protocols.size() > 0){
+            socket.setEnabledProtocols(protocols.toArray(new String[protocols.size()]));
+        }
+    }
+    
+    /**
+     * logs master secret of established session keyed by its session id
+     * @return false if secret could not be read from session
+     */
+    public boolean log(SSLSession session){
+        if (session == null){
+            return false;
+        }
+        byte[] sessionId = session.getId();
+        if (sessionId == null || sessionId.length == 0){
+            // line can not be keyed without session id, same as unreadable secret
+            missed("TLS key log got session without id from " + session.getClass().getName());
+            return false;
+        }
+        String id = toHex(sessionId);
+        synchronized (this) {
+            if (_logged.containsKey(id)){
+                return true;
+            }
+        }
+        byte[] masterSecret = getMasterSecret(session);
+        if (masterSecret == null){
+            missed("TLS key log could not read secret of " + session.getClass().getName());
+            return false;
+        }
+        write(id, "RSA Session-ID:" + id + " Master-Key:" + toHex(masterSecret) + "\n");
+        return true;
+    }
+    
+    /**
+     * counts handshake that is not in key log, callers fall back to 
+     * decryptable cipher suites from then on
+     */
+    private void missed(String reason){
+        _missed.incrementAndGet();
+        if (_sessionsReadable){
+            _sessionsReadable = false;
+            _logger.info(reason);
+        }
+    }
+    
+    private synchronized void write(String key, String line){
+        if (_out == null || _logged.put(key, Boolean.TRUE) != null){
+            return;
+        }
+        try {
+            byte[] bytes = line.getBytes("ISO-8859-1");
+            _out.write(bytes);
+            _out.flush();
+            if (_pcapngOut != null){
+                _pcapngOut.write(decryptionSecretsBlock(bytes));
+                _pcapngOut.flush();
+            }
+            _written.incrementAndGet();
+        } catch (IOException e) {
+            _logger.severe("Error writing TLS key log " + e.getMessage());
+        }
+    }
+    
+    private synchronized void close(){
+        try {
+            if (_out != null){
+                _out.close();
+            }
+            if (_pcapngOut != null){
+                _pcapngOut.close();
+            }
+        } catch (IOException e) {
+            _logger.info("Error closing TLS key log " + e.getMessage());
+        }
+        _out = null;
+        _pcapngOut = null;
+    }
+    
+    /**
+     * @return false once session was found whose secret can not be read or 
+     * that has no session id, callers should then fall back to decryptable cipher suites
+     */
+    public boolean canReadSessions(){
+        return _sessionsReadable;
+    }
+    
+    public long getWrittenCount(){
+        return _written.get();
+    }
+    
+    /**
+     * @return handshakes whose secret could not be read
+     */
+    public long getMissedCount(){
+        return _missed.get();
+    }
+    
+    private static byte[] getMasterSecret(SSLSession session){
+        Class<?> sessionClass = session.getClass();
+        Object accessor;
+        synchronized (_accessors) {
+            accessor = _accessors.get(sessionClass);
+            if (accessor == null){
+                accessor = findAccessor(sessionClass);
+                _accessors.put(sessionClass, accessor);
+                if (accessor == NO_ACCESSOR){
+                    _sessionsReadable = false;
+                    _logger.info("TLS key log can not read secrets of " + sessionClass.getName());
+                }
+            }
+        }
+        try {
+            if (accessor instanceof Field){
+                Object value = ((Field) accessor).get(session);
+                if (value instanceof SecretKey){
+                    return ((SecretKey) value).getEncoded();
+                }
+                return value instanceof byte[] ? (byte[]) value : null;
+            }
+            if (accessor instanceof Method){
+                // DER encoded OpenSSL SSL_SESSION
+                return readMasterKey((byte[]) ((Method) accessor).invoke(session));
+            }
+        } catch (Exception e) {
+            _logger.fine("Error reading master secret " + e);
+        }
+        return null;
+    }
+    
+    private static Object findAccessor(Class<?> sessionClass){
+        for (Class<?> c = sessionClass; c != null && c != Object.class; c = c.getSuperclass()){
+            String[] methodNames = new String[]{"getEncoded", "toBytes"};
+            for (String methodName : methodNames) {
+                try {
+                    Method method = c.getDeclaredMethod(methodName);
+                    if (method.getReturnType() == byte[].class){
+                        method.setAccessible(true);
+                        return method;
+                    }
+                } catch (Exception e) {
+                    // not there or not accessible, try next one
+                }
+            }
+            try {
+                Field field = c.getDeclaredField("masterSecret");
+                field.setAccessible(true);
+                return field;
+            } catch (Exception e) {
+                // not there or not accessible
+            }
+        }
+        return NO_ACCESSOR;
+    }
+    
+    /**
+     * reads master key from SSL_SESSION ASN.1 sequence, it is fifth element 
+     * after version, ssl version, cipher and session id
+     */
+    static byte[] readMasterKey(byte[] der){
+        if (der == null || der.length < 2 || der[0] != 0x30){
+            return null;
+        }
+        int[] pos = new int[]{1};
+        if (readLength(der, pos) < 0){
+            return null;
+        }
+        for (int i = 0; i < 5; i++) {
+            if (pos[0] >= der.length){
+                return null;
+            }
+            int tag = der[pos[0]++] & 0xff;
+            int length = readLength(der, pos);
+            if (length < 0 || pos[0] + length > der.length){
+                return null;
+            }
+            if (i == 4){
+                if (tag != 0x04 || length == 0){
+                    return null;
+                }
+                byte[] masterKey = new byte[length];
+                System.arraycopy(der, pos[0], masterKey, 0, length);
+                return masterKey;
+            }
+            pos[0] += length;
+        }
+        return null;
+    }
+    
+    private static int readLength(byte[] der, int[] pos){
+        if (pos[0] >= der.length){
+            return -1;
+        }
+        int first = der[pos[0]++] & 0xff;
+        if (first < 0x80){
+            return first;
+        }
+        int count = first & 0x7f;
+        if (count == 0 || count > 3 || pos[0] + count > der.length){
+            return -1;
+        }
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length = (length << 8) | (der[pos[0]++] & 0xff);
+        }
+        return length;
+    }
+    
+    private static byte[] sectionHeaderBlock(){
+        byte[] block = new byte[28];
+        putInt(block, 0, PCAPNG_SHB);
+        putInt(block, 4, block.length);
+        putInt(block, 8, PCAPNG_BYTE_ORDER_MAGIC);
+        // version 1.0
+        block[13] = 1;
+        // section length not known
+        for (int i = 16; i < 24; i++) {
+            block[i] = (byte) 0xff;
+        }
+        putInt(block, 24, block.length);
+        return block;
+    }
+    
+    private static byte[] decryptionSecretsBlock(byte[] secrets){
+        int padded = (secrets.length + 3) & ~3;
+        byte[] block = new byte[20 + padded];
+        putInt(block, 0, PCAPNG_DSB);
+        putInt(block, 4, block.length);
+        putInt(block, 8, SECRETS_TYPE_TLS);
+        putInt(block, 12, secrets.length);
+        System.arraycopy(secrets, 0, block, 16, secrets.length);
+        putInt(block, block.length - 4, block.length);
+        return block;
+    }
+    
+    private static void putInt(byte[] buffer, int offset, int value){
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+    
+    private static String toHex(byte[] bytes){
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >>> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
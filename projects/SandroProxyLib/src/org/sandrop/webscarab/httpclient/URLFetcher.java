@@ -38,6 +38,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -84,6 +85,12 @@ public class URLFetcher implements HTTPClient {
     private String _localDomainName = null;
     
     private Socket _socket = null;
+    private UpstreamConnectionPool _connectionPool = null;
+    // set when socket is connected and can be returned to pool later
+    private String _poolKey = null;
+    // ntlm or negotiate ran on socket, it is authenticated as this fetcher user and never pooled
+    private boolean _connectionAuth = false;
+    private boolean _useSocketChannel = false;
     private boolean _direct = false;
     private Response _response = null;
 
@@ -168,6 +175,21 @@ public class URLFetcher implements HTTPClient {
         _sslContextManager = sslContextManager;
     }
 
+    /**
+     * create sockets from SocketChannel, needed if socket is later forwarded
+     * with NioSocketForwarder
+     */
+    public void setUseSocketChannel(boolean useSocketChannel) {
+        _useSocketChannel = useSocketChannel;
+    }
+
+    /**
+     * keep-alive connections are taken from and returned to this pool
+     */
+    public void setConnectionPool(UpstreamConnectionPool connectionPool) {
+        _connectionPool = connectionPool;
+    }
+
     public void setTimeouts(int connectTimeout, int readTimeout) {
         _connectTimeout = connectTimeout;
         _timeout = readTimeout;
@@ -275,10 +297,14 @@ public class URLFetcher implements HTTPClient {
             if (_response != null) { // there was an error opening the socket
                 return _response;
             }
+            // connection is not returned to pool until response head is read
+            String poolKey = _poolKey;
+            _poolKey = null;
 
             if (authHeader != null) {
                 request.setHeader("Authorization", authHeader);
-                if (authHeader.startsWith("NTLM") || authHeader.startsWith("Negotiate")) {
+                if (isConnectionAuth(authHeader)) {
+                    _connectionAuth = true;
                     if (request.getVersion().equals("HTTP/1.0")) {
                         // we have to explicitly tell the server to keep the connection alive for 1.0
                         request.setHeader("Connection", "Keep-Alive");
@@ -293,7 +319,8 @@ public class URLFetcher implements HTTPClient {
             } else {
                 if (proxyAuthHeader != null) {
                     request.setHeader("Proxy-Authorization", proxyAuthHeader);
-                    if (proxyAuthHeader.startsWith("NTLM") || proxyAuthHeader.startsWith("Negotiate")) {
+                    if (isConnectionAuth(proxyAuthHeader)) {
+                        _connectionAuth = true;
                         if (request.getVersion().equals("HTTP/1.0")) {
                             // we have to explicitly tell the server to keep the connection alive for 1.0
                             request.setHeader("Connection", "Keep-Alive");
@@ -317,6 +344,7 @@ public class URLFetcher implements HTTPClient {
                 _response.read(_in);
                 status = _response.getStatus();
             } while (status.equals("100"));
+            _poolKey = _connectionAuth ? null : poolKey;
 
             {
                 StringBuffer buff = new StringBuffer();
@@ -377,11 +405,15 @@ public class URLFetcher implements HTTPClient {
                 String version = _response.getVersion();
                 if (version.equals("HTTP/1.0") && "Keep-alive".equalsIgnoreCase(connection)) {
                     _lastRequestTime = System.currentTimeMillis();
-                    _response.setSocket(_socket);
+                    _response.setSocket(_socket, _in);
                 } else if (version.equals("HTTP/1.1") && (connection == null || !connection.equalsIgnoreCase("Close"))) {
                     _lastRequestTime = System.currentTimeMillis();
-                    if (status.equals("101")) _response.setNoBody();
-                    _response.setSocket(_socket);
+                    if (status.equals("101")){
+                        _response.setNoBody();
+                        // socket is used by other protocol from now on
+                        _poolKey = null;
+                    }
+                    _response.setSocket(_socket, _in);
                 } else {
                     _logger.info("Closing connection!");
                     _in = null;
@@ -406,11 +438,46 @@ public class URLFetcher implements HTTPClient {
     }
     
     public Socket getConnectedSocket(HttpUrl url, boolean makeHandshake) throws IOException{
+        releaseConnection();
         _socket = null;
+        _in = null;
         connect(url, makeHandshake);
+        // socket belongs to caller, it is never returned to pool
+        _poolKey = null;
         return _socket;
     }
     
+    /**
+     * returns keep-alive connection to the pool if response was completely read,
+     * called when this fetcher is not going to be used anymore
+     */
+    public void releaseConnection() {
+        if (_socket == null || _in == null || _out == null || _poolKey == null || _connectionPool == null){
+            return;
+        }
+        if (_response != null && _response.isContentPending()){
+            _logger.fine("Response was not read to the end, connection is not reused");
+            return;
+        }
+        _connectionPool.release(new UpstreamConnectionPool.PooledConnection(_poolKey, _socket, _in, _out, _direct));
+        _socket = null;
+        _in = null;
+        _out = null;
+        _poolKey = null;
+    }
+    
+    private String getPoolKey(HttpUrl url, boolean ssl) {
+        String proxy = "";
+        if (useProxy(url)) {
+            proxy = ssl ? _httpsProxy + ":" + _httpsProxyPort : _httpProxy + ":" + _httpProxyPort;
+        }
+        String keyFingerprint = null;
+        if (ssl) {
+            keyFingerprint = _keyFingerprint != null ? _keyFingerprint : _sslContextManager.getDefaultKey();
+        }
+        return UpstreamConnectionPool.getKey(url.getScheme(), url.getHost(), url.getPort(), proxy, keyFingerprint);
+    }
+    
     private InetSocketAddress getSocketAddress(String host, int port) throws UnknownHostException {
         InetSocketAddress hostSocketAddress = null;
         InetAddress address = null;
@@ -446,15 +513,37 @@ public class URLFetcher implements HTTPClient {
 
     private void connect(HttpUrl url, boolean makeSslHandshake) throws IOException {
         if (! invalidSocket(url)) return;
+        boolean ssl = url.getScheme().equalsIgnoreCase("https");
+        String poolKey = null;
+        if (_connectionPool != null && (!ssl || makeSslHandshake)) {
+            // previous keep-alive connection can serve other fetchers
+            releaseConnection();
+            poolKey = getPoolKey(url, ssl);
+            UpstreamConnectionPool.PooledConnection pooled = _connectionPool.acquire(poolKey);
+            if (pooled != null) {
+                _logger.fine("Reusing pooled connection to " + poolKey);
+                _socket = pooled.socket;
+                _in = pooled.in;
+                _out = pooled.out;
+                _direct = pooled.direct;
+                _host = url.getHost();
+                _port = url.getPort();
+                _socket.setSoTimeout(_timeout);
+                _poolKey = poolKey;
+                _connectionAuth = false;
+                return;
+            }
+        }
+        _poolKey = null;
+        _connectionAuth = false;
         _logger.fine("Opening a new connection");
-        _socket = new Socket(java.net.Proxy.NO_PROXY);
+        _socket = _useSocketChannel ? SocketChannel.open().socket() : new Socket(java.net.Proxy.NO_PROXY);
         _socket.setSoTimeout(_timeout);
         _direct = true;
 
         // We record where we are connected to, in case we might reuse this socket later
         _host = url.getHost();
         _port = url.getPort();
-        boolean ssl = url.getScheme().equalsIgnoreCase("https");
 
         if (useProxy(url)) {
             if (!ssl) {
@@ -488,7 +577,7 @@ public class URLFetcher implements HTTPClient {
                         _in = null; _out = null; _socket = null;
                         
                         // creating new socket to proxy
-                        _socket = new Socket();
+                        _socket = _useSocketChannel ? SocketChannel.open().socket() : new Socket();
                         _socket.setSoTimeout(_timeout);
                         _socket.connect(getSocketAddress(_httpsProxy, _httpsProxyPort), _connectTimeout);
                         _in = _socket.getInputStream();
@@ -501,6 +590,9 @@ public class URLFetcher implements HTTPClient {
                     _out.write(("Connection: " + "Keep-Alive\r\n").getBytes());
                     if (authHeader != null) {
                         _out.write(("Proxy-Authorization: " + authHeader + "\r\n").getBytes());
+                        if (isConnectionAuth(authHeader)){
+                            _connectionAuth = true;
+                        }
                     }
                     _out.write("\r\n".getBytes());
                     _out.flush();
@@ -575,14 +667,27 @@ public class URLFetcher implements HTTPClient {
                 sslsocket.setUseClientMode(true);
                 _socket = sslsocket;
                 _socket.setSoTimeout(_timeout);
+                TlsKeyLog keyLog = TlsKeyLog.getInstance();
+                if (keyLog != null && keyLog.canReadSessions()){
+                    // handshake now so secret is logged before any data is sent
+                    TlsKeyLog.restrictProtocols(sslsocket);
+                    sslsocket.startHandshake();
+                    keyLog.log(sslsocket.getSession());
+                }
             } catch (IOException ioe) {
                 _logger.severe("Error layering SSL over the existing socket: " + ioe);
                 throw ioe;
             }
             _logger.fine("Finished negotiating SSL");
         }
-        _in = _socket.getInputStream();
+        // response heads are read in blocks, stream is kept with the connection
+        _in = new HeadBufferedInputStream(_socket.getInputStream());
         _out = _socket.getOutputStream();
+        _poolKey = _connectionAuth ? null : poolKey;
+    }
+    
+    private static boolean isConnectionAuth(String authHeader) {
+        return authHeader.startsWith("NTLM") || authHeader.startsWith("Negotiate");
     }
 
     private boolean useProxy(HttpUrl url) {
@@ -63,6 +63,7 @@ public class FrameworkModel {
     public static final int CONVERSATION_TYPE_PROXY = 0;
     public static final int CONVERSATION_TYPE_MANUAL = 1;
     public static final int CONVERSATION_TYPE_INTERCEPT = 2;
+    public static final int CONVERSATION_TYPE_IMPORT = 3;
     
     public static final int CONVERSATION_STATUS_NEW = 0;
     public static final int CONVERSATION_STATUS_REQ_SEND = 1;
@@ -80,6 +81,13 @@ public class FrameworkModel {
     
     private SiteModelStore _store = null;
     
+    private volatile ConversationWriteQueue _writeQueue = null;
+    private boolean _writeBehind = false;
+    private int _writeQueueLimit = 256;
+    private int _writeBatchSize = 32;
+    private long _writeFlushInterval = 200;
+    private boolean _writeBlockWhenFull = true;
+    
     private FrameworkUrlModel _urlModel;
     private FrameworkConversationModel _conversationModel;
     
@@ -113,6 +121,7 @@ public class FrameworkModel {
             }
             //_rwl.readLock().acquire(); // downgrade
             //_rwl.writeLock().release();
+            createWriteQueue();
             _urlModel.fireUrlsChanged();
             _conversationModel.fireConversationsChanged();
             fireCookiesChanged();
@@ -127,6 +136,61 @@ public class FrameworkModel {
         return _store != null;
     }
     
+    /**
+     * configures write behind of conversation updates. When enabled updates are
+     * written to store by background thread in batches of batchSize or after 
+     * flushInterval ms. When queueLimit writes are pending caller blocks or write 
+     * is dropped.
+     */
+    public synchronized void setWriteBehind(boolean enabled, int queueLimit, int batchSize, long flushInterval, boolean blockWhenFull){
+        _writeBehind = enabled;
+        _writeQueueLimit = queueLimit;
+        _writeBatchSize = batchSize;
+        _writeFlushInterval = flushInterval;
+        _writeBlockWhenFull = blockWhenFull;
+        createWriteQueue();
+    }
+    
+    public ConversationWriteQueue getWriteQueue(){
+        return _writeQueue;
+    }
+    
+    /**
+     * queue for bulk writes like capture import, it blocks when full so nothing
+     * is dropped and writes are grouped in batches of batchSize. Caller has to
+     * shutdown the queue when done.
+     * @return null if there is no store
+     */
+    public synchronized ConversationWriteQueue createBulkWriteQueue(int queueLimit, int batchSize){
+        if (_store == null){
+            return null;
+        }
+        _modified = true;
+        return new ConversationWriteQueue(_store, queueLimit, batchSize, _writeFlushInterval, true);
+    }
+    
+    /**
+     * writes pending conversation updates and stops writer thread. Later updates
+     * go directly to store.
+     */
+    public synchronized void shutdownWriteQueue(){
+        ConversationWriteQueue oldQueue = _writeQueue;
+        _writeQueue = null;
+        if (oldQueue != null){
+            oldQueue.shutdown();
+            if (oldQueue.getWrittenCount() > 0){
+                _modified = true;
+            }
+        }
+    }
+    
+    private synchronized void createWriteQueue(){
+        shutdownWriteQueue();
+        if (_writeBehind && _store != null){
+            _writeQueue = new ConversationWriteQueue(_store, _writeQueueLimit, _writeBatchSize, _writeFlushInterval, _writeBlockWhenFull);
+        }
+    }
+    
 //    public Sync readLock() {
 //        return //_rwl.readLock();
 //    }
@@ -145,6 +209,10 @@ public class FrameworkModel {
      * @throws StoreException if there is any problem writing to the store
      */
     public void flush() throws StoreException {
+        ConversationWriteQueue writeQueue = _writeQueue;
+        if (writeQueue != null){
+            writeQueue.flush();
+        }
         if (_modified) {
             try {
                 //_rwl.readLock().acquire();
@@ -165,6 +233,10 @@ public class FrameworkModel {
      *@return true if the model has been modified since it was last flushed, false otherwise
      */
     public boolean isModified() {
+        ConversationWriteQueue writeQueue = _writeQueue;
+        if (writeQueue != null && writeQueue.getPendingCount() > 0){
+            return true;
+        }
         return _modified;
     }
     
@@ -179,18 +251,34 @@ public class FrameworkModel {
     }
     
     public long createNewConversation(Date when, int type, ConnectionDescriptor connectionDescriptor){
+        ConversationWriteQueue writeQueue = _writeQueue;
+        if (writeQueue != null){
+            return writeQueue.createNewConversation(when, type, connectionDescriptor);
+        }
         return _store.createNewConversation(when, type, connectionDescriptor);
     }
     
     public long updateGotRequestConversation(long conversationId, Date when, Request request){
+        ConversationWriteQueue writeQueue = _writeQueue;
+        if (writeQueue != null){
+            return writeQueue.updateGotRequestConversation(conversationId, when, request);
+        }
         return _store.updateGotRequestConversation(conversationId, when, request);
     }
     
     public long updateGotResponseConversation(long conversationId, Date when, Request request, Response response){
+        ConversationWriteQueue writeQueue = _writeQueue;
+        if (writeQueue != null){
+            return writeQueue.updateGotResponseConversation(conversationId, when, request, response);
+        }
         return _store.updateGotResponseConversation(conversationId, when, request, response);
     }
     
     public long updateFailedConversation(long conversationId, Date when,  Request request, String reason){
+        ConversationWriteQueue writeQueue = _writeQueue;
+        if (writeQueue != null){
+            return writeQueue.updateFailedConversation(conversationId, when, request, reason);
+        }
         return _store.updateFailedConversation(conversationId, when, request, reason);
     }
     
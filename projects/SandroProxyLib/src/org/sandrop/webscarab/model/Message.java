@@ -32,6 +32,7 @@
 
 package org.sandrop.webscarab.model;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
@@ -43,6 +44,7 @@ import java.io.OutputStream;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
@@ -51,11 +53,11 @@ import java.util.zip.DeflaterInputStream;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
-import java.util.zip.InflaterOutputStream;
 
 import org.sandrop.webscarab.httpclient.ChunkedInputStream;
 import org.sandrop.webscarab.httpclient.ChunkedOutputStream;
 import org.sandrop.webscarab.httpclient.FixedLengthInputStream;
+import org.sandrop.webscarab.httpclient.HeadBufferedInputStream;
 
 import android.util.Log;
 
@@ -77,12 +79,20 @@ public class Message {
     private static boolean LOGD = false;
     private static String TAG = Message.class.getName();
     
+    private static int MAX_HEADER_COUNT = 256;
+    private static int MAX_HEAD_SIZE = 64 * 1024;
+    
+    private static ContentCapturePolicy _capturePolicy = null;
+    
     private InputStream _contentStream = null;
     private MessageOutputStream _content = null;
     private boolean _chunked = false;
     private boolean _gzipped = false;
     private boolean _deflate = false;
     private int _length = -1;
+    private int _contentHolds = 0;
+    private boolean _cleanPending = false;
+    private boolean _contentTruncated = false;
     protected Logger _logger = Logger.getLogger(this.getClass().getName());
     
     /** Message is a class that is used to represent the bulk of an HTTP message, namely
@@ -108,6 +118,27 @@ public class Message {
         return MessageOutputStream.LARGE_CONTENT_SIZE;
     }
     
+    /**
+     * @param policy decides how much of body is kept when body is streamed, null to keep whole body
+     */
+    public static void setCapturePolicy(ContentCapturePolicy policy){
+        _capturePolicy = policy;
+    }
+    
+    /**
+     * limits for message head read from stream, larger heads are rejected with IOException
+     * @param maxHeaderCount max number of header lines
+     * @param maxHeadSize max size of start line and of all header lines together
+     */
+    public static void setHeadLimits(int maxHeaderCount, int maxHeadSize){
+        if (maxHeaderCount > 0){
+            MAX_HEADER_COUNT = maxHeaderCount;
+        }
+        if (maxHeadSize > 0){
+            MAX_HEAD_SIZE = maxHeadSize;
+        }
+    }
+    
     /**
      * Instructs the class to read the headers from the InputStream, and assign the
      * InputStream as the contentStream, from which the body of the message can be
@@ -119,9 +150,16 @@ public class Message {
         _headers = null;
         String previous = null;
         String line = null;
+        boolean logHeaders = _logger.isLoggable(Level.FINER);
+        int headerCount = 0;
+        int headSize = 0;
         do {
             line=readLine(is);
-            _logger.finer("Header: " + line);
+            if (logHeaders) _logger.finer("Header: " + line);
+            headSize += line.length() + 2;
+            if (headSize > MAX_HEAD_SIZE) {
+                throw new IOException("Message headers are larger than " + MAX_HEAD_SIZE + " bytes");
+            }
             if (line.startsWith(" ")) {
                 if (previous == null) {
                     _logger.severe("Got a continuation header but had no previous header line");
@@ -130,16 +168,19 @@ public class Message {
                 }
             } else {
                 if (previous != null) {
-                    String[] pair = previous.split(":", 2);
-                    if (pair.length == 2) {
-                        addHeader(new NamedValue(pair[0], pair[1].trim()));
+                    int colon = previous.indexOf(':');
+                    if (colon > -1) {
+                        if (++headerCount > MAX_HEADER_COUNT) {
+                            throw new IOException("Message has more than " + MAX_HEADER_COUNT + " headers");
+                        }
+                        addHeader(new NamedValue(previous.substring(0, colon), previous.substring(colon + 1).trim()));
                     } else {
                         // _logger.finest("Error parsing header: '" + previous + "'");
                     }
                 }
                 previous = line;
             }
-        } while (!line.equals(""));
+        } while (line.length() != 0);
         
         _contentStream = is;
         if (_chunked) {
@@ -149,6 +190,13 @@ public class Message {
         }
     }
     
+    /**
+     * @return true if body was not yet completely read from stream message was read from
+     */
+    public boolean isContentPending(){
+        return _contentStream != null;
+    }
+    
     public InputStream getContentStream(){
         if (_contentStream != null){
             return _contentStream;
@@ -169,6 +217,20 @@ public class Message {
         return _chunked;
     }
     
+    /**
+     * @return true if body was forwarded but only part of it or nothing was kept because of capture policy
+     */
+    public boolean isContentTruncated(){
+        return _contentTruncated;
+    }
+    
+    /**
+     * @param truncated true if stored body is only first part of the one that was forwarded
+     */
+    public void setContentTruncated(boolean truncated){
+        _contentTruncated = truncated;
+    }
+    
     public int getContentSize(){
         if (_content != null){
             return _content.size();
@@ -178,6 +240,13 @@ public class Message {
     }
     
     public void clean(){
+        synchronized (this) {
+            if (_contentHolds > 0){
+                // someone still needs content, it is cleaned on last releaseContent
+                _cleanPending = true;
+                return;
+            }
+        }
         try {
             if (_content != null){
                 _content.close();
@@ -187,6 +256,26 @@ public class Message {
         }
     }
     
+    /**
+     * keeps content from being removed by clean until releaseContent is called
+     */
+    public synchronized void holdContent(){
+        _contentHolds++;
+    }
+    
+    public void releaseContent(){
+        synchronized (this) {
+            if (_contentHolds > 0){
+                _contentHolds--;
+            }
+            if (_contentHolds > 0 || !_cleanPending){
+                return;
+            }
+            _cleanPending = false;
+        }
+        clean();
+    }
+    
 //    private boolean createRandomFileName() {
 //        String rootDirName = Preferences.getPreference(PreferenceUtils.dataStorageKey, null);
 //        String tempDirName = null;
@@ -220,6 +309,22 @@ public class Message {
         }
     }
     
+    /**
+     * body is read from stream when it is first needed, as it is with 
+     * content read from connection
+     */
+    public void setContentStream(InputStream is){
+        _content = null;
+        _contentStream = is;
+    }
+    
+    /**
+     * @return new stream over captured body, null if message has no body
+     */
+    public InputStream openContentStream() throws IOException{
+        return getContentInputStream();
+    }
+    
     public String getContentFileName(){
         String result = null;
         if (_content != null){
@@ -249,6 +354,14 @@ public class Message {
         return false;
     }
     
+    /**
+     * uses the same content store as the source message, content is not copied
+     */
+    void shareContent(Message source){
+        _content = source._content;
+        _contentTruncated = source._contentTruncated;
+    }
+    
     /**
      * Writes the Message headers and content to the supplied OutputStream
      * @param os The OutputStream to write the Message headers and content to
@@ -577,7 +690,8 @@ public class Message {
      * a protected method to read a line up to and including the CR or CRLF.
      *
      * We don't use a BufferedInputStream so that we don't read further than we should
-     * i.e. into the message body, or next message!
+     * i.e. into the message body, or next message! HeadBufferedInputStream keeps
+     * bytes read over the line for the following reads, so it is read in blocks.
      * @param is The InputStream to read the line from
      * @throws IOException if an IOException occurs while reading from the supplied InputStream
      * @return the line that was read, WITHOUT the CR or CRLF
@@ -588,6 +702,9 @@ public class Message {
             npe.printStackTrace();
             throw npe;
         }
+        if (is instanceof HeadBufferedInputStream) {
+            return ((HeadBufferedInputStream) is).readLine(MAX_HEAD_SIZE);
+        }
         StringBuffer line = new StringBuffer();
         int i;
         char c=0x00;
@@ -606,6 +723,28 @@ public class Message {
         return line.toString();
     }
     
+    /**
+     * splits start line on single spaces, same as line.split(" ", limit) without regular expression
+     * @param limit max number of parts, 0 for no limit and trailing empty parts removed
+     */
+    protected static String[] splitLine(String line, int limit) {
+        ArrayList<String> parts = new ArrayList<String>(3);
+        int start = 0;
+        int space;
+        while ((limit == 0 || parts.size() < limit - 1) && (space = line.indexOf(' ', start)) > -1) {
+            parts.add(line.substring(start, space));
+            start = space + 1;
+        }
+        parts.add(line.substring(start));
+        if (limit == 0) {
+            int size = parts.size();
+            while (size > 1 && parts.get(size - 1).length() == 0) {
+                parts.remove(--size);
+            }
+        }
+        return parts.toArray(new String[parts.size()]);
+    }
+    
     /**
      * a protected method to read a line up to and including the CR or CRLF.
      * Removes the line from the supplied StringBuffer.
@@ -650,64 +789,59 @@ public class Message {
         } catch (IOException ioe) {
             _logger.info("IOException flushing the contentStream: " + ioe);
         }
-        if (_content != null && _gzipped) {
-            try {
-                InputStream is = getContentInputStream();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                GZIPInputStream gzis = new GZIPInputStream(is);
-                byte[] buff = new byte[1024];
-                int got;
-                while ((got = gzis.read(buff))>-1) {
-                    baos.write(buff, 0, got);
-                }
-                return baos.toByteArray();
-            } catch (Exception ioe) {
-                _logger.info("Exception unzipping content : " + ioe.getMessage());
-                return NO_CONTENT;
-            }
-        } else if (_content != null && _deflate){
-            try {
-                InputStream is = getContentInputStream();
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                InflaterOutputStream iflos = new InflaterOutputStream(baos, new Inflater(true));
-                byte[] buff = new byte[1024];
-                int got;
-                while ((got = is.read(buff))>-1) {
-                    iflos.write(buff, 0, got);
-                }
-                return baos.toByteArray();
-            } catch (Exception ioe) {
-                _logger.info("Exception unzipping content : " + ioe.getMessage());
-                return NO_CONTENT;
-            }
+        if (_content == null) {
+            return NO_CONTENT;
         }
-        if ((_content != null)) {
+        InputStream is = null;
+        try {
+            is = decodeContentStream();
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            
-            try {
-                InputStream is;
-                if (_gzipped){
-                    is = new GZIPInputStream(getContentInputStream());
-                }else if (_deflate){
-                    is = new InflaterInputStream(getContentInputStream(), new Inflater(true));
-                }else{
-                    is = getContentInputStream();
-                }
-                byte[] buff = new byte[1024];
-                int got;
-                while ((got = is.read(buff))>-1) {
-                    baos.write(buff, 0, got);
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-                return NO_CONTENT;
+            byte[] buff = new byte[4096];
+            int got;
+            while ((got = is.read(buff))>-1) {
+                baos.write(buff, 0, got);
             }
             return baos.toByteArray();
-        } else {
+        } catch (Exception e) {
+            _logger.info("Exception decoding content : " + e.getMessage());
             return NO_CONTENT;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                }
+            }
         }
     }
     
+    /**
+     * streaming alternative to getContent, content is unzipped while it is read
+     * so large bodies do not have to be held in memory
+     * @return stream of the message body with gzip or deflate encoding removed
+     */
+    public InputStream getDecodedContentStream() throws IOException {
+        flushContentStream(null);
+        return decodeContentStream();
+    }
+    
+    private InputStream decodeContentStream() throws IOException {
+        InputStream is = getContentInputStream();
+        if (is == null) {
+            return new ByteArrayInputStream(NO_CONTENT);
+        }
+        if (_contentTruncated) {
+            // end of compressed stream is missing, body is given as it was kept
+            return is;
+        }
+        if (_gzipped) {
+            return new GZIPInputStream(is);
+        } else if (_deflate) {
+            return new InflaterInputStream(is, new Inflater(true));
+        }
+        return is;
+    }
+    
     
     /**
      * reads all content from the content stream if one exists. Bytes read are stored internally, and returned via getContent()
@@ -732,15 +866,40 @@ public class Message {
         IOException ioe = null;
         if (_contentStream == null) return;
         _content = new MessageOutputStream();
-        byte[] buf = new byte[4096];
+        // capture policy only applies when body is forwarded, otherwise body is read to be used
+        ContentCapturePolicy policy = os != null ? _capturePolicy : null;
+        int mode = ContentCapturePolicy.CAPTURE_FULL;
+        if (policy != null) {
+            mode = policy.getMode(getHeader("Content-Type"), _length);
+        }
+        int limit = policy != null ? policy.getCaptureLimit(mode) : -1;
+        long captured = 0;
+        byte[] buf = new byte[mode == ContentCapturePolicy.CAPTURE_FULL ? 4096 : 16384];
         _logger.finest("Reading initial bytes from contentStream " + _contentStream);
         
         int got = _contentStream.read(buf);
-        int sum = got; 
         _logger.finest("Got " + got + " bytes");
         while (got > 0) {
-            sum += got;
-            _content.write(buf,0, got);
+            if (limit < 0 || captured < limit) {
+                int keep = limit < 0 ? got : (int) Math.min(got, limit - captured);
+                _content.write(buf, 0, keep);
+                captured += keep;
+                if (keep < got) {
+                    _contentTruncated = true;
+                }
+            } else {
+                _contentTruncated = true;
+            }
+            if (mode == ContentCapturePolicy.CAPTURE_FULL && policy != null && policy.isLarge(captured)) {
+                // length was not known before, body turned out to be large
+                mode = policy.getLargeMode();
+                limit = policy.getCaptureLimit(mode);
+                if (mode == ContentCapturePolicy.PASS_THROUGH) {
+                    _content.close();
+                    _content = new MessageOutputStream();
+                    _contentTruncated = true;
+                }
+            }
             if (os != null) {
                 try {
                     os.write(buf,0,got);
@@ -816,6 +975,27 @@ public class Message {
         }
     }
     
+    /**
+     * Sets the body as it was seen on the wire, without chunks but still in its
+     * content encoding, same as the body kept when message is forwarded by proxy.
+     * Headers are left as they are.
+     * @param bytes array holding the body
+     * @param offset start of body in array
+     * @param length length of body
+     * @param truncated true if only first part of the body was kept
+     */
+    public void setRawContent(byte[] bytes, int offset, int length, boolean truncated) {
+        _contentStream = null;
+        _content = new MessageOutputStream();
+        try {
+            _content.write(bytes, offset, length);
+            _content.flush();
+        } catch (IOException ioe) {
+            _logger.info("IOException storing content : " + ioe);
+        }
+        _contentTruncated = truncated;
+    }
+    
     public boolean equals(Object obj) {
         if (! (obj instanceof Message)) return false;
         Message mess = (Message) obj;
@@ -25,6 +25,35 @@ public class MessageOutputStream extends OutputStream implements java.io.Closeab
     
     public static int LARGE_CONTENT_SIZE = 1024 * 1024;
     private static long SUM_MEMORY_CONTENT_ALL = 0;
+    private static File SPILL_DIRECTORY = null;
+    
+    /**
+     * large content is written to temp files in this directory, when it is on the
+     * same file system as store moving content to store is only a rename
+     * @param dir directory for temp files, null for system temp directory
+     */
+    public static void setSpillDirectory(File dir){
+        if (dir != null && !dir.exists()){
+            dir.mkdirs();
+        }
+        if (dir != null && (!dir.isDirectory() || !dir.canWrite())){
+            if (LOGD) Log.d(TAG, "Spill directory not writable " + dir.getAbsolutePath());
+            dir = null;
+        }
+        SPILL_DIRECTORY = dir;
+    }
+    
+    private static File createSpillFile() throws IOException{
+        File dir = SPILL_DIRECTORY;
+        if (dir != null){
+            try {
+                return File.createTempFile("SandroProxy", ".tmp", dir);
+            } catch (IOException e) {
+                if (LOGD) Log.d(TAG, "Could not create temp file in " + dir.getAbsolutePath() + " " + e.getMessage());
+            }
+        }
+        return File.createTempFile("SandroProxy", ".tmp");
+    }
     
     public static void resetActiveMemorySize(){
         SUM_MEMORY_CONTENT_ALL = 0;
@@ -62,22 +91,30 @@ public class MessageOutputStream extends OutputStream implements java.io.Closeab
                     return false;
                 }
                 if (LOGD) Log.d(TAG, " start rename file storing content to file " + newAbsolutePath);
-                file.renameTo(newFile);
-                return true;
-            }else{
-                FileOutputStream fs = new FileOutputStream(newFile);
-                byte[] buffer = new byte[4096]; // Adjust if you want
-                int bytesRead;
-                InputStream is = getInputStream();
-                while ((bytesRead = is.read(buffer)) != -1)
-                {
-                    fs.write(buffer, 0, bytesRead);
+                if (fileStream != null){
+                    fileStream.flush();
                 }
-                if (LOGD) Log.d(TAG, " byte buffer storing content to file " + newFile.getAbsolutePath());
-                fs.flush();
-                fs.close();
-                return true;
+                if (file.renameTo(newFile)){
+                    // content now lives in store file, it must not be deleted on clean
+                    file = newFile;
+                    deleteOnClean = false;
+                    return true;
+                }
+                if (LOGD) Log.d(TAG, " rename failed, copy content to file " + newAbsolutePath);
+            }
+            FileOutputStream fs = new FileOutputStream(newFile);
+            byte[] buffer = new byte[4096]; // Adjust if you want
+            int bytesRead;
+            InputStream is = getInputStream();
+            while ((bytesRead = is.read(buffer)) != -1)
+            {
+                fs.write(buffer, 0, bytesRead);
             }
+            is.close();
+            if (LOGD) Log.d(TAG, " byte buffer storing content to file " + newFile.getAbsolutePath());
+            fs.flush();
+            fs.close();
+            return true;
         }catch(Exception ex){
             ex.printStackTrace();
             throw ex;
@@ -94,7 +131,7 @@ public class MessageOutputStream extends OutputStream implements java.io.Closeab
                 int size = memoryStream.size();
                 useFileStream = true;
                 try {
-                    file = File.createTempFile("SandroProxy", ".tmp");
+                    file = createSpillFile();
                     if (LOGD) Log.d(TAG, "Memory content. Creating temp file:"  + file.getAbsoluteFile());
                     fileStream = new FileOutputStream(file);
                     byte[] data = memoryStream.toByteArray();
@@ -121,7 +158,7 @@ public class MessageOutputStream extends OutputStream implements java.io.Closeab
         if (!useFileStream &&  SUM_MEMORY_CONTENT_ALL > LARGE_CONTENT_SIZE){
             int size = memoryStream.size();
             useFileStream = true;
-            file = File.createTempFile("SandroProxy", ".tmp");
+            file = createSpillFile();
             if (LOGD) Log.d(TAG, "Memory content. Creating temp file:"  + file.getAbsoluteFile());
             fileStream = new FileOutputStream(file);
             byte[] data = memoryStream.toByteArray();
@@ -177,11 +214,11 @@ public class MessageOutputStream extends OutputStream implements java.io.Closeab
     
     @Override
     public void close() throws IOException {
+        if (fileStream != null){
+            fileStream.close();
+            fileStream = null;
+        }
         if (useFileStream && deleteOnClean){
-            if (fileStream != null){
-                fileStream.close();
-                fileStream = null;
-            }
             if (file != null && file.exists()){
                 if (LOGD) Log.d(TAG, "Memory content. Deleting temp file:"  + file.getAbsoluteFile());
                 file.delete();
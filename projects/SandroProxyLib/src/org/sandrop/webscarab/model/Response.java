@@ -50,6 +50,7 @@ public class Response extends Message {
     private String message = null;
     private Request _request = null;
     private Socket _socket = null;
+    private InputStream _socketIn = null;
     private boolean _protocolswitch = false;
     public static String NO_DATA_FROM_SERVER = "No data received from the server";
     
@@ -71,12 +72,31 @@ public class Response extends Message {
     
     public void setSocket(Socket socket){
         _socket = socket;
+        _socketIn = null;
+    }
+    
+    /**
+     * @param socketIn stream response was read from, it can hold bytes already read from socket
+     */
+    public void setSocket(Socket socket, InputStream socketIn){
+        _socket = socket;
+        _socketIn = socketIn;
     }
     
     public Socket getSocket(){
         return _socket;
     }
     
+    /**
+     * @return stream for reading data that follows this response on socket
+     */
+    public InputStream getSocketInputStream() throws IOException{
+        if (_socketIn != null){
+            return _socketIn;
+        }
+        return _socket.getInputStream();
+    }
+    
     /**
      * parses the provided InputStream into an HTTP Response. It only parses the header
      * part, and sets the ContentStream to the InputStream at the appropriate point.
@@ -88,7 +108,7 @@ public class Response extends Message {
         if (line == null) {
             throw new IOException(NO_DATA_FROM_SERVER);
         }
-        String[] parts = line.split(" ", 3);
+        String[] parts = splitLine(line, 3);
         if (parts.length >= 2) {
             setVersion(parts[0]);
             setStatus(parts[1]);
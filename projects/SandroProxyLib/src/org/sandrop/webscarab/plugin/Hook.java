@@ -33,18 +33,27 @@
 package org.sandrop.webscarab.plugin;
 
 import java.util.List;
-import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Logger;
 
 import org.apache.bsf.BSFManager;
 import org.apache.bsf.BSFException;
 
+/**
+ * Point where scripts are run. Scripts of a hook run on a script engine 
+ * borrowed from the pool, so hooks of concurrent connections do not wait on 
+ * each other. Script marked as serial is run by one thread at a time.
+ */
 public class Hook {
     
+    // scripts slower than this are logged
+    private static final long SLOW_SCRIPT_NANOS = 500 * 1000000L;
+    
     private String _name;
     private String _description;
-    private List<Script> _scripts = new ArrayList<Script>();
-    protected BSFManager _bsfManager = null;
+    private List<Script> _scripts = new CopyOnWriteArrayList<Script>();
+    protected ScriptEnginePool<BSFManager> _enginePool = null;
+    private ScriptStats _stats = new ScriptStats();
     
     private Logger _logger = Logger.getLogger(getClass().getName());
     
@@ -54,27 +63,78 @@ public class Hook {
         _description = description;
     }
     
-    public void setBSFManager(BSFManager bsfManager) {
-        _bsfManager = bsfManager;
+    public void setEnginePool(ScriptEnginePool<BSFManager> enginePool) {
+        _enginePool = enginePool;
     }
     
-    protected void runScripts() {
-        if (_bsfManager == null) return;
-        synchronized(_bsfManager) {
-            for (int i=0; i<_scripts.size(); i++) {
-                Script script = _scripts.get(i);
+    /**
+     * runs enabled scripts with beans declared under given names
+     */
+    protected void runScripts(String[] beanNames, Object[] beans) {
+        if (_enginePool == null || _scripts.isEmpty()) return;
+        long start = System.nanoTime();
+        boolean error = false;
+        BSFManager bsfManager = null;
+        boolean broken = true;
+        try {
+            bsfManager = _enginePool.borrow();
+            for (int i=0; i<beanNames.length; i++) {
+                bsfManager.declareBean(beanNames[i], beans[i], beans[i].getClass());
+            }
+            for (Script script : _scripts) {
                 if (script.isEnabled()) {
-//                    if (_scriptManager != null) _scriptManager.scriptStarted(this, script);
-                    try {
-                        _bsfManager.exec(script.getLanguage(), _name, 0, 0, script.getScript());
-                    } catch (BSFException bsfe) {
-                        _logger.warning("Script exception: " + bsfe);
-//                        if (_scriptManager != null) _scriptManager.scriptError(this, script, bsfe);
-                    }
-//                    if (_scriptManager != null) _scriptManager.scriptEnded(this, script);
+                    error |= !runScript(bsfManager, script);
                 }
             }
+            for (int i=0; i<beanNames.length; i++) {
+                bsfManager.undeclareBean(beanNames[i]);
+            }
+            broken = false;
+        } catch (Exception e) {
+            error = true;
+            _logger.severe("Declaring or undeclaring a bean should not throw an exception! " + e);
+        } finally {
+            if (broken) {
+                // engine may still hold the beans, it is not reused
+                _enginePool.discard(bsfManager);
+            } else {
+                _enginePool.release(bsfManager);
+            }
         }
+        _stats.record(System.nanoTime() - start, error);
+    }
+    
+    private boolean runScript(BSFManager bsfManager, Script script) {
+        long start = System.nanoTime();
+        boolean ok = true;
+        try {
+            if (script.isSerial()) {
+                synchronized (script) {
+                    long locked = System.nanoTime();
+                    script.getStats().recordWait(locked - start);
+                    start = locked;
+                    bsfManager.exec(script.getLanguage(), _name, 0, 0, script.getScript());
+                }
+            } else {
+                bsfManager.exec(script.getLanguage(), _name, 0, 0, script.getScript());
+            }
+        } catch (BSFException bsfe) {
+            ok = false;
+            _logger.warning("Script exception: " + bsfe);
+        }
+        long nanos = System.nanoTime() - start;
+        script.getStats().record(nanos, !ok);
+        if (nanos > SLOW_SCRIPT_NANOS) {
+            _logger.info("Script " + script.getFile() + " in hook " + _name + " took " + (nanos / 1000000) + "ms");
+        }
+        return ok;
+    }
+    
+    /**
+     * @return timing of all scripts of this hook together, per script timing is in Script.getStats
+     */
+    public ScriptStats getStats() {
+        return _stats;
     }
     
     public String getName() {
@@ -0,0 +1,544 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.pcapimport;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.sandrop.webscarab.model.ConversationWriteQueue;
+import org.sandrop.webscarab.model.FrameworkModel;
+import org.sandrop.webscarab.model.Preferences;
+import org.sandrop.webscarab.model.Request;
+import org.sandrop.webscarab.model.Response;
+import org.sandroproxy.utils.PreferenceUtils;
+
+import android.util.Log;
+
+/**
+ * Imports http conversations from pcap capture into the store. 
+ * 
+ * Capture is read as a stream so files of any size can be imported. Tcp 
+ * segments are put back in order per flow, IPv4 fragments are joined, and
+ * HTTP/1.x requests and responses found in the streams are paired and 
+ * written to store in batches. Memory is bounded: out of order data per 
+ * direction is limited by stream window, kept body by body limit, and when 
+ * all flows together hold more than memory limit least recently active flows
+ * are completed and dropped. Flows are also completed on FIN or RST and when
+ * they are idle longer than idle timeout, measured in capture time.
+ * 
+ * Supported link types are ethernet, raw ip, linux cooked and bsd loopback.
+ */
+public class PcapImporter {
+    
+    private static String TAG = PcapImporter.class.getSimpleName();
+    private static boolean LOGD = false;
+    
+    private static final int MAGIC_MICROS = 0xa1b2c3d4;
+    private static final int MAGIC_NANOS = 0xa1b23c4d;
+    
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+    private static final int LINKTYPE_IPV6 = 229;
+    
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86dd;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    
+    private static final int PROTOCOL_TCP = 6;
+    
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+    private static final long FRAGMENT_TIMEOUT = 30 * 1000000L;
+    private static final int FRAGMENT_MEMORY = 4 * 1024 * 1024;
+    // how often idle flows are looked for, in capture time
+    private static final long EXPIRE_INTERVAL = 1000000L;
+    
+    private FrameworkModel _model;
+    private long _memoryLimit;
+    private long _idleTimeout;
+    private int _bodyLimit;
+    private int _streamWindow;
+    private int _batchSize;
+    
+    private LinkedHashMap<FlowKey, TcpFlow> _flows = new LinkedHashMap<FlowKey, TcpFlow>(256, 0.75f, true);
+    private FlowKey _probe = new FlowKey();
+    private FragmentReassembler _fragments = new FragmentReassembler(FRAGMENT_TIMEOUT, FRAGMENT_MEMORY);
+    private ConversationWriteQueue _queue;
+    private long _nextExpire;
+    
+    private long _buffered;
+    private long _peakBuffered;
+    private long _packets;
+    private long _skippedPackets;
+    private long _flowCount;
+    private long _evictedFlows;
+    private long _gaps;
+    private long _conversations;
+    private long _failedConversations;
+    private long _orphanResponses;
+    private long _parseErrors;
+    
+    public PcapImporter(FrameworkModel model){
+        _model = model;
+        _memoryLimit = Preferences.getPreferenceInt(PreferenceUtils.pcapImportMemoryLimit, 32) * 1024L * 1024L;
+        _idleTimeout = Preferences.getPreferenceInt(PreferenceUtils.pcapImportIdleTimeout, 120) * 1000000L;
+        _bodyLimit = Preferences.getPreferenceInt(PreferenceUtils.pcapImportBodyLimit, 1024) * 1024;
+        _streamWindow = Preferences.getPreferenceInt(PreferenceUtils.pcapImportStreamWindow, 256) * 1024;
+        _batchSize = Preferences.getPreferenceInt(PreferenceUtils.pcapImportBatchSize, 64);
+    }
+    
+    /**
+     * @return number of conversations written to store
+     */
+    public long importFile(File file) throws IOException{
+        InputStream is = new FileInputStream(file);
+        try {
+            return importStream(is);
+        } finally {
+            is.close();
+        }
+    }
+    
+    /**
+     * reads whole capture from stream, stream is not closed
+     * @return number of conversations written to store
+     */
+    public long importStream(InputStream stream) throws IOException{
+        _queue = _model.createBulkWriteQueue(_batchSize * 4, _batchSize);
+        if (_queue == null){
+            throw new IOException("No store to import capture to");
+        }
+        long conversationsBefore = _conversations;
+        try {
+            readCapture(new BufferedInputStream(stream, 64 * 1024));
+        } finally {
+            Iterator<TcpFlow> it = _flows.values().iterator();
+            while (it.hasNext()){
+                TcpFlow flow = it.next();
+                it.remove();
+                flow.finish(flow.lastSeen);
+            }
+            _queue.shutdown();
+            _queue = null;
+        }
+        if (LOGD) Log.d(TAG, "Imported " + (_conversations - conversationsBefore) + " conversations from " 
+                + _packets + " packets, " + _flowCount + " flows, peak memory " + _peakBuffered);
+        return _conversations - conversationsBefore;
+    }
+    
+    private void readCapture(InputStream is) throws IOException{
+        byte[] header = new byte[24];
+        readFully(is, header, 24);
+        boolean swapped;
+        int magic = getInt(header, 0, false);
+        if (magic == MAGIC_MICROS || magic == MAGIC_NANOS){
+            swapped = false;
+        } else {
+            magic = getInt(header, 0, true);
+            if (magic != MAGIC_MICROS && magic != MAGIC_NANOS){
+                throw new IOException("Not a pcap file, magic " + Integer.toHexString(magic));
+            }
+            swapped = true;
+        }
+        boolean nanos = magic == MAGIC_NANOS;
+        int linkType = getInt(header, 20, swapped) & 0xffff;
+        byte[] record = new byte[16];
+        byte[] data = new byte[64 * 1024];
+        while (true){
+            if (!readRecordHeader(is, record)){
+                break;
+            }
+            long seconds = getInt(record, 0, swapped) & 0xffffffffL;
+            long fraction = getInt(record, 4, swapped) & 0xffffffffL;
+            int capLen = getInt(record, 8, swapped);
+            if (capLen < 0 || capLen > MAX_RECORD){
+                throw new IOException("Invalid packet length " + capLen + " after packet " + _packets);
+            }
+            if (capLen > data.length){
+                data = new byte[capLen];
+            }
+            readFully(is, data, capLen);
+            long ts = seconds * 1000000L + (nanos ? fraction / 1000 : fraction);
+            _packets++;
+            packet(linkType, data, capLen, ts);
+        }
+    }
+    
+    private void packet(int linkType, byte[] data, int len, long ts){
+        int off;
+        int etherType;
+        switch (linkType){
+        case LINKTYPE_ETHERNET:
+            if (len < 14){
+                _skippedPackets++;
+                return;
+            }
+            etherType = getShort(data, 12);
+            off = 14;
+            while (etherType == ETHERTYPE_VLAN && off + 4 <= len){
+                etherType = getShort(data, off + 2);
+                off += 4;
+            }
+            break;
+        case LINKTYPE_LINUX_SLL:
+            if (len < 16){
+                _skippedPackets++;
+                return;
+            }
+            etherType = getShort(data, 14);
+            off = 16;
+            break;
+        case LINKTYPE_NULL:
+            // address family in host byte order, version nibble tells the same
+            off = 4;
+            etherType = len > off ? versionToEtherType(data[off]) : -1;
+            break;
+        case LINKTYPE_RAW:
+        case LINKTYPE_IPV4:
+        case LINKTYPE_IPV6:
+            off = 0;
+            etherType = len > off ? versionToEtherType(data[off]) : -1;
+            break;
+        default:
+            _skippedPackets++;
+            return;
+        }
+        if (etherType == ETHERTYPE_IPV4){
+            ipv4(data, off, len, ts);
+        } else if (etherType == ETHERTYPE_IPV6){
+            ipv6(data, off, len, ts);
+        } else {
+            _skippedPackets++;
+        }
+        if (ts >= _nextExpire){
+            expireIdle(ts);
+            _nextExpire = ts + EXPIRE_INTERVAL;
+        }
+        while (_buffered > _memoryLimit && !_flows.isEmpty()){
+            evictOldest();
+        }
+    }
+    
+    private static int versionToEtherType(byte first){
+        int version = (first >> 4) & 0x0f;
+        return version == 4 ? ETHERTYPE_IPV4 : version == 6 ? ETHERTYPE_IPV6 : -1;
+    }
+    
+    private void ipv4(byte[] data, int off, int end, long ts){
+        if (end - off < 20){
+            _skippedPackets++;
+            return;
+        }
+        int headerLen = (data[off] & 0x0f) * 4;
+        int totalLen = getShort(data, off + 2);
+        // ethernet padding after datagram, or datagram cut by snap length
+        int datagramEnd = Math.min(end, off + totalLen);
+        if (headerLen < 20 || datagramEnd < off + headerLen){
+            _skippedPackets++;
+            return;
+        }
+        int protocol = data[off + 9] & 0xff;
+        if (protocol != PROTOCOL_TCP){
+            _skippedPackets++;
+            return;
+        }
+        int src = getInt(data, off + 12, false);
+        int dst = getInt(data, off + 16, false);
+        int flagsOffset = getShort(data, off + 6);
+        boolean more = (flagsOffset & 0x2000) != 0;
+        int fragmentOffset = (flagsOffset & 0x1fff) * 8;
+        int payload = off + headerLen;
+        if (more || fragmentOffset > 0){
+            byte[] datagram = _fragments.add(src, dst, getShort(data, off + 4), protocol, fragmentOffset, more, 
+                    data, payload, datagramEnd - payload, ts);
+            if (datagram == null){
+                return;
+            }
+            data = datagram;
+            payload = 0;
+            datagramEnd = _fragments.getCompleteLength();
+        }
+        tcp(0, FlowKey.IPV4_MAPPED | (src & 0xffffffffL), 0, FlowKey.IPV4_MAPPED | (dst & 0xffffffffL), 
+                data, payload, datagramEnd, ts);
+    }
+    
+    private void ipv6(byte[] data, int off, int end, long ts){
+        if (end - off < 40){
+            _skippedPackets++;
+            return;
+        }
+        int payloadLen = getShort(data, off + 4);
+        int next = data[off + 6] & 0xff;
+        long srcHi = getLong(data, off + 8);
+        long srcLo = getLong(data, off + 16);
+        long dstHi = getLong(data, off + 24);
+        long dstLo = getLong(data, off + 32);
+        int datagramEnd = Math.min(end, off + 40 + payloadLen);
+        int pos = off + 40;
+        // walk extension headers
+        while (next != PROTOCOL_TCP){
+            if (pos + 8 > datagramEnd){
+                _skippedPackets++;
+                return;
+            }
+            if (next == 0 || next == 43 || next == 60){
+                next = data[pos] & 0xff;
+                pos += ((data[pos + 1] & 0xff) + 1) * 8;
+            } else if (next == 51){
+                next = data[pos] & 0xff;
+                pos += ((data[pos + 1] & 0xff) + 2) * 4;
+            } else if (next == 44){
+                // only unfragmented datagrams with fragment header
+                int fragment = getShort(data, pos + 2);
+                if ((fragment & 0xfff9) != 0){
+                    _skippedPackets++;
+                    return;
+                }
+                next = data[pos] & 0xff;
+                pos += 8;
+            } else {
+                _skippedPackets++;
+                return;
+            }
+        }
+        tcp(srcHi, srcLo, dstHi, dstLo, data, pos, datagramEnd, ts);
+    }
+    
+    private void tcp(long srcHi, long srcLo, long dstHi, long dstLo, byte[] data, int off, int end, long ts){
+        if (end - off < 20){
+            _skippedPackets++;
+            return;
+        }
+        int srcPort = getShort(data, off);
+        int dstPort = getShort(data, off + 2);
+        int seq = getInt(data, off + 4, false);
+        int headerLen = ((data[off + 12] >> 4) & 0x0f) * 4;
+        int flags = data[off + 13] & 0xff;
+        if (headerLen < 20 || off + headerLen > end){
+            _skippedPackets++;
+            return;
+        }
+        _probe.set(srcHi, srcLo, dstHi, dstLo, srcPort, dstPort);
+        TcpFlow flow = _flows.get(_probe);
+        if (flow == null){
+            if ((flags & TcpFlow.TCP_RST) != 0){
+                return;
+            }
+            flow = newFlow(srcHi, srcLo, srcPort, dstHi, dstLo, dstPort, flags);
+        }
+        flow.segment(flow.isFromClient(srcHi, srcLo, srcPort), seq, flags, data, off + headerLen, end - off - headerLen, ts);
+        if (flow.isClosed()){
+            _flows.remove(flow.key);
+            flow.finish(ts);
+        }
+    }
+    
+    private TcpFlow newFlow(long srcHi, long srcLo, int srcPort, long dstHi, long dstLo, int dstPort, int flags){
+        boolean syn = (flags & TcpFlow.TCP_SYN) != 0;
+        boolean ack = (flags & TcpFlow.TCP_ACK) != 0;
+        boolean senderIsClient;
+        if (syn){
+            senderIsClient = !ack;
+        } else {
+            // capture started in the middle, client usually has the higher port
+            senderIsClient = srcPort >= dstPort;
+        }
+        TcpFlow flow;
+        if (senderIsClient){
+            flow = new TcpFlow(this, _probe.copy(), srcHi, srcLo, srcPort, dstHi, dstLo, dstPort, _streamWindow, _bodyLimit);
+        } else {
+            flow = new TcpFlow(this, _probe.copy(), dstHi, dstLo, dstPort, srcHi, srcLo, srcPort, _streamWindow, _bodyLimit);
+        }
+        _flows.put(flow.key, flow);
+        _flowCount++;
+        return flow;
+    }
+    
+    private void expireIdle(long ts){
+        Iterator<TcpFlow> it = _flows.values().iterator();
+        while (it.hasNext()){
+            TcpFlow flow = it.next();
+            if (flow.lastSeen + _idleTimeout > ts){
+                // access order, rest were active later
+                break;
+            }
+            it.remove();
+            flow.finish(ts);
+        }
+    }
+    
+    private void evictOldest(){
+        Iterator<TcpFlow> it = _flows.values().iterator();
+        TcpFlow flow = it.next();
+        it.remove();
+        _evictedFlows++;
+        flow.finish(flow.lastSeen);
+    }
+    
+    void account(int delta){
+        _buffered += delta;
+        if (_buffered > _peakBuffered){
+            _peakBuffered = _buffered;
+        }
+    }
+    
+    void gap(){
+        _gaps++;
+    }
+    
+    void orphanResponse(){
+        _orphanResponses++;
+    }
+    
+    void parseError(IOException e){
+        _parseErrors++;
+        if (LOGD) Log.d(TAG, "Error parsing message: " + e.getMessage());
+    }
+    
+    void store(TcpFlow flow, Request request, long requestTs, Response response, long responseTs){
+        long id = _queue.createNewConversation(new Date(requestTs / 1000), FrameworkModel.CONVERSATION_TYPE_IMPORT, flow.getConnectionDescriptor());
+        if (id >= 0){
+            _queue.updateGotRequestConversation(id, new Date(requestTs / 1000), request);
+            _queue.updateGotResponseConversation(id, new Date(responseTs / 1000), null, response);
+            _conversations++;
+        }
+        request.clean();
+        response.clean();
+    }
+    
+    void storeFailed(TcpFlow flow, Request request, long requestTs, String reason){
+        long id = _queue.createNewConversation(new Date(requestTs / 1000), FrameworkModel.CONVERSATION_TYPE_IMPORT, flow.getConnectionDescriptor());
+        if (id >= 0){
+            _queue.updateGotRequestConversation(id, new Date(requestTs / 1000), request);
+            _queue.updateFailedConversation(id, new Date(requestTs / 1000), null, reason);
+            _failedConversations++;
+        }
+        request.clean();
+    }
+    
+    public long getPacketCount(){
+        return _packets;
+    }
+    
+    public long getSkippedPacketCount(){
+        return _skippedPackets;
+    }
+    
+    public long getFlowCount(){
+        return _flowCount;
+    }
+    
+    public long getEvictedFlowCount(){
+        return _evictedFlows;
+    }
+    
+    public long getGapCount(){
+        return _gaps;
+    }
+    
+    public long getConversationCount(){
+        return _conversations;
+    }
+    
+    public long getFailedConversationCount(){
+        return _failedConversations;
+    }
+    
+    public long getOrphanResponseCount(){
+        return _orphanResponses;
+    }
+    
+    public long getParseErrorCount(){
+        return _parseErrors;
+    }
+    
+    public long getDroppedFragmentCount(){
+        return _fragments.getDroppedCount();
+    }
+    
+    /**
+     * @return most bytes held by reassembly at one time
+     */
+    public long getPeakMemory(){
+        return _peakBuffered;
+    }
+    
+    private static boolean readRecordHeader(InputStream is, byte[] record) throws IOException{
+        int got = 0;
+        while (got < record.length){
+            int n = is.read(record, got, record.length - got);
+            if (n < 0){
+                if (got == 0){
+                    return false;
+                }
+                throw new EOFException("Capture ends inside packet header");
+            }
+            got += n;
+        }
+        return true;
+    }
+    
+    private static void readFully(InputStream is, byte[] buffer, int len) throws IOException{
+        int got = 0;
+        while (got < len){
+            int n = is.read(buffer, got, len - got);
+            if (n < 0){
+                throw new EOFException("Capture ends inside packet");
+            }
+            got += n;
+        }
+    }
+    
+    private static int getShort(byte[] data, int off){
+        return ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+    }
+    
+    private static int getInt(byte[] data, int off, boolean littleEndian){
+        if (littleEndian){
+            return (data[off] & 0xff) | ((data[off + 1] & 0xff) << 8) | ((data[off + 2] & 0xff) << 16) | ((data[off + 3] & 0xff) << 24);
+        }
+        return ((data[off] & 0xff) << 24) | ((data[off + 1] & 0xff) << 16) | ((data[off + 2] & 0xff) << 8) | (data[off + 3] & 0xff);
+    }
+    
+    private static long getLong(byte[] data, int off){
+        return ((long) getInt(data, off, false) << 32) | (getInt(data, off + 4, false) & 0xffffffffL);
+    }
+}
@@ -0,0 +1,242 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.pcapimport;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+
+import org.sandrop.webscarab.model.ConnectionDescriptor;
+import org.sandrop.webscarab.model.HttpUrl;
+import org.sandrop.webscarab.model.Request;
+import org.sandrop.webscarab.model.Response;
+
+/**
+ * Both directions of one tcp connection. Requests wait in order until their
+ * response is complete, so pipelined requests are paired right.
+ */
+final class TcpFlow {
+    
+    // buffers every flow has even when idle
+    static final int FLOW_OVERHEAD = 4096;
+    
+    private static final int MAX_PENDING_REQUESTS = 32;
+    private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+    
+    static final int TCP_FIN = 0x01;
+    static final int TCP_SYN = 0x02;
+    static final int TCP_RST = 0x04;
+    static final int TCP_ACK = 0x10;
+    
+    final FlowKey key;
+    private final PcapImporter _importer;
+    private final long _clientHi;
+    private final long _clientLo;
+    private final int _clientPort;
+    private final long _serverHi;
+    private final long _serverLo;
+    private final int _serverPort;
+    private final TcpStream _fromClient;
+    private final TcpStream _fromServer;
+    private LinkedList<PendingRequest> _requests = new LinkedList<PendingRequest>();
+    private ConnectionDescriptor _connectionDescriptor;
+    private int _buffered;
+    long lastSeen;
+    
+    TcpFlow(PcapImporter importer, FlowKey key, long clientHi, long clientLo, int clientPort, 
+            long serverHi, long serverLo, int serverPort, int window, int bodyLimit){
+        _importer = importer;
+        this.key = key;
+        _clientHi = clientHi;
+        _clientLo = clientLo;
+        _clientPort = clientPort;
+        _serverHi = serverHi;
+        _serverLo = serverLo;
+        _serverPort = serverPort;
+        _fromClient = new TcpStream(this, new HttpStreamParser(this, true, bodyLimit), window);
+        _fromServer = new TcpStream(this, new HttpStreamParser(this, false, bodyLimit), window);
+        account(FLOW_OVERHEAD);
+    }
+    
+    boolean isFromClient(long srcHi, long srcLo, int srcPort){
+        return srcHi == _clientHi && srcLo == _clientLo && srcPort == _clientPort;
+    }
+    
+    void segment(boolean fromClient, int seq, int flags, byte[] data, int off, int len, long ts){
+        lastSeen = ts;
+        if ((flags & TCP_RST) != 0){
+            finish(ts);
+            return;
+        }
+        TcpStream stream = fromClient ? _fromClient : _fromServer;
+        stream.add(seq, (flags & TCP_SYN) != 0, (flags & TCP_FIN) != 0, data, off, len, ts);
+    }
+    
+    boolean isClosed(){
+        return _fromClient.isEnded() && _fromServer.isEnded();
+    }
+    
+    /**
+     * completes what can be completed, requests without response are stored as failed
+     */
+    void finish(long ts){
+        _fromClient.finish(ts);
+        _fromServer.finish(ts);
+        while (!_requests.isEmpty()){
+            PendingRequest pending = _requests.removeFirst();
+            _importer.storeFailed(this, pending.request, pending.ts, "No response in capture");
+        }
+        account(-_buffered);
+    }
+    
+    int getBuffered(){
+        return _buffered;
+    }
+    
+    void account(int delta){
+        _buffered += delta;
+        _importer.account(delta);
+    }
+    
+    void gap(){
+        _importer.gap();
+    }
+    
+    /**
+     * @return method of oldest request still waiting for response
+     */
+    String pendingMethod(){
+        if (_requests.isEmpty()){
+            return null;
+        }
+        return _requests.getFirst().request.getMethod();
+    }
+    
+    void responseLost(long ts){
+        if (!_requests.isEmpty()){
+            PendingRequest pending = _requests.removeFirst();
+            _importer.storeFailed(this, pending.request, pending.ts, "Response lost in capture");
+        }
+    }
+    
+    void messageComplete(HttpStreamParser parser, byte[] head, int headLen, byte[] body, int bodyLen, boolean truncated, long ts){
+        if (parser.isRequest()){
+            Request request = new Request(false, false, getConnectionDescriptor());
+            try {
+                request.read(headStream(parser, head, headLen), new HttpUrl(getBase(parser.getHost())));
+            } catch (IOException e) {
+                _importer.parseError(e);
+                return;
+            }
+            if (request.getMethod() == null){
+                return;
+            }
+            if (bodyLen > 0 || truncated){
+                request.setRawContent(body, 0, bodyLen, truncated);
+            }
+            if (_requests.size() == MAX_PENDING_REQUESTS){
+                PendingRequest oldest = _requests.removeFirst();
+                _importer.storeFailed(this, oldest.request, oldest.ts, "No response in capture");
+            }
+            _requests.addLast(new PendingRequest(request, ts));
+            return;
+        }
+        if (_requests.isEmpty()){
+            // request was not captured
+            _importer.orphanResponse();
+            return;
+        }
+        PendingRequest pending = _requests.removeFirst();
+        Response response = new Response();
+        try {
+            response.read(headStream(parser, head, headLen));
+        } catch (IOException e) {
+            _importer.parseError(e);
+            _importer.storeFailed(this, pending.request, pending.ts, e.getMessage());
+            return;
+        }
+        if (bodyLen > 0 || truncated){
+            response.setRawContent(body, 0, bodyLen, truncated);
+        }
+        response.setRequest(pending.request);
+        _importer.store(this, pending.request, pending.ts, response, ts);
+        int status = parser.getStatus();
+        if (status == 101 || ("CONNECT".equals(pending.request.getMethod()) && status >= 200 && status < 300)){
+            // rest of the connection is not http any more
+            _fromClient.getParser().ignore();
+            _fromServer.getParser().ignore();
+        }
+    }
+    
+    ConnectionDescriptor getConnectionDescriptor(){
+        if (_connectionDescriptor == null){
+            String type = key.isIPv4() ? "tcp" : "tcp6";
+            _connectionDescriptor = new ConnectionDescriptor(new String[]{""}, new String[]{""}, new String[]{""}, type, -1, 
+                    FlowKey.addressToString(_clientHi, _clientLo), _clientPort, 
+                    FlowKey.addressToString(_serverHi, _serverLo), _serverPort, null, -1);
+        }
+        return _connectionDescriptor;
+    }
+    
+    private static InputStream headStream(HttpStreamParser parser, byte[] head, int headLen){
+        InputStream is = new ByteArrayInputStream(head, 0, headLen);
+        if (parser.isChunked()){
+            // body is kept without chunks, message reading the head expects first chunk after it
+            is = new SequenceInputStream(is, new ByteArrayInputStream(LAST_CHUNK));
+        }
+        return is;
+    }
+    
+    private String getBase(String host){
+        if (host != null && host.length() > 0){
+            return "http://" + host;
+        }
+        String address = FlowKey.addressToString(_serverHi, _serverLo);
+        if (address.indexOf(':') > -1){
+            address = "[" + address + "]";
+        }
+        return _serverPort == 80 ? "http://" + address : "http://" + address + ":" + _serverPort;
+    }
+    
+    private static final class PendingRequest {
+        
+        final Request request;
+        final long ts;
+        
+        PendingRequest(Request request, long ts){
+            this.request = request;
+            this.ts = ts;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.pcapimport;
+
+/**
+ * One direction of tcp flow. Segments in order are passed on to the http 
+ * parser right away, segments ahead of the expected sequence number wait in
+ * sorted list. When waiting segments hold more than window bytes the missing
+ * part is given up, parser is told about the gap and continues after it.
+ * Retransmitted and overlapping bytes are delivered only once.
+ */
+final class TcpStream {
+    
+    private final TcpFlow _flow;
+    private final HttpStreamParser _parser;
+    private final int _window;
+    
+    private boolean _synced = false;
+    private int _nextSeq;
+    private boolean _finSeen = false;
+    private int _finSeq;
+    private boolean _ended = false;
+    private Segment _waiting;
+    private int _waitingBytes;
+    
+    TcpStream(TcpFlow flow, HttpStreamParser parser, int window){
+        _flow = flow;
+        _parser = parser;
+        _window = window;
+    }
+    
+    HttpStreamParser getParser(){
+        return _parser;
+    }
+    
+    int getWaitingBytes(){
+        return _waitingBytes;
+    }
+    
+    boolean isEnded(){
+        return _ended;
+    }
+    
+    void add(int seq, boolean syn, boolean fin, byte[] data, int off, int len, long ts){
+        if (_ended){
+            return;
+        }
+        if (syn){
+            if (!_synced){
+                _nextSeq = seq + 1;
+                _synced = true;
+            }
+            seq++;
+        } else if (!_synced){
+            // capture started in the middle of connection, or flow was evicted before
+            _nextSeq = seq;
+            _synced = true;
+            _parser.midStream();
+        }
+        if (fin && !_finSeen){
+            _finSeen = true;
+            _finSeq = seq + len;
+        }
+        int ahead = seq - _nextSeq;
+        if (ahead > 0){
+            if (len > 0){
+                insert(seq, data, off, len);
+                while (_waitingBytes > _window){
+                    skipGap(ts);
+                }
+            }
+        } else {
+            int skip = -ahead;
+            if (skip < len){
+                deliver(data, off + skip, len - skip, ts);
+            }
+            deliverWaiting(ts);
+        }
+        checkEnd(ts);
+    }
+    
+    /**
+     * gives up on missing data, delivers everything that waits and ends stream
+     */
+    void finish(long ts){
+        if (_ended){
+            return;
+        }
+        while (_waiting != null){
+            skipGap(ts);
+        }
+        _ended = true;
+        _parser.end(ts);
+    }
+    
+    private void checkEnd(long ts){
+        if (_finSeen && _waiting == null && _nextSeq - _finSeq >= 0){
+            _ended = true;
+            _parser.end(ts);
+        }
+    }
+    
+    private void insert(int seq, byte[] data, int off, int len){
+        Segment previous = null;
+        Segment current = _waiting;
+        while (current != null && current.seq - seq < 0){
+            previous = current;
+            current = current.next;
+        }
+        if (current != null && current.seq == seq && current.data.length >= len){
+            // retransmission of segment that already waits
+            return;
+        }
+        Segment segment = new Segment(seq, data, off, len);
+        segment.next = current;
+        if (previous == null){
+            _waiting = segment;
+        } else {
+            previous.next = segment;
+        }
+        _waitingBytes += len;
+        _flow.account(len);
+    }
+    
+    private void deliverWaiting(long ts){
+        while (_waiting != null && _waiting.seq - _nextSeq <= 0){
+            Segment segment = _waiting;
+            _waiting = segment.next;
+            _waitingBytes -= segment.data.length;
+            _flow.account(-segment.data.length);
+            int skip = _nextSeq - segment.seq;
+            if (skip < segment.data.length){
+                deliver(segment.data, skip, segment.data.length - skip, ts);
+            }
+        }
+    }
+    
+    private void skipGap(long ts){
+        if (_waiting == null){
+            return;
+        }
+        _flow.gap();
+        _parser.gap((_waiting.seq - _nextSeq) & 0xffffffffL);
+        _nextSeq = _waiting.seq;
+        deliverWaiting(ts);
+    }
+    
+    private void deliver(byte[] data, int off, int len, long ts){
+        _nextSeq += len;
+        _parser.data(data, off, len, ts);
+    }
+    
+    private static final class Segment {
+        
+        final int seq;
+        final byte[] data;
+        Segment next;
+        
+        Segment(int seq, byte[] src, int off, int len){
+            this.seq = seq;
+            data = new byte[len];
+            System.arraycopy(src, off, data, 0, len);
+        }
+    }
+}
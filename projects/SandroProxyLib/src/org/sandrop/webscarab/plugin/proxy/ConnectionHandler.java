@@ -46,11 +46,15 @@ import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 import org.sandrop.webscarab.httpclient.HTTPClient;
 import org.sandrop.webscarab.httpclient.HTTPClientFactory;
+import org.sandrop.webscarab.httpclient.HeadBufferedInputStream;
+import org.sandrop.webscarab.httpclient.TlsKeyLog;
+import org.sandrop.webscarab.httpclient.URLFetcher;
 import org.sandrop.webscarab.model.ConnectionDescriptor;
 import org.sandrop.webscarab.model.HttpUrl;
 import org.sandrop.webscarab.model.Request;
@@ -74,6 +78,7 @@ public class ConnectionHandler implements Runnable {
     private boolean _storeSslAsPcap = false;
     private int _destPort = 0;
     private ITransparentProxyResolver _transparentResolver = null;
+    private IClientResolver _clientResolver = null;
     private ConnectionDescriptor _connectionDescriptor = null;
     private String clientId = "device";
 
@@ -88,11 +93,12 @@ public class ConnectionHandler implements Runnable {
     
     private InputStream _clientIn = null;
     private OutputStream _clientOut = null;
+    private boolean _tunnelHandedOff = false;
 
     public ConnectionHandler(Proxy proxy, Socket sock, HttpUrl base, boolean transparent, boolean transparentSecure, 
                                                             boolean captureData, boolean useFakeCerts, boolean storeSslAsPcap,
                                                             ITransparentProxyResolver transparentProxyResolver,
-                                                            ConnectionDescriptor connectionDescriptor) {
+                                                            IClientResolver clientResolver) {
         _logger.setLevel(Level.FINEST);
         _proxy = proxy;
         _sock = sock;
@@ -100,11 +106,32 @@ public class ConnectionHandler implements Runnable {
         _transparent = transparent;
         _transparentSecure = transparentSecure;
         _transparentResolver = transparentProxyResolver;
-        _connectionDescriptor = connectionDescriptor;
+        _clientResolver = clientResolver;
         _plugins = _proxy.getPlugins();
         _captureData = captureData;
         _useFakeCerts = useFakeCerts;
         _storeSslAsPcap = storeSslAsPcap;
+        try {
+            _sock.setTcpNoDelay(true);
+            _sock.setSoTimeout(_socket_timeout_normal);
+        } catch (SocketException se) {
+            _logger.warning("Error setting socket parameters");
+        }
+    }
+    
+    /**
+     * looks up application owning client socket, done here and not on accept 
+     * thread so slow lookups do not hold back accepting of other connections
+     */
+    private void resolveClient() {
+        ConnectionDescriptor connectionDescriptor = null;
+        if (_clientResolver != null){
+            connectionDescriptor = _clientResolver.getClientDescriptorBySocket(_sock);
+            if (connectionDescriptor != null && connectionDescriptor.getId() > -1){
+                Thread.currentThread().setName(connectionDescriptor.getId() + "_" + connectionDescriptor.getNamespace());
+            }
+        }
+        _connectionDescriptor = connectionDescriptor;
         if (connectionDescriptor != null && connectionDescriptor.getId() > -1){
             int uid = connectionDescriptor.getId();
             int port = connectionDescriptor.getRemotePort();
@@ -151,23 +178,18 @@ public class ConnectionHandler implements Runnable {
         }else{
             clientId = "<" + _sock.getInetAddress().getHostAddress() + ":" + _sock.getPort() + ">";
         }
-        try {
-            _sock.setTcpNoDelay(true);
-            _sock.setSoTimeout(_socket_timeout_normal);
-        } catch (SocketException se) {
-            _logger.warning("Error setting socket parameters");
-        }
         if (LOGD) Log.d(TAG, "Destination port is " + _destPort);
     }
 
     public void run() {
+        resolveClient();
         ScriptableConnection connection = new ScriptableConnection(_sock);
         _proxy.allowClientConnection(connection);
         if (_sock.isClosed())
             return;
 
         try {
-            _clientIn = _sock.getInputStream();
+            _clientIn = new HeadBufferedInputStream(_sock.getInputStream());
             _clientOut = _sock.getOutputStream();
         } catch (IOException ioe) {
             _logger.severe("Error getting socket input and output streams! "
@@ -235,6 +257,19 @@ public class ConnectionHandler implements Runnable {
                     _base = request.getURL();
                     proxyAuth = request.getHeader("Proxy-Authorization");
                     request = null;
+                    // tunnel and ssl continue on socket, data client sent before CONNECT was answered 
+                    // (tls false start, pipelined client hello) is already in head buffer
+                    HeadBufferedInputStream headIn = (HeadBufferedInputStream)_clientIn;
+                    if (headIn.getBuffered() > 0){
+                        _logger.fine("Got " + headIn.getBuffered() + " bytes from the " + clientId + " before CONNECT was answered");
+                        try {
+                            _sock = new PrefixedSocket(_sock, headIn.takeBuffered());
+                            _clientIn = new HeadBufferedInputStream(_sock.getInputStream());
+                        } catch (IOException ioe) {
+                            _logger.severe("IOException keeping early data of " + clientId + " " + ioe);
+                            return;
+                        }
+                    }
                 }
             }
             // if we are servicing a CONNECT, or operating as a reverse
@@ -263,9 +298,9 @@ public class ConnectionHandler implements Runnable {
                                 // make ssl with server 
                                 target = HTTPClientFactory.getValidInstance().getConnectedSocket(_base, true);
                             } else{
-                                target = HTTPClientFactory.getValidInstance().getConnectedSocket(_base, false);
+                                target = HTTPClientFactory.getValidInstance().getConnectedSocket(_base, false, _proxy.useNioTunnels());
                             }
-                            SocketForwarder.connect(forwarderName, _sock, target, _storeSslAsPcap, _proxy.getPcapStorageDir(), connectionDescriptor);
+                            _tunnelHandedOff = SocketForwarder.connect(forwarderName, _sock, target, _storeSslAsPcap, _proxy.getPcapStorageDir(), connectionDescriptor);
                             return;
                         }else{
                             String forwarderName = _base.getHost() + ":" + _base.getPort();
@@ -282,9 +317,9 @@ public class ConnectionHandler implements Runnable {
                                 // make ssl with server 
                                 target = HTTPClientFactory.getValidInstance().getConnectedSocket(_base, true);
                             } else{
-                                target = HTTPClientFactory.getValidInstance().getConnectedSocket(_base, false);
+                                target = HTTPClientFactory.getValidInstance().getConnectedSocket(_base, false, _proxy.useNioTunnels());
                             }
-                            SocketForwarder.connect(forwarderName, _sock, target, _storeSslAsPcap, _proxy.getPcapStorageDir(), connectionDescriptor);
+                            _tunnelHandedOff = SocketForwarder.connect(forwarderName, _sock, target, _storeSslAsPcap, _proxy.getPcapStorageDir(), connectionDescriptor);
                             return;
                         }
                         
@@ -369,7 +404,7 @@ public class ConnectionHandler implements Runnable {
                                 _logger.finest("!!Error Check if " + clientId + " trust SandroProxy CA certificate \n!! or could be using SSL pinning so mitm will not work");
                                 return;
                             }
-                            _clientIn = pis;
+                            _clientIn = new HeadBufferedInputStream(pis);
                             _clientOut = _sock.getOutputStream();
                         }
                     }else{
@@ -539,7 +574,7 @@ public class ConnectionHandler implements Runnable {
                         if (response.getStatus().equalsIgnoreCase("101")){
                             switchProtocol = true;
                             _logger.fine("Switching protocols on 101 code");
-                            _proxy.getWebSocketManager().addWebSocketsChannel(conversationId, response, _sock, response.getSocket(), response.getSocket().getInputStream());
+                            _proxy.getWebSocketManager().addWebSocketsChannel(conversationId, response, _sock, response.getSocket(), response.getSocketInputStream());
                             response.writeSwitchProtocol(_clientOut);
                             _logger.fine("Finished writing headers to " + clientId);
                         }else{
@@ -587,8 +622,13 @@ public class ConnectionHandler implements Runnable {
             _logger.severe("ConnectionHandler got an error : " + e);
             e.printStackTrace();
         } finally {
+            if (_httpClient instanceof URLFetcher){
+                // keep-alive connection to server can be used by other handlers
+                ((URLFetcher)_httpClient).releaseConnection();
+            }
             try {
-                if (!switchProtocol){
+                // on switch protocol or handed off tunnel socket is still in use
+                if (!switchProtocol && !_tunnelHandedOff){
                     if (_clientIn != null)
                         _clientIn.close();
                     if (_clientOut != null)
@@ -797,14 +837,23 @@ public class ConnectionHandler implements Runnable {
             int sockPort = sock.getPort();
             String hostName = hostData.tcpAddress != null ? hostData.tcpAddress : hostData.name;
             sslsock = (SSLSocket) factory.createSocket(sock, sock.getInetAddress().getHostAddress(), sockPort, false);
-            if (useOnlyWiresharkDissCiphers){
+            TlsKeyLog keyLog = TlsKeyLog.getInstance();
+            if (keyLog != null && keyLog.canReadSessions()){
+                // secrets go to key log so any cipher suite can be decrypted
+                TlsKeyLog.restrictProtocols(sslsock);
+            }else if (useOnlyWiresharkDissCiphers){
+                keyLog = null;
                 // force chiper that can be decrypted with wireshark
                 String[] ciphers = selectCiphers(sslsock.getSupportedCipherSuites());
                 sslsock.setEnabledCipherSuites(ciphers);
             }
             sslsock.setUseClientMode(false);
+            SSLSession session = sslsock.getSession();
+            if (keyLog != null){
+                keyLog.log(session);
+            }
             _logger.info("Finished negotiating client SSL - algorithm is "
-                    + sslsock.getSession().getCipherSuite());
+                    + session.getCipherSuite());
             return sslsock;
         } catch (Exception e) {
             _logger.severe("Error layering SSL over the socket: " + e);
@@ -0,0 +1,176 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Keeps a number of key pairs for generated host certificates ready, so key
+ * generation does not happen while client waits for ssl handshake. Pool is
+ * refilled from background thread after key pair is taken.
+ */
+public class LeafKeyPairPool {
+    
+    public static final String ALGORITHM_RSA = "RSA";
+    public static final String ALGORITHM_EC = "EC";
+    
+    private String _algorithm;
+    private int _keySize;
+    private int _size;
+    private LinkedBlockingQueue<KeyPair> _pool;
+    private AtomicBoolean _refilling = new AtomicBoolean(false);
+    
+    private AtomicLong _hits = new AtomicLong(0);
+    private AtomicLong _misses = new AtomicLong(0);
+    private AtomicLong _generated = new AtomicLong(0);
+    private AtomicLong _generationTime = new AtomicLong(0);
+    
+    private Logger _logger = Logger.getLogger(getClass().getName());
+    
+    /**
+     * @param algorithm ALGORITHM_RSA or ALGORITHM_EC
+     * @param keySize key size in bits, ex. 1024 for RSA or 256 for EC
+     * @param size number of key pairs kept ready
+     */
+    public LeafKeyPairPool(String algorithm, int keySize, int size) throws GeneralSecurityException {
+        _algorithm = ALGORITHM_EC.equalsIgnoreCase(algorithm) ? ALGORITHM_EC : ALGORITHM_RSA;
+        _keySize = keySize;
+        _size = size < 1 ? 1 : size;
+        _pool = new LinkedBlockingQueue<KeyPair>(_size);
+        // fail early if algorithm is not supported
+        createGenerator();
+        refill();
+    }
+    
+    /**
+     * @return ready key pair, or a new generated one if pool is empty
+     */
+    public KeyPair take() throws GeneralSecurityException {
+        KeyPair keyPair = _pool.poll();
+        refill();
+        if (keyPair != null) {
+            _hits.incrementAndGet();
+            return keyPair;
+        }
+        _misses.incrementAndGet();
+        return generate(createGenerator());
+    }
+    
+    public String getAlgorithm() {
+        return _algorithm;
+    }
+    
+    public int getAvailableCount() {
+        return _pool.size();
+    }
+    
+    public long getHitCount() {
+        return _hits.get();
+    }
+    
+    public long getMissCount() {
+        return _misses.get();
+    }
+    
+    public long getGeneratedCount() {
+        return _generated.get();
+    }
+    
+    /**
+     * @return average time of key pair generation in ms
+     */
+    public long getAverageGenerationTime() {
+        long generated = _generated.get();
+        return generated == 0 ? 0 : _generationTime.get() / generated;
+    }
+    
+    private void refill() {
+        if (_pool.remainingCapacity() == 0 || !_refilling.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                boolean generated = false;
+                try {
+                    KeyPairGenerator generator = createGenerator();
+                    while (_pool.remainingCapacity() > 0) {
+                        if (!_pool.offer(generate(generator))) {
+                            break;
+                        }
+                    }
+                    generated = true;
+                } catch (GeneralSecurityException e) {
+                    _logger.warning("Error generating " + _algorithm + " key pair: " + e.getMessage());
+                } finally {
+                    _refilling.set(false);
+                }
+                // key pair could be taken while flag was still set
+                if (generated) {
+                    refill();
+                }
+            }
+        }, "LeafKeyPairPool");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+    
+    private KeyPairGenerator createGenerator() throws NoSuchAlgorithmException {
+        KeyPairGenerator generator;
+        if (_algorithm == ALGORITHM_EC) {
+            try {
+                generator = KeyPairGenerator.getInstance("EC");
+            } catch (NoSuchAlgorithmException e) {
+                generator = KeyPairGenerator.getInstance("ECDSA");
+            }
+        } else {
+            generator = KeyPairGenerator.getInstance(_algorithm);
+        }
+        generator.initialize(_keySize);
+        return generator;
+    }
+    
+    private KeyPair generate(KeyPairGenerator generator) {
+        long start = System.currentTimeMillis();
+        KeyPair keyPair = generator.generateKeyPair();
+        _generationTime.addAndGet(System.currentTimeMillis() - start);
+        _generated.incrementAndGet();
+        return keyPair;
+    }
+}
@@ -0,0 +1,364 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Forwards tunnels on a small fixed set of selector threads instead of two
+ * blocking threads per tunnel. Only sockets that were created from channels
+ * can be forwarded this way, for others forward returns false and caller
+ * should fall back to blocking SocketForwarder.
+ * 
+ * Each io thread reads into one shared direct buffer and writes straight to the 
+ * other side. Only when the other side can not take all data a pooled buffer
+ * holds the rest until the channel is writable again, so idle tunnels hold no 
+ * buffers at all.
+ */
+public class NioSocketForwarder {
+    
+    private static String TAG = NioSocketForwarder.class.getSimpleName();
+    private static boolean LOGD = false;
+    
+    private static int BUFFER_SIZE = 16 * 1024;
+    private static int MAX_POOLED_BUFFERS = 256;
+    
+    private IOThread[] _ioThreads;
+    private AtomicInteger _nextThread = new AtomicInteger(0);
+    private volatile boolean _running = true;
+    
+    private ConcurrentLinkedQueue<ByteBuffer> _bufferPool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private AtomicInteger _pooledBuffers = new AtomicInteger(0);
+    
+    private AtomicInteger _activeTunnels = new AtomicInteger(0);
+    private AtomicLong _forwardedBytes = new AtomicLong(0);
+    
+    public NioSocketForwarder(int ioThreads) throws IOException {
+        if (ioThreads < 1){
+            ioThreads = 1;
+        }
+        _ioThreads = new IOThread[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            _ioThreads[i] = new IOThread("NioForwarder-" + i);
+        }
+        for (int i = 0; i < ioThreads; i++) {
+            _ioThreads[i].start();
+        }
+    }
+    
+    /**
+     * hands the tunnel over to one of io threads, sockets are closed by the
+     * forwarder when both sides are done
+     * 
+     * @return false if sockets are not channel based and could not be forwarded
+     */
+    public boolean forward(String name, Socket clientSocket, Socket serverSocket, PcapWriter pcapWriter) {
+        if (!_running){
+            return false;
+        }
+        SocketChannel client = clientSocket.getChannel();
+        SocketChannel server = serverSocket.getChannel();
+        if (client == null || server == null){
+            if (LOGD) Log.d(TAG, "No channel for " + name + " can not forward with selector");
+            return false;
+        }
+        try {
+            client.configureBlocking(false);
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            try {
+                client.configureBlocking(true);
+                server.configureBlocking(true);
+            } catch (IOException ignore) {
+            }
+            return false;
+        }
+        Tunnel tunnel = new Tunnel(name, client, server, pcapWriter);
+        int index = (_nextThread.getAndIncrement() & Integer.MAX_VALUE) % _ioThreads.length;
+        _activeTunnels.incrementAndGet();
+        _ioThreads[index].register(tunnel);
+        return true;
+    }
+    
+    public int getActiveTunnels(){
+        return _activeTunnels.get();
+    }
+    
+    public long getForwardedBytes(){
+        return _forwardedBytes.get();
+    }
+    
+    /**
+     * stops io threads and closes all tunnels still open
+     */
+    public void shutdown(){
+        _running = false;
+        for (int i = 0; i < _ioThreads.length; i++) {
+            _ioThreads[i]._selector.wakeup();
+        }
+    }
+    
+    private ByteBuffer acquireBuffer(){
+        ByteBuffer buffer = _bufferPool.poll();
+        if (buffer == null){
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+        _pooledBuffers.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+    
+    private void releaseBuffer(ByteBuffer buffer){
+        if (_pooledBuffers.incrementAndGet() <= MAX_POOLED_BUFFERS){
+            _bufferPool.offer(buffer);
+        }else{
+            _pooledBuffers.decrementAndGet();
+        }
+    }
+    
+    private class IOThread extends Thread {
+        
+        private Selector _selector;
+        private ConcurrentLinkedQueue<Tunnel> _pending = new ConcurrentLinkedQueue<Tunnel>();
+        private ByteBuffer _readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        
+        public IOThread(String name) throws IOException {
+            _selector = Selector.open();
+            setName(name);
+            setDaemon(true);
+        }
+        
+        public void register(Tunnel tunnel){
+            _pending.offer(tunnel);
+            _selector.wakeup();
+        }
+        
+        public void run(){
+            while (_running){
+                try {
+                    _selector.select();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error on select " + e.getMessage());
+                    break;
+                }
+                Tunnel tunnel;
+                while ((tunnel = _pending.poll()) != null){
+                    try {
+                        tunnel.register(_selector);
+                    } catch (ClosedChannelException e) {
+                        tunnel.close();
+                    }
+                }
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    tunnel = (Tunnel) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()){
+                            tunnel.onWritable((SocketChannel) key.channel());
+                        }
+                        if (key.isValid() && key.isReadable()){
+                            tunnel.onReadable((SocketChannel) key.channel(), _readBuffer);
+                        }
+                    } catch (IOException e) {
+                        if (LOGD) Log.d(TAG, "Closing " + tunnel._name + " on " + e.getMessage());
+                        tunnel.close();
+                    }
+                }
+            }
+            Tunnel tunnel;
+            while ((tunnel = _pending.poll()) != null){
+                tunnel.close();
+            }
+            for (SelectionKey key : _selector.keys()) {
+                ((Tunnel) key.attachment()).close();
+            }
+            try {
+                _selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+    
+    private class Direction {
+        
+        private SocketChannel _src;
+        private SocketChannel _dst;
+        private boolean _flip;
+        private boolean _inputClosed = false;
+        private ByteBuffer _pending = null;
+        
+        private Direction(SocketChannel src, SocketChannel dst, boolean flip){
+            _src = src;
+            _dst = dst;
+            _flip = flip;
+        }
+    }
+    
+    private class Tunnel {
+        
+        private String _name;
+        private PcapWriter _pcapWriter;
+        private Direction _clientServer;
+        private Direction _serverClient;
+        private SelectionKey _clientKey;
+        private SelectionKey _serverKey;
+        private boolean _closed = false;
+        
+        private Tunnel(String name, SocketChannel client, SocketChannel server, PcapWriter pcapWriter){
+            _name = name;
+            _pcapWriter = pcapWriter;
+            _clientServer = new Direction(client, server, false);
+            _serverClient = new Direction(server, client, true);
+        }
+        
+        private void register(Selector selector) throws ClosedChannelException {
+            _clientKey = _clientServer._src.register(selector, SelectionKey.OP_READ, this);
+            _serverKey = _serverClient._src.register(selector, SelectionKey.OP_READ, this);
+        }
+        
+        private void onReadable(SocketChannel channel, ByteBuffer buffer) throws IOException {
+            Direction direction = channel == _clientServer._src ? _clientServer : _serverClient;
+            buffer.clear();
+            int got = channel.read(buffer);
+            if (got < 0){
+                direction._inputClosed = true;
+                if (direction._pending == null){
+                    direction._dst.socket().shutdownOutput();
+                }
+                updateInterest();
+                return;
+            }
+            if (got == 0){
+                return;
+            }
+            buffer.flip();
+            _forwardedBytes.addAndGet(got);
+            if (_pcapWriter != null){
+                try {
+                    _pcapWriter.writeData(buffer, System.currentTimeMillis() * 1000, direction._flip);
+                } catch (Exception e) {
+                    if (LOGD) Log.d(TAG, "Error writing pcap for " + _name + " " + e.getMessage());
+                }
+            }
+            direction._dst.write(buffer);
+            if (buffer.hasRemaining()){
+                direction._pending = acquireBuffer();
+                direction._pending.put(buffer);
+                direction._pending.flip();
+            }
+            updateInterest();
+        }
+        
+        private void onWritable(SocketChannel channel) throws IOException {
+            Direction direction = channel == _clientServer._dst ? _clientServer : _serverClient;
+            if (direction._pending == null){
+                updateInterest();
+                return;
+            }
+            channel.write(direction._pending);
+            if (!direction._pending.hasRemaining()){
+                releaseBuffer(direction._pending);
+                direction._pending = null;
+                if (direction._inputClosed){
+                    channel.socket().shutdownOutput();
+                }
+            }
+            updateInterest();
+        }
+        
+        private void updateInterest(){
+            if (_closed){
+                return;
+            }
+            if (_clientServer._inputClosed && _clientServer._pending == null 
+                    && _serverClient._inputClosed && _serverClient._pending == null){
+                close();
+                return;
+            }
+            _clientKey.interestOps(interestOf(_clientServer, _serverClient));
+            _serverKey.interestOps(interestOf(_serverClient, _clientServer));
+        }
+        
+        private int interestOf(Direction outgoing, Direction incoming){
+            int ops = 0;
+            if (!outgoing._inputClosed && outgoing._pending == null){
+                ops |= SelectionKey.OP_READ;
+            }
+            if (incoming._pending != null){
+                ops |= SelectionKey.OP_WRITE;
+            }
+            return ops;
+        }
+        
+        private void close(){
+            if (_closed){
+                return;
+            }
+            _closed = true;
+            _activeTunnels.decrementAndGet();
+            if (_pcapWriter != null){
+                _pcapWriter.close();
+            }
+            if (_clientServer._pending != null){
+                releaseBuffer(_clientServer._pending);
+                _clientServer._pending = null;
+            }
+            if (_serverClient._pending != null){
+                releaseBuffer(_serverClient._pending);
+                _serverClient._pending = null;
+            }
+            try {
+                _clientServer._src.close();
+            } catch (IOException ignore) {
+            }
+            try {
+                _serverClient._src.close();
+            } catch (IOException ignore) {
+            }
+            if (LOGD) Log.d(TAG, "Tunnel " + _name + " closed");
+        }
+    }
+}
@@ -43,17 +43,21 @@ import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
 
 import org.sandrop.R;
+import org.sandrop.webscarab.httpclient.TlsKeyLog;
 import org.sandrop.webscarab.model.ConnectionDescriptor;
 import org.sandrop.webscarab.model.ConversationID;
 import org.sandrop.webscarab.model.FrameworkModel;
@@ -94,6 +98,12 @@ public class Proxy implements Plugin {
     private boolean _captureData = false;
     private boolean _useFakeCerts = false;
     private boolean _storeSslAsPcap = false;
+    private boolean _connectionPoolEnabled = false;
+    private int _connectionPoolSize = 16;
+    private int _connectionQueueLimit = 64;
+    private boolean _connectionBlockWhenBusy = false;
+    private boolean _nioTunnels = false;
+    private int _nioTunnelThreads = 2;
     private Map<Integer, CheckOptionApp> _appOptions = null;
     
     private File storageDir = null;
@@ -109,7 +119,11 @@ public class Proxy implements Plugin {
     private String _status = "Stopped";
     private int _pending = 0;
 
-    private static HashMap<String, SSLSocketFactory> _factoryMap = new HashMap<String, SSLSocketFactory>();
+    // factory of each host is created once, by the first caller asking for it
+    private static ConcurrentHashMap<String, FutureTask<SSLSocketFactory>> _factoryMap = new ConcurrentHashMap<String, FutureTask<SSLSocketFactory>>();
+    
+    // map key of default keystore, map does not take null keys
+    private static final String DEFAULT_FACTORY_KEY = "<default>";
 
     private static char[] _keystorepass = "password".toCharArray();
     private static char[] _keypassword = "password".toCharArray();
@@ -149,6 +163,12 @@ public class Proxy implements Plugin {
         _captureData = Preferences.getPreferenceBoolean(PreferenceUtils.proxyCaptureData, false);
         _useFakeCerts = Preferences.getPreferenceBoolean(PreferenceUtils.proxyFakeCerts, false);
         _storeSslAsPcap = Preferences.getPreferenceBoolean(PreferenceUtils.proxyStoreSslAsPcap, false);
+        _connectionPoolEnabled = Preferences.getPreferenceBoolean(PreferenceUtils.proxyConnectionPoolEnabled, false);
+        _connectionPoolSize = Preferences.getPreferenceInt(PreferenceUtils.proxyConnectionPoolSize, _connectionPoolSize);
+        _connectionQueueLimit = Preferences.getPreferenceInt(PreferenceUtils.proxyConnectionQueueLimit, _connectionQueueLimit);
+        _connectionBlockWhenBusy = Preferences.getPreferenceBoolean(PreferenceUtils.proxyConnectionBlockWhenBusy, false);
+        _nioTunnels = Preferences.getPreferenceBoolean(PreferenceUtils.proxyNioTunnels, false);
+        _nioTunnelThreads = Preferences.getPreferenceInt(PreferenceUtils.proxyNioTunnelThreads, _nioTunnelThreads);
         _appOptions = CheckOptionAppList.CreateActiveObjectListFromPreferences(_framework.getAndroidContext());
         MessageOutputStream.resetActiveMemorySize();
         parseListenerConfig();
@@ -173,6 +193,13 @@ public class Proxy implements Plugin {
                 if (!_captureData && _storeSslAsPcap){
                     PcapWriter.init(pcapStorage.getAbsolutePath() + "/capture_" + System.currentTimeMillis() + ".pcap");
                 }
+                if (_useFakeCerts && Preferences.getPreferenceBoolean(PreferenceUtils.proxySslKeyLog, false)){
+                    try {
+                        TlsKeyLog.init(pcapStorage, Preferences.getPreferenceBoolean(PreferenceUtils.proxySslKeyLogPcapng, false));
+                    } catch (IOException e) {
+                        _logger.info("TLS key log not available " + e.getMessage());
+                    }
+                }
             }
             String keystoreCAFullPath = PreferenceUtils.getCAFilePath(_framework.getAndroidContext());
             String keystoreCertFullPath = PreferenceUtils.getCertFilePath(_framework.getAndroidContext());
@@ -183,7 +210,19 @@ public class Proxy implements Plugin {
                 
                 try{
                     _certGenerator = new SSLSocketFactoryFactory(keystoreCAFullPath, keystoreCertFullPath, keyStoreType, caPassword.toCharArray());
-                    _certGenerator.setReuseKeys(true);
+                    boolean reuseKeys = Preferences.getPreferenceBoolean(PreferenceUtils.proxyCertReuseKeys, true);
+                    _certGenerator.setReuseKeys(reuseKeys);
+                    if (!reuseKeys){
+                        String keyAlgorithm = Preferences.getPreference(PreferenceUtils.proxyCertKeyAlgorithm, LeafKeyPairPool.ALGORITHM_RSA);
+                        int defaultKeySize = LeafKeyPairPool.ALGORITHM_EC.equalsIgnoreCase(keyAlgorithm) ? 256 : 1024;
+                        try{
+                            _certGenerator.setKeyPairPool(keyAlgorithm,
+                                    Preferences.getPreferenceInt(PreferenceUtils.proxyCertKeySize, defaultKeySize),
+                                    Preferences.getPreferenceInt(PreferenceUtils.proxyCertKeyPoolSize, 4));
+                        }catch(Exception ex){
+                            _logger.fine("Error creating key pool, keys are generated on demand:" + ex.getMessage());
+                        }
+                    }
                     _logger.fine("Using CA from file: " + keystoreCAFullPath);
                 }catch(Exception ex){
                     _logger.fine("Error getting custom CA certificate:" + ex.getMessage());
@@ -233,6 +272,13 @@ public class Proxy implements Plugin {
     public IClientResolver getClientResolver(){
         return _clientResolver;
     }
+    
+    /**
+     * tunnels that are not intercepted are forwarded with NioSocketForwarder
+     */
+    public boolean useNioTunnels(){
+        return _nioTunnels;
+    }
 
     /**
      * called by Listener to determine whether to allow a connection or not
@@ -308,6 +354,20 @@ public class Proxy implements Plugin {
                 .toArray(new ListenerSpec[0]);
     }
 
+    /**
+     * returns the executor running connections of the listener, so that
+     * active, queued and rejected connection counters can be shown
+     * 
+     * @return the executor or null if listener is not running
+     */
+    public IConnectionExecutor getConnectionExecutor(ListenerSpec spec) {
+        Listener l = _listeners.get(spec);
+        if (l == null) {
+            return null;
+        }
+        return l.getConnectionExecutor();
+    }
+
     /**
      * called by ConnectionHandler to see which plugins have been configured.
      * 
@@ -416,6 +476,14 @@ public class Proxy implements Plugin {
      * Starts the Listeners
      */
     public void run() {
+        if (_nioTunnels && SocketForwarder.getNioForwarder() == null) {
+            try {
+                SocketForwarder.setNioForwarder(new NioSocketForwarder(_nioTunnelThreads));
+            } catch (IOException ioe) {
+                _logger.warning("Unable to start nio forwarder, using blocking forwarders " + ioe);
+                _nioTunnels = false;
+            }
+        }
         Iterator<ListenerSpec> it = _listeners.keySet().iterator();
         while (it.hasNext()) {
             ListenerSpec spec = it.next();
@@ -462,11 +530,17 @@ public class Proxy implements Plugin {
             _ui.setEnabled(_running);
         _status = "Stopped";
         _webSocketManager.unload();
+        NioSocketForwarder nioForwarder = SocketForwarder.getNioForwarder();
+        if (nioForwarder != null) {
+            SocketForwarder.setNioForwarder(null);
+            nioForwarder.shutdown();
+        }
         try {
             PcapWriter.release();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        TlsKeyLog.release();
         return !_running;
     }
 
@@ -499,54 +573,79 @@ public class Proxy implements Plugin {
         _framework.cleanConversation(request, response);
     }
 
-    protected SSLSocketFactory getSocketFactory(SiteData hostData) {
-        synchronized (_factoryMap) {
-            // If it has been loaded already, use it
-        	String certEntry = hostData.tcpAddress != null ? hostData.tcpAddress + "_" + hostData.destPort: hostData.name;
-            if (_factoryMap.containsKey(certEntry))
-                return (SSLSocketFactory) _factoryMap.get(certEntry);
-            SSLSocketFactory factory;
-            // Check if there is a specific keypair to use
-            File p12 = new File(_certDir + certEntry + ".p12");
-            factory = loadSocketFactory(p12, certEntry);
-            if (factory != null) {
-                _factoryMap.put(certEntry, factory);
-                return factory;
-            }
-            // See if we can generate one directly
-            factory = generateSocketFactory(hostData);
-            if (factory != null) {
-                _factoryMap.put(certEntry, factory);
+    protected SSLSocketFactory getSocketFactory(final SiteData hostData) {
+        final String certEntry = hostData.getCertEntry();
+        SSLSocketFactory factory = getCachedSocketFactory(certEntry, new Callable<SSLSocketFactory>() {
+            public SSLSocketFactory call() {
+                // Check if there is a specific keypair to use
+                File p12 = new File(_certDir + certEntry + ".p12");
+                SSLSocketFactory factory = loadSocketFactory(p12, certEntry);
+                if (factory == null) {
+                    // See if we can generate one directly
+                    factory = generateSocketFactory(hostData);
+                }
                 return factory;
             }
-            // Has the default keypair been loaded already?
-            if (_factoryMap.containsKey(null)) {
-                _logger.info("Using default SSL keystore for " + hostData.name);
-                return (SSLSocketFactory) _factoryMap.get(null);
+        });
+        if (factory != null) {
+            return factory;
+        }
+        _logger.info("Using default SSL keystore for " + hostData.name);
+        return getCachedSocketFactory(DEFAULT_FACTORY_KEY, new Callable<SSLSocketFactory>() {
+            public SSLSocketFactory call() {
+                // Check for a user-provided "default keypair"
+                File p12 = new File(_certDir + "server.p12");
+                SSLSocketFactory factory = loadSocketFactory(p12, certEntry);
+                if (factory != null) {
+                    return factory;
+                }
+                // Fall back to the distribution-provided keypair
+                _logger.info("Loading default SSL keystore from internal resource");
+                InputStream is = _framework.getAndroidContext().getResources()
+                                                .openRawResource(R.raw.server_p12);
+                // sandrob fix this
+                //InputStream is = getClass().getClassLoader().getResourceAsStream(
+                //        "server.p12");
+                if (is == null) {
+                    _logger
+                            .severe("WebScarab JAR was built without a certificate!");
+                    _logger.severe("SSL Intercept not available!");
+                    return null;
+                }
+                return loadSocketFactory(is, "SandroProxy JAR");
             }
-            // Check for a user-provided "default keypair"
-            p12 = new File(_certDir + "server.p12");
-            factory = loadSocketFactory(p12, certEntry);
-            if (factory != null) {
-                _factoryMap.put(null, factory);
-                return factory;
+        });
+    }
+    
+    /**
+     * Runs creator only in the first caller for the key, others for the same 
+     * key wait for its result. Callers for other keys are not blocked, so 
+     * generating certificate of one host does not hold up other hosts.
+     * @return null if factory could not be created, next caller tries again
+     */
+    private SSLSocketFactory getCachedSocketFactory(String key, Callable<SSLSocketFactory> creator) {
+        FutureTask<SSLSocketFactory> task = _factoryMap.get(key);
+        if (task == null) {
+            FutureTask<SSLSocketFactory> newTask = new FutureTask<SSLSocketFactory>(creator);
+            task = _factoryMap.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
             }
-            // Fall back to the distribution-provided keypair
-            _logger.info("Loading default SSL keystore from internal resource");
-            InputStream is = _framework.getAndroidContext().getResources()
-                                            .openRawResource(R.raw.server_p12);
-            // sandrob fix this
-            //InputStream is = getClass().getClassLoader().getResourceAsStream(
-            //        "server.p12");
-            if (is == null) {
-                _logger
-                        .severe("WebScarab JAR was built without a certificate!");
-                _logger.severe("SSL Intercept not available!");
-                return null;
+        }
+        try {
+            SSLSocketFactory factory = task.get();
+            if (factory == null) {
+                _factoryMap.remove(key, task);
             }
-            factory = loadSocketFactory(is, "SandroProxy JAR");
-            _factoryMap.put(null, factory);
             return factory;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException ee) {
+            _factoryMap.remove(key, task);
+            _logger.severe("Error creating SSL socket factory for " + key + ": " + ee.getCause());
+            return null;
         }
     }
 
@@ -746,10 +845,10 @@ public class Proxy implements Plugin {
             */
             base = null;
             if (!addr.equalsIgnoreCase("") && port != 0){
-                _listeners.put(new ListenerSpec(addr, port, base, primary, false, false, _captureData, _useFakeCerts, _storeSslAsPcap), null);
+                _listeners.put(configureExecution(new ListenerSpec(addr, port, base, primary, false, false, _captureData, _useFakeCerts, _storeSslAsPcap)), null);
                 if (Preferences.getPreferenceBoolean("preference_proxy_transparent", false)){
-                    _listeners.put(new ListenerSpec(addr, Constants.TRANSPARENT_PROXY_HTTP, base, primary, true, false, _captureData, _useFakeCerts, _storeSslAsPcap), null);
-                    _listeners.put(new ListenerSpec(addr, Constants.TRANSPARENT_PROXY_HTTPS, base, primary, true, true, _captureData, _useFakeCerts, _storeSslAsPcap), null);
+                    _listeners.put(configureExecution(new ListenerSpec(addr, Constants.TRANSPARENT_PROXY_HTTP, base, primary, true, false, _captureData, _useFakeCerts, _storeSslAsPcap)), null);
+                    _listeners.put(configureExecution(new ListenerSpec(addr, Constants.TRANSPARENT_PROXY_HTTPS, base, primary, true, true, _captureData, _useFakeCerts, _storeSslAsPcap)), null);
                 }
             }else{
                 _logger.fine("Warrning Skipping " + listeners[i]);
@@ -758,6 +857,19 @@ public class Proxy implements Plugin {
         }
     }
 
+    /**
+     * global pool settings can be overridden per listener with
+     * Proxy.listener.<address:port>.pool_size and .queue_limit
+     */
+    private ListenerSpec configureExecution(ListenerSpec spec) {
+        String key = getKey(spec);
+        int poolSize = Preferences.getPreferenceInt("Proxy.listener." + key + ".pool_size", _connectionPoolSize);
+        int queueLimit = Preferences.getPreferenceInt("Proxy.listener." + key + ".queue_limit", _connectionQueueLimit);
+        int mode = _connectionPoolEnabled ? ListenerSpec.EXECUTION_BOUNDED_POOL : ListenerSpec.EXECUTION_THREAD_PER_CONNECTION;
+        spec.setConnectionExecution(mode, poolSize, queueLimit, _connectionBlockWhenBusy);
+        return spec;
+    }
+
     private void createListener(ListenerSpec spec) {
         Listener l = new Listener(this, spec);
 
@@ -814,20 +926,7 @@ public class Proxy implements Plugin {
         }
 
         public void runScripts(ScriptableConnection connection) {
-            if (_bsfManager == null)
-                return;
-            synchronized (_bsfManager) {
-                try {
-                    _bsfManager.declareBean("connection", connection,
-                            connection.getClass());
-                    super.runScripts();
-                    _bsfManager.undeclareBean("connection");
-                } catch (Exception e) {
-                    _logger
-                            .severe("Declaring or undeclaring a bean should not throw an exception! "
-                                    + e);
-                }
-            }
+            runScripts(new String[] { "connection" }, new Object[] { connection });
         }
 
     }
@@ -60,7 +60,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
+import org.sandrop.webscarab.model.Preferences;
 import org.sandrop.webscarab.model.Response;
+import org.sandroproxy.utils.PreferenceUtils;
 import org.sandroproxy.webscarab.store.sql.SqlLiteStore;
 
  
@@ -85,6 +87,12 @@ public class ExtensionWebSocket {
      * Used to shorten the time, a listener is started on a WebSocket channel.
      */
     private ExecutorService listenerThreadPool;
+    
+    /**
+     * Selector threads shared by all channels created from socket channels,
+     * null if every channel gets its own listener threads.
+     */
+    private WebSocketReaderPool readerPool;
 
     /**
      * List of observers where each element is informed on all channel's
@@ -104,7 +112,21 @@ public class ExtensionWebSocket {
     public ExtensionWebSocket(SqlLiteStore store) {
         allChannelObservers = new HashMap<String, WebSocketObserver>();
         wsProxies = new HashMap<Long, WebSocketProxy>();
-        storageObserver = new WebSocketStorage(store);
+        // messages are stored from background thread so forwarding does not wait on database
+        WebSocketWriteQueue writeQueue = new WebSocketWriteQueue(store,
+                Preferences.getPreferenceInt(PreferenceUtils.websocketWriteQueueLimit, 2048),
+                Preferences.getPreferenceInt(PreferenceUtils.websocketWriteBatchSize, 64),
+                Preferences.getPreferenceInt(PreferenceUtils.websocketWriteFlushInterval, 250),
+                Preferences.getPreferenceBoolean(PreferenceUtils.websocketWriteDropOldest, false));
+        storageObserver = new WebSocketStorage(store, writeQueue);
+        
+        if (Preferences.getPreferenceBoolean(PreferenceUtils.websocketSelectorIo, false)) {
+            try {
+                readerPool = new WebSocketReaderPool(Preferences.getPreferenceInt(PreferenceUtils.websocketSelectorThreads, 2));
+            } catch (IOException e) {
+                logger.info("Using blocking listeners, could not open selector: " + e.getMessage());
+            }
+        }
         allChannelObservers.put(WebSocketStorage.class.getName(), storageObserver);
     }
     
@@ -118,6 +140,13 @@ public class ExtensionWebSocket {
             WebSocketProxy wsProxy = wsEntry.getValue();
             wsProxy.shutdown();
         }
+        
+        if (readerPool != null) {
+            readerPool.shutdown();
+        }
+        
+        // write what is still queued, including closed channel states
+        storageObserver.getWriteQueue().shutdown();
     }
 
     
@@ -189,7 +218,7 @@ public class ExtensionWebSocket {
             
             // TODO sandrop some regular expression what to have in ignore list 
             // wsProxy.setForwardOnly(isChannelIgnored(wsProxy.getDTO()));
-            wsProxy.startListeners(getListenerThreadPool(), remoteReader);
+            wsProxy.startListeners(getListenerThreadPool(), readerPool, remoteReader);
             
             synchronized (wsProxies) {
                 wsProxies.put(wsProxy.getChannelId(), wsProxy);
@@ -390,6 +419,50 @@ public class ExtensionWebSocket {
         return false;
     }
     
+    /**
+     * @return queue storing messages of all channels, used for its counters
+     */
+    public WebSocketWriteQueue getWriteQueue() {
+        return storageObserver.getWriteQueue();
+    }
+    
+    /**
+     * @return selector threads reading channels, null if not used
+     */
+    public WebSocketReaderPool getReaderPool() {
+        return readerPool;
+    }
+    
+    /**
+     * Returns traffic counters of connected channels.
+     * 
+     * @return Map<Long, WebSocketChannelStatsDTO> channelId, stats
+     */
+    public Map<Long, WebSocketChannelStatsDTO> getChannelStats() {
+        Map<Long, WebSocketChannelStatsDTO> stats = new LinkedHashMap<Long, WebSocketChannelStatsDTO>();
+        synchronized (wsProxies) {
+            for (WebSocketProxy proxy : wsProxies.values()) {
+                if (proxy.isConnected()) {
+                    stats.put(proxy.getChannelId(), proxy.getStats());
+                }
+            }
+        }
+        return stats;
+    }
+    
+    /**
+     * @return sum of traffic counters of connected channels
+     */
+    public WebSocketChannelStatsDTO getTotalStats() {
+        WebSocketChannelStatsDTO total = new WebSocketChannelStatsDTO();
+        total.name = "total";
+        total.isSelectorDriven = readerPool != null;
+        for (WebSocketChannelStatsDTO stats : getChannelStats().values()) {
+            total.add(stats);
+        }
+        return total;
+    }
+    
     /**
      * retruns list of connected proxies
      * @return ap<Long, String> channelId, description
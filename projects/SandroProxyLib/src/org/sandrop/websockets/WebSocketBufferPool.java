@@ -0,0 +1,160 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.websockets;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte arrays used to hold WebSocket frames and payloads. Arrays are
+ * grouped in power of two size classes, so a released buffer can be reused by
+ * any later frame that fits into it. Buffers bigger than the largest class are
+ * allocated on demand and left to the garbage collector.
+ */
+public class WebSocketBufferPool {
+
+	/**
+	 * Smallest size class, 256 bytes.
+	 */
+	private static final int MIN_SHIFT = 8;
+
+	/**
+	 * Largest size class, 1 MB.
+	 */
+	private static final int MAX_SHIFT = 20;
+
+	/**
+	 * Upper limit of idle bytes kept per size class.
+	 */
+	private static final int MAX_IDLE_BYTES_PER_CLASS = 2 * 1024 * 1024;
+
+	private static final WebSocketBufferPool instance = new WebSocketBufferPool();
+
+	private final ConcurrentLinkedQueue<byte[]>[] idleBuffers;
+
+	private final AtomicInteger[] idleCounts;
+
+	private final AtomicLong allocatedCount = new AtomicLong();
+
+	private final AtomicLong reusedCount = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	public WebSocketBufferPool() {
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		idleBuffers = new ConcurrentLinkedQueue[classes];
+		idleCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			idleBuffers[i] = new ConcurrentLinkedQueue<byte[]>();
+			idleCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @return pool shared by all WebSocket channels
+	 */
+	public static WebSocketBufferPool getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Returns an array with at least given size. Content of the array is
+	 * undefined.
+	 * 
+	 * @param size
+	 * @return pooled or newly allocated array
+	 */
+	public byte[] acquire(int size) {
+		int sizeClass = getSizeClass(size);
+		if (sizeClass < 0) {
+			allocatedCount.incrementAndGet();
+			return new byte[size];
+		}
+		byte[] buffer = idleBuffers[sizeClass].poll();
+		if (buffer != null) {
+			idleCounts[sizeClass].decrementAndGet();
+			reusedCount.incrementAndGet();
+			return buffer;
+		}
+		allocatedCount.incrementAndGet();
+		return new byte[1 << (sizeClass + MIN_SHIFT)];
+	}
+
+	/**
+	 * Gives array back to the pool. Caller must not use it afterwards.
+	 * 
+	 * @param buffer array obtained by {@link #acquire(int)}
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		int sizeClass = getSizeClass(buffer.length);
+		if (sizeClass < 0 || buffer.length != 1 << (sizeClass + MIN_SHIFT)) {
+			return;
+		}
+		int maxIdle = Math.max(2, MAX_IDLE_BYTES_PER_CLASS >> (sizeClass + MIN_SHIFT));
+		if (idleCounts[sizeClass].incrementAndGet() > maxIdle) {
+			idleCounts[sizeClass].decrementAndGet();
+			return;
+		}
+		idleBuffers[sizeClass].offer(buffer);
+	}
+
+	/**
+	 * @return number of arrays that had to be allocated
+	 */
+	public long getAllocatedCount() {
+		return allocatedCount.get();
+	}
+
+	/**
+	 * @return number of arrays that were served from the pool
+	 */
+	public long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	/**
+	 * @param size
+	 * @return index of smallest size class holding given size or -1 if too big
+	 */
+	private static int getSizeClass(int size) {
+		if (size <= 1 << MIN_SHIFT) {
+			return 0;
+		}
+		if (size > 1 << MAX_SHIFT) {
+			return -1;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
@@ -0,0 +1,556 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.websockets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedList;
+import java.util.logging.Logger;
+
+/**
+ * Listens for one end of a WebSockets connection without a thread of its own.
+ * A {@link WebSocketReaderPool} thread calls it when its channel is readable.
+ * Read bytes are collected until a whole frame is available, only then the
+ * frame is handed to {@link WebSocketProxy#processRead(InputStream, OutputStream, byte)}
+ * so processing never blocks on a partial frame.
+ * <p>
+ * Buffers are taken from {@link WebSocketBufferPool} while data is pending and
+ * given back as soon as all frames are processed, idle channels hold none.
+ * <p>
+ * Frames are written to the other side without waiting, data the peer does
+ * not take is queued and written when its channel becomes writable.
+ */
+public class WebSocketChannelListener extends WebSocketListener {
+
+	private static final Logger logger = Logger.getLogger(WebSocketChannelListener.class.getSimpleName());
+
+	private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Frame header (2 bytes), 8 bytes extended length and 4 bytes mask.
+	 */
+	private static final int MAX_HEADER_LENGTH = 14;
+
+	/**
+	 * Threads other than readers writing to a channel wait at most this long
+	 * (ms) for the peer to take queued data.
+	 */
+	private static final long WRITE_TIMEOUT = 30000;
+
+	/**
+	 * With more bytes queued for a channel, the side whose frames are written
+	 * to it is not read and other writers wait.
+	 */
+	private static final int HIGH_WATER = 256 * 1024;
+
+	/**
+	 * Reading and writing go on when queue is down to this many bytes.
+	 */
+	private static final int LOW_WATER = 64 * 1024;
+
+	private final WebSocketBufferPool bufferPool = WebSocketBufferPool.getInstance();
+
+	private final SocketChannel channel;
+
+	private final ChannelOutputStream channelOut;
+
+	private final FrameInputStream frameInput = new FrameInputStream();
+
+	private SelectionKey key;
+
+	private Thread readerThread;
+
+	private WebSocketReaderPool readerPool;
+
+	/**
+	 * Bytes between start and end are read but not processed.
+	 */
+	private byte[] buffer;
+	private ByteBuffer readBuffer;
+	private volatile int start;
+	private volatile int end;
+
+	/**
+	 * @param wsProxy When a frame has to be processed, it delegates it to this object.
+	 * @param channelOut Writes to channel read by this listener, must be in non-blocking mode.
+	 * @param oppositeOut Write to the other side, null if there is none.
+	 * @param prefix Bytes already read from the channel, might be null.
+	 * @param name Name used for logging.
+	 */
+	WebSocketChannelListener(WebSocketProxy wsProxy, ChannelOutputStream channelOut, ChannelOutputStream oppositeOut, byte[] prefix, String name) {
+		super(wsProxy, null, oppositeOut, name);
+		this.channel = channelOut.channel;
+		this.channelOut = channelOut;
+		if (prefix != null && prefix.length > 0) {
+			ensureCapacity(prefix.length);
+			System.arraycopy(prefix, 0, buffer, 0, prefix.length);
+			end = prefix.length;
+		}
+	}
+
+	/**
+	 * Reading is driven by {@link WebSocketReaderPool}.
+	 */
+	@Override
+	public void run() {
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * @return stream writing to this listener's channel, for the opposite
+	 * side when it has no channel of its own (client mode)
+	 */
+	public OutputStream createOutputStream() {
+		return channelOut;
+	}
+
+	/**
+	 * Called by reader thread after channel is registered with its selector.
+	 * Processes frames that were already read before.
+	 * 
+	 * @param key
+	 * @param readerPool
+	 */
+	void onRegistered(SelectionKey key, WebSocketReaderPool readerPool) {
+		boolean wasFinished;
+		synchronized (this) {
+			this.key = key;
+			this.readerPool = readerPool;
+			readerThread = Thread.currentThread();
+			wasFinished = isFinished;
+		}
+		channelOut.attach(key, readerPool);
+		if (out instanceof ChannelOutputStream) {
+			((ChannelOutputStream) out).setSource(key);
+		}
+		if (wasFinished) {
+			// stopped before it was registered
+			key.cancel();
+			readerPool.unregister(this);
+			return;
+		}
+		try {
+			processFrames();
+		} catch (IOException e) {
+			finish();
+		}
+	}
+
+	/**
+	 * Called by reader thread when channel is readable.
+	 */
+	void onReadable() {
+		try {
+			if (buffer == null) {
+				ensureCapacity(READ_BUFFER_SIZE);
+			} else if (end == buffer.length) {
+				ensureCapacity(end - start + READ_BUFFER_SIZE);
+			}
+			readBuffer.limit(buffer.length);
+			readBuffer.position(end);
+			int count = channel.read(readBuffer);
+			if (count < 0) {
+				finish();
+				return;
+			}
+			end += count;
+			byteCount.addAndGet(count);
+			if (readerPool != null) {
+				readerPool.countBytes(count);
+			}
+			processFrames();
+		} catch (IOException e) {
+			// includes SocketException
+			// no more reading possible
+			finish();
+		}
+	}
+
+	/**
+	 * Called by reader thread when queued data can be written to channel.
+	 */
+	void onWritable() {
+		try {
+			channelOut.onWritable();
+		} catch (IOException e) {
+			finish();
+		}
+	}
+
+	/**
+	 * Hands every complete frame in buffer to the proxy.
+	 * 
+	 * @throws IOException
+	 */
+	private void processFrames() throws IOException {
+		while (buffer != null && !isFinished) {
+			long frameLength = getFrameLength(buffer, start, end - start);
+			if (frameLength < 0 || frameLength > end - start) {
+				if (frameLength > Integer.MAX_VALUE - MAX_HEADER_LENGTH) {
+					throw new WebSocketException("Frame length " + frameLength + " is not supported.");
+				}
+				// wait for rest of frame
+				ensureCapacity(frameLength < 0 ? MAX_HEADER_LENGTH : (int) frameLength);
+				return;
+			}
+			int frameStart = start;
+			start += (int) frameLength;
+			frameInput.setWindow(buffer, frameStart + 1, frameStart + (int) frameLength);
+			wsProxy.processRead(frameInput, out, buffer[frameStart]);
+			frameCount.incrementAndGet();
+			if (readerPool != null) {
+				readerPool.countFrame();
+			}
+			if (start == end) {
+				releaseBuffer();
+			}
+		}
+	}
+
+	/**
+	 * Makes sure that unprocessed bytes start at the beginning of a buffer,
+	 * that can hold at least given number of them.
+	 * 
+	 * @param size
+	 */
+	private void ensureCapacity(int size) {
+		int pending = end - start;
+		if (buffer != null && buffer.length >= size) {
+			if (start > 0 && buffer.length - start < size) {
+				System.arraycopy(buffer, start, buffer, 0, pending);
+				start = 0;
+				end = pending;
+			}
+			return;
+		}
+		byte[] newBuffer = bufferPool.acquire(Math.max(size, READ_BUFFER_SIZE));
+		if (buffer != null) {
+			System.arraycopy(buffer, start, newBuffer, 0, pending);
+			bufferPool.release(buffer);
+		}
+		buffer = newBuffer;
+		readBuffer = ByteBuffer.wrap(buffer);
+		start = 0;
+		end = pending;
+	}
+
+	private void releaseBuffer() {
+		if (buffer != null) {
+			bufferPool.release(buffer);
+			buffer = null;
+			readBuffer = null;
+		}
+		start = 0;
+		end = 0;
+	}
+
+	/**
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return length of the frame starting at offset or -1 if header is not complete
+	 */
+	static long getFrameLength(byte[] data, int offset, int length) {
+		if (length < 2) {
+			return -1;
+		}
+		byte payloadByte = data[offset + 1];
+		int maskLength = ((payloadByte >> 7 & 0x1) == 1) ? 4 : 0;
+		int payloadLength = payloadByte & 0x7F;
+		int extendedLengthBytes = 0;
+		if (payloadLength == 126) {
+			extendedLengthBytes = 2;
+		} else if (payloadLength == 127) {
+			extendedLengthBytes = 8;
+		}
+		int headerLength = 2 + extendedLengthBytes + maskLength;
+		if (length < headerLength) {
+			return -1;
+		}
+		long frameLength = payloadLength;
+		if (extendedLengthBytes > 0) {
+			frameLength = 0;
+			for (int i = 0; i < extendedLengthBytes; i++) {
+				frameLength = (frameLength << 8) | (data[offset + 2 + i] & 0xFF);
+			}
+			if (frameLength < 0) {
+				// most significant bit must be zero
+				return Long.MAX_VALUE;
+			}
+		}
+		return headerLength + frameLength;
+	}
+
+	/**
+	 * Stops listening, informs proxy like a blocking listener does when its
+	 * thread ends.
+	 */
+	private void finish() {
+		SelectionKey registeredKey;
+		WebSocketReaderPool registeredPool;
+		synchronized (this) {
+			if (isFinished) {
+				return;
+			}
+			isFinished = true;
+			registeredKey = key;
+			registeredPool = readerPool;
+		}
+		if (registeredKey != null) {
+			registeredKey.cancel();
+		}
+		if (registeredPool != null) {
+			registeredPool.unregister(this);
+		}
+		if (Thread.currentThread() == readerThread) {
+			releaseBuffer();
+		}
+		// close the other listener too
+		wsProxy.shutdown();
+	}
+
+	/**
+	 * Closes both channels, stopping this listener.
+	 */
+	@Override
+	public void stop() {
+		try {
+			channelOut.close();
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		try {
+			if (out != null) {
+				out.close();
+			}
+		} catch (IOException e) {
+			logger.info(e.getMessage());
+		}
+		finish();
+	}
+
+	@Override
+	public int getQueuedBytes() {
+		return end - start;
+	}
+
+	@Override
+	public boolean isSelectorDriven() {
+		return true;
+	}
+
+	/**
+	 * Gives {@link WebSocketProxy} access to exactly one frame of the read
+	 * buffer. The same instance is used for all frames of one side, as
+	 * unfinished messages are looked up by their stream.
+	 */
+	private static class FrameInputStream extends InputStream {
+
+		private byte[] data;
+		private int position;
+		private int limit;
+
+		public void setWindow(byte[] data, int position, int limit) {
+			this.data = data;
+			this.position = position;
+			this.limit = limit;
+		}
+
+		@Override
+		public int read() {
+			if (position >= limit) {
+				return -1;
+			}
+			return data[position++] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+			if (position >= limit) {
+				return -1;
+			}
+			int count = Math.min(length, limit - position);
+			System.arraycopy(data, position, b, offset, count);
+			position += count;
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return limit - position;
+		}
+	}
+
+	/**
+	 * Writes to a non-blocking channel, reader threads never wait on it. Data
+	 * the peer does not take at once is queued and written by the reader
+	 * thread of the channel when it is writable. While the queue is above
+	 * {@link #HIGH_WATER}, the channel whose frames are written here is not
+	 * read and other threads writing here wait.
+	 */
+	static class ChannelOutputStream extends OutputStream {
+
+		private final SocketChannel channel;
+
+		private final LinkedList<ByteBuffer> queue = new LinkedList<ByteBuffer>();
+		private int queuedBytes;
+		private boolean closed;
+
+		/**
+		 * Key of this channel, null until it is registered.
+		 */
+		private SelectionKey key;
+		private WebSocketReaderPool readerPool;
+
+		/**
+		 * Key of the channel read by the listener writing here.
+		 */
+		private SelectionKey sourceKey;
+		private boolean sourcePaused;
+
+		ChannelOutputStream(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		synchronized void attach(SelectionKey key, WebSocketReaderPool readerPool) {
+			this.key = key;
+			this.readerPool = readerPool;
+			if (!queue.isEmpty()) {
+				readerPool.enableWrite(key);
+			}
+		}
+
+		synchronized void setSource(SelectionKey sourceKey) {
+			this.sourceKey = sourceKey;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int offset, int length) throws IOException {
+			if (closed) {
+				throw new IOException("WebSocket channel is closed.");
+			}
+			ByteBuffer data = ByteBuffer.wrap(b, offset, length);
+			if (queue.isEmpty()) {
+				channel.write(data);
+				if (!data.hasRemaining()) {
+					return;
+				}
+			}
+			int remaining = data.remaining();
+			byte[] copy = WebSocketBufferPool.getInstance().acquire(remaining);
+			data.get(copy, 0, remaining);
+			queue.add(ByteBuffer.wrap(copy, 0, remaining));
+			queuedBytes += remaining;
+			if (queue.size() == 1 && key != null) {
+				readerPool.enableWrite(key);
+			}
+			if (queuedBytes <= HIGH_WATER) {
+				return;
+			}
+			if (WebSocketReaderPool.isReaderThread()) {
+				// other channels of this thread go on, only the source waits for the peer
+				if (sourceKey != null && sourceKey.isValid() && !sourcePaused) {
+					sourceKey.interestOps(sourceKey.interestOps() & ~SelectionKey.OP_READ);
+					sourcePaused = true;
+				}
+				return;
+			}
+			long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+			while (queuedBytes > LOW_WATER && !closed) {
+				long wait = deadline - System.currentTimeMillis();
+				if (wait <= 0) {
+					throw new IOException("Timeout writing to WebSocket channel.");
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted writing to WebSocket channel.");
+				}
+			}
+		}
+
+		/**
+		 * Called by reader thread when channel is writable.
+		 * 
+		 * @throws IOException
+		 */
+		synchronized void onWritable() throws IOException {
+			while (!queue.isEmpty()) {
+				ByteBuffer data = queue.getFirst();
+				channel.write(data);
+				if (data.hasRemaining()) {
+					break;
+				}
+				queue.removeFirst();
+				queuedBytes -= data.limit();
+				WebSocketBufferPool.getInstance().release(data.array());
+			}
+			if (queue.isEmpty() && key.isValid()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+			if (queuedBytes <= LOW_WATER) {
+				if (sourcePaused) {
+					sourcePaused = false;
+					if (sourceKey.isValid()) {
+						sourceKey.interestOps(sourceKey.interestOps() | SelectionKey.OP_READ);
+					}
+				}
+				notifyAll();
+			}
+		}
+
+		@Override
+		public synchronized void close() throws IOException {
+			closed = true;
+			for (ByteBuffer data : queue) {
+				WebSocketBufferPool.getInstance().release(data.array());
+			}
+			queue.clear();
+			queuedBytes = 0;
+			notifyAll();
+			channel.close();
+		}
+	}
+}
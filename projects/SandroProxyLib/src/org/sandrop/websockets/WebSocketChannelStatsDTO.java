@@ -0,0 +1,85 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.websockets;
+
+/**
+ * Data Transfer Object with traffic counters of one WebSocket channel, or of
+ * all channels when used as total.
+ */
+public class WebSocketChannelStatsDTO {
+
+	/**
+	 * ChannelId, <code>null</code> for totals.
+	 */
+	public Long id;
+
+	/**
+	 * Channel description as returned by {@link WebSocketProxy#toString()}.
+	 */
+	public String name;
+
+	/**
+	 * True if channel is read by {@link WebSocketReaderPool}.
+	 */
+	public boolean isSelectorDriven;
+
+	/**
+	 * Frames read from browser and server side.
+	 */
+	public long frames;
+
+	/**
+	 * Bytes read from browser and server side.
+	 */
+	public long bytes;
+
+	/**
+	 * Bytes read but not processed yet, waiting for the rest of their frame.
+	 */
+	public int queuedBytes;
+
+	/**
+	 * Adds counters of given channel to this one.
+	 * 
+	 * @param stats
+	 */
+	public void add(WebSocketChannelStatsDTO stats) {
+		frames += stats.frames;
+		bytes += stats.bytes;
+		queuedBytes += stats.queuedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return name + " frames: " + frames + ", bytes: " + bytes + ", queued: " + queuedBytes;
+	}
+}
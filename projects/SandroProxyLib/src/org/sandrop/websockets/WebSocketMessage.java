@@ -423,6 +423,30 @@ public abstract class WebSocketMessage {
 	 */
 	public abstract byte[] getPayload();
 
+	/**
+	 * Returns a read-only view of the unmasked payload. Unlike
+	 * {@link WebSocketMessage#getPayload()} no bytes are copied, therefore
+	 * the view is only valid while the message is processed, e.g. within
+	 * {@link WebSocketObserver#onMessageFrame(long, WebSocketMessage)}.
+	 * 
+	 * @return read-only buffer positioned at the start of the payload
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		if (!isFinished || payload == null) {
+			return ByteBuffer.allocate(0).asReadOnlyBuffer();
+		}
+		ByteBuffer view = payload.asReadOnlyBuffer();
+		view.position(0);
+		return view;
+	}
+
+	/**
+	 * Called as soon as a finished message was forwarded (or dropped). Gives
+	 * pooled buffers back, afterwards the payload of this message is empty.
+	 */
+	public void release() {
+	}
+
 	/**
 	 * Modifies the payload to given byte array. Use
 	 * {@link WebSocketMessage#setReadablePayload(String)} for setting payloads
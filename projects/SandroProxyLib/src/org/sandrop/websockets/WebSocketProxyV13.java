@@ -48,6 +48,7 @@
  */
 package org.sandrop.websockets;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -60,6 +61,7 @@ import java.util.Calendar;
 import java.util.List;
 import java.util.Random;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.sandrop.websockets.utility.InvalidUtf8Exception;
@@ -82,6 +84,26 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 	 */
 	private static final int PAYLOAD_MAX_FRAME_LENGTH = Integer.MAX_VALUE;
 
+	/**
+	 * First two bytes, 8 bytes of extended payload length and 4 bytes mask.
+	 */
+	private static final int MAX_HEADER_LENGTH = 14;
+
+	/**
+	 * Each listener thread parses frame headers in its own window, so no array
+	 * has to be allocated per header.
+	 */
+	private static final ThreadLocal<byte[]> headerWindow = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[MAX_HEADER_LENGTH];
+		}
+	};
+
+	private static final Random randomizer = new Random();
+
+	private final WebSocketBufferPool bufferPool = WebSocketBufferPool.getInstance();
+
 	/**
 	 * @see WebSocketProxy#WebSocketProxy(Socket, Socket)
 	 */
@@ -108,36 +130,43 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 	protected class WebSocketMessageV13 extends WebSocketMessage {
 		
 		/**
-		 * One message can consist of several frames.
+		 * One message can consist of several frames. A frame is kept in a
+		 * pooled buffer as it was on the wire (header followed by payload),
+		 * except that the payload is unmasked in place. The mask is applied
+		 * again only while the frame is written.
 		 */
 		private class WebSocketFrameV13 {
-		    private final Random randomizer = new Random();
-			private ByteBuffer buffer;
-			private byte[] mask;
+			private byte[] data;
+			private int headerLength;
+			private int payloadLength;
 			private boolean isMasked;
 			
 			/**
 			 * Prevent sending this frame several times.
 			 */
 			private boolean isForwarded;
-
-			/**
-			 * After a frame is sealed, it cannot be changed
-			 * and data can be read by {@link WebSocketFrameV13#getBuffer()}.
-			 */
-			private boolean isSealed = false;
 			
 			/**
 			 * Contains value of RSV1, RSV2 & RSV3.
 			 */
 			private int rsv;
 			
-			public WebSocketFrameV13() {
-				buffer = ByteBuffer.allocate(4096);
-				isMasked = false;
-				mask = new byte[4];
+			/**
+			 * Creates a frame for an already parsed header. The payload has to
+			 * be read by {@link WebSocketFrameV13#readPayload(InputStream)}.
+			 * 
+			 * @param header
+			 * @param headerLength
+			 * @param payloadLength
+			 */
+			public WebSocketFrameV13(byte[] header, int headerLength, int payloadLength) {
+				this.headerLength = headerLength;
+				this.payloadLength = payloadLength;
+				data = bufferPool.acquire(headerLength + payloadLength);
+				System.arraycopy(header, 0, data, 0, headerLength);
+				isMasked = (header[1] >> 7 & 0x1) == 1;
 				isForwarded = false;
-				rsv = 0;
+				rsv = (header[0] >> 4 & 0x7);
 			}
 
 			/**
@@ -145,132 +174,140 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 			 * metadata (opcode, payload length, mask).
 			 * 
 			 * @param payload
+			 * @param offset
+			 * @param length
 			 */
-			public WebSocketFrameV13(ByteBuffer payload, Direction direction, boolean isFinished, int frameOpcode, int rsv) {
-				// at maximum 16 bytes are added as header data
-				buffer = ByteBuffer.allocate(payload.limit() + 16);
-				this.rsv = rsv;
-
-				int payloadLength = payload.limit();
-				if (direction.equals(Direction.OUTGOING)) {
-					isMasked = true;
-
-					mask = new byte[4];
-					randomizer.nextBytes(mask);
-					
-					// mask payload, by applying mask to each byte
-					int maskPosition = 0;
-					for (int i = 0; i < payloadLength; i++) {
-						payload.put(i, (byte) (payload.get(i) ^ mask[maskPosition]));
-						maskPosition = (maskPosition + 1) % 4;
-					}
-				} else {
-					isMasked = false;
-				}
-				
+			public WebSocketFrameV13(byte[] payload, int offset, int length, Direction direction, boolean isFinished, int frameOpcode, int rsv) {
+				// at maximum 14 bytes are added as header data
+				data = bufferPool.acquire(length + MAX_HEADER_LENGTH);
+				payloadLength = length;
+				isMasked = direction.equals(Direction.OUTGOING);
 				isForwarded = false;
+				this.rsv = rsv;
 
 				byte finishedBits = (byte) (isFinished ? 0x80 : 0x00);
 				byte rsvBits = (byte) ((this.rsv & 0x07) << 4);
 				byte opcodeBits = (byte) (frameOpcode & 0x0F);
 				byte frameHeader = (byte) (finishedBits | rsvBits | opcodeBits);
-				buffer.put(frameHeader);
+				data[0] = frameHeader;
 				logger.info("Frame header of newly created WebSocketFrame: " + getByteAsBitString(frameHeader));
 
-				if (payloadLength < PAYLOAD_LENGTH_16) {
-					buffer.put((byte) ((isMasked ? 0x80 : 0x00) | (payloadLength & 0x7F)));
-				} else if (payloadLength < 65536) {
-					buffer.put((byte) ((isMasked ? 0x80 : 0x00) | PAYLOAD_LENGTH_16));
-					buffer.putShort((short) payloadLength);
+				byte maskBit = (byte) (isMasked ? 0x80 : 0x00);
+				int position;
+				if (length < PAYLOAD_LENGTH_16) {
+					data[1] = (byte) (maskBit | (length & 0x7F));
+					position = 2;
+				} else if (length < 65536) {
+					data[1] = (byte) (maskBit | PAYLOAD_LENGTH_16);
+					data[2] = (byte) (length >> 8);
+					data[3] = (byte) length;
+					position = 4;
 				} else {
-					buffer.put((byte) ((isMasked ? 0x80 : 0x00) | PAYLOAD_LENGTH_63));
-					buffer.putLong(payloadLength);
+					data[1] = (byte) (maskBit | PAYLOAD_LENGTH_63);
+					for (int i = 0; i < 8; i++) {
+						data[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+					}
+					position = 10;
 				}
 				
 				if (isMasked) {
-					buffer.put(mask);
+					// payload stays unmasked until the frame is written
+					int mask = randomizer.nextInt();
+					data[position++] = (byte) (mask >> 24);
+					data[position++] = (byte) (mask >> 16);
+					data[position++] = (byte) (mask >> 8);
+					data[position++] = (byte) mask;
 				}
+				headerLength = position;
 				
-				buffer.put(payload.array());
-				
-				seal();
+				System.arraycopy(payload, offset, data, headerLength, length);
 			}
 
-			public void put(byte b) throws WebSocketException {
-				if (isSealed) {
-					throw new WebSocketException("You cannot change a 'sealed' frame.");
+			/**
+			 * Reads the payload straight into the frame buffer and unmasks it.
+			 * 
+			 * @param in
+			 * @throws IOException
+			 */
+			public void readPayload(InputStream in) throws IOException {
+				readFully(in, data, headerLength, payloadLength);
+				if (isMasked) {
+					applyMask();
 				}
-				buffer.put(b);
 			}
 
-			public void put(byte[] b) throws WebSocketException {
-				if (isSealed) {
-					throw new WebSocketException("You cannot change a 'sealed' frame.");
+			/**
+			 * XOR payload continuously with the frame mask. As XOR is its own
+			 * inverse, the same call masks and unmasks the payload in place.
+			 */
+			private void applyMask() {
+				int maskOffset = headerLength - 4;
+				byte mask0 = data[maskOffset];
+				byte mask1 = data[maskOffset + 1];
+				byte mask2 = data[maskOffset + 2];
+				byte mask3 = data[maskOffset + 3];
+				int end = headerLength + payloadLength;
+				int i = headerLength;
+				for (; i + 3 < end; i += 4) {
+					data[i] ^= mask0;
+					data[i + 1] ^= mask1;
+					data[i + 2] ^= mask2;
+					data[i + 3] ^= mask3;
+				}
+				for (int j = 0; i < end; i++, j++) {
+					data[i] ^= data[maskOffset + j];
 				}
-				buffer.put(b);
 			}
 
-			public void setMasked(boolean isMasked) {
-				this.isMasked = isMasked;
-			}
-			
-			public boolean isMasked() {
-				return isMasked;
+			/**
+			 * Writes the frame without copying it.
+			 * 
+			 * @param out
+			 * @throws IOException
+			 */
+			public void writeTo(OutputStream out) throws IOException {
+				if (isMasked) {
+					applyMask();
+				}
+				try {
+					out.write(data, 0, headerLength + payloadLength);
+				} finally {
+					if (isMasked) {
+						applyMask();
+					}
+				}
 			}
 
-			public void setMask(byte[] read) {
-				mask = read;
+			public byte[] getData() {
+				return data;
 			}
 
-			public byte getMaskAt(int index) {
-				return mask[index];
+			public int getPayloadOffset() {
+				return headerLength;
 			}
 
-			public int getFreeSpace() {
-				if (isSealed) {
-					return 0;
-				}
-				return buffer.capacity() - buffer.position();
+			public int getPayloadLength() {
+				return payloadLength;
 			}
-
-			public void reallocateFor(int bytesRead) throws WebSocketException {
-				if (isSealed) {
-					throw new WebSocketException("You cannot change size of 'sealed' frame's buffer.");
-				}
-				buffer = reallocate(buffer, buffer.position() + bytesRead);
+			
+			public boolean isMasked() {
+				return isMasked;
 			}
 			
 			public boolean isForwarded() {
 				return isForwarded;
 			}
 
-			public void seal() {
-				if (!isSealed) {
-					buffer.flip();
-					isSealed  = true;
-				}
-			}
-
-			public byte[] getBuffer() throws WebSocketException {
-				if (!isSealed) {
-					throw new WebSocketException("You should call seal() on WebSocketFrame first, before getBuffer().");
-				}
-				byte[] result = new byte[buffer.limit()];
-				buffer.get(result);
-				return result;
-			}
-
 			public void setForwarded(boolean isForwarded) {
 				this.isForwarded = isForwarded;
 			}
 
 			/**
-			 * Valid values are in the interval [1,6].
-			 * 
-			 * @param rsv
+			 * Gives frame buffer back to the pool.
 			 */
-			public void setRsv(int rsv) {
-				this.rsv  = rsv;
+			public void release() {
+				bufferPool.release(data);
+				data = null;
 			}
 
 //			public int getRsv() {
@@ -279,18 +316,23 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 		}
 		
 		private List<WebSocketFrameV13> receivedFrames = new ArrayList<WebSocketFrameV13>();
-		
-		/**
-		 * Temporary buffer that will be added to
-		 * {@link WebSocketMessage#receivedFrames} as soon as whole frame is read.
-		 */
-		private WebSocketFrameV13 currentFrame;
 
 		/**
 		 * Contains the number of bytes representing the payload.
 		 */
 		private int payloadLength;
 
+		/**
+		 * Pooled buffer collecting the payload of a message that spans several
+		 * frames. Payload of a single frame message is a view of its frame.
+		 */
+		private byte[] payloadData;
+
+		/**
+		 * Number of bytes used in {@link WebSocketMessageV13#payloadData}.
+		 */
+		private int payloadSize;
+
 		/**
 		 * Marks this object as changed, indicating that frame headers have to
 		 * be built manually on forwarding.
@@ -397,6 +439,8 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 		/**
 		 * Given an {@link InputStream} and the first byte of a frame,
 		 * this method reads the second byte until the end of the frame.
+		 * The header is parsed from the header window, the payload is read
+		 * directly into a pooled frame buffer.
 		 * 
 		 * @param in
 		 * @param frameHeader
@@ -406,110 +450,134 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 			// most significant bit of first byte is FIN flag
 			isFinished = (frameHeader >> 7 & 0x1) == 1;
 			
-			// currentFrame buffer is filled by read() method directly
-			currentFrame = new WebSocketFrameV13();
-			currentFrame.put(frameHeader);
-			
-			currentFrame.setRsv((frameHeader >> 4 & 0x7));
-
-			byte payloadByte = read(in);
+			byte[] header = headerWindow.get();
+			header[0] = frameHeader;
+			readFully(in, header, 1, 1);
+			byte payloadByte = header[1];
 			
 			// most significant bit of second byte is MASK flag
-			currentFrame.setMasked((payloadByte >> 7 & 0x1) == 1);
+			boolean isMasked = (payloadByte >> 7 & 0x1) == 1;
+			int extendedLengthBytes = getExtendedLengthBytes(payloadByte);
+			int headerLength = 2 + extendedLengthBytes + (isMasked ? 4 : 0);
 			
-			payloadLength = determinePayloadLength(in, payloadByte);
-			logger.info("length of current frame payload is: " + payloadLength + "; first two bytes: " + getByteAsBitString(frameHeader) + " " + getByteAsBitString(payloadByte));
-
-			if (currentFrame.isMasked()) {
-				// read 4 bytes mask
-				currentFrame.setMask(read(in, 4));
+			// rest of the header (extended payload length and mask) in one read
+			readFully(in, header, 2, headerLength - 2);
+			
+			long length = determinePayloadLength(header, payloadByte, extendedLengthBytes);
+			if (length < 0 || length > PAYLOAD_MAX_FRAME_LENGTH - MAX_HEADER_LENGTH) {
+				throw new WebSocketException("Frame payload length " + length + " is not supported.");
 			}
-
-			byte[] payload = read(in, payloadLength);
-
-			if (currentFrame.isMasked()) {
-				int currentMaskByteIndex = 0;
-				for (int i = 0; i < payload.length; i++) {
-					// unmask payload by XOR it continuously with frame mask
-					payload[i] = (byte) (payload[i] ^ currentFrame.getMaskAt(currentMaskByteIndex));
-					currentMaskByteIndex = (currentMaskByteIndex + 1) % 4;
-				}
+			payloadLength = (int) length;
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("length of current frame payload is: " + payloadLength + "; first two bytes: " + getByteAsBitString(frameHeader) + " " + getByteAsBitString(payloadByte));
 			}
+
+			WebSocketFrameV13 frame = new WebSocketFrameV13(header, headerLength, payloadLength);
+			receivedFrames.add(frame);
+			frame.readPayload(in);
+			
+			byte[] data = frame.getData();
+			int offset = frame.getPayloadOffset();
 			
 			if (isText(opcode)) {
-				logger.info("got text frame payload");
+				logger.fine("got text frame payload");
 			} else if (isBinary(opcode)) {
-				logger.info("got binary frame payload");				
-			} else {
-				if (opcode == OPCODE_CLOSE) {
-					if (payload.length > 1) {
-						// if there is a body, the first two bytes are a
-						// 2-byte unsigned integer (in network byte order)
-						closeCode = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
-						logger.info("close code is: " + closeCode);
-						
-						payload = getReadableCloseFramePayload(payload, closeCode);
-					}
-					
-					if (payload.length > 0) {
-						// process close message
-						try {
-							logger.info("got control-payload: " + Utf8Util.encodePayloadToUtf8(payload));
-						} catch (InvalidUtf8Exception e) {
-							// safely ignore utf8 error here
-						}
-					}
+				logger.fine("got binary frame payload");
+			} else if (opcode == OPCODE_CLOSE && payloadLength > 1) {
+				// if there is a body, the first two bytes are a
+				// 2-byte unsigned integer (in network byte order)
+				closeCode = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+				logger.info("close code is: " + closeCode);
+				
+				byte[] closePayload = getReadableCloseFramePayload(data, offset, payloadLength, closeCode);
+				
+				// process close message
+				try {
+					logger.info("got control-payload: " + Utf8Util.encodePayloadToUtf8(closePayload));
+				} catch (InvalidUtf8Exception e) {
+					// safely ignore utf8 error here
 				}
+				
+				appendFramePayload(closePayload, 0, closePayload.length);
+				return;
 			}
 			
-			appendPayload(payload);
-			
-			// add currentFrame to frames list
-			currentFrame.seal();
-			receivedFrames.add(currentFrame);
+			appendFramePayload(data, offset, payloadLength);
+		}
+
+		/**
+		 * @param payloadByte second byte of the WebSockets header
+		 * @return number of bytes used for the extended payload length
+		 */
+		private int getExtendedLengthBytes(byte payloadByte) {
+			int length = (payloadByte & 0x7F);
+			if (length == PAYLOAD_LENGTH_16) {
+				// payload length is between 126-65535 bytes represented by 2 bytes.
+				return 2;
+			} else if (length == PAYLOAD_LENGTH_63) {
+				// payload length is between 65536-2^63 bytes represented by 8 bytes
+				// (most significant bit must be zero)
+				return 8;
+			}
+			// payload length is between 0-125 bytes and contained in payloadByte
+			return 0;
 		}
 
 		/**
 		 * Looks at the payload byte from the WebSockets header and determines
-		 * the packets length. It reads bytes from the extended length field if
-		 * required.
+		 * the packets length. Bytes of the extended length field follow the
+		 * first two bytes of given header.
 		 * 
-		 * @param in
+		 * @param header
 		 * @param payloadByte
+		 * @param extendedLengthBytes
 		 * @return
-		 * @throws IOException
 		 */
-		private int determinePayloadLength(InputStream in, byte payloadByte) throws IOException {
-			int length = (payloadByte & 0x7F);
-
+		private long determinePayloadLength(byte[] header, byte payloadByte, int extendedLengthBytes) {
+			if (extendedLengthBytes == 0) {
+				return (payloadByte & 0x7F);
+			}
+			
 			// multiple bytes for payload length are submitted in network byte order (MSB first)
-			if (length < PAYLOAD_LENGTH_16) {
-				// payload length is between 0-125 bytes and contained in payloadByte
-			} else {
-				int bytesToRetrieve = 0;
-
-				// we have got PAYLOAD_LENGTH_16 or PAYLOAD_LENGTH_63
-				if (length == PAYLOAD_LENGTH_16) {
-					// payload length is between 126-65535 bytes represented by 2 bytes.
-					bytesToRetrieve = 2;
-				} else if (length == PAYLOAD_LENGTH_63) {
-					// payload length is between 65536-2^63 bytes represented by 8 bytes
-					// (most significant bit must be zero)
-					bytesToRetrieve = 8;
-				}
-
-				byte[] extendedPayloadLength = read(in, bytesToRetrieve);
+			long length = 0;
+			for (int i = 0; i < extendedLengthBytes; i++) {
+				// shift previous bits left and add next byte
+				length = (length << 8) | (header[2 + i] & 0xFF);
+			}
+			return length;
+		}
 
-				length = 0;
-				for (int i = 0; i < bytesToRetrieve; i++) {
-					byte extendedPayload = extendedPayloadLength[i];
-					
-					// shift previous bits left and add next byte
-					length = (length << 8) | (extendedPayload & 0xFF);
+		/**
+		 * Use this helper for concatenating payloads of different WebSocket
+		 * frames. A message consisting of one frame only refers to the frame
+		 * buffer, otherwise the payload is collected in a pooled buffer.
+		 * 
+		 * @param src
+		 * @param offset
+		 * @param length
+		 */
+		private void appendFramePayload(byte[] src, int offset, int length) {
+			if (payloadData == null && isFinished) {
+				payload = ByteBuffer.wrap(src, offset, length).slice();
+				return;
+			}
+			
+			if (payloadData == null) {
+				payloadData = bufferPool.acquire(length);
+			} else if (payloadData.length - payloadSize < length) {
+				int newSize = payloadSize + length;
+				if (newSize < payloadData.length * 2L && payloadData.length * 2L <= PAYLOAD_MAX_FRAME_LENGTH) {
+					newSize = payloadData.length * 2;
 				}
+				byte[] newPayloadData = bufferPool.acquire(newSize);
+				System.arraycopy(payloadData, 0, newPayloadData, 0, payloadSize);
+				bufferPool.release(payloadData);
+				payloadData = newPayloadData;
 			}
 			
-			return length;
+			System.arraycopy(src, offset, payloadData, payloadSize, length);
+			payloadSize += length;
+			payload = ByteBuffer.wrap(payloadData, 0, payloadSize);
 		}
 
 		/**
@@ -518,14 +586,16 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 		 * readable by humans.
 		 * 
 		 * @param payload
+		 * @param offset
+		 * @param length
 		 * @param statusCode
 		 * @return
 		 */
-		private byte[] getReadableCloseFramePayload(byte[] payload, int statusCode) {
+		private byte[] getReadableCloseFramePayload(byte[] payload, int offset, int length, int statusCode) {
 			byte[] closeCode = Integer.toString(statusCode).getBytes();
 			
 			// close code might consist of illegal 5 digits (as one of the Autobahn tests)
-			byte[] newPayload = new byte[payload.length + (closeCode.length - 2)];
+			byte[] newPayload = new byte[length + (closeCode.length - 2)];
 			
 			try {
 				System.arraycopy(closeCode, 0, newPayload, 0, closeCode.length);
@@ -534,7 +604,7 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 			}
 			
 			try {
-				System.arraycopy(payload, 2, newPayload, closeCode.length, payload.length - 2);
+				System.arraycopy(payload, offset + 2, newPayload, closeCode.length, length - 2);
 			} catch (IndexOutOfBoundsException e) {
 				logger.info(e.getMessage());
 			}
@@ -552,67 +622,48 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 		 * @throws NumberFormatException
 		 */
 		private ByteBuffer getTransmittableCloseFramePayload(ByteBuffer payload) throws NumberFormatException, WebSocketException {
+			byte[] src = payload.array();
+			int offset = payload.arrayOffset();
+			int length = payload.limit();
+			
 			String closeCodePayload;
 			try {
-				closeCodePayload = Utf8Util.encodePayloadToUtf8(payload.array(), 0, 4);
+				closeCodePayload = Utf8Util.encodePayloadToUtf8(src, offset, 4);
 			} catch (InvalidUtf8Exception e) {
 				throw new WebSocketException(e.getMessage(), e);
 			}
 			
 			int newCloseCode = Integer.parseInt(closeCodePayload);
 			
-			byte[] newCloseCodeByte = new byte[2];
-			newCloseCodeByte[0] = (byte) ((newCloseCode >> 8) & 0xFF);
-			newCloseCodeByte[1] = (byte) ((newCloseCode) & 0xFF);
-			
-			ByteBuffer newPayload = ByteBuffer.allocate(payload.limit() - 2);
-			if (payload.limit() > 4) {
-			    // sandrop fix this
-				// newPayload.put(ArrayUtils.subarray(payload.array(), 4, payload.limit()), 2, payload.limit() - 4);
+			byte[] newPayload = new byte[length - 2];
+			newPayload[0] = (byte) ((newCloseCode >> 8) & 0xFF);
+			newPayload[1] = (byte) ((newCloseCode) & 0xFF);
+			if (length > 4) {
+				System.arraycopy(src, offset + 4, newPayload, 2, length - 4);
 			}
-			newPayload.put(newCloseCodeByte, 0, 2);
 			
-			return newPayload;
-		}
-
-		/**
-		 * Read only one byte from input stream.
-		 * 
-		 * @param in
-		 * @return
-		 * @throws IOException
-		 */
-		private byte read(InputStream in) throws IOException {
-			byte[] buffer = read(in, 1);
-			return buffer[0];
+			return ByteBuffer.wrap(newPayload);
 		}
 
 		/**
-		 * Reads given length from the given stream.
+		 * Reads given length from the given stream into the given buffer.
+		 * Blocks until given length is read!
 		 * 
 		 * @param in {@link InputStream} to read from.
+		 * @param buffer
+		 * @param offset
 		 * @param length Determines how much bytes should be read from the given stream.
-		 * @return Bytes read from stream - blocks until given length is read!
 		 * @throws IOException
 		 */
-		private byte[] read(InputStream in, int length) throws IOException {
-			byte[] buffer = new byte[length];
-			
-			// read until buffer is full 
+		private void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
 			int bytesRead = 0;
-			do {
-				bytesRead += in.read(buffer, bytesRead, length - bytesRead);
-			} while (length != bytesRead);
-			
-			// maybe we have to increase the size of the current frame buffer
-			if (currentFrame.getFreeSpace() < bytesRead) {
-				currentFrame.reallocateFor(bytesRead);
+			while (bytesRead < length) {
+				int count = in.read(buffer, offset + bytesRead, length - bytesRead);
+				if (count == -1) {
+					throw new EOFException("WebSocket stream ended within a frame.");
+				}
+				bytesRead += count;
 			}
-
-			// add bytes to current frame
-			currentFrame.put(buffer);
-			
-			return buffer;
 		}
 
 	    /**
@@ -624,7 +675,9 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 				return false;
 			}
 			
-			logger.info("forward message#" + getMessageId());
+			if (logger.isLoggable(Level.FINE)) {
+				logger.fine("forward message#" + getMessageId());
+			}
 			
 			if (hasChanged) {
 				if (opcode == OPCODE_CLOSE) {
@@ -632,25 +685,30 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 				}
 				
 				// split into chunks according to maximum frame length
+				byte[] src = payload.array();
+				int offset = payload.arrayOffset();
+				int length = payload.limit();
+				int maxFrameLength = PAYLOAD_MAX_FRAME_LENGTH - MAX_HEADER_LENGTH;
 				int writtenBytes = 0;
-				int frameLength = Math.min(PAYLOAD_MAX_FRAME_LENGTH, payload.limit());
+				int frameLength = Math.min(maxFrameLength, length);
 				int frameOpcode = opcode;
 				boolean isLastFrame;
 				
 				do {
-					ByteBuffer tempBuffer = ByteBuffer.allocate(frameLength);
-					tempBuffer.hasArray();
-					payload.get(tempBuffer.array(), 0, frameLength);
-					
-					writtenBytes = frameLength + writtenBytes;
-					frameLength = Math.min(PAYLOAD_MAX_FRAME_LENGTH, payload.limit() - writtenBytes);
-					
-					isLastFrame = (frameLength <= 0); 
+					int nextFrameLength = Math.min(maxFrameLength, length - writtenBytes - frameLength);
+					isLastFrame = (nextFrameLength <= 0);
 				
 					// TODO: use RSV from first original frame?
-					WebSocketFrameV13 frame = new WebSocketFrameV13(tempBuffer, getDirection(), isLastFrame, frameOpcode, 0);
+					WebSocketFrameV13 frame = new WebSocketFrameV13(src, offset + writtenBytes, frameLength, getDirection(), isLastFrame, frameOpcode, 0);
 					logger.info("forward modified frame");
-					forwardFrame(frame, out);
+					try {
+						forwardFrame(frame, out);
+					} finally {
+						frame.release();
+					}
+					writtenBytes += frameLength;
+					frameLength = nextFrameLength;
+					
 					// next frame is a continuation of the current one
 					frameOpcode = OPCODE_CONTINUATION;
 					
@@ -661,13 +719,20 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 					// exceed one frame)
 				} while (!isLastFrame);
 			} else {
-				for (WebSocketFrameV13 frame : receivedFrames) {
+				for (int i = 0; i < receivedFrames.size(); i++) {
 					// forward frame by frame
+					WebSocketFrameV13 frame = receivedFrames.get(i);
 					if (!frame.isForwarded()) {
-						logger.info("forward frame");
+						logger.fine("forward frame");
 						forwardFrame(frame, out);
 					}
 				}
+				
+				if (payloadData != null) {
+					// payload was copied out of the frames, so their
+					// buffers can be reused as soon as they are forwarded
+					releaseFrames();
+				}
 			}
 			
 			return true;
@@ -681,21 +746,39 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 		 */
 		private void forwardFrame(WebSocketFrameV13 frame, OutputStream out) throws IOException {
 			synchronized (out) {
-				out.write(frame.getBuffer());
+				frame.writeTo(out);
 				out.flush();
 			}
 			
 			frame.setForwarded(true);
 		}
+
+		private void releaseFrames() {
+			for (int i = 0; i < receivedFrames.size(); i++) {
+				receivedFrames.get(i).release();
+			}
+			receivedFrames.clear();
+		}
+
+		/**
+		 * @see WebSocketMessage#release()
+		 */
+		@Override
+		public void release() {
+			releaseFrames();
+			bufferPool.release(payloadData);
+			payloadData = null;
+			payloadSize = 0;
+			payload = ByteBuffer.allocate(0);
+		}
 		
 		@Override
 		public byte[] getPayload() {
 			if (!isFinished) {
 				return new byte[0];
 			}
-			payload.rewind();
 			byte[] bytes = new byte[payload.limit()];
-			payload.get(bytes);
+			System.arraycopy(payload.array(), payload.arrayOffset(), bytes, 0, bytes.length);
 			return bytes;
 		}
 
@@ -728,7 +811,7 @@ public class WebSocketProxyV13 extends WebSocketProxy {
 		public String getReadablePayload() {
 			try {
 				isValidUtf8Payload = true;
-				return Utf8Util.encodePayloadToUtf8(payload.array(), 0, payload.limit());
+				return Utf8Util.encodePayloadToUtf8(payload.array(), payload.arrayOffset(), payload.limit());
 			} catch (InvalidUtf8Exception e) {
 				isValidUtf8Payload  = false;
 				return "<invalid UTF-8>";
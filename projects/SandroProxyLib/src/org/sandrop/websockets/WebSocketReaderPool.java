@@ -0,0 +1,248 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.websockets;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Small fixed set of selector threads reading all WebSocket channels, instead
+ * of two blocking {@link WebSocketListener} threads per channel. Both sides of
+ * one channel are served by the same thread, so frames of a channel are never
+ * processed concurrently.
+ */
+public class WebSocketReaderPool {
+
+	private static final Logger logger = Logger.getLogger(WebSocketReaderPool.class.getSimpleName());
+
+	private final ReaderThread[] readers;
+
+	private final AtomicInteger nextReader = new AtomicInteger(0);
+
+	private volatile boolean running = true;
+
+	private final AtomicInteger listenerCount = new AtomicInteger(0);
+	private final AtomicLong frameCount = new AtomicLong(0);
+	private final AtomicLong byteCount = new AtomicLong(0);
+
+	/**
+	 * @param threads number of selector threads
+	 * @throws IOException if selector can not be opened
+	 */
+	public WebSocketReaderPool(int threads) throws IOException {
+		if (threads < 1) {
+			threads = 1;
+		}
+		readers = new ReaderThread[threads];
+		for (int i = 0; i < threads; i++) {
+			readers[i] = new ReaderThread("WS-Reader-" + i);
+		}
+		for (int i = 0; i < threads; i++) {
+			readers[i].start();
+		}
+	}
+
+	/**
+	 * Hands listeners of one channel to one of the reader threads.
+	 * 
+	 * @param listeners
+	 * @return false if pool is already shut down
+	 */
+	public boolean register(WebSocketChannelListener... listeners) {
+		if (!running) {
+			return false;
+		}
+		int index = (nextReader.getAndIncrement() & Integer.MAX_VALUE) % readers.length;
+		for (WebSocketChannelListener listener : listeners) {
+			if (listener != null) {
+				listenerCount.incrementAndGet();
+				readers[index].pending.offer(listener);
+			}
+		}
+		readers[index].selector.wakeup();
+		return true;
+	}
+
+	/**
+	 * Makes reader of the key write queued data when its channel is writable.
+	 * 
+	 * @param key
+	 */
+	void enableWrite(SelectionKey key) {
+		for (ReaderThread reader : readers) {
+			if (reader.selector != key.selector()) {
+				continue;
+			}
+			if (Thread.currentThread() == reader) {
+				if (key.isValid()) {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+			} else {
+				// interest is changed only by the thread selecting
+				reader.writeRequests.offer(key);
+				reader.selector.wakeup();
+			}
+			return;
+		}
+	}
+
+	/**
+	 * @return true if called on a reader thread, which must never wait
+	 */
+	static boolean isReaderThread() {
+		return Thread.currentThread() instanceof ReaderThread;
+	}
+
+	void unregister(WebSocketChannelListener listener) {
+		listenerCount.decrementAndGet();
+	}
+
+	void countFrame() {
+		frameCount.incrementAndGet();
+	}
+
+	void countBytes(int count) {
+		byteCount.addAndGet(count);
+	}
+
+	/**
+	 * @return number of reader threads
+	 */
+	public int getThreadCount() {
+		return readers.length;
+	}
+
+	/**
+	 * @return number of channel sides currently read
+	 */
+	public int getListenerCount() {
+		return listenerCount.get();
+	}
+
+	/**
+	 * @return frames read by all readers
+	 */
+	public long getFrameCount() {
+		return frameCount.get();
+	}
+
+	/**
+	 * @return bytes read by all readers
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * Stops reader threads, channels still registered are stopped.
+	 */
+	public void shutdown() {
+		running = false;
+		for (int i = 0; i < readers.length; i++) {
+			readers[i].selector.wakeup();
+		}
+	}
+
+	private class ReaderThread extends Thread {
+
+		private final Selector selector;
+
+		private final ConcurrentLinkedQueue<WebSocketChannelListener> pending = new ConcurrentLinkedQueue<WebSocketChannelListener>();
+
+		private final ConcurrentLinkedQueue<SelectionKey> writeRequests = new ConcurrentLinkedQueue<SelectionKey>();
+
+		public ReaderThread(String name) throws IOException {
+			selector = Selector.open();
+			setName(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					selector.select();
+				} catch (IOException e) {
+					logger.warning("Error on select " + e.getMessage());
+					break;
+				}
+				WebSocketChannelListener listener;
+				while ((listener = pending.poll()) != null) {
+					try {
+						SelectionKey key = listener.getChannel().register(selector, SelectionKey.OP_READ, listener);
+						listener.onRegistered(key, WebSocketReaderPool.this);
+					} catch (ClosedChannelException e) {
+						unregister(listener);
+						listener.stop();
+					}
+				}
+				SelectionKey writeKey;
+				while ((writeKey = writeRequests.poll()) != null) {
+					if (writeKey.isValid()) {
+						writeKey.interestOps(writeKey.interestOps() | SelectionKey.OP_WRITE);
+					}
+				}
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					WebSocketChannelListener selected = (WebSocketChannelListener) key.attachment();
+					if (key.isValid() && key.isWritable()) {
+						selected.onWritable();
+					}
+					if (key.isValid() && key.isReadable()) {
+						selected.onReadable();
+					}
+				}
+			}
+			WebSocketChannelListener listener;
+			while ((listener = pending.poll()) != null) {
+				unregister(listener);
+				listener.stop();
+			}
+			for (SelectionKey key : selector.keys()) {
+				((WebSocketChannelListener) key.attachment()).stop();
+			}
+			try {
+				selector.close();
+			} catch (IOException ignore) {
+			}
+		}
+	}
+}
@@ -55,8 +55,8 @@ import org.sandrop.websockets.WebSocketProxy.State;
 import org.sandroproxy.webscarab.store.sql.SqlLiteStore;
 
 /**
- * Listens to all WebSocket messages and utilizes {@link TableWebSocket} to
- * store messages in database.
+ * Listens to all WebSocket messages and hands them to
+ * {@link WebSocketWriteQueue}, which stores them in database.
  */
 public class WebSocketStorage implements WebSocketObserver {
 
@@ -67,20 +67,20 @@ public class WebSocketStorage implements WebSocketObserver {
 	public static final int WEBSOCKET_OBSERVING_ORDER = 100;
 
 	private SqlLiteStore store;
+	
+	private WebSocketWriteQueue writeQueue;
 
-	public WebSocketStorage(SqlLiteStore store) {
+	public WebSocketStorage(SqlLiteStore store, WebSocketWriteQueue writeQueue) {
 		this.store = store;
+		this.writeQueue = writeQueue;
 	}
 	
 	public boolean insertMessage(WebSocketMessageDTO message){
-	    try {
-            store.insertMessage(message);
-            return true;
-        } catch (Exception e) {
-            e.printStackTrace();
-            logger.info(e.getMessage());
-        }
-	    return false;
+	    return writeQueue.insertMessage(message);
+	}
+	
+	public WebSocketWriteQueue getWriteQueue() {
+		return writeQueue;
 	}
 
 	@Override
@@ -91,14 +91,8 @@ public class WebSocketStorage implements WebSocketObserver {
 	@Override
 	public boolean onMessageFrame(long channelId, WebSocketMessage wsMessage) {
 		if (wsMessage.isFinished()) {
-			WebSocketMessageDTO message = wsMessage.getDTO();
-
-			try {
-			    store.insertMessage(message);
-			} catch (Exception e) {
-			    e.printStackTrace();
-				logger.info(e.getMessage());
-			}
+			// dto holds copy of payload, message buffers are released after forwarding
+			writeQueue.insertMessage(wsMessage.getDTO());
 		}
 
 		// forward message frame to other observers and then send through
@@ -108,14 +102,10 @@ public class WebSocketStorage implements WebSocketObserver {
 	@Override
 	public void onStateChange(State state, WebSocketProxy proxy) {
 		if (state.equals(State.OPEN) || state.equals(State.CLOSED) || state.equals(State.INCLUDED)) {
-			try {
-				if (store != null) {
-				    store.insertOrUpdateChannel(proxy.getDTO());
-				} else if (!state.equals(State.CLOSED)) {
-					logger.info("Could not update state of WebSocket channel to '" + state.toString() + "'!");
-				}
-			} catch (SQLException e) {
-				logger.info(e.getMessage());
+			if (store != null) {
+			    writeQueue.insertOrUpdateChannel(proxy.getDTO());
+			} else if (!state.equals(State.CLOSED)) {
+				logger.info("Could not update state of WebSocket channel to '" + state.toString() + "'!");
 			}
 		} else if (state.equals(State.EXCLUDED)) {
 			// when proxy is excluded, then messages are forwarded
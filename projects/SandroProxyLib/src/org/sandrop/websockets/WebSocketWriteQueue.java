@@ -0,0 +1,333 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.websockets;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.sandroproxy.webscarab.store.sql.SqlLiteStore;
+
+/**
+ * Persistence stage for WebSocket traffic. Listener threads only queue
+ * {@link WebSocketMessageDTO}s, one background thread writes them to
+ * {@link SqlLiteStore} in batches of batchSize messages or after flushInterval
+ * ms, each batch in one transaction. Channel state updates are coalesced, only
+ * the latest state of a channel is written with the next batch.
+ * <p>
+ * The queue holds at most queueLimit messages. Forwarding never waits on the
+ * database, when the queue is full either the new or the oldest queued message
+ * is dropped and counted.
+ */
+public class WebSocketWriteQueue {
+
+    private static final Logger logger = Logger.getLogger(WebSocketWriteQueue.class.getSimpleName());
+
+    private static final long FLUSH_TIMEOUT = 60000;
+
+    /**
+     * Queued to wake up writer when only channel updates are pending.
+     */
+    private static final Object CHANNEL_MARKER = new Object();
+
+    private final SqlLiteStore store;
+
+    /**
+     * Holds {@link WebSocketMessageDTO}s, {@link WebSocketWriteQueue#CHANNEL_MARKER}
+     * and latches of callers waiting in {@link WebSocketWriteQueue#flush()}.
+     */
+    private final LinkedBlockingQueue<Object> queue;
+
+    private final ConcurrentHashMap<Long, WebSocketChannelDTO> pendingChannels = new ConcurrentHashMap<Long, WebSocketChannelDTO>();
+
+    private final int batchSize;
+
+    private final long flushInterval;
+
+    private final boolean dropOldest;
+
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicLong written = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong channelUpdates = new AtomicLong(0);
+    private final AtomicLong channelWrites = new AtomicLong(0);
+
+    private volatile boolean running = true;
+
+    private final Thread writer;
+
+    /**
+     * @param store
+     * @param queueLimit maximum number of messages waiting to be written
+     * @param batchSize maximum number of messages written in one transaction
+     * @param flushInterval how long (ms) a batch waits for further messages
+     * @param dropOldest on full queue drop oldest queued message instead of new one
+     */
+    public WebSocketWriteQueue(SqlLiteStore store, int queueLimit, int batchSize, long flushInterval, boolean dropOldest) {
+        this.store = store;
+        // some room for markers on top of message limit
+        queue = new LinkedBlockingQueue<Object>((queueLimit < 1 ? 1 : queueLimit) + 16);
+        this.batchSize = batchSize < 1 ? 1 : batchSize;
+        this.flushInterval = flushInterval < 0 ? 0 : flushInterval;
+        this.dropOldest = dropOldest;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "WebSocketWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues message for storing. Returns immediately.
+     * 
+     * @param message
+     * @return false if message was dropped
+     */
+    public boolean insertMessage(WebSocketMessageDTO message) {
+        if (!running) {
+            writeMessage(message);
+            return true;
+        }
+        queued.incrementAndGet();
+        if (queue.remainingCapacity() > 16 && queue.offer(message)) {
+            return true;
+        }
+        if (dropOldest) {
+            // make room by removing first queued message
+            for (Iterator<Object> it = queue.iterator(); it.hasNext();) {
+                if (it.next() instanceof WebSocketMessageDTO) {
+                    it.remove();
+                    break;
+                }
+            }
+            countDropped();
+            return queue.offer(message);
+        }
+        countDropped();
+        return false;
+    }
+
+    /**
+     * Remembers latest state of channel, it is written together with next
+     * batch of messages.
+     * 
+     * @param channel
+     */
+    public void insertOrUpdateChannel(WebSocketChannelDTO channel) {
+        if (!running) {
+            writeChannel(channel);
+            return;
+        }
+        channelUpdates.incrementAndGet();
+        if (pendingChannels.put(channel.id, channel) == null) {
+            queue.offer(CHANNEL_MARKER);
+        }
+    }
+
+    /**
+     * Blocks until everything queued before this call is written to store.
+     */
+    public void flush() {
+        if (!running || Thread.currentThread() == writer) {
+            return;
+        }
+        CountDownLatch done = new CountDownLatch(1);
+        try {
+            queue.put(done);
+            if (!done.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warning("Timeout flushing websocket writes, " + getPendingCount() + " still pending");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Flushes pending writes and stops writer thread.
+     */
+    public void shutdown() {
+        flush();
+        running = false;
+        writer.interrupt();
+    }
+
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of messages handed over for storing
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of messages store refused to insert
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * @return number of channel state changes reported
+     */
+    public long getChannelUpdateCount() {
+        return channelUpdates.get();
+    }
+
+    /**
+     * @return number of channel rows actually written after coalescing
+     */
+    public long getChannelWriteCount() {
+        return channelWrites.get();
+    }
+
+    private void countDropped() {
+        long count = dropped.incrementAndGet();
+        if ((count & 0x3FF) == 1) {
+            logger.info("WebSocket write queue full, dropped " + count + " messages so far");
+        }
+    }
+
+    private void writeLoop() {
+        List<Object> batch = new ArrayList<Object>();
+        while (running) {
+            try {
+                Object first = queue.take();
+                batch.add(first);
+                // wait for more messages until batch is full, interval elapsed or someone waits on flush
+                long deadline = System.currentTimeMillis() + flushInterval;
+                int messages = (first instanceof WebSocketMessageDTO) ? 1 : 0;
+                boolean flushRequested = first instanceof CountDownLatch;
+                while (messages < batchSize && !flushRequested) {
+                    long wait = deadline - System.currentTimeMillis();
+                    Object next = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    if (next instanceof WebSocketMessageDTO) {
+                        messages++;
+                    }
+                    flushRequested = next instanceof CountDownLatch;
+                }
+                writeBatch(batch, messages);
+            } catch (InterruptedException e) {
+                if (batch.size() > 0) {
+                    writeBatch(batch, batch.size());
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        // write whatever was queued while stopping
+        List<Object> rest = new ArrayList<Object>();
+        queue.drainTo(rest);
+        writeBatch(rest, rest.size());
+    }
+
+    private void writeBatch(List<Object> batch, int messages) {
+        boolean inTransaction = messages > 1 || (messages > 0 && !pendingChannels.isEmpty());
+        if (inTransaction) {
+            store.beginBatch();
+        }
+        try {
+            // channel rows first, so messages always refer to a known channel
+            for (Iterator<Long> it = pendingChannels.keySet().iterator(); it.hasNext();) {
+                WebSocketChannelDTO channel = pendingChannels.remove(it.next());
+                if (channel != null) {
+                    writeChannel(channel);
+                }
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Object item = batch.get(i);
+                if (item instanceof WebSocketMessageDTO) {
+                    writeMessage((WebSocketMessageDTO) item);
+                }
+            }
+        } finally {
+            if (inTransaction) {
+                store.endBatch();
+                batches.incrementAndGet();
+            }
+        }
+        // flush markers only after data is in store
+        for (int i = 0; i < batch.size(); i++) {
+            Object item = batch.get(i);
+            if (item instanceof CountDownLatch) {
+                ((CountDownLatch) item).countDown();
+            }
+        }
+    }
+
+    private void writeMessage(WebSocketMessageDTO message) {
+        try {
+            store.insertMessage(message);
+            written.incrementAndGet();
+        } catch (Exception e) {
+            failed.incrementAndGet();
+            logger.info("Error storing websocket message: " + e.getMessage());
+        }
+    }
+
+    private void writeChannel(WebSocketChannelDTO channel) {
+        try {
+            store.insertOrUpdateChannel(channel);
+            channelWrites.incrementAndGet();
+        } catch (Exception e) {
+            logger.info("Error storing websocket channel: " + e.getMessage());
+        }
+    }
+}
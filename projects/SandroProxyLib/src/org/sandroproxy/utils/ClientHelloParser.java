@@ -0,0 +1,152 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandroproxy.utils;
+
+/**
+ * Reads server_name extension from tls ClientHello without consuming it, 
+ * data comes from peek on client socket so handshake is later done as usual
+ */
+public class ClientHelloParser {
+    
+    public static final int RECORD_HEADER_LENGTH = 5;
+    
+    private static final int CONTENT_TYPE_HANDSHAKE = 0x16;
+    private static final int HANDSHAKE_TYPE_CLIENT_HELLO = 0x01;
+    private static final int EXTENSION_SERVER_NAME = 0x0000;
+    private static final int SERVER_NAME_TYPE_HOST = 0x00;
+    
+    /**
+     * @return full length of first tls record with header, 0 if header is not 
+     * complete yet and -1 if data is not tls handshake
+     */
+    public static int getRecordLength(byte[] data, int length){
+        if (length < 1){
+            return 0;
+        }
+        if ((data[0] & 0xFF) != CONTENT_TYPE_HANDSHAKE){
+            return -1;
+        }
+        if (length < RECORD_HEADER_LENGTH){
+            return 0;
+        }
+        if ((data[1] & 0xFF) != 0x03){
+            return -1;
+        }
+        return RECORD_HEADER_LENGTH + readShort(data, 3);
+    }
+    
+    /**
+     * @return host name from ClientHello or null if it is not there or data is 
+     * truncated before extension
+     */
+    public static String getServerName(byte[] data, int length){
+        int recordLength = getRecordLength(data, length);
+        if (recordLength <= 0){
+            return null;
+        }
+        int end = Math.min(length, recordLength);
+        int pos = RECORD_HEADER_LENGTH;
+        if (pos + 4 > end || (data[pos] & 0xFF) != HANDSHAKE_TYPE_CLIENT_HELLO){
+            return null;
+        }
+        // handshake type, length, client version, random
+        pos += 4 + 2 + 32;
+        // session id
+        if (pos + 1 > end){
+            return null;
+        }
+        pos += 1 + (data[pos] & 0xFF);
+        // cipher suites
+        if (pos + 2 > end){
+            return null;
+        }
+        pos += 2 + readShort(data, pos);
+        // compression methods
+        if (pos + 1 > end){
+            return null;
+        }
+        pos += 1 + (data[pos] & 0xFF);
+        // extensions
+        if (pos + 2 > end){
+            return null;
+        }
+        int extensionsEnd = Math.min(end, pos + 2 + readShort(data, pos));
+        pos += 2;
+        while (pos + 4 <= extensionsEnd){
+            int type = readShort(data, pos);
+            int extensionLength = readShort(data, pos + 2);
+            pos += 4;
+            if (pos + extensionLength > extensionsEnd){
+                return null;
+            }
+            if (type == EXTENSION_SERVER_NAME){
+                return readHostName(data, pos, pos + extensionLength);
+            }
+            pos += extensionLength;
+        }
+        return null;
+    }
+    
+    private static String readHostName(byte[] data, int pos, int end){
+        if (pos + 2 > end){
+            return null;
+        }
+        int listEnd = Math.min(end, pos + 2 + readShort(data, pos));
+        pos += 2;
+        while (pos + 3 <= listEnd){
+            int nameType = data[pos] & 0xFF;
+            int nameLength = readShort(data, pos + 1);
+            pos += 3;
+            if (pos + nameLength > listEnd){
+                return null;
+            }
+            if (nameType == SERVER_NAME_TYPE_HOST && nameLength > 0){
+                char[] name = new char[nameLength];
+                for (int i = 0; i < nameLength; i++){
+                    int c = data[pos + i] & 0xFF;
+                    // host names are plain ascii, anything else is not worth trusting
+                    if (c <= 0x20 || c >= 0x7F){
+                        return null;
+                    }
+                    name[i] = (char) c;
+                }
+                return new String(name).toLowerCase();
+            }
+            pos += nameLength;
+        }
+        return null;
+    }
+    
+    private static int readShort(byte[] data, int pos){
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+}
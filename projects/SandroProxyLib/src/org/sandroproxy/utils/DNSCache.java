@@ -0,0 +1,236 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandroproxy.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of dns answers by domain name. Names are split over shards with their
+ * own lock so lookups of different names do not wait on each other, every shard 
+ * keeps entries in access order and drops least recently used one when full.
+ */
+public class DNSCache {
+    
+    private static int SHARDS = 16;
+    private static int PREFETCH_MIN_HITS = 3;
+    // prefetch when less than this percent of ttl is left
+    private static int PREFETCH_REMAINING_PERCENT = 10;
+    
+    public static class Entry {
+        private DNSResponseDto response;
+        private boolean negative;
+        private long created;
+        private long expires;
+        private int hits;
+        private boolean prefetching;
+        
+        public DNSResponseDto getResponse() {
+            return response;
+        }
+        
+        /**
+         * @return true if entry remembers that name does not exist
+         */
+        public boolean isNegative() {
+            return negative;
+        }
+        
+        /**
+         * @return seconds until entry expires
+         */
+        public int getRemainingTtl(long now) {
+            long remaining = (expires - now) / 1000;
+            return remaining < 0 ? 0 : (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+    
+    private static class Shard extends LinkedHashMap<String, DNSCache.Entry> {
+        
+        private static final long serialVersionUID = 1L;
+        private int maxSize;
+        private AtomicLong evictions;
+        
+        Shard(int maxSize, AtomicLong evictions) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+            this.evictions = evictions;
+        }
+        
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, DNSCache.Entry> eldest) {
+            if (size() > maxSize){
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    }
+    
+    private Shard[] mShards;
+    private boolean mPrefetch;
+    private AtomicLong mHits = new AtomicLong(0);
+    private AtomicLong mMisses = new AtomicLong(0);
+    private AtomicLong mEvictions = new AtomicLong(0);
+    
+    public DNSCache(int maxSize, boolean prefetch) {
+        int shardSize = Math.max(1, (maxSize + SHARDS - 1) / SHARDS);
+        mShards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; i++){
+            mShards[i] = new Shard(shardSize, mEvictions);
+        }
+        mPrefetch = prefetch;
+    }
+    
+    private static String getKey(String name) {
+        return name.toLowerCase();
+    }
+    
+    private Shard getShard(String key) {
+        return mShards[(key.hashCode() & 0x7fffffff) % SHARDS];
+    }
+    
+    /**
+     * @return entry that is still valid or null
+     */
+    public Entry get(String name, long now) {
+        String key = getKey(name);
+        Shard shard = getShard(key);
+        synchronized (shard) {
+            Entry entry = shard.get(key);
+            if (entry != null && entry.expires <= now){
+                shard.remove(key);
+                entry = null;
+            }
+            if (entry == null){
+                mMisses.incrementAndGet();
+                return null;
+            }
+            entry.hits++;
+            mHits.incrementAndGet();
+            return entry;
+        }
+    }
+    
+    public void put(String name, DNSResponseDto response, long ttl, long now) {
+        put(name, response, ttl, now, false);
+    }
+    
+    /**
+     * remembers that name does not exist, response is answer to replay
+     */
+    public void putNegative(String name, DNSResponseDto response, long ttl, long now) {
+        put(name, response, ttl, now, true);
+    }
+    
+    private void put(String name, DNSResponseDto response, long ttl, long now, boolean negative) {
+        if (ttl <= 0){
+            return;
+        }
+        Entry entry = new Entry();
+        entry.response = response;
+        entry.negative = negative;
+        entry.created = now;
+        entry.expires = now + ttl;
+        String key = getKey(name);
+        Shard shard = getShard(key);
+        synchronized (shard) {
+            Entry previous = shard.get(key);
+            if (previous != null){
+                // refreshed entry stays hot
+                entry.hits = previous.hits;
+            }
+            shard.put(key, entry);
+        }
+    }
+    
+    /**
+     * Checks if frequently used entry is close to expiry and marks it so only
+     * first caller gets true and fetches it again.
+     */
+    public boolean shouldPrefetch(String name, Entry entry, long now) {
+        if (!mPrefetch || entry.negative){
+            return false;
+        }
+        Shard shard = getShard(getKey(name));
+        synchronized (shard) {
+            if (entry.prefetching || entry.hits < PREFETCH_MIN_HITS){
+                return false;
+            }
+            long ttl = entry.expires - entry.created;
+            if ((entry.expires - now) * 100 > ttl * PREFETCH_REMAINING_PERCENT){
+                return false;
+            }
+            entry.prefetching = true;
+            return true;
+        }
+    }
+    
+    public void remove(String name) {
+        String key = getKey(name);
+        Shard shard = getShard(key);
+        synchronized (shard) {
+            shard.remove(key);
+        }
+    }
+    
+    public void clear() {
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                shard.clear();
+            }
+        }
+    }
+    
+    public int size() {
+        int size = 0;
+        for (Shard shard : mShards) {
+            synchronized (shard) {
+                size += shard.size();
+            }
+        }
+        return size;
+    }
+    
+    public long getHitCount() {
+        return mHits.get();
+    }
+    
+    public long getMissCount() {
+        return mMisses.get();
+    }
+    
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+}
@@ -9,13 +9,16 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.logging.Level;
@@ -25,6 +28,7 @@ import org.sandrop.webscarab.httpclient.HTTPClient;
 import org.sandrop.webscarab.httpclient.HTTPClientFactory;
 import org.sandrop.webscarab.model.HttpUrl;
 import org.sandrop.webscarab.model.NamedValue;
+import org.sandrop.webscarab.model.Preferences;
 import org.sandrop.webscarab.model.Request;
 import org.sandrop.webscarab.model.Response;
 import org.sandroproxy.webscarab.store.sql.SqlLiteStore;
@@ -36,6 +40,7 @@ import dnsutils.record.Address;
 
 
 import android.content.Context;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
 /**
@@ -76,13 +81,44 @@ public class DNSProxy implements Runnable {
   private final static int LOCAL_DNS_PORT = 53;
   private final ExecutorService mThreadPool = Executors.newFixedThreadPool(MAX_THREAD_NUM);
 
-  private Map<String, DNSResponseDto> dnsResponseCache;
+  private final static int DEFAULT_CACHE_SIZE = 2048;
+  private final static int MAX_HOST_CACHE_SIZE = 8192;
+  // answers from http relays have no ttl, those were always kept for 3 days
+  private final static long RELAY_TTL = 259200000L;
+  private final static long DEFAULT_TTL = 60 * 1000L;
+  private final static long MIN_TTL = 5 * 1000L;
+  private final static long MAX_TTL = 24 * 60 * 60 * 1000L;
+  private final static long NEGATIVE_TTL = 60 * 1000L;
+  private final static int UPSTREAM_TIMEOUT = 2000;
+  private final static int UPSTREAM_POLL_INTERVAL = 500;
+  private final static int RCODE_NXDOMAIN = 3;
+
+  private DNSCache dnsCache;
+  private Map<String, Boolean> persistedNames = new ConcurrentHashMap<String, Boolean>();
   private static List<String> dnsLocalServers;
   
   private static Map<String, String> dnsHostCache = null;
   
+  /**
+   * Query forwarded to local dns server and waiting for answer. All queries 
+   * share one socket and are matched to answers by transaction id.
+   */
+  private static class PendingQuery {
+    byte[] request;
+    String domain;
+    InetAddress clientAddress;
+    int clientPort;
+    InetAddress serverAddress;
+    int serverIndex;
+    int upstreamId;
+    long sentAt;
+    boolean prefetch;
+  }
 
   private DatagramSocket srvSocket;
+  private DatagramSocket upstreamSocket;
+  private Map<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<Integer, PendingQuery>();
+  private Random queryIdRandom = new Random();
 
   private int srvPort = 8153;
   private String providerId;
@@ -170,6 +206,8 @@ public class DNSProxy implements Runnable {
 //    }
     _logger.setLevel(Level.FINEST);
     database = SqlLiteStore.getInstance(ctx, null);
+    dnsCache = new DNSCache(Preferences.getPreferenceInt(ctx, PreferenceUtils.dnsProxyCacheSizeKey, DEFAULT_CACHE_SIZE),
+        PreferenceManager.getDefaultSharedPreferences(ctx).getBoolean(PreferenceUtils.dnsProxyPrefetchKey, true));
     if (localProvider){
         try {
             getDnsServers();
@@ -183,6 +221,10 @@ public class DNSProxy implements Runnable {
     try {
       srvSocket = new DatagramSocket(srvPort,
           InetAddress.getByName("127.0.0.1"));
+      if (localProvider){
+        upstreamSocket = new DatagramSocket();
+        upstreamSocket.setSoTimeout(UPSTREAM_POLL_INTERVAL);
+      }
       inService = true;
       srvPort = srvSocket.getLocalPort();
       Log.e(TAG, "Start at port " + srvPort);
@@ -201,53 +243,80 @@ public class DNSProxy implements Runnable {
    *
    * @param questDomainName domain name
    * @param answer fake answer
+   * @param ttl time to keep answer in milliseconds
    */
-  private synchronized void addToCache(String questDomainName, byte[] answer) {
+  private void addToCache(String questDomainName, byte[] answer, long ttl) {
     DNSResponseDto response = new DNSResponseDto(questDomainName);
     response.setDNSResponse(answer);
-    try {
-      if (!dnsResponseCache.containsKey(questDomainName)){
-          dnsResponseCache.put(questDomainName, response);
-          database.insertDnsResponse(response);
-          String ip = response.getIPString();
-          if (dnsHostCache.containsKey(ip)){
-              dnsHostCache.remove(ip);
-          }
-          dnsHostCache.put(ip, questDomainName);
+    dnsCache.put(questDomainName, response, ttl, System.currentTimeMillis());
+    String ip = response.getIPString();
+    if (ip != null){
+      putHostName(ip, questDomainName);
+    }
+    // database keeps one row per name, refreshed answers stay only in memory
+    if (persistedNames.put(questDomainName, Boolean.TRUE) == null){
+      try {
+        database.insertDnsResponse(response);
+      } catch (Exception e) {
+        Log.e(TAG, "Cannot update dns database", e);
       }
-    } catch (Exception e) {
-      Log.e(TAG, "Cannot update dns cache or database", e);
     }
   }
   
+  /**
+   * Remember that domain does not exist, answer is replayed as it is.
+   */
+  private void addNegativeToCache(String questDomainName, byte[] answer) {
+    DNSResponseDto response = new DNSResponseDto(questDomainName);
+    response.setDNSResponse(answer);
+    dnsCache.putNegative(questDomainName, response, NEGATIVE_TTL, System.currentTimeMillis());
+  }
+  
+  private static void putHostName(String ip, String hostName) {
+    Map<String, String> hostCache = dnsHostCache;
+    if (hostCache == null){
+      return;
+    }
+    if (hostCache.size() > MAX_HOST_CACHE_SIZE){
+      hostCache.clear();
+    }
+    hostCache.put(ip, hostName);
+  }
+  
   private boolean checkIfExpired(DNSResponseDto response){
       // 3 days
-      if ((System.currentTimeMillis() - response.getTimestamp()) > 259200000L) {
+      if ((System.currentTimeMillis() - response.getTimestamp()) > RELAY_TTL) {
           return true;
       }
       return false;
   }
-
-  private synchronized DNSResponseDto queryFromCache(String questDomainName) {
-    if (dnsResponseCache.containsKey(questDomainName)){
-        DNSResponseDto response = dnsResponseCache.get(questDomainName);
-        if (checkIfExpired(response)){
-            if (LOGD) Log.d(TAG, "deleted: " + questDomainName);
-            _logger.finest("delete dns response for " + questDomainName);
-            dnsResponseCache.remove(questDomainName);
-            dnsHostCache.remove(response.getIPString());
-            database.deleteDnsProxyResponse(questDomainName);
-            return null;
-        }
-        return response;
-    }else{
-        return null;
+  
+  private static long clampTtl(long ttlSeconds) {
+    return Math.max(MIN_TTL, Math.min(MAX_TTL, ttlSeconds * 1000L));
+  }
+  
+  /**
+   * Answers made by createDNSResponse have single record at the end, its ttl 
+   * is set to what is left in cache.
+   */
+  private static void setAnswerTtl(byte[] answer, int ttl) {
+    int pos = answer.length - 10;
+    if (pos < 12){
+      return;
     }
+    answer[pos] = (byte) (ttl >>> 24);
+    answer[pos + 1] = (byte) (ttl >>> 16);
+    answer[pos + 2] = (byte) (ttl >>> 8);
+    answer[pos + 3] = (byte) ttl;
   }
 
   public void close() throws IOException {
     inService = false;
     srvSocket.close();
+    if (upstreamSocket != null){
+      upstreamSocket.close();
+    }
+    pendingQueries.clear();
     if (LOGD) Log.i(TAG, "DNS Proxy closed");
   }
 
@@ -343,28 +412,26 @@ public class DNSProxy implements Runnable {
    */
   private void loadCache() {
     try {
-      dnsResponseCache = database.getDnsResponses();
-      dnsHostCache = new HashMap<String, String>();
-      boolean refetch = false;
-      for (String  key : dnsResponseCache.keySet()) {
-          DNSResponseDto resp = dnsResponseCache.get(key);
-          if (checkIfExpired(resp)) {
-              if (LOGD) Log.d(TAG, "deleted: " + resp.getRequest());
-              _logger.finest("delete dns response for " + resp.getRequest());
+      Map<String, DNSResponseDto> dnsResponses = database.getDnsResponses();
+      dnsHostCache = new ConcurrentHashMap<String, String>();
+      long now = System.currentTimeMillis();
+      for (String  key : dnsResponses.keySet()) {
+          DNSResponseDto response = dnsResponses.get(key);
+          if (checkIfExpired(response)) {
+              if (LOGD) Log.d(TAG, "deleted: " + response.getRequest());
+              _logger.finest("delete dns response for " + response.getRequest());
               database.deleteDnsProxyResponse(key);
-              refetch = true;
+              continue;
+          }
+          persistedNames.put(key, Boolean.TRUE);
+          // stored answers have no ttl, for local servers they only give names of ip's
+          if (!localProvider){
+              dnsCache.put(key, response, response.getTimestamp() + RELAY_TTL - now, now);
           }
-      }
-      if (refetch){
-          dnsResponseCache = database.getDnsResponses();
-      }
-      for (String  key : dnsResponseCache.keySet()) {
-          DNSResponseDto response = dnsResponseCache.get(key);
           String ip = response.getIPString();
-          if (dnsHostCache.containsKey(ip)){
-              dnsHostCache.remove(ip);
+          if (ip != null){
+              putHostName(ip, response.getRequest());
           }
-          dnsHostCache.put(ip, response.getRequest());
       }
     } catch (Exception e) {
       Log.e(TAG, "Cannot open DAO", e);
@@ -446,11 +513,16 @@ public class DNSProxy implements Runnable {
 
     Thread.currentThread().setName("DNS Proxy resolver");
     loadCache();
-
-    byte[] qbuffer = new byte[1024];
+    if (upstreamSocket != null){
+      Thread upstreamReceiver = new Thread(new UpstreamReceiver(), "DNS Proxy upstream");
+      upstreamReceiver.setDaemon(true);
+      upstreamReceiver.start();
+    }
 
     while (true) {
       try {
+        // answers from pool threads copy transaction id from packet data so every request gets own buffer
+        byte[] qbuffer = new byte[1024];
         final DatagramPacket dnsPacket = new DatagramPacket(qbuffer,
             qbuffer.length);
 
@@ -467,69 +539,42 @@ public class DNSProxy implements Runnable {
 
         if (LOGD) Log.d(TAG, "Resolving: " + questDomain);
 
-        DNSResponseDto resp = queryFromCache(questDomain);
+        long now = System.currentTimeMillis();
+        DNSCache.Entry cached = dnsCache.get(questDomain, now);
 
-        if (resp != null) {
-          sendDns(resp.getDNSResponse(), dnsPacket, srvSocket);
-          if (LOGD) Log.d(TAG, "DNS cache hit for " + questDomain);
+        if (cached != null) {
+          byte[] cachedAnswer = cached.getResponse().getDNSResponse();
+          byte[] answer = new byte[cachedAnswer.length];
+          System.arraycopy(cachedAnswer, 0, answer, 0, cachedAnswer.length);
+          if (!cached.isNegative() && localProvider){
+            setAnswerTtl(answer, cached.getRemainingTtl(now));
+          }
+          sendDns(answer, dnsPacket, srvSocket);
+          if (LOGD) Log.d(TAG, "DNS cache hit for " + questDomain + (cached.isNegative() ? " (negative)" : ""));
+          if (upstreamSocket != null && dnsCache.shouldPrefetch(questDomain, cached, now)){
+            if (LOGD) Log.d(TAG, "Prefetching " + questDomain);
+            forwardUpstream(udpreq, questDomain, null, 0, true);
+          }
 //        } else if (questDomain.toLowerCase().endsWith(dnsRelayGeaHostName) && providerId.toLowerCase().equals(dnsRelayGeaHostName)) {
 //          byte[] ips = parseIPString(dnsRelayGaeIp);
 //          byte[] answer = createDNSResponse(udpreq, ips);
 //          addToCache(questDomain, answer);
 //          sendDns(answer, dnsq, srvSocket);
 //          if (LOGD) Log.d(TAG, "Custom DNS resolver for " + dnsRelayGeaHostName  + " to " + dnsRelayGaeIp);
-        } else if (localProvider && dnsLocalServers != null && dnsLocalServers.size() > 0 && dnsLocalServers.get(0).length() > 0){
-            DatagramSocket dnsSocket = new DatagramSocket();
-            String dnsServer = null;
-            DNSQuery dnsQuery = new DNSQuery(dnsPacket.getData(), dnsPacket.getLength());
-            for (int i = 0; i < dnsLocalServers.size(); i++) {
-                try{
-                    dnsServer = dnsLocalServers.get(i);
-                    if (dnsServer != null && dnsServer.length() > 0){
-                        DatagramPacket dt = new DatagramPacket(dnsPacket.getData(), dnsPacket.getLength(), InetAddress.getByName(dnsServer), LOCAL_DNS_PORT);
-                        if (LOGD) Log.d(TAG, "used local provider -> just send it up to " + dnsServer + " for " + dnsQuery.getQueryHost());
-                        dnsSocket.send(dt);
-                        DatagramPacket dnsPacketResponse = new DatagramPacket(qbuffer, qbuffer.length);
-                        dnsSocket.receive(dnsPacketResponse);
-                        try{
-                            dnsQuery.receiveResponse(dnsPacketResponse.getData(), dnsPacketResponse.getLength());
-                            Enumeration<DNSRR> dnsrr = dnsQuery.getAnswers();
-                            if (dnsrr != null){
-                                while (dnsrr.hasMoreElements()){
-                                    DNSRR dnsr = dnsrr.nextElement();
-                                    if (dnsr.getRRType() == DNS.TYPE_A){
-                                        Address address = (Address) dnsr;
-                                        byte[] answer = createDNSResponse(udpreq, address.getAddress());
-                                        // TODO here we could also add time to live
-                                        addToCache(questDomain, answer);
-                                        // we add just first one and break;
-                                        break;
-                                    }
-                                }
-                            }
-                        }catch(Exception ex){
-                            ex.printStackTrace();
-                        }
-                        sendDns(replayDNSResponse(dnsPacketResponse), dnsPacket, srvSocket);
-                        dnsSocket.close();
-                        if (LOGD) Log.d(TAG, "new response relayed to real client" );
-                        break;
-                    }
-                }catch(Exception ex){
-                    ex.printStackTrace();
-                }
-            }
+        } else if (upstreamSocket != null && dnsLocalServers != null && dnsLocalServers.size() > 0 && dnsLocalServers.get(0).length() > 0){
+            if (LOGD) Log.d(TAG, "used local provider -> just send it up for " + questDomain);
+            forwardUpstream(udpreq, questDomain, dnsPacket.getAddress(), dnsPacket.getPort(), false);
             continue;
         } else if (questDomain.toLowerCase().endsWith(dnsRelayPingEuHostName) && providerId.toLowerCase().equals(dnsRelayPingEuHostName)) {
             byte[] ips = parseIPString(dnsRelayPingEuIp);
             byte[] answer = createDNSResponse(udpreq, ips);
-            addToCache(questDomain, answer);
+            addToCache(questDomain, answer, RELAY_TTL);
             sendDns(answer, dnsPacket, srvSocket);
             if (LOGD) Log.d(TAG, "Custom DNS resolver " + dnsRelayWwwIpCnHostName);
         } else if (questDomain.toLowerCase().endsWith(dnsRelayWwwIpCnHostName) && providerId.toLowerCase().equals(dnsRelayWwwIpCnHostName)) {
             byte[] ips = parseIPString(dnsRelayWwwIpCnIp);
             byte[] answer = createDNSResponse(udpreq, ips);
-            addToCache(questDomain, answer);
+            addToCache(questDomain, answer, RELAY_TTL);
             sendDns(answer, dnsPacket, srvSocket);
             if (LOGD) Log.d(TAG, "Custom DNS resolver " + dnsRelayWwwIpCnHostName);
 //        } else if (questDomain.toLowerCase().endsWith(dnsRelayMyhostsSinappHostName) && providerId.toLowerCase().equals(dnsRelayMyhostsSinappHostName)) {
@@ -541,7 +586,7 @@ public class DNSProxy implements Runnable {
         } else if (questDomain.toLowerCase().endsWith(dnsRelayHostName) && providerId.equals(dnsRelayCustomId)) {
           byte[] ips = parseIPString(dnsRelayIp);
           byte[] answer = createDNSResponse(udpreq, ips);
-          addToCache(questDomain, answer);
+          addToCache(questDomain, answer, RELAY_TTL);
           sendDns(answer, dnsPacket, srvSocket);
           if (LOGD) Log.d(TAG, "Custom DNS resolver " + dnsRelayHostName);
         } else {
@@ -560,7 +605,7 @@ public class DNSProxy implements Runnable {
                     answer = fetchAnswerHTTP(udpreq);
                 }
                 if (answer != null && answer.length != 0) {
-                  addToCache(questDomain, answer);
+                  addToCache(questDomain, answer, localProvider ? DEFAULT_TTL : RELAY_TTL);
                   sendDns(answer, dnsPacket, srvSocket);
                   if (LOGD) Log.d(TAG,
                       "Success to get DNS response for "
@@ -600,6 +645,157 @@ public class DNSProxy implements Runnable {
 
   }
 
+  /**
+   * Sends query to local dns server without waiting for answer, answer is 
+   * handled by UpstreamReceiver.
+   *
+   * @param clientAddress null for prefetch when nobody waits for answer
+   */
+  private void forwardUpstream(byte[] udpreq, String questDomain, InetAddress clientAddress, int clientPort, boolean prefetch) {
+    if (udpreq.length < DNS_PKG_HEADER_LEN){
+      return;
+    }
+    PendingQuery query = new PendingQuery();
+    query.request = udpreq;
+    query.domain = questDomain;
+    query.clientAddress = clientAddress;
+    query.clientPort = clientPort;
+    query.prefetch = prefetch;
+    int id;
+    synchronized (queryIdRandom) {
+      do {
+        id = queryIdRandom.nextInt(0x10000);
+      } while (pendingQueries.containsKey(id));
+      query.upstreamId = id;
+      pendingQueries.put(id, query);
+    }
+    sendUpstream(query);
+  }
+  
+  /**
+   * Sends query to server at query.serverIndex, moves to next one if it fails.
+   */
+  private void sendUpstream(PendingQuery query) {
+    byte[] upstreamRequest = new byte[query.request.length];
+    System.arraycopy(query.request, 0, upstreamRequest, 0, query.request.length);
+    upstreamRequest[0] = (byte) (query.upstreamId >> 8);
+    upstreamRequest[1] = (byte) query.upstreamId;
+    List<String> servers = dnsLocalServers;
+    while (servers != null && query.serverIndex < servers.size()) {
+      String dnsServer = servers.get(query.serverIndex);
+      try{
+        if (dnsServer != null && dnsServer.length() > 0){
+          query.serverAddress = InetAddress.getByName(dnsServer);
+          query.sentAt = System.currentTimeMillis();
+          upstreamSocket.send(new DatagramPacket(upstreamRequest, upstreamRequest.length, query.serverAddress, LOCAL_DNS_PORT));
+          if (LOGD) Log.d(TAG, "sent " + query.domain + " to " + dnsServer + " as " + query.upstreamId);
+          return;
+        }
+      }catch(Exception ex){
+        Log.e(TAG, "Sending to " + dnsServer + " failed: " + ex.getMessage());
+      }
+      query.serverIndex++;
+    }
+    pendingQueries.remove(query.upstreamId);
+  }
+  
+  /**
+   * Reads answers of all forwarded queries from shared socket so slow 
+   * answer does not hold back others.
+   */
+  private class UpstreamReceiver implements Runnable {
+    
+    @Override
+    public void run() {
+      byte[] buffer = new byte[4096];
+      long lastCheck = System.currentTimeMillis();
+      while (inService && !upstreamSocket.isClosed()) {
+        try {
+          DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+          upstreamSocket.receive(packet);
+          if (packet.getLength() >= DNS_PKG_HEADER_LEN){
+            int id = ((buffer[0] & 0xFF) << 8) | (buffer[1] & 0xFF);
+            PendingQuery query = pendingQueries.get(id);
+            // answer must come from server query was sent to
+            if (query != null && packet.getAddress().equals(query.serverAddress) && pendingQueries.remove(id) != null){
+              byte[] answer = new byte[packet.getLength()];
+              System.arraycopy(buffer, 0, answer, 0, answer.length);
+              handleUpstreamAnswer(query, answer);
+            }
+          }
+        } catch (SocketTimeoutException e) {
+        } catch (IOException e) {
+          if (inService){
+            Log.e(TAG, "Upstream IO Exception", e);
+          }
+        } catch (Exception e) {
+          Log.e(TAG, "Upstream answer failed", e);
+        }
+        long now = System.currentTimeMillis();
+        if (now - lastCheck >= UPSTREAM_POLL_INTERVAL){
+          lastCheck = now;
+          retryPendingQueries(now);
+        }
+      }
+      if (LOGD) Log.d(TAG, "Upstream receiver stopped");
+    }
+  }
+  
+  private void retryPendingQueries(long now) {
+    Iterator<PendingQuery> it = pendingQueries.values().iterator();
+    while (it.hasNext()) {
+      PendingQuery query = it.next();
+      if (now - query.sentAt > UPSTREAM_TIMEOUT){
+        query.serverIndex++;
+        if (dnsLocalServers != null && query.serverIndex < dnsLocalServers.size()){
+          if (LOGD) Log.d(TAG, "No answer for " + query.domain + ", trying next server");
+          sendUpstream(query);
+        }else{
+          if (LOGD) Log.d(TAG, "No answer for " + query.domain);
+          it.remove();
+        }
+      }
+    }
+  }
+  
+  private void handleUpstreamAnswer(PendingQuery query, byte[] answer) {
+    try{
+      int rcode = answer[3] & 0x0F;
+      if (rcode == RCODE_NXDOMAIN){
+        addNegativeToCache(query.domain, answer);
+      }else{
+        DNSQuery dnsQuery = new DNSQuery(query.request, query.request.length);
+        dnsQuery.receiveResponse(answer, answer.length);
+        Enumeration<DNSRR> dnsrr = dnsQuery.getAnswers();
+        if (dnsrr != null){
+          while (dnsrr.hasMoreElements()){
+            DNSRR dnsr = dnsrr.nextElement();
+            if (dnsr.getRRType() == DNS.TYPE_A){
+              Address address = (Address) dnsr;
+              byte[] cacheAnswer = createDNSResponse(query.request, address.getAddress());
+              addToCache(query.domain, cacheAnswer, clampTtl(dnsr.getRRTTL()));
+              // we add just first one and break;
+              break;
+            }
+          }
+        }
+      }
+    }catch(Exception ex){
+      if (LOGD) Log.d(TAG, "Cannot cache answer for " + query.domain + ": " + ex.getMessage());
+    }
+    if (query.clientAddress != null){
+      answer[0] = query.request[0];
+      answer[1] = query.request[1];
+      DatagramPacket resp = new DatagramPacket(answer, answer.length, query.clientAddress, query.clientPort);
+      try {
+        srvSocket.send(resp);
+        if (LOGD) Log.d(TAG, "new response relayed to real client" );
+      } catch (IOException e) {
+        Log.e(TAG, "", e);
+      }
+    }
+  }
+
   private Request createHttpRequest(String domain) throws Exception{
       Request request = new Request();
 //      if (providerId.toLowerCase().equals(dnsRelayGeaHostName)){
@@ -0,0 +1,568 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandroproxy.webscarab.store.sql;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.sandrob.bouncycastle.crypto.Digest;
+import org.sandrob.bouncycastle.crypto.digests.SHA256Digest;
+import org.sandrob.bouncycastle.util.encoders.Hex;
+
+import android.util.Log;
+
+/**
+ * Message bodies appended to few large pack files instead of file per body. 
+ * Body is identified by SHA-256 of its captured bytes so store can keep only 
+ * one copy of identical bodies, bookkeeping of digests and references is 
+ * done by caller. Bodies that are not already compressed are deflated.
+ */
+public class ContentStore {
+    
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+    
+    private static final String LOGTAG = "ContentStore";
+    private static final boolean LOGD = false;
+    
+    private static final String PACK_DIR = "packs";
+    private static final String PACK_PREFIX = "pack-";
+    private static final String PACK_SUFFIX = ".dat";
+    
+    // new pack is started when current one grows over this size
+    private static final long PACK_SIZE_LIMIT = 64L * 1024 * 1024;
+    
+    // bodies up to this size are digested before written so duplicates are never written
+    private static final int MEMORY_BODY_LIMIT = 256 * 1024;
+    
+    private static final int BUFFER_SIZE = 8192;
+    
+    // small bodies are all headers, speed matters more than last few percents
+    private static final int DEFLATE_LEVEL = Deflater.BEST_SPEED;
+    
+    private File mDir;
+    private int mPack;
+    private long mPackLength;
+    private FileOutputStream mOut;
+    
+    /**
+     * Body read by prepare, either held in memory or already appended 
+     * to pack when it was too large
+     */
+    public static class Blob {
+        public String digest;
+        public long length;
+        public int pack;
+        public long offset;
+        public long storedLength;
+        public int codec;
+        private byte[] data;
+        private boolean written;
+        
+        public boolean isWritten(){
+            return written;
+        }
+    }
+    
+    public ContentStore(File rootDir){
+        mDir = new File(rootDir, PACK_DIR);
+        if (!mDir.exists()){
+            mDir.mkdirs();
+        }
+        mPack = 1;
+        String[] names = mDir.list();
+        if (names != null){
+            for (String name : names) {
+                int pack = packNumber(name);
+                if (pack > mPack){
+                    mPack = pack;
+                }
+            }
+        }
+        mPackLength = packFile(mPack).length();
+    }
+    
+    private static int packNumber(String name){
+        if (name.startsWith(PACK_PREFIX) && name.endsWith(PACK_SUFFIX)){
+            try{
+                return Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+            }catch (NumberFormatException ex){
+                // not ours
+            }
+        }
+        return -1;
+    }
+    
+    private File packFile(int pack){
+        return new File(mDir, PACK_PREFIX + pack + PACK_SUFFIX);
+    }
+    
+    /**
+     * @return false for bodies with content encoding or of media types that are 
+     * compressed by themselves, deflating them again only costs time
+     */
+    public static boolean isCompressible(String contentType, String contentEncoding){
+        if (contentEncoding != null && contentEncoding.trim().length() > 0 
+                && !contentEncoding.trim().equalsIgnoreCase("identity")){
+            return false;
+        }
+        if (contentType == null){
+            return true;
+        }
+        String type = contentType.toLowerCase();
+        if (type.startsWith("image/")){
+            return type.startsWith("image/svg") || type.startsWith("image/bmp") || type.startsWith("image/x-icon");
+        }
+        if (type.startsWith("video/") || type.startsWith("audio/") || type.startsWith("font/woff")){
+            return false;
+        }
+        return !(type.startsWith("application/zip") || type.startsWith("application/gzip") 
+                || type.startsWith("application/x-gzip") || type.startsWith("application/x-7z")
+                || type.startsWith("application/x-rar") || type.startsWith("application/pdf")
+                || type.startsWith("application/font-woff") || type.startsWith("application/vnd.android.package-archive"));
+    }
+    
+    /**
+     * Reads body and computes its digest. Small body is kept in memory until 
+     * caller decides to write or drop it, larger one is appended to pack 
+     * while read and must be discarded if it turns out to be duplicate.
+     */
+    public synchronized Blob prepare(InputStream in, boolean compress) throws IOException{
+        Digest digest = newDigest();
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Blob blob = new Blob();
+        blob.codec = compress ? CODEC_DEFLATE : CODEC_NONE;
+        int got;
+        while ((got = in.read(buffer)) != -1){
+            digest.update(buffer, 0, got);
+            head.write(buffer, 0, got);
+            if (head.size() > MEMORY_BODY_LIMIT){
+                appendStream(blob, head.toByteArray(), in, digest);
+                blob.digest = digestHex(digest);
+                return blob;
+            }
+        }
+        blob.data = head.toByteArray();
+        blob.length = blob.data.length;
+        blob.digest = digestHex(digest);
+        return blob;
+    }
+    
+    /**
+     * platform SHA-256 is native and about ten times faster than java 
+     * implementation from bouncycastle, which is used only when it is missing
+     */
+    private static Digest newDigest(){
+        try{
+            return new PlatformDigest(MessageDigest.getInstance("SHA-256"));
+        }catch (NoSuchAlgorithmException ex){
+            return new SHA256Digest();
+        }
+    }
+    
+    private static String digestHex(Digest digest){
+        byte[] result = new byte[digest.getDigestSize()];
+        digest.doFinal(result, 0);
+        return new String(Hex.encode(result));
+    }
+    
+    /**
+     * @return append stream of current pack, new pack is started when current one is full
+     */
+    private OutputStream packOutput() throws IOException{
+        if (mPackLength >= PACK_SIZE_LIMIT){
+            closePack();
+            mPack++;
+            mPackLength = packFile(mPack).length();
+        }
+        if (mOut == null){
+            mOut = new FileOutputStream(packFile(mPack), true);
+        }
+        return mOut;
+    }
+    
+    private void closePack(){
+        if (mOut != null){
+            try {
+                mOut.close();
+            } catch (IOException ex) {
+                Log.e(LOGTAG, "Error closing pack " + mPack + " " + ex.getMessage());
+            }
+            mOut = null;
+        }
+    }
+    
+    private void appendStream(Blob blob, byte[] head, InputStream in, Digest digest) throws IOException{
+        CountingOutputStream counter = new CountingOutputStream(packOutput());
+        blob.pack = mPack;
+        blob.offset = mPackLength;
+        blob.written = true;
+        Deflater deflater = null;
+        OutputStream out = counter;
+        try{
+            if (blob.codec == CODEC_DEFLATE){
+                deflater = new Deflater(DEFLATE_LEVEL);
+                out = new DeflaterOutputStream(counter, deflater, BUFFER_SIZE);
+            }
+            out.write(head);
+            long length = head.length;
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int got;
+            while ((got = in.read(buffer)) != -1){
+                digest.update(buffer, 0, got);
+                out.write(buffer, 0, got);
+                length += got;
+            }
+            if (deflater != null){
+                ((DeflaterOutputStream)out).finish();
+            }
+            blob.length = length;
+        }finally{
+            if (deflater != null){
+                deflater.end();
+            }
+            // even partial write has to be accounted so offsets stay valid
+            blob.storedLength = counter.count;
+            mPackLength += counter.count;
+        }
+    }
+    
+    /**
+     * appends body held in memory to pack, body that does not get smaller 
+     * by compression is written as it is
+     */
+    public synchronized void write(Blob blob) throws IOException{
+        if (blob.written){
+            return;
+        }
+        byte[] stored = blob.data;
+        if (blob.codec == CODEC_DEFLATE){
+            stored = deflate(blob.data);
+            if (stored.length >= blob.data.length){
+                stored = blob.data;
+                blob.codec = CODEC_NONE;
+            }
+        }
+        OutputStream out = packOutput();
+        try{
+            out.write(stored);
+        }catch (IOException ex){
+            // part of body could be written, offsets continue from real end
+            mPackLength = packFile(mPack).length();
+            throw ex;
+        }
+        blob.pack = mPack;
+        blob.offset = mPackLength;
+        blob.storedLength = stored.length;
+        blob.written = true;
+        blob.data = null;
+        mPackLength += stored.length;
+    }
+    
+    private static byte[] deflate(byte[] data){
+        Deflater deflater = new Deflater(DEFLATE_LEVEL);
+        try{
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()){
+                int got = deflater.deflate(buffer);
+                out.write(buffer, 0, got);
+            }
+            return out.toByteArray();
+        }finally{
+            deflater.end();
+        }
+    }
+    
+    /**
+     * drops body of duplicate that was appended while read, only tail of 
+     * current pack can be given back
+     */
+    public synchronized void discard(Blob blob){
+        blob.data = null;
+        if (!blob.written){
+            return;
+        }
+        blob.written = false;
+        if (blob.pack == mPack && blob.offset + blob.storedLength == mPackLength){
+            RandomAccessFile file = null;
+            try{
+                file = new RandomAccessFile(packFile(mPack), "rw");
+                file.setLength(blob.offset);
+                mPackLength = blob.offset;
+            }catch (IOException ex){
+                Log.e(LOGTAG, "Could not truncate pack " + mPack + " " + ex.getMessage());
+            }finally{
+                if (file != null){
+                    try {
+                        file.close();
+                    } catch (IOException ignore) {
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * @return stream of original body bytes
+     */
+    public InputStream open(int pack, long offset, long storedLength, int codec) throws IOException{
+        FileInputStream file = new FileInputStream(packFile(pack));
+        try{
+            file.getChannel().position(offset);
+        }catch (IOException ex){
+            file.close();
+            throw ex;
+        }
+        InputStream in = new PackInputStream(file, storedLength);
+        if (codec == CODEC_DEFLATE){
+            in = new InflaterInputStream(in);
+        }
+        return in;
+    }
+    
+    /**
+     * @return numbers of all pack files, in ascending order
+     */
+    public List<Integer> getPacks(){
+        List<Integer> packs = new ArrayList<Integer>();
+        String[] names = mDir.list();
+        if (names != null){
+            for (String name : names) {
+                int pack = packNumber(name);
+                if (pack >= 0){
+                    packs.add(Integer.valueOf(pack));
+                }
+            }
+        }
+        Collections.sort(packs);
+        return packs;
+    }
+    
+    /**
+     * @return pack new bodies are appended to, it is never compacted
+     */
+    public synchronized int getCurrentPack(){
+        return mPack;
+    }
+    
+    public long getPackLength(int pack){
+        return packFile(pack).length();
+    }
+    
+    /**
+     * Appends stored bytes of one body from older pack to current one, 
+     * used to move live bodies out of pack before it is deleted
+     * @return pack and offset of the copy
+     */
+    public synchronized long[] copy(int pack, long offset, long storedLength) throws IOException{
+        if (pack == mPack){
+            throw new IOException("Can not copy from current pack " + pack);
+        }
+        OutputStream out = packOutput();
+        long[] location = new long[]{mPack, mPackLength};
+        InputStream in = open(pack, offset, storedLength, CODEC_NONE);
+        long copied = 0;
+        try{
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int got;
+            while ((got = in.read(buffer)) != -1){
+                out.write(buffer, 0, got);
+                copied += got;
+            }
+        }catch (IOException ex){
+            mPackLength = packFile(mPack).length();
+            throw ex;
+        }finally{
+            in.close();
+        }
+        mPackLength += copied;
+        if (copied != storedLength){
+            throw new IOException("Pack " + pack + " ends inside body at " + offset);
+        }
+        return location;
+    }
+    
+    /**
+     * deletes pack that has no live bodies left, current pack is kept
+     * @return true if pack file was deleted
+     */
+    public synchronized boolean deletePack(int pack){
+        if (pack == mPack){
+            return false;
+        }
+        File file = packFile(pack);
+        if (LOGD) Log.d(LOGTAG, "Deleting pack " + pack + " of " + file.length() + " bytes");
+        return file.delete();
+    }
+    
+    /**
+     * removes all packs, used when all content rows are deleted
+     */
+    public synchronized void clear(){
+        closePack();
+        File[] files = mDir.listFiles();
+        if (files != null){
+            for (File file : files) {
+                if (packNumber(file.getName()) >= 0 && !file.delete()){
+                    Log.e(LOGTAG, "Could not delete " + file.getAbsolutePath());
+                }
+            }
+        }
+        mPack = 1;
+        mPackLength = 0;
+        if (LOGD) Log.d(LOGTAG, "Packs cleared");
+    }
+    
+    private static class PlatformDigest implements Digest{
+        
+        private MessageDigest mDigest;
+        
+        PlatformDigest(MessageDigest digest){
+            mDigest = digest;
+        }
+        
+        public String getAlgorithmName() {
+            return mDigest.getAlgorithm();
+        }
+        
+        public int getDigestSize() {
+            return mDigest.getDigestLength();
+        }
+        
+        public void update(byte in) {
+            mDigest.update(in);
+        }
+        
+        public void update(byte[] in, int inOff, int len) {
+            mDigest.update(in, inOff, len);
+        }
+        
+        public int doFinal(byte[] out, int outOff) {
+            byte[] result = mDigest.digest();
+            System.arraycopy(result, 0, out, outOff, result.length);
+            return result.length;
+        }
+        
+        public void reset() {
+            mDigest.reset();
+        }
+    }
+    
+    private static class CountingOutputStream extends FilterOutputStream{
+        
+        private long count;
+        
+        CountingOutputStream(OutputStream out){
+            super(out);
+        }
+        
+        @Override
+        public void write(int oneByte) throws IOException {
+            out.write(oneByte);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+    
+    /**
+     * reads only bytes of one body from pack and closes pack file with itself
+     */
+    private static class PackInputStream extends InputStream{
+        
+        private FileInputStream mFile;
+        private long mRemaining;
+        
+        PackInputStream(FileInputStream file, long length){
+            mFile = file;
+            mRemaining = length;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0){
+                return -1;
+            }
+            int result = mFile.read();
+            if (result != -1){
+                mRemaining--;
+            }
+            return result;
+        }
+        
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0){
+                return -1;
+            }
+            int got = mFile.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (got > 0){
+                mRemaining -= got;
+            }
+            return got;
+        }
+        
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(mFile.available(), mRemaining);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            mFile.close();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandroproxy.webscarab.store.sql;
+
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.sandrop.webscarab.model.NamedValue;
+
+/**
+ * Encodes all headers of one message head into single blob. Common header 
+ * names are written as index into fixed dictionary, other names and all 
+ * values as length prefixed UTF-8. Lengths and indexes are varints so 
+ * typical head is a bit smaller than its text form.
+ */
+public class HeaderBlock {
+    
+    private static final int FORMAT_VERSION = 1;
+    
+    // append only, position is stored in existing blobs
+    private static final String[] DICTIONARY = new String[]{
+        "Host", "User-Agent", "Accept", "Accept-Encoding", "Accept-Language", 
+        "Accept-Charset", "Accept-Ranges", "Connection", "Keep-Alive", "Cookie", 
+        "Set-Cookie", "Content-Type", "Content-Length", "Content-Encoding", "Content-Language", 
+        "Content-Disposition", "Content-Range", "Transfer-Encoding", "Cache-Control", "Pragma", 
+        "Expires", "Date", "Last-Modified", "ETag", "If-Modified-Since", 
+        "If-None-Match", "If-Match", "If-Range", "Range", "Referer", 
+        "Origin", "Location", "Server", "Vary", "Age", 
+        "Via", "Authorization", "WWW-Authenticate", "Proxy-Authorization", "Proxy-Authenticate", 
+        "Proxy-Connection", "X-Requested-With", "X-Forwarded-For", "X-Powered-By", "Upgrade", 
+        "Sec-WebSocket-Key", "Sec-WebSocket-Accept", "Sec-WebSocket-Version", "Sec-WebSocket-Extensions", "Access-Control-Allow-Origin", 
+        "Access-Control-Allow-Credentials", "Access-Control-Allow-Headers", "Access-Control-Allow-Methods", "Strict-Transport-Security", "X-Frame-Options", 
+        "X-Content-Type-Options", "X-XSS-Protection", "Content-Security-Policy", "P3P", "DNT", 
+        "TE", "Trailer", "Link", "Alt-Svc", "Timing-Allow-Origin",
+    };
+    
+    private static final Map<String, Integer> CODES = new HashMap<String, Integer>();
+    
+    static {
+        for (int i = 0; i < DICTIONARY.length; i++) {
+            CODES.put(DICTIONARY[i], Integer.valueOf(i + 1));
+        }
+    }
+    
+    private byte[] _buffer;
+    private int _length;
+    
+    private HeaderBlock(int capacity){
+        _buffer = new byte[capacity];
+    }
+    
+    public static byte[] encode(NamedValue[] headers){
+        int count = headers == null ? 0 : headers.length;
+        HeaderBlock block = new HeaderBlock(16 + count * 48);
+        block.writeVarint(FORMAT_VERSION);
+        block.writeVarint(count);
+        for (int i = 0; i < count; i++) {
+            String name = headers[i].getName();
+            Integer code = name == null ? null : CODES.get(name);
+            if (code != null){
+                block.writeVarint(code.intValue());
+            }else{
+                block.writeVarint(0);
+                block.writeString(name == null ? "" : name);
+            }
+            block.writeString(headers[i].getValue());
+        }
+        byte[] blob = new byte[block._length];
+        System.arraycopy(block._buffer, 0, blob, 0, block._length);
+        return blob;
+    }
+    
+    /**
+     * @return headers in order they were encoded, null if blob is not valid
+     */
+    public static NamedValue[] decode(byte[] blob){
+        if (blob == null){
+            return null;
+        }
+        int[] pos = new int[]{0};
+        try {
+            if (readVarint(blob, pos) != FORMAT_VERSION){
+                return null;
+            }
+            int count = readVarint(blob, pos);
+            if (count < 0 || count > blob.length){
+                return null;
+            }
+            NamedValue[] headers = new NamedValue[count];
+            for (int i = 0; i < count; i++) {
+                int code = readVarint(blob, pos);
+                String name;
+                if (code == 0){
+                    name = readString(blob, pos);
+                }else if (code <= DICTIONARY.length){
+                    name = DICTIONARY[code - 1];
+                }else{
+                    return null;
+                }
+                headers[i] = new NamedValue(name, readString(blob, pos));
+            }
+            return headers;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+    
+    private void ensure(int extra){
+        if (_length + extra > _buffer.length){
+            byte[] buffer = new byte[Math.max(_buffer.length * 2, _length + extra)];
+            System.arraycopy(_buffer, 0, buffer, 0, _length);
+            _buffer = buffer;
+        }
+    }
+    
+    private void writeVarint(int value){
+        ensure(5);
+        while ((value & ~0x7f) != 0){
+            _buffer[_length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        _buffer[_length++] = (byte) value;
+    }
+    
+    /**
+     * length is written + 1 so null can be told from empty string
+     */
+    private void writeString(String value){
+        if (value == null){
+            writeVarint(0);
+            return;
+        }
+        int chars = value.length();
+        boolean ascii = true;
+        for (int i = 0; i < chars && ascii; i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+        if (ascii){
+            writeVarint(chars + 1);
+            ensure(chars);
+            for (int i = 0; i < chars; i++) {
+                _buffer[_length++] = (byte) value.charAt(i);
+            }
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            bytes = value.getBytes();
+        }
+        writeVarint(bytes.length + 1);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, _buffer, _length, bytes.length);
+        _length += bytes.length;
+    }
+    
+    private static int readVarint(byte[] blob, int[] pos){
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = blob[pos[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0){
+                return value;
+            }
+        }
+        return -1;
+    }
+    
+    private static String readString(byte[] blob, int[] pos) throws UnsupportedEncodingException{
+        int length = readVarint(blob, pos) - 1;
+        if (length < 0){
+            return null;
+        }
+        if (pos[0] + length > blob.length){
+            throw new ArrayIndexOutOfBoundsException(pos[0] + length);
+        }
+        String value = new String(blob, pos[0], length, "UTF-8");
+        pos[0] += length;
+        return value;
+    }
+}
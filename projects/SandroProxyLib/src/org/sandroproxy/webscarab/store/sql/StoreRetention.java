@@ -0,0 +1,252 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandroproxy.webscarab.store.sql;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Keeps capture store within limits. Policies are checked periodically on 
+ * own low priority thread, oldest conversations are evicted in small 
+ * batches so writers never wait for more than one batch. After eviction 
+ * dead pack bytes and free database pages are given back to file system.
+ * Limit of 0 disables its policy.
+ */
+public class StoreRetention {
+    
+    private static final String LOGTAG = "StoreRetention";
+    private static final boolean LOGD = false;
+    
+    private static final int EVICT_BATCH = 200;
+    private static final int COMPACT_BATCH = 256;
+    private static final int VACUUM_STEP_PAGES = 256;
+    
+    // packs with less than half of bytes live are rewritten
+    private static final double PACK_MAX_LIVE_RATIO = 0.5;
+    
+    // database file is compacted when quarter of it is free pages
+    private static final double DATABASE_MIN_FREE_RATIO = 0.25;
+    
+    private SqlLiteStore mStore;
+    private long mMaxAge;
+    private long mMaxBytes;
+    private long mMaxConversations;
+    private int mHostQuota;
+    private int mAppQuota;
+    private long mInterval;
+    
+    private Thread mThread;
+    private volatile boolean mStopped;
+    
+    private final AtomicLong mRuns = new AtomicLong();
+    private final AtomicLong mEvictedConversations = new AtomicLong();
+    private final AtomicLong mReleasedBytes = new AtomicLong();
+    private final AtomicLong mReclaimedBytes = new AtomicLong();
+    private volatile long mEvictionLag;
+    private volatile long mLastRunTime;
+    private volatile long mLastRunDuration;
+    
+    /**
+     * @param maxAge ms after start of conversation it is evicted
+     * @param maxBytes bytes of live database pages and bodies
+     * @param hostQuota conversations kept per request host
+     * @param appQuota conversations kept per client application
+     * @param interval ms between checks of policies
+     */
+    public StoreRetention(SqlLiteStore store, long maxAge, long maxBytes, long maxConversations, 
+            int hostQuota, int appQuota, long interval){
+        mStore = store;
+        mMaxAge = maxAge;
+        mMaxBytes = maxBytes;
+        mMaxConversations = maxConversations;
+        mHostQuota = hostQuota;
+        mAppQuota = appQuota;
+        mInterval = Math.max(interval, 1000);
+    }
+    
+    public synchronized void start(){
+        if (mThread != null){
+            return;
+        }
+        mStopped = false;
+        mThread = new Thread("StoreRetention"){
+            @Override
+            public void run() {
+                while (!mStopped){
+                    try{
+                        runOnce();
+                        Thread.sleep(mInterval);
+                    }catch (InterruptedException ex){
+                        break;
+                    }catch (Exception ex){
+                        Log.e(LOGTAG, "Error applying retention " + ex.getMessage());
+                        try {
+                            Thread.sleep(mInterval);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }
+        };
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+    
+    public synchronized void stop(){
+        mStopped = true;
+        if (mThread != null){
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+    
+    /**
+     * applies all policies and compacts packs and database
+     */
+    public void runOnce() throws InterruptedException{
+        long start = System.currentTimeMillis();
+        long evicted = 0;
+        if (mMaxAge > 0){
+            long startedBefore = start - mMaxAge;
+            long oldest = mStore.getOldestConversationStart();
+            // how late eviction is, time since oldest conversation should be gone
+            mEvictionLag = oldest >= 0 && oldest < startedBefore ? startedBefore - oldest : 0;
+            evicted += evict(null, null, startedBefore, Long.MAX_VALUE);
+        }
+        if (mHostQuota > 0){
+            evicted += evictOverQuota(SqlLiteStore.CONVERSATION_REQ_HOST, mHostQuota);
+        }
+        if (mAppQuota > 0){
+            evicted += evictOverQuota(SqlLiteStore.CONVERSATION_CLIENT_APP_NAME, mAppQuota);
+        }
+        if (mMaxConversations > 0){
+            long over = mStore.getConversationCount() - mMaxConversations;
+            if (over > 0){
+                evicted += evict(null, null, Long.MAX_VALUE, over);
+            }
+        }
+        if (mMaxBytes > 0){
+            while (!mStopped && mStore.getStoreUsedBytes() > mMaxBytes){
+                long count = evict(null, null, Long.MAX_VALUE, EVICT_BATCH);
+                if (count == 0){
+                    break;
+                }
+                evicted += count;
+            }
+        }
+        long reclaimed = mStore.compactPacks(PACK_MAX_LIVE_RATIO, COMPACT_BATCH);
+        reclaimed += mStore.compactDatabase(DATABASE_MIN_FREE_RATIO, VACUUM_STEP_PAGES);
+        mReclaimedBytes.addAndGet(reclaimed);
+        mRuns.incrementAndGet();
+        mLastRunTime = start;
+        mLastRunDuration = System.currentTimeMillis() - start;
+        if (evicted > 0 || reclaimed > 0){
+            Log.i(LOGTAG, "Evicted " + evicted + " conversations, reclaimed " + reclaimed + " bytes in " + mLastRunDuration + " ms");
+        }
+    }
+    
+    private long evictOverQuota(String column, int quota) throws InterruptedException{
+        long evicted = 0;
+        Map<String, Long> groups = mStore.getConversationGroupsOver(column, quota);
+        for (Map.Entry<String, Long> group : groups.entrySet()) {
+            if (LOGD) Log.d(LOGTAG, column + " " + group.getKey() + " is " + group.getValue() + " over quota");
+            evicted += evict(column, group.getKey(), Long.MAX_VALUE, group.getValue());
+        }
+        return evicted;
+    }
+    
+    /**
+     * evicts oldest conversations in batches, pauses between them so 
+     * writers are not starved
+     */
+    private long evict(String column, String value, long startedBefore, long count) throws InterruptedException{
+        long evicted = 0;
+        while (!mStopped && evicted < count){
+            int limit = (int) Math.min(EVICT_BATCH, count - evicted);
+            List<Long> ids = mStore.getOldestConversationIds(column, value, startedBefore, limit);
+            if (ids.isEmpty()){
+                break;
+            }
+            mReleasedBytes.addAndGet(mStore.evictConversations(ids));
+            mEvictedConversations.addAndGet(ids.size());
+            evicted += ids.size();
+            if (ids.size() < limit){
+                break;
+            }
+            Thread.sleep(20);
+        }
+        return evicted;
+    }
+    
+    public long getRunCount(){
+        return mRuns.get();
+    }
+    
+    public long getEvictedConversations(){
+        return mEvictedConversations.get();
+    }
+    
+    /**
+     * @return bytes of bodies no longer referenced by any conversation
+     */
+    public long getReleasedBytes(){
+        return mReleasedBytes.get();
+    }
+    
+    /**
+     * @return bytes pack and database files got smaller by compaction
+     */
+    public long getReclaimedBytes(){
+        return mReclaimedBytes.get();
+    }
+    
+    /**
+     * @return ms oldest conversation was kept over max age at start of last run
+     */
+    public long getEvictionLag(){
+        return mEvictionLag;
+    }
+    
+    public long getLastRunTime(){
+        return mLastRunTime;
+    }
+    
+    public long getLastRunDuration(){
+        return mLastRunDuration;
+    }
+}
@@ -133,7 +133,12 @@ public class ChromeParser {
                 responseJson.put("status", statusCodeStr);
             }
             
-            responseJson.put("statusText", response.getMessage());
+            String statusText = response.getMessage();
+            if (response.isContentTruncated()){
+                // shown in network list so incomplete body is visible without opening it
+                statusText = statusText + " (body truncated)";
+            }
+            responseJson.put("statusText", statusText);
             // TODO mime type from response
             // responseJson.put("mimeType", "text/html");
             // [ "Document" , "Font" , "Image" , "Other" , "Script" , "Stylesheet" , "WebSocket" , "XHR" ] 
@@ -235,9 +240,7 @@ public class ChromeParser {
             requestJson.put("url", request.getURL().toString());
             requestJson.put("method", request.getMethod());
             if (request.getContentSize() > 0){
-                byte[] content = request.getContent();
-                String contentString = new String(content);
-                requestJson.put("postData", contentString);
+                requestJson.put("postData", contentText(request));
             }
             
             JSONObject headers = new JSONObject();
@@ -385,7 +388,7 @@ public class ChromeParser {
                     body.put("content", Base64.encodeToString(response.getContent(),Base64.DEFAULT));
                     body.put("base64Encoded", true);
                 }else{
-                    body.put("content", new String (response.getContent()));
+                    body.put("content", contentText(response));
                     body.put("base64Encoded", false);
                 }
             }
@@ -399,6 +402,21 @@ public class ChromeParser {
         return null;
     }
     
+    /**
+     * @return body as text, with note when capture policy kept only part of it
+     */
+    private static String contentText(Message message){
+        String content = new String(message.getContent());
+        if (message.isContentTruncated()){
+            if (message.isCompressed() || message.isDeflated()){
+                // compressed body can not be decoded without its end
+                content = "";
+            }
+            content = content + "\n[Content truncated by capture policy, " + message.getContentSize() + " bytes kept]";
+        }
+        return content;
+    }
+    
     public String getResponseBody(long id, long requestId){
         Response response = mStore.getResponseByRequestId(requestId);
         if (response == null){
@@ -420,12 +438,11 @@ public class ChromeParser {
                 body.put("body", largeResponse);
                 body.put("base64Encoded", false);
             }else{
-                byte[] content = response.getContent();
                 if (base64Encode){
-                    body.put("body", Base64.encodeToString(content, Base64.DEFAULT));
+                    body.put("body", Base64.encodeToString(response.getContent(), Base64.DEFAULT));
                     body.put("base64Encoded", true);
                 }else{
-                    body.put("body", new String(content));
+                    body.put("body", contentText(response));
                     body.put("base64Encoded", false);
                 }
             }
@@ -0,0 +1,306 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.httpclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Process wide pool of idle keep-alive connections to servers and chained
+ * proxies. Connections are keyed by scheme, host, port, proxy and client
+ * certificate fingerprint so connection is only reused for exactly the same
+ * route and TLS identity. Before reuse connection is checked that server did
+ * not close it in the meantime.
+ */
+public class UpstreamConnectionPool {
+    
+    private static UpstreamConnectionPool _instance = null;
+    
+    private Map<String, LinkedList<PooledConnection>> _idle = new HashMap<String, LinkedList<PooledConnection>>();
+    private int _idleCount = 0;
+    
+    private int _maxPerHost = 4;
+    private int _maxIdle = 32;
+    private long _idleTimeout = 30000;
+    
+    private AtomicLong _hits = new AtomicLong(0);
+    private AtomicLong _misses = new AtomicLong(0);
+    private AtomicLong _stale = new AtomicLong(0);
+    private AtomicLong _evicted = new AtomicLong(0);
+    
+    private Timer _evictionTimer = null;
+    
+    private Logger _logger = Logger.getLogger(getClass().getName());
+    
+    public static synchronized UpstreamConnectionPool getInstance(){
+        if (_instance == null){
+            _instance = new UpstreamConnectionPool();
+        }
+        return _instance;
+    }
+    
+    /**
+     * @param maxPerHost max idle connections kept for one key
+     * @param maxIdle max idle connections kept all together
+     * @param idleTimeout ms after idle connection is closed
+     */
+    public synchronized void configure(int maxPerHost, int maxIdle, long idleTimeout){
+        _maxPerHost = maxPerHost < 1 ? 1 : maxPerHost;
+        _maxIdle = maxIdle < 1 ? 1 : maxIdle;
+        if (idleTimeout != _idleTimeout && _evictionTimer != null){
+            _evictionTimer.cancel();
+            _evictionTimer = null;
+        }
+        _idleTimeout = idleTimeout < 1000 ? 1000 : idleTimeout;
+    }
+    
+    public static String getKey(String scheme, String host, int port, String proxy, String keyFingerprint){
+        StringBuilder sb = new StringBuilder();
+        sb.append(scheme.toLowerCase()).append("://").append(host.toLowerCase()).append(":").append(port);
+        sb.append("|").append(proxy == null ? "" : proxy);
+        sb.append("|").append(keyFingerprint == null ? "" : keyFingerprint);
+        return sb.toString();
+    }
+    
+    /**
+     * @return idle live connection for key or null if there is none
+     */
+    public PooledConnection acquire(String key){
+        while (true){
+            PooledConnection connection = null;
+            synchronized (this) {
+                LinkedList<PooledConnection> connections = _idle.get(key);
+                if (connections != null){
+                    // last released is most likely still alive
+                    connection = connections.removeLast();
+                    _idleCount--;
+                    if (connections.size() == 0){
+                        _idle.remove(key);
+                    }
+                }
+            }
+            if (connection == null){
+                _misses.incrementAndGet();
+                return null;
+            }
+            if (System.currentTimeMillis() - connection.idleSince < _idleTimeout && isAlive(connection)){
+                _hits.incrementAndGet();
+                return connection;
+            }
+            _stale.incrementAndGet();
+            close(connection);
+        }
+    }
+    
+    /**
+     * returns connection to pool, connection must not have any unread response data
+     * @return true if connection was pooled, false if it was closed
+     */
+    public boolean release(PooledConnection connection){
+        Socket socket = connection.socket;
+        if (socket == null || socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()){
+            close(connection);
+            return false;
+        }
+        connection.idleSince = System.currentTimeMillis();
+        synchronized (this) {
+            LinkedList<PooledConnection> connections = _idle.get(connection.key);
+            int size = connections == null ? 0 : connections.size();
+            if (size < _maxPerHost && _idleCount < _maxIdle){
+                if (connections == null){
+                    connections = new LinkedList<PooledConnection>();
+                    _idle.put(connection.key, connections);
+                }
+                connections.addLast(connection);
+                _idleCount++;
+                startEvictionTimer();
+                return true;
+            }
+        }
+        // over the limits
+        _evicted.incrementAndGet();
+        close(connection);
+        return false;
+    }
+    
+    /**
+     * closes connections idle longer than idle timeout
+     */
+    public void evictIdle(){
+        LinkedList<PooledConnection> expired = new LinkedList<PooledConnection>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (Iterator<LinkedList<PooledConnection>> it = _idle.values().iterator(); it.hasNext();) {
+                LinkedList<PooledConnection> connections = it.next();
+                for (Iterator<PooledConnection> itConn = connections.iterator(); itConn.hasNext();) {
+                    PooledConnection connection = itConn.next();
+                    if (now - connection.idleSince >= _idleTimeout){
+                        itConn.remove();
+                        expired.add(connection);
+                        _idleCount--;
+                    }
+                }
+                if (connections.size() == 0){
+                    it.remove();
+                }
+            }
+        }
+        for (PooledConnection connection : expired) {
+            _evicted.incrementAndGet();
+            close(connection);
+        }
+    }
+    
+    /**
+     * closes all idle connections, used when ssl settings or proxy changes
+     */
+    public void clear(){
+        LinkedList<PooledConnection> all = new LinkedList<PooledConnection>();
+        synchronized (this) {
+            for (LinkedList<PooledConnection> connections : _idle.values()) {
+                all.addAll(connections);
+            }
+            _idle.clear();
+            _idleCount = 0;
+            if (_evictionTimer != null){
+                _evictionTimer.cancel();
+                _evictionTimer = null;
+            }
+        }
+        for (PooledConnection connection : all) {
+            close(connection);
+        }
+    }
+    
+    public synchronized int getIdleCount(){
+        return _idleCount;
+    }
+    
+    public long getHitCount(){
+        return _hits.get();
+    }
+    
+    public long getMissCount(){
+        return _misses.get();
+    }
+    
+    /**
+     * @return number of pooled connections that were closed by server before reuse
+     */
+    public long getStaleCount(){
+        return _stale.get();
+    }
+    
+    public long getEvictedCount(){
+        return _evicted.get();
+    }
+    
+    private void startEvictionTimer(){
+        if (_evictionTimer != null){
+            return;
+        }
+        _evictionTimer = new Timer("UpstreamConnectionPool", true);
+        long period = _idleTimeout / 2;
+        _evictionTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                evictIdle();
+            }
+        }, period, period);
+    }
+    
+    private boolean isAlive(PooledConnection connection){
+        Socket socket = connection.socket;
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()){
+            return false;
+        }
+        int timeout = 0;
+        try {
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            // idle connection must not have anything to read, eof or data means it is not usable
+            connection.in.read();
+            return false;
+        } catch (SocketTimeoutException ste) {
+            return true;
+        } catch (IOException ioe) {
+            return false;
+        } finally {
+            try {
+                if (!socket.isClosed()){
+                    socket.setSoTimeout(timeout);
+                }
+            } catch (IOException ignore) {
+            }
+        }
+    }
+    
+    private void close(PooledConnection connection){
+        try {
+            if (connection.socket != null){
+                connection.socket.close();
+            }
+        } catch (IOException ioe) {
+            _logger.fine("Error closing pooled connection " + ioe);
+        }
+    }
+    
+    public static class PooledConnection {
+        
+        final String key;
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final boolean direct;
+        long idleSince;
+        
+        public PooledConnection(String key, Socket socket, InputStream in, OutputStream out, boolean direct){
+            this.key = key;
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.direct = direct;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.model;
+
+import java.util.Date;
+
+/**
+ * Store that can hand out conversation ids up front and group several
+ * writes into one transaction. Used by ConversationWriteQueue so that the
+ * proxy threads never wait on the database.
+ */
+public interface BatchSiteModelStore extends SiteModelStore {
+    
+    /**
+     * @return a conversation id that is not used yet and will not be returned again
+     */
+    long reserveConversationId();
+    
+    /**
+     * creates conversation row with id previously returned by reserveConversationId
+     */
+    long createNewConversation(long conversationId, Date when, int type, ConnectionDescriptor connectionDescriptor);
+    
+    /**
+     * starts a batch, all writes until endBatch are done in one transaction
+     */
+    void beginBatch();
+    
+    /**
+     * commits the batch
+     * @return false if any write in the batch failed and whole batch was rolled back
+     */
+    boolean endBatch();
+    
+}
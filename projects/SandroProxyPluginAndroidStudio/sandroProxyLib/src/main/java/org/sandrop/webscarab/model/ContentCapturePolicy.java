@@ -0,0 +1,122 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.model;
+
+/**
+ * Decides how much of message body is kept while body is streamed to the other side.
+ * Bodies of listed content types (video, audio, packages...) and bodies larger
+ * than large size are not captured fully, they are either captured only at
+ * the beginning or passed through without capture.
+ */
+public class ContentCapturePolicy {
+    
+    /** whole body is kept */
+    public static final int CAPTURE_FULL = 0;
+    /** only first head size bytes of body are kept */
+    public static final int CAPTURE_HEAD = 1;
+    /** body is only forwarded, nothing is kept */
+    public static final int PASS_THROUGH = 2;
+    
+    private String[] _contentTypes;
+    private long _largeSize;
+    private int _largeMode;
+    private int _headSize;
+    
+    /**
+     * @param contentTypes content type prefixes, ex. "video/", that are always handled with large mode
+     * @param largeSize body size from which large mode is used, -1 to use it only for listed content types
+     * @param largeMode CAPTURE_FULL, CAPTURE_HEAD or PASS_THROUGH
+     * @param headSize number of bytes kept in CAPTURE_HEAD mode
+     */
+    public ContentCapturePolicy(String[] contentTypes, long largeSize, int largeMode, int headSize){
+        _contentTypes = new String[contentTypes == null ? 0 : contentTypes.length];
+        for (int i = 0; i < _contentTypes.length; i++) {
+            _contentTypes[i] = contentTypes[i].trim().toLowerCase();
+        }
+        _largeSize = largeSize;
+        _largeMode = largeMode;
+        _headSize = headSize < 0 ? 0 : headSize;
+    }
+    
+    /**
+     * @param contentTypes comma separated list of content type prefixes
+     */
+    public ContentCapturePolicy(String contentTypes, long largeSize, int largeMode, int headSize){
+        this(contentTypes == null || contentTypes.trim().length() == 0 ? null : contentTypes.split(" *, *"), largeSize, largeMode, headSize);
+    }
+    
+    /**
+     * @param contentType value of Content-Type header, can be null
+     * @param length value of Content-Length header, -1 if unknown
+     * @return mode to start streaming body with
+     */
+    public int getMode(String contentType, long length){
+        if (contentType != null && _contentTypes.length > 0){
+            String type = contentType.trim().toLowerCase();
+            for (int i = 0; i < _contentTypes.length; i++) {
+                if (_contentTypes[i].length() > 0 && type.startsWith(_contentTypes[i])){
+                    return _largeMode;
+                }
+            }
+        }
+        if (isLarge(length)){
+            return _largeMode;
+        }
+        return CAPTURE_FULL;
+    }
+    
+    /**
+     * @return true if body of this size is handled with large mode
+     */
+    public boolean isLarge(long size){
+        return _largeSize > -1 && size > _largeSize;
+    }
+    
+    public int getLargeMode(){
+        return _largeMode;
+    }
+    
+    /**
+     * @return number of bytes to keep in mode, -1 for no limit
+     */
+    public int getCaptureLimit(int mode){
+        switch (mode) {
+        case CAPTURE_HEAD:
+            return _headSize;
+        case PASS_THROUGH:
+            return 0;
+        default:
+            return -1;
+        }
+    }
+}
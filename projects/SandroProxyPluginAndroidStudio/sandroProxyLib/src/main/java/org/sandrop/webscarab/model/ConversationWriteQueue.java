@@ -0,0 +1,353 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Write behind stage between FrameworkModel and SiteModelStore. Conversation
+ * updates are queued and written by one background thread, several of them in
+ * one transaction when store implements BatchSiteModelStore. At most queueLimit
+ * writes wait in the queue, when it is full caller either blocks or the write 
+ * is dropped and counted.
+ * Queued messages hold their content, so clean of request/response temp content
+ * is done only after they are written to store.
+ */
+public class ConversationWriteQueue {
+    
+    private static final long FLUSH_TIMEOUT = 60000;
+    
+    private SiteModelStore _store;
+    private BatchSiteModelStore _batchStore;
+    private LinkedBlockingQueue<PendingWrite> _queue = new LinkedBlockingQueue<PendingWrite>();
+    private Semaphore _slots;
+    private int _queueLimit;
+    private boolean _blockWhenFull;
+    private int _batchSize;
+    private long _flushInterval;
+    
+    private AtomicLong _written = new AtomicLong(0);
+    private AtomicLong _dropped = new AtomicLong(0);
+    private AtomicLong _batches = new AtomicLong(0);
+    
+    private volatile boolean _running = true;
+    private Thread _writer;
+    
+    private Logger _logger = Logger.getLogger(getClass().getName());
+    
+    public ConversationWriteQueue(SiteModelStore store, int queueLimit, int batchSize, long flushInterval, boolean blockWhenFull) {
+        _store = store;
+        if (store instanceof BatchSiteModelStore){
+            _batchStore = (BatchSiteModelStore) store;
+        }
+        _queueLimit = queueLimit < 1 ? 1 : queueLimit;
+        _slots = new Semaphore(_queueLimit);
+        _batchSize = batchSize < 1 ? 1 : batchSize;
+        _flushInterval = flushInterval < 0 ? 0 : flushInterval;
+        _blockWhenFull = blockWhenFull;
+        _writer = new Thread(new Runnable() {
+            public void run() {
+                writeLoop();
+            }
+        }, "ConversationWriter");
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+    
+    public SiteModelStore getStore(){
+        return _store;
+    }
+    
+    public long createNewConversation(final Date when, final int type, final ConnectionDescriptor connectionDescriptor){
+        if (_batchStore == null){
+            // id has to come from store
+            return _store.createNewConversation(when, type, connectionDescriptor);
+        }
+        final long conversationId = _batchStore.reserveConversationId();
+        // create is never dropped, caller already uses the id for updates that follow
+        enqueue(new PendingWrite(null, null) {
+            void write() {
+                _batchStore.createNewConversation(conversationId, when, type, connectionDescriptor);
+            }
+        }, true);
+        return conversationId;
+    }
+    
+    public long updateGotRequestConversation(final long conversationId, final Date when, Request request){
+        // request goes on to plugins and server, so store the headers as they are now
+        final Request snapshot = snapshot(request);
+        return enqueue(new PendingWrite(request, null) {
+            void write() {
+                _store.updateGotRequestConversation(conversationId, when, snapshot);
+            }
+        });
+    }
+    
+    public long updateGotResponseConversation(final long conversationId, final Date when, final Request request, final Response response){
+        return enqueue(new PendingWrite(request, response) {
+            void write() {
+                _store.updateGotResponseConversation(conversationId, when, request, response);
+            }
+        });
+    }
+    
+    public long updateFailedConversation(final long conversationId, final Date when, final Request request, final String reason){
+        return enqueue(new PendingWrite(request, null) {
+            void write() {
+                _store.updateFailedConversation(conversationId, when, request, reason);
+            }
+        });
+    }
+    
+    /**
+     * blocks until everything queued before this call is written to store
+     */
+    public void flush(){
+        if (!_running || Thread.currentThread() == _writer){
+            return;
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        _queue.offer(new PendingWrite() {
+            void write() {
+                done.countDown();
+            }
+            boolean isFlush() {
+                return true;
+            }
+        });
+        try {
+            if (!done.await(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS)){
+                _logger.warning("Timeout flushing conversation writes, " + getPendingCount() + " still pending");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * flushes pending writes and stops writer thread
+     */
+    public void shutdown(){
+        flush();
+        _running = false;
+        _writer.interrupt();
+    }
+    
+    /**
+     * writes not yet in store, including ones writer thread already took into
+     * a batch or is holding until flushInterval
+     */
+    public int getPendingCount(){
+        return _queueLimit - _slots.availablePermits();
+    }
+    
+    public long getWrittenCount(){
+        return _written.get();
+    }
+    
+    public long getDroppedCount(){
+        return _dropped.get();
+    }
+    
+    public long getBatchCount(){
+        return _batches.get();
+    }
+    
+    private long enqueue(PendingWrite write){
+        return enqueue(write, _blockWhenFull);
+    }
+    
+    private long enqueue(PendingWrite write, boolean block){
+        if (!_running){
+            write.run();
+            return 1;
+        }
+        if (block){
+            _slots.acquireUninterruptibly();
+        } else if (!_slots.tryAcquire()){
+            long dropped = _dropped.incrementAndGet();
+            _logger.fine("Conversation write queue full, dropped " + dropped + " writes so far");
+            return -1;
+        }
+        write.holdContent();
+        _queue.offer(write);
+        return 1;
+    }
+    
+    private static Request snapshot(Request request){
+        Request snapshot = new Request();
+        snapshot.setMethod(request.getMethod());
+        snapshot.setURL(request.getURL());
+        snapshot.setVersion(request.getVersion());
+        snapshot.setHeaders(request.getHeaders());
+        snapshot.shareContent(request);
+        return snapshot;
+    }
+    
+    private void writeLoop(){
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        while (_running){
+            try {
+                PendingWrite first = _queue.take();
+                batch.add(first);
+                // wait for more writes until batch is full, interval elapsed or someone waits on flush
+                long deadline = System.currentTimeMillis() + _flushInterval;
+                int writes = first.holdsSlot ? 1 : 0;
+                boolean flushRequested = first.isFlush();
+                while (writes < _batchSize && !flushRequested){
+                    long wait = deadline - System.currentTimeMillis();
+                    PendingWrite next = wait > 0 ? _queue.poll(wait, TimeUnit.MILLISECONDS) : _queue.poll();
+                    if (next == null){
+                        break;
+                    }
+                    batch.add(next);
+                    if (next.holdsSlot){
+                        writes++;
+                    }
+                    flushRequested = next.isFlush();
+                }
+                writeBatch(batch);
+            } catch (InterruptedException ie) {
+                if (batch.size() > 0){
+                    writeBatch(batch);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        // write whatever was queued while stopping
+        List<PendingWrite> rest = new ArrayList<PendingWrite>();
+        _queue.drainTo(rest);
+        writeBatch(rest);
+    }
+    
+    private void writeBatch(List<PendingWrite> batch){
+        int writes = 0;
+        for (PendingWrite write : batch) {
+            if (write.holdsSlot){
+                writes++;
+            }
+        }
+        boolean committed = true;
+        if (_batchStore != null && writes > 1){
+            _batchStore.beginBatch();
+            try {
+                writeAll(batch, true);
+            } finally {
+                committed = _batchStore.endBatch();
+            }
+            _batches.incrementAndGet();
+        } else {
+            writeAll(batch, true);
+        }
+        if (!committed){
+            // one write failed and rolled back whole batch, redo them one by one
+            _logger.warning("Conversation batch of " + writes + " writes failed, writing one by one");
+            writeAll(batch, true);
+        }
+        for (PendingWrite write : batch) {
+            if (write.holdsSlot){
+                write.releaseContent();
+                _written.incrementAndGet();
+                _slots.release();
+            }
+        }
+        // flush markers only after data is in store
+        writeAll(batch, false);
+    }
+    
+    private void writeAll(List<PendingWrite> batch, boolean holdsSlot){
+        for (PendingWrite write : batch) {
+            if (write.holdsSlot == holdsSlot){
+                write.run();
+            }
+        }
+    }
+    
+    private abstract class PendingWrite {
+        
+        final boolean holdsSlot;
+        private Request request;
+        private Response response;
+        
+        PendingWrite(){
+            this.holdsSlot = false;
+        }
+        
+        PendingWrite(Request request, Response response){
+            this.holdsSlot = true;
+            this.request = request;
+            this.response = response;
+        }
+        
+        abstract void write();
+        
+        void holdContent(){
+            if (request != null){
+                request.holdContent();
+            }
+            if (response != null){
+                response.holdContent();
+            }
+        }
+        
+        void releaseContent(){
+            if (request != null){
+                request.releaseContent();
+            }
+            if (response != null){
+                response.releaseContent();
+            }
+        }
+        
+        boolean isFlush(){
+            return false;
+        }
+        
+        void run(){
+            try {
+                write();
+            } catch (Exception ex) {
+                _logger.severe("Error writing conversation to store " + ex.getMessage());
+            }
+        }
+    }
+}
@@ -72,6 +72,31 @@ public class Preferences {
         return value;
     }
     
+    public static int getPreferenceInt(String key, int defaultValue) {
+        return getPreferenceInt(mContext, key, defaultValue);
+    }
+    
+    /**
+     * reads int that could be stored as string from edit text preference, 
+     * for code running before init
+     */
+    public static int getPreferenceInt(Context context, String key, int defaultValue) {
+        SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
+        String value = null;
+        try{
+            value = pref.getString(key, null);
+        }catch (ClassCastException ex){
+            return pref.getInt(key, defaultValue);
+        }
+        if (value == null || value.trim().length() == 0){
+            return defaultValue;
+        }
+        try{
+            return Integer.parseInt(value.trim());
+        }catch (NumberFormatException ex){
+            return defaultValue;
+        }
+    }
     
 
     public static void remove(String key) {
@@ -117,7 +117,7 @@ public class Request extends Message {
             base = new HttpUrl(schema + hostFromHeader);
         }
         
-        String[] parts = line.split(" ");
+        String[] parts = splitLine(line, 0);
         if (parts.length == 2 || parts.length == 3) {
             setMethod(parts[0]);
             if (getMethod().equalsIgnoreCase("CONNECT")) {
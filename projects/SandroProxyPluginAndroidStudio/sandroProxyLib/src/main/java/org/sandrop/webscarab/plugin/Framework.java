@@ -31,6 +31,7 @@
  */
 package org.sandrop.webscarab.plugin;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
@@ -41,9 +42,13 @@ import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import org.sandrop.webscarab.httpclient.HTTPClientFactory;
+import org.sandrop.webscarab.httpclient.UpstreamConnectionPool;
 import org.sandrop.webscarab.model.ConnectionDescriptor;
+import org.sandrop.webscarab.model.ContentCapturePolicy;
 import org.sandrop.webscarab.model.ConversationID;
 import org.sandrop.webscarab.model.FrameworkModel;
+import org.sandrop.webscarab.model.Message;
+import org.sandrop.webscarab.model.MessageOutputStream;
 import org.sandrop.webscarab.model.Preferences;
 import org.sandrop.webscarab.model.Request;
 import org.sandrop.webscarab.model.Response;
@@ -120,6 +125,29 @@ public class Framework {
         }
         
         _captureData = Preferences.getPreferenceBoolean(PreferenceUtils.proxyCaptureData, false);
+        
+        // store conversations from background thread so proxy does not wait on database
+        _model.setWriteBehind(Preferences.getPreferenceBoolean(PreferenceUtils.storeWriteBehind, true),
+                Preferences.getPreferenceInt(PreferenceUtils.storeWriteQueueLimit, 256),
+                Preferences.getPreferenceInt(PreferenceUtils.storeWriteBatchSize, 32),
+                Preferences.getPreferenceInt(PreferenceUtils.storeWriteFlushInterval, 200),
+                Preferences.getPreferenceBoolean(PreferenceUtils.storeWriteBlockWhenFull, true));
+        
+        Message.setHeadLimits(Preferences.getPreferenceInt(PreferenceUtils.httpMaxHeaderCount, 256),
+                Preferences.getPreferenceInt(PreferenceUtils.httpMaxHeadSize, 64 * 1024));
+        
+        // large downloads are streamed to client, whole body is kept unless user
+        // chooses to keep only the head or nothing of them
+        Message.setCapturePolicy(new ContentCapturePolicy(
+                Preferences.getPreference(PreferenceUtils.captureLargeContentTypes, "video/,audio/,application/vnd.android.package-archive"),
+                Preferences.getPreferenceInt(PreferenceUtils.captureLargeContentSize, 4 * 1024 * 1024),
+                Preferences.getPreferenceInt(PreferenceUtils.captureLargeContentMode, ContentCapturePolicy.CAPTURE_FULL),
+                Preferences.getPreferenceInt(PreferenceUtils.captureHeadSize, 64 * 1024)));
+        File dataStorageDir = PreferenceUtils.getDataStorageDir(mContext);
+        if (dataStorageDir != null){
+            // temp files on same file system as store are moved to store without copy
+            MessageOutputStream.setSpillDirectory(new File(dataStorageDir, "tempfiles"));
+        }
 
         configureHTTPClient(mContext);
         
@@ -349,10 +377,14 @@ public class Framework {
     public void stop(){
         try {
             stopPlugins();
+            // writer thread may still hold conversations, write them before store flush
+            _model.shutdownWriteQueue();
             saveSessionData();
             HTTPClientFactory.invalidateInstance();
         } catch (Exception e) {
             _logger.log(Level.SEVERE, "Error stoping " + e.getMessage());
+        } finally {
+            _model.shutdownWriteQueue();
         }
     }
     
@@ -482,6 +514,7 @@ public class Framework {
     
     public void cleanConversation(Request request, Response response){
         // clean is needed because there can be some temp files for request/response big content
+        // with write behind content is removed only after conversation is written to store
         if (request != null){
             request.clean();
         }
@@ -595,6 +628,18 @@ public class Framework {
             _logger.warning("Error configuring the HTTPClient property " + prop + ": " + e);
         }
         factory.setAuthenticator(_credentialManager);
+        
+        // keep-alive connections to servers are shared between proxy connections
+        UpstreamConnectionPool pool = UpstreamConnectionPool.getInstance();
+        pool.configure(Preferences.getPreferenceInt(PreferenceUtils.upstreamPoolMaxPerHost, 4),
+                Preferences.getPreferenceInt(PreferenceUtils.upstreamPoolMaxIdle, 32),
+                Preferences.getPreferenceInt(PreferenceUtils.upstreamPoolIdleTimeout, 30000));
+        if (Preferences.getPreferenceBoolean(PreferenceUtils.upstreamPoolEnabled, true)){
+            factory.setConnectionPool(pool);
+        }else{
+            pool.clear();
+            factory.setConnectionPool(null);
+        }
     }
     
     private class QueueProcessor implements Runnable {
@@ -660,16 +705,7 @@ public class Framework {
         }
         
         public void runScripts(ScriptableConversation conversation) {
-            if (_bsfManager == null) return;
-            synchronized(_bsfManager) {
-                try {
-                    _bsfManager.declareBean("conversation", conversation, conversation.getClass());
-                    super.runScripts();
-                    _bsfManager.undeclareBean("conversation");
-                } catch (Exception e) {
-                    _logger.severe("Declaring or undeclaring a bean should not throw an exception! " + e);
-                }
-            }
+            runScripts(new String[] {"conversation"}, new Object[] {conversation});
         }
         
     }
@@ -683,18 +719,8 @@ public class Framework {
         }
         
         public void runScripts(ScriptableConversation conversation) {
-            if (_bsfManager == null) return;
-            synchronized(_bsfManager) {
-                try {
-                    _bsfManager.declareBean("id", conversation.getId(), conversation.getId().getClass());
-                    _bsfManager.declareBean("conversation", conversation, conversation.getClass());
-                    _bsfManager.declareBean("model", _wrapper, _wrapper.getClass());
-                    super.runScripts();
-                    _bsfManager.undeclareBean("conversation");
-                } catch (Exception e) {
-                    _logger.severe("Declaring or undeclaring a bean should not throw an exception! " + e);
-                }
-            }
+            runScripts(new String[] {"id", "conversation", "model"}, 
+                    new Object[] {conversation.getId(), conversation, _wrapper});
         }
     }
 }
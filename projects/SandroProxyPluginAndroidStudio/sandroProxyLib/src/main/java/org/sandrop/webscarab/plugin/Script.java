@@ -40,11 +40,17 @@ import java.util.logging.Logger;
 
 public class Script {
     
+    /**
+     * scripts with this marker, usually in a comment, are never run by two threads at once
+     */
+    public static final String SERIAL_MARKER = "@serial";
+    
     private File _file;
     private String _script;
     private long _lastModified;
     private boolean _enabled;
     private String _language = null;
+    private ScriptStats _stats = new ScriptStats();
     
     private Logger _logger = Logger.getLogger(getClass().toString());
     
@@ -122,6 +128,21 @@ public class Script {
         return _lastModified;
     }
     
+    /**
+     * @return true if script asked to be run by one thread at a time
+     */
+    public boolean isSerial() {
+        return isSerial(_script);
+    }
+    
+    public static boolean isSerial(String script) {
+        return script != null && script.indexOf(SERIAL_MARKER) > -1;
+    }
+    
+    public ScriptStats getStats() {
+        return _stats;
+    }
+    
     public String getLanguage() {
         return _language;
     }
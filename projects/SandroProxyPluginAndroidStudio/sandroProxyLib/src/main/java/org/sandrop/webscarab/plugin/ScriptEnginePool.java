@@ -0,0 +1,169 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.plugin;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of initialised script engines, so that scripts of concurrent 
+ * connections run at the same time, each on its own engine. Creating an 
+ * engine may be expensive (script is loaded and parsed), so at most maxIdle
+ * engines are kept for reuse. When all kept engines are in use a new one is 
+ * created, but at most maxCount engines are in use at once. Borrow waits up 
+ * to waitMillis for one of them to be released.
+ * 
+ * After invalidate, for example when script changes, engines in use are 
+ * dropped on release instead of being kept.
+ */
+public abstract class ScriptEnginePool<T> {
+    
+    private LinkedList<T> _idle = new LinkedList<T>();
+    private Map<T, Integer> _generations = new IdentityHashMap<T, Integer>();
+    private int _generation = 0;
+    private int _maxIdle;
+    private long _created = 0;
+    private int _maxCount;
+    private long _waitMillis;
+    private Semaphore _permits;
+    
+    public ScriptEnginePool(int maxIdle, int maxCount, long waitMillis){
+        _maxIdle = maxIdle < 1 ? 1 : maxIdle;
+        _maxCount = maxCount < _maxIdle ? _maxIdle : maxCount;
+        _waitMillis = waitMillis < 0 ? 0 : waitMillis;
+        _permits = new Semaphore(_maxCount, true);
+    }
+    
+    /**
+     * creates and initialises new engine, called without holding pool lock
+     */
+    protected abstract T create() throws Exception;
+    
+    /**
+     * @return engine that only the calling thread uses until release or discard
+     * @throws Exception if no engine was released in waitMillis or create failed
+     */
+    public T borrow() throws Exception{
+        if (!_permits.tryAcquire(_waitMillis, TimeUnit.MILLISECONDS)){
+            throw new Exception("No script engine available, all " + _maxCount + " in use");
+        }
+        boolean borrowed = false;
+        try {
+            int generation;
+            synchronized (this) {
+                if (!_idle.isEmpty()){
+                    borrowed = true;
+                    return _idle.removeFirst();
+                }
+                generation = _generation;
+                _created++;
+            }
+            T engine = create();
+            synchronized (this) {
+                _generations.put(engine, Integer.valueOf(generation));
+            }
+            borrowed = true;
+            return engine;
+        } finally {
+            if (!borrowed){
+                _permits.release();
+            }
+        }
+    }
+    
+    /**
+     * returns engine to pool, it must not be used any more by caller
+     */
+    public void release(T engine){
+        if (engine == null){
+            return;
+        }
+        try {
+            synchronized (this) {
+                Integer generation = _generations.get(engine);
+                if (generation != null && generation.intValue() == _generation && _idle.size() < _maxIdle){
+                    _idle.addFirst(engine);
+                    return;
+                }
+                _generations.remove(engine);
+            }
+        } finally {
+            _permits.release();
+        }
+    }
+    
+    /**
+     * forgets engine that may be left in broken state, it is never reused
+     */
+    public void discard(T engine){
+        if (engine == null){
+            return;
+        }
+        synchronized (this) {
+            _generations.remove(engine);
+        }
+        _permits.release();
+    }
+    
+    /**
+     * drops engines that may have been initialised with old state, new ones are created on demand
+     */
+    public synchronized void invalidate(){
+        _generation++;
+        for (T engine : _idle) {
+            _generations.remove(engine);
+        }
+        _idle.clear();
+    }
+    
+    public synchronized int getIdleCount(){
+        return _idle.size();
+    }
+    
+    /**
+     * @return number of engines borrowed and not yet released or discarded
+     */
+    public int getActiveCount(){
+        return _maxCount - _permits.availablePermits();
+    }
+    
+    /**
+     * @return number of engines created so far, grows when scripts run more concurrent than maxIdle
+     */
+    public synchronized long getCreatedCount(){
+        return _created;
+    }
+}
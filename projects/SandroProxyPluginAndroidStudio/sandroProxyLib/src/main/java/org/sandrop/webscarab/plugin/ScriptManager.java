@@ -42,6 +42,7 @@ import java.util.TreeMap;
 import java.util.logging.Logger;
 
 import org.sandrop.webscarab.model.Preferences;
+import org.sandroproxy.utils.PreferenceUtils;
 import org.sandrop.webscarab.util.EventListenerList;
 
 /**
@@ -50,22 +51,34 @@ import org.sandrop.webscarab.util.EventListenerList;
  */
 public class ScriptManager {
     
-    private BSFManager _bsfManager;
+    private ScriptEnginePool<BSFManager> _enginePool;
     private TreeMap<String, Hook[]> _hooks = new TreeMap<String, Hook[]>();
     private EventListenerList _listeners = new EventListenerList();
     
     private Logger _logger = Logger.getLogger(getClass().getName());
     
     /** Creates a new instance of ScriptManager */
-    public ScriptManager(Framework framework) {
-        try {
-            _bsfManager = new BSFManager();
-            _bsfManager.declareBean("framework", framework, framework.getClass());
-            _bsfManager.declareBean("out", System.out, System.out.getClass());
-            _bsfManager.declareBean("err", System.err, System.out.getClass());
-        } catch (BSFException bsfe) {
-            _logger.severe("Declaring a bean should not throw an exception! " + bsfe);
-        }
+    public ScriptManager(final Framework framework) {
+        int poolSize = Preferences.getPreferenceInt(PreferenceUtils.scriptEnginePoolSize, 4);
+        int maxCount = Preferences.getPreferenceInt(PreferenceUtils.scriptEngineMaxCount, 16);
+        long waitMillis = Preferences.getPreferenceInt(PreferenceUtils.scriptEngineWaitTimeout, 30) * 1000L;
+        _enginePool = new ScriptEnginePool<BSFManager>(poolSize, maxCount, waitMillis) {
+            protected BSFManager create() throws Exception {
+                BSFManager bsfManager = new BSFManager();
+                try {
+                    bsfManager.declareBean("framework", framework, framework.getClass());
+                    bsfManager.declareBean("out", System.out, System.out.getClass());
+                    bsfManager.declareBean("err", System.err, System.out.getClass());
+                } catch (BSFException bsfe) {
+                    _logger.severe("Declaring a bean should not throw an exception! " + bsfe);
+                }
+                return bsfManager;
+            }
+        };
+    }
+    
+    public ScriptEnginePool<BSFManager> getEnginePool() {
+        return _enginePool;
     }
     
     public void addScriptListener(ScriptListener listener) {
@@ -84,7 +97,7 @@ public class ScriptManager {
         if (hooks != null && hooks.length > 0) {
             _hooks.put(pluginName, hooks);
             for (int i=0; i<hooks.length; i++) {
-                hooks[i].setBSFManager(_bsfManager);
+                hooks[i].setEnginePool(_enginePool);
             }
             fireHooksChanged();
         }
@@ -0,0 +1,111 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.plugin;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timing of script runs, kept per hook and per script so slow scripts can be
+ * found. Safe to update from many threads.
+ */
+public class ScriptStats {
+    
+    private AtomicLong _runs = new AtomicLong();
+    private AtomicLong _errors = new AtomicLong();
+    private AtomicLong _totalNanos = new AtomicLong();
+    private AtomicLong _maxNanos = new AtomicLong();
+    private AtomicLong _waitNanos = new AtomicLong();
+    
+    /**
+     * @param nanos time script was running
+     * @param error true if script failed
+     */
+    public void record(long nanos, boolean error){
+        _runs.incrementAndGet();
+        if (error){
+            _errors.incrementAndGet();
+        }
+        _totalNanos.addAndGet(nanos);
+        long max = _maxNanos.get();
+        while (nanos > max && !_maxNanos.compareAndSet(max, nanos)){
+            max = _maxNanos.get();
+        }
+    }
+    
+    /**
+     * @param nanos time spent waiting for serial script or for engine
+     */
+    public void recordWait(long nanos){
+        _waitNanos.addAndGet(nanos);
+    }
+    
+    public long getRunCount(){
+        return _runs.get();
+    }
+    
+    public long getErrorCount(){
+        return _errors.get();
+    }
+    
+    public long getTotalMillis(){
+        return _totalNanos.get() / 1000000;
+    }
+    
+    public long getMaxMillis(){
+        return _maxNanos.get() / 1000000;
+    }
+    
+    public long getWaitMillis(){
+        return _waitNanos.get() / 1000000;
+    }
+    
+    public double getAverageMillis(){
+        long runs = _runs.get();
+        return runs == 0 ? 0 : _totalNanos.get() / 1000000.0 / runs;
+    }
+    
+    public void reset(){
+        _runs.set(0);
+        _errors.set(0);
+        _totalNanos.set(0);
+        _maxNanos.set(0);
+        _waitNanos.set(0);
+    }
+    
+    @Override
+    public String toString() {
+        return "runs=" + getRunCount() + " errors=" + getErrorCount() + " total=" + getTotalMillis() 
+                + "ms avg=" + String.format("%.2f", getAverageMillis()) + "ms max=" + getMaxMillis() 
+                + "ms wait=" + getWaitMillis() + "ms";
+    }
+}
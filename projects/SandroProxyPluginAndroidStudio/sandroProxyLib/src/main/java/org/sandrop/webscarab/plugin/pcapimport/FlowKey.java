@@ -0,0 +1,129 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.pcapimport;
+
+/**
+ * Tcp flow key from primitives. IPv4 addresses are kept as IPv4 mapped IPv6
+ * so both families share one key. Equal for both directions of a flow, so 
+ * one instance can be reused to look up flows for every packet.
+ */
+final class FlowKey {
+    
+    static final long IPV4_MAPPED = 0xffff00000000L;
+    
+    long addrAHi;
+    long addrALo;
+    long addrBHi;
+    long addrBLo;
+    int portA;
+    int portB;
+    private int hash;
+    
+    void set(long srcHi, long srcLo, long dstHi, long dstLo, int srcPort, int dstPort){
+        // lower endpoint first, so both directions give same key
+        int cmp = compare(srcHi, srcLo, srcPort, dstHi, dstLo, dstPort);
+        if (cmp <= 0){
+            addrAHi = srcHi; addrALo = srcLo; portA = srcPort;
+            addrBHi = dstHi; addrBLo = dstLo; portB = dstPort;
+        } else {
+            addrAHi = dstHi; addrALo = dstLo; portA = dstPort;
+            addrBHi = srcHi; addrBLo = srcLo; portB = srcPort;
+        }
+        long h = addrAHi * 31 + addrALo;
+        h = h * 31 + addrBHi;
+        h = h * 31 + addrBLo;
+        h = h * 31 + ((portA << 16) | portB);
+        hash = (int) (h ^ (h >>> 32));
+    }
+    
+    FlowKey copy(){
+        FlowKey key = new FlowKey();
+        key.addrAHi = addrAHi;
+        key.addrALo = addrALo;
+        key.addrBHi = addrBHi;
+        key.addrBLo = addrBLo;
+        key.portA = portA;
+        key.portB = portB;
+        key.hash = hash;
+        return key;
+    }
+    
+    boolean isIPv4(){
+        return addrAHi == 0 && (addrALo >>> 32) == 0xffff && addrBHi == 0 && (addrBLo >>> 32) == 0xffff;
+    }
+    
+    private static int compare(long hi1, long lo1, int port1, long hi2, long lo2, int port2){
+        if (hi1 != hi2){
+            return hi1 < hi2 ? -1 : 1;
+        }
+        if (lo1 != lo2){
+            return lo1 < lo2 ? -1 : 1;
+        }
+        return port1 - port2;
+    }
+    
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof FlowKey)){
+            return false;
+        }
+        FlowKey other = (FlowKey) obj;
+        return hash == other.hash && addrAHi == other.addrAHi && addrALo == other.addrALo 
+                && addrBHi == other.addrBHi && addrBLo == other.addrBLo 
+                && portA == other.portA && portB == other.portB;
+    }
+    
+    /**
+     * @return printable form of address as used by ConnectionDescriptor
+     */
+    static String addressToString(long hi, long lo){
+        StringBuilder sb = new StringBuilder();
+        if (hi == 0 && (lo >>> 32) == 0xffff){
+            sb.append((lo >>> 24) & 0xff).append('.').append((lo >>> 16) & 0xff).append('.')
+                .append((lo >>> 8) & 0xff).append('.').append(lo & 0xff);
+            return sb.toString();
+        }
+        for (int i = 0; i < 8; i++){
+            long word = i < 4 ? hi >>> (48 - i * 16) : lo >>> (48 - (i - 4) * 16);
+            if (i > 0){
+                sb.append(':');
+            }
+            sb.append(Integer.toHexString((int) (word & 0xffff)));
+        }
+        return sb.toString();
+    }
+}
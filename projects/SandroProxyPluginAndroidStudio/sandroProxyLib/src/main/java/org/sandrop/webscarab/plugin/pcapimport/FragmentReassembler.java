@@ -0,0 +1,203 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.pcapimport;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Joins IPv4 fragments back to datagram payload. Fragments may come in any
+ * order and overlap. Incomplete datagrams are dropped after timeout or when
+ * all of them together would hold more than memory limit, oldest first.
+ */
+final class FragmentReassembler {
+    
+    private static final int MAX_DATAGRAM = 65535;
+    
+    private LinkedHashMap<Key, Datagram> _pending = new LinkedHashMap<Key, Datagram>();
+    private Key _probe = new Key();
+    private long _timeout;
+    private int _memoryLimit;
+    private int _memory;
+    private int _completeLength;
+    private long _dropped;
+    
+    /**
+     * @param timeout micro seconds after first fragment datagram is dropped
+     * @param memoryLimit bytes all incomplete datagrams may hold
+     */
+    FragmentReassembler(long timeout, int memoryLimit){
+        _timeout = timeout;
+        _memoryLimit = memoryLimit;
+    }
+    
+    /**
+     * @param offset fragment offset in bytes
+     * @param more more fragments flag
+     * @return payload of whole datagram when this fragment completes it, length is in getCompleteLength
+     */
+    byte[] add(int src, int dst, int id, int protocol, int offset, boolean more, byte[] data, int off, int len, long ts){
+        expire(ts);
+        if (offset + len > MAX_DATAGRAM || (more && (len & 7) != 0)){
+            _dropped++;
+            return null;
+        }
+        _probe.set(src, dst, id, protocol);
+        Datagram datagram = _pending.get(_probe);
+        if (datagram == null){
+            datagram = new Datagram(ts);
+            _pending.put(_probe.copy(), datagram);
+        }
+        int grown = datagram.add(offset, more, data, off, len);
+        _memory += grown;
+        if (datagram.isComplete()){
+            _pending.remove(_probe);
+            _memory -= datagram.data.length;
+            _completeLength = datagram.total;
+            return datagram.data;
+        }
+        while (_memory > _memoryLimit && !_pending.isEmpty()){
+            Iterator<Datagram> it = _pending.values().iterator();
+            Datagram oldest = it.next();
+            it.remove();
+            _memory -= oldest.data.length;
+            _dropped++;
+        }
+        return null;
+    }
+    
+    int getCompleteLength(){
+        return _completeLength;
+    }
+    
+    long getDroppedCount(){
+        return _dropped;
+    }
+    
+    private void expire(long ts){
+        Iterator<Datagram> it = _pending.values().iterator();
+        while (it.hasNext()){
+            Datagram datagram = it.next();
+            if (datagram.firstSeen + _timeout > ts){
+                // insertion order, rest are newer
+                break;
+            }
+            it.remove();
+            _memory -= datagram.data.length;
+            _dropped++;
+        }
+    }
+    
+    private static final class Datagram {
+        
+        final long firstSeen;
+        byte[] data = new byte[0];
+        // one bit for each 8 bytes received
+        final long[] received = new long[(MAX_DATAGRAM + 7) / 8 / 64 + 1];
+        int total = -1;
+        
+        Datagram(long firstSeen){
+            this.firstSeen = firstSeen;
+        }
+        
+        /**
+         * @return how much buffer has grown
+         */
+        int add(int offset, boolean more, byte[] src, int off, int len){
+            int grown = 0;
+            int end = offset + len;
+            if (end > data.length){
+                int size = Math.max(end, Math.min(MAX_DATAGRAM, data.length * 2));
+                byte[] larger = new byte[size];
+                System.arraycopy(data, 0, larger, 0, data.length);
+                grown = size - data.length;
+                data = larger;
+            }
+            System.arraycopy(src, off, data, offset, len);
+            for (int unit = offset >> 3; unit < (end + 7) >> 3; unit++){
+                received[unit >> 6] |= 1L << (unit & 63);
+            }
+            if (!more){
+                total = end;
+            }
+            return grown;
+        }
+        
+        boolean isComplete(){
+            if (total < 0){
+                return false;
+            }
+            int units = (total + 7) >> 3;
+            for (int unit = 0; unit < units; unit++){
+                if ((received[unit >> 6] & (1L << (unit & 63))) == 0){
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+    
+    private static final class Key {
+        
+        int src;
+        int dst;
+        int idProtocol;
+        
+        void set(int src, int dst, int id, int protocol){
+            this.src = src;
+            this.dst = dst;
+            this.idProtocol = (id << 8) | (protocol & 0xff);
+        }
+        
+        Key copy(){
+            Key key = new Key();
+            key.src = src;
+            key.dst = dst;
+            key.idProtocol = idProtocol;
+            return key;
+        }
+        
+        @Override
+        public int hashCode() {
+            return (src * 31 + dst) * 31 + idProtocol;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)){
+                return false;
+            }
+            Key other = (Key) obj;
+            return src == other.src && dst == other.dst && idProtocol == other.idProtocol;
+        }
+    }
+}
@@ -0,0 +1,604 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.pcapimport;
+
+/**
+ * Incremental HTTP/1.x framer for one direction of a flow. Bytes are pushed
+ * as they come from reassembly, the head is collected until empty line and 
+ * body is followed by content-length, chunks or end of stream. Chunks are 
+ * removed from the kept body, content encoding is left as it is. Only first
+ * bodyLimit bytes of the body are kept, rest is skipped.
+ * Complete messages are handed to the flow, which parses heads into Request 
+ * and Response and pairs them.
+ * 
+ * Streams that do not start like http are ignored. A hole inside a body of
+ * known length only truncates that body, after other gaps the parser looks
+ * for next start line.
+ */
+final class HttpStreamParser {
+    
+    private static final int STATE_START = 0;
+    private static final int STATE_HEAD = 1;
+    private static final int STATE_LENGTH = 2;
+    private static final int STATE_CHUNK_SIZE = 3;
+    private static final int STATE_CHUNK_DATA = 4;
+    private static final int STATE_CHUNK_END = 5;
+    private static final int STATE_TRAILER = 6;
+    private static final int STATE_UNTIL_CLOSE = 7;
+    private static final int STATE_RESYNC = 8;
+    private static final int STATE_IGNORE = 9;
+    
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final int MAX_LINE_SIZE = 1024;
+    // enough of the head to tell if it looks like http
+    private static final int SNIFF_SIZE = 8;
+    
+    private static final String[] METHODS = {
+        "GET ", "POST ", "PUT ", "HEAD ", "DELETE ", "OPTIONS ", "PATCH ", "CONNECT ", "TRACE "
+    };
+    private static final byte[] HTTP = {'H', 'T', 'T', 'P', '/'};
+    private static final byte[] HTTP_1 = {'H', 'T', 'T', 'P', '/', '1', '.'};
+    
+    private final TcpFlow _flow;
+    private final boolean _request;
+    private final int _bodyLimit;
+    
+    private int _state = STATE_START;
+    private boolean _seenMessage = false;
+    
+    private byte[] _head = new byte[512];
+    private int _headLen;
+    private long _startTs;
+    
+    private byte[] _body = new byte[0];
+    private int _bodyLen;
+    private boolean _truncated;
+    private long _remaining;
+    
+    private byte[] _line = new byte[MAX_LINE_SIZE];
+    private int _lineLen;
+    
+    // from head of current message
+    private long _contentLength;
+    private boolean _chunked;
+    private String _host;
+    private int _status;
+    
+    HttpStreamParser(TcpFlow flow, boolean request, int bodyLimit){
+        _flow = flow;
+        _request = request;
+        _bodyLimit = bodyLimit;
+    }
+    
+    boolean isRequest(){
+        return _request;
+    }
+    
+    /**
+     * stop parsing, used after protocol switch or tunnel
+     */
+    void ignore(){
+        reset();
+        _state = STATE_IGNORE;
+    }
+    
+    /**
+     * stream does not start at its beginning, first message start has to be looked for
+     */
+    void midStream(){
+        if (_state == STATE_START){
+            _state = STATE_RESYNC;
+        }
+    }
+    
+    String getHost(){
+        return _host;
+    }
+    
+    int getStatus(){
+        return _status;
+    }
+    
+    boolean isChunked(){
+        return _chunked;
+    }
+    
+    void data(byte[] data, int off, int len, long ts){
+        int end = off + len;
+        while (off < end){
+            switch (_state){
+            case STATE_IGNORE:
+                return;
+            case STATE_RESYNC:
+                off = resync(data, off, end);
+                break;
+            case STATE_START:
+                byte b = data[off];
+                if (b == '\r' || b == '\n'){
+                    // empty lines between messages
+                    off++;
+                } else {
+                    _startTs = ts;
+                    _state = STATE_HEAD;
+                }
+                break;
+            case STATE_HEAD:
+                off = readHead(data, off, end);
+                break;
+            case STATE_LENGTH:
+            case STATE_CHUNK_DATA:
+                int n = (int) Math.min(_remaining, end - off);
+                appendBody(data, off, n);
+                off += n;
+                _remaining -= n;
+                if (_remaining == 0){
+                    if (_state == STATE_LENGTH){
+                        complete();
+                    } else {
+                        _state = STATE_CHUNK_END;
+                    }
+                }
+                break;
+            case STATE_CHUNK_SIZE:
+            case STATE_CHUNK_END:
+            case STATE_TRAILER:
+                off = readLine(data, off, end);
+                break;
+            case STATE_UNTIL_CLOSE:
+                appendBody(data, off, end - off);
+                off = end;
+                break;
+            }
+        }
+    }
+    
+    /**
+     * part of stream is missing
+     * @param missing number of bytes missing
+     */
+    void gap(long missing){
+        switch (_state){
+        case STATE_IGNORE:
+        case STATE_RESYNC:
+            return;
+        case STATE_UNTIL_CLOSE:
+            _truncated = true;
+            return;
+        case STATE_LENGTH:
+        case STATE_CHUNK_DATA:
+            if (missing < _remaining){
+                // hole inside the body, message boundary is still known
+                _truncated = true;
+                _remaining -= missing;
+                return;
+            }
+            _truncated = true;
+            complete();
+            break;
+        case STATE_START:
+            break;
+        case STATE_HEAD:
+            if (!_request){
+                // response for oldest request is gone
+                _flow.responseLost(_startTs);
+            }
+            reset();
+            break;
+        default:
+            _truncated = true;
+            complete();
+        }
+        if (_state != STATE_IGNORE){
+            _state = STATE_RESYNC;
+        }
+    }
+    
+    /**
+     * no more data will come
+     */
+    void end(long ts){
+        if (_state == STATE_UNTIL_CLOSE){
+            complete();
+        } else if (_state == STATE_LENGTH || _state == STATE_CHUNK_SIZE || _state == STATE_CHUNK_DATA 
+                || _state == STATE_CHUNK_END || _state == STATE_TRAILER){
+            _truncated = true;
+            complete();
+        } else if (_state == STATE_HEAD && !_request){
+            _flow.responseLost(ts);
+        }
+        reset();
+        _state = STATE_IGNORE;
+    }
+    
+    private int readHead(byte[] data, int off, int end){
+        while (off < end){
+            byte b = data[off++];
+            if (_headLen == _head.length){
+                if (_headLen >= MAX_HEAD_SIZE){
+                    notHttp();
+                    return off;
+                }
+                byte[] larger = new byte[Math.min(MAX_HEAD_SIZE, _head.length * 2)];
+                System.arraycopy(_head, 0, larger, 0, _headLen);
+                _flow.account(larger.length - _head.length);
+                _head = larger;
+            }
+            _head[_headLen++] = b;
+            if (_headLen == SNIFF_SIZE && !looksLikeHttp()){
+                notHttp();
+                return off;
+            }
+            if (b == '\n' && (endsWith2('\n', '\n') || endsWith4())){
+                if (_headLen < SNIFF_SIZE && !looksLikeHttp()){
+                    notHttp();
+                    return off;
+                }
+                headComplete();
+                return off;
+            }
+        }
+        return off;
+    }
+    
+    private boolean endsWith2(char b1, char b2){
+        return _headLen >= 2 && _head[_headLen - 2] == b1 && _head[_headLen - 1] == b2;
+    }
+    
+    private boolean endsWith4(){
+        return _headLen >= 4 && _head[_headLen - 4] == '\r' && _head[_headLen - 3] == '\n' 
+                && _head[_headLen - 2] == '\r' && _head[_headLen - 1] == '\n';
+    }
+    
+    private boolean looksLikeHttp(){
+        return startsMessage(_head, 0, _headLen);
+    }
+    
+    private void notHttp(){
+        reset();
+        _state = _seenMessage ? STATE_RESYNC : STATE_IGNORE;
+    }
+    
+    private void headComplete(){
+        _contentLength = -1;
+        _chunked = false;
+        _host = null;
+        _status = 0;
+        int lineStart = 0;
+        boolean first = true;
+        for (int i = 0; i < _headLen; i++){
+            if (_head[i] != '\n'){
+                continue;
+            }
+            if (first){
+                first = false;
+                if (!_request){
+                    _status = parseStatus(lineStart, i);
+                }
+            } else {
+                header(lineStart, i);
+            }
+            lineStart = i + 1;
+        }
+        if (_request){
+            if (_chunked){
+                _state = STATE_CHUNK_SIZE;
+            } else if (_contentLength > 0){
+                _remaining = _contentLength;
+                _state = STATE_LENGTH;
+            } else {
+                complete();
+            }
+            return;
+        }
+        if (_status >= 100 && _status < 200 && _status != 101){
+            // interim response, final one follows for same request
+            reset();
+            _state = STATE_START;
+            return;
+        }
+        String method = _flow.pendingMethod();
+        if (_status == 101 || _status == 204 || _status == 304 || "HEAD".equals(method) 
+                || ("CONNECT".equals(method) && _status >= 200 && _status < 300)){
+            complete();
+        } else if (_chunked){
+            _state = STATE_CHUNK_SIZE;
+        } else if (_contentLength >= 0){
+            _remaining = _contentLength;
+            if (_remaining == 0){
+                complete();
+            } else {
+                _state = STATE_LENGTH;
+            }
+        } else {
+            _state = STATE_UNTIL_CLOSE;
+        }
+    }
+    
+    private int parseStatus(int start, int end){
+        // HTTP/1.1 200 OK
+        int i = start;
+        while (i < end && _head[i] != ' '){
+            i++;
+        }
+        int status = 0;
+        for (i++; i < end && _head[i] >= '0' && _head[i] <= '9'; i++){
+            status = status * 10 + (_head[i] - '0');
+        }
+        return status;
+    }
+    
+    private void header(int start, int end){
+        if (startsWithIgnoreCase(start, end, "content-length:")){
+            long length = 0;
+            boolean digits = false;
+            for (int i = start + 15; i < end; i++){
+                byte b = _head[i];
+                if (b >= '0' && b <= '9'){
+                    length = length * 10 + (b - '0');
+                    digits = true;
+                } else if (digits || (b != ' ' && b != '\t')){
+                    break;
+                }
+            }
+            if (digits){
+                _contentLength = length;
+            }
+        } else if (startsWithIgnoreCase(start, end, "transfer-encoding:")){
+            _chunked = containsIgnoreCase(start + 18, end, "chunked");
+        } else if (_request && startsWithIgnoreCase(start, end, "host:")){
+            _host = trimmed(start + 5, end);
+        }
+    }
+    
+    private int readLine(byte[] data, int off, int end){
+        while (off < end){
+            byte b = data[off++];
+            if (b == '\n'){
+                if (_lineLen > 0 && _line[_lineLen - 1] == '\r'){
+                    _lineLen--;
+                }
+                lineComplete();
+                _lineLen = 0;
+                return off;
+            }
+            if (_lineLen == MAX_LINE_SIZE){
+                badBody();
+                return off;
+            }
+            _line[_lineLen++] = b;
+        }
+        return off;
+    }
+    
+    private void lineComplete(){
+        switch (_state){
+        case STATE_CHUNK_SIZE:
+            long size = parseChunkSize();
+            if (size < 0){
+                badBody();
+            } else if (size == 0){
+                _state = STATE_TRAILER;
+            } else {
+                _remaining = size;
+                _state = STATE_CHUNK_DATA;
+            }
+            break;
+        case STATE_CHUNK_END:
+            if (_lineLen != 0){
+                badBody();
+            } else {
+                _state = STATE_CHUNK_SIZE;
+            }
+            break;
+        case STATE_TRAILER:
+            if (_lineLen == 0){
+                complete();
+            }
+            break;
+        }
+    }
+    
+    private long parseChunkSize(){
+        long size = 0;
+        boolean digits = false;
+        for (int i = 0; i < _lineLen; i++){
+            int b = _line[i];
+            int digit = Character.digit((char) b, 16);
+            if (digit >= 0){
+                size = size * 16 + digit;
+                digits = true;
+                if (size > Integer.MAX_VALUE){
+                    return -1;
+                }
+            } else if (digits || (b != ' ' && b != '\t')){
+                // chunk extensions follow
+                break;
+            }
+        }
+        return digits ? size : -1;
+    }
+    
+    private int resync(byte[] data, int off, int end){
+        // start line may follow directly after lost body, so it is looked for anywhere
+        for (int i = off; i < end; i++){
+            if (isStartLine(data, i, end)){
+                _state = STATE_START;
+                return i;
+            }
+        }
+        return end;
+    }
+    
+    private boolean isStartLine(byte[] data, int off, int end){
+        if (!_request){
+            // HTTP/1.1 200
+            if (end - off < 13 || !startsWith(data, off, end, HTTP_1)){
+                return false;
+            }
+            return isDigit(data[off + 7]) && data[off + 8] == ' ' && isDigit(data[off + 9]) 
+                    && isDigit(data[off + 10]) && isDigit(data[off + 11]);
+        }
+        for (int i = 0; i < METHODS.length; i++){
+            String method = METHODS[i];
+            if (end - off > method.length() && startsWith(data, off, end, method)){
+                byte next = data[off + method.length()];
+                // GET / or GET http://, CONNECT has host
+                return next == '/' || next == 'h' || method.equals("CONNECT ");
+            }
+        }
+        return false;
+    }
+    
+    private static boolean isDigit(byte b){
+        return b >= '0' && b <= '9';
+    }
+    
+    private boolean startsMessage(byte[] data, int off, int end){
+        if (!_request){
+            return startsWith(data, off, end, HTTP);
+        }
+        for (int i = 0; i < METHODS.length; i++){
+            if (startsWith(data, off, end, METHODS[i])){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private void appendBody(byte[] data, int off, int len){
+        if (_truncated){
+            // over the limit or after a hole, rest would not be the real body
+            return;
+        }
+        int keep = Math.min(len, _bodyLimit - _bodyLen);
+        if (keep < len){
+            _truncated = true;
+        }
+        if (keep <= 0){
+            return;
+        }
+        if (_bodyLen + keep > _body.length){
+            int size = Math.min(_bodyLimit, Math.max(_bodyLen + keep, Math.max(1024, _body.length * 2)));
+            byte[] larger = new byte[size];
+            System.arraycopy(_body, 0, larger, 0, _bodyLen);
+            _flow.account(size - _body.length);
+            _body = larger;
+        }
+        System.arraycopy(data, off, _body, _bodyLen, keep);
+        _bodyLen += keep;
+    }
+    
+    private void badBody(){
+        _truncated = true;
+        complete();
+        if (_state != STATE_IGNORE){
+            _state = STATE_RESYNC;
+        }
+    }
+    
+    private void complete(){
+        _seenMessage = true;
+        _flow.messageComplete(this, _head, _headLen, _body, _bodyLen, _truncated, _startTs);
+        reset();
+        if (_state != STATE_IGNORE){
+            _state = STATE_START;
+        }
+    }
+    
+    private void reset(){
+        _flow.account(-(_head.length - 512) - _body.length);
+        if (_head.length > 512){
+            _head = new byte[512];
+        }
+        _headLen = 0;
+        _body = new byte[0];
+        _bodyLen = 0;
+        _truncated = false;
+        _remaining = 0;
+        _lineLen = 0;
+    }
+    
+    private boolean startsWithIgnoreCase(int start, int end, String prefix){
+        if (end - start < prefix.length()){
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++){
+            if (Character.toLowerCase((char) _head[start + i]) != prefix.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean containsIgnoreCase(int start, int end, String value){
+        for (int i = start; i + value.length() <= end; i++){
+            if (startsWithIgnoreCase(i, end, value)){
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private String trimmed(int start, int end){
+        while (start < end && _head[start] <= ' '){
+            start++;
+        }
+        while (end > start && _head[end - 1] <= ' '){
+            end--;
+        }
+        char[] chars = new char[end - start];
+        for (int i = 0; i < chars.length; i++){
+            chars[i] = (char) (_head[start + i] & 0xff);
+        }
+        return new String(chars);
+    }
+    
+    private static boolean startsWith(byte[] data, int off, int end, byte[] prefix){
+        int n = Math.min(prefix.length, end - off);
+        for (int i = 0; i < n; i++){
+            if (data[off + i] != prefix[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static boolean startsWith(byte[] data, int off, int end, String prefix){
+        int n = Math.min(prefix.length(), end - off);
+        for (int i = 0; i < n; i++){
+            if (data[off + i] != prefix.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+}
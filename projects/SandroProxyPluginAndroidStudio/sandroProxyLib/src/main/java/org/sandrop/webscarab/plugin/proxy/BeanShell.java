@@ -38,6 +38,9 @@ import org.sandrop.webscarab.model.Preferences;
 import org.sandrop.webscarab.model.Request;
 import org.sandrop.webscarab.model.Response;
 import org.sandrop.webscarab.plugin.Framework;
+import org.sandrop.webscarab.plugin.Script;
+import org.sandrop.webscarab.plugin.ScriptEnginePool;
+import org.sandrop.webscarab.plugin.ScriptStats;
 import org.sandrop.webscarab.plugin.proxy.BeanShellUI;
 import org.sandrop.webscarab.plugin.proxy.ProxyPlugin;
 
@@ -48,10 +51,18 @@ import java.io.PrintStream;
 
 import java.util.logging.Logger;
 
+import org.sandroproxy.utils.PreferenceUtils;
+
 import bsh.Interpreter;
 import bsh.EvalError;
 import bsh.TargetError;
 
+/**
+ * Passes proxied requests through fetchResponse of a BeanShell script. Script
+ * is parsed once per interpreter, interpreters are pooled so concurrent 
+ * connections run the script at the same time. Script that keeps state 
+ * between requests can contain @serial, it is then run by one thread at a time.
+ */
 public class BeanShell extends ProxyPlugin {
     
     private Logger _logger = Logger.getLogger(this.getClass().getName());
@@ -71,7 +82,10 @@ public class BeanShell extends ProxyPlugin {
     "   return response;\n" +
     "}\n";
     
-    private Interpreter _interpreter;
+    private ScriptEnginePool<Interpreter> _interpreters;
+    private boolean _serial = false;
+    private Object _serialLock = new Object();
+    private ScriptStats _stats = new ScriptStats();
     private Framework _framework = null;
     
     private boolean _enabled = false;
@@ -80,22 +94,40 @@ public class BeanShell extends ProxyPlugin {
     
     /** Creates a new instance of ManualEdit */
     public BeanShell(Framework framework) {
-        _interpreter = new Interpreter();
         _framework = framework;
+        int poolSize = Preferences.getPreferenceInt(PreferenceUtils.scriptEnginePoolSize, 4);
+        int maxCount = Preferences.getPreferenceInt(PreferenceUtils.scriptEngineMaxCount, 16);
+        long waitMillis = Preferences.getPreferenceInt(PreferenceUtils.scriptEngineWaitTimeout, 30) * 1000L;
+        _interpreters = new ScriptEnginePool<Interpreter>(poolSize, maxCount, waitMillis) {
+            protected Interpreter create() throws Exception {
+                return createInterpreter();
+            }
+        };
+        parseProperties();
+    }
+    
+    private Interpreter createInterpreter() throws EvalError {
+        Interpreter interpreter = new Interpreter();
         try {
-            _interpreter.set("framework", _framework);
+            interpreter.set("framework", _framework);
         } catch (EvalError ee) {
             _logger.severe("Couldn't set framework: " + ee);
         }
-        parseProperties();
+        BeanShellUI ui = _ui;
+        if (ui != null) {
+            PrintStream ps = ui.getOut();
+            if (ps != null) interpreter.setOut(ps);
+            ps = ui.getErr();
+            if (ps != null) interpreter.setErr(ps);
+        }
+        interpreter.eval(_beanScript);
+        return interpreter;
     }
     
     public void setUI(BeanShellUI ui) {
         _ui = ui;
-        PrintStream ps = _ui.getOut();
-        if (ps != null) _interpreter.setOut(ps); // FIXME TODO Why is this not working?
-        ps = _ui.getErr();
-        if (ps != null) _interpreter.setErr(ps); // when err does seem to be working??
+        // interpreters created from now on use ui streams
+        _interpreters.invalidate();
     }
     
     private void parseProperties() {
@@ -167,8 +199,25 @@ public class BeanShell extends ProxyPlugin {
     
     public void setScript(String script) throws EvalError {
         _beanScript = script;
-        _interpreter = new Interpreter();
-        _interpreter.eval(_beanScript);
+        _serial = Script.isSerial(script);
+        _interpreters.invalidate();
+        // parse now so errors are reported to caller, interpreter is kept for first request
+        Interpreter interpreter;
+        try {
+            interpreter = _interpreters.borrow();
+        } catch (EvalError ee) {
+            throw ee;
+        } catch (Exception e) {
+            throw new EvalError(e.toString(), null, null);
+        }
+        _interpreters.release(interpreter);
+    }
+    
+    /**
+     * @return timing of script runs, time spent in the rest of the chain is not counted
+     */
+    public ScriptStats getStats() {
+        return _stats;
     }
     
     public String getScript() {
@@ -188,37 +237,81 @@ public class BeanShell extends ProxyPlugin {
         }
         
         public Response fetchResponse(Request request) throws IOException {
-            if (_enabled) {
-                try {
-                    synchronized(_interpreter) {
-                        _interpreter.unset("response");
-                        _interpreter.set("nextClient", _in);
-                        _interpreter.set("request", request);
-                        try {
-                            _interpreter.eval("Response response = fetchResponse(nextClient, request);");
-                        } catch (TargetError te) {
-                            if (te.getTarget() instanceof IOException) {
-                                throw (IOException) te.getTarget();
-                            }
-                            throw te;
-                       }
-                        Response response = (Response) _interpreter.get("response");
-                        _interpreter.unset("model");
-                        _interpreter.unset("response");
-                        _interpreter.unset("nextClient");
-                        _interpreter.unset("request");
-                        response.setHeader("X-BeanShell", "possibly modified");
-                        return response;
-                    }
-                } catch (EvalError e) {
-                    System.err.println("e is a " + e.getClass());
-                    if (_ui != null) _ui.getErr().println(e.toString());
-                    throw new IOException("Error evaluating bean script : " + e);
+            if (!_enabled) {
+                return _in.fetchResponse(request);
+            }
+            if (_serial) {
+                long start = System.nanoTime();
+                synchronized(_serialLock) {
+                    _stats.recordWait(System.nanoTime() - start);
+                    return runScript(request);
                 }
-            } else {
+            }
+            return runScript(request);
+        }
+        
+        private Response runScript(Request request) throws IOException {
+            Interpreter interpreter;
+            try {
+                interpreter = _interpreters.borrow();
+            } catch (Exception e) {
+                reportError(e);
+                throw new IOException("Error evaluating bean script : " + e);
+            }
+            TimedClient next = new TimedClient(_in);
+            long start = System.nanoTime();
+            boolean error = true;
+            try {
+                Response response = (Response) interpreter.getNameSpace().invokeMethod("fetchResponse", new Object[] {next, request}, interpreter);
+                response.setHeader("X-BeanShell", "possibly modified");
+                error = false;
+                return response;
+            } catch (TargetError te) {
+                if (te.getTarget() instanceof IOException) {
+                    error = false;
+                    throw (IOException) te.getTarget();
+                }
+                reportError(te);
+                throw new IOException("Error evaluating bean script : " + te);
+            } catch (EvalError e) {
+                reportError(e);
+                throw new IOException("Error evaluating bean script : " + e);
+            } finally {
+                _stats.record(System.nanoTime() - start - next.getNanos(), error);
+                _interpreters.release(interpreter);
+            }
+        }
+        
+        private void reportError(Exception e) {
+            _logger.warning("Error evaluating bean script : " + e);
+            if (_ui != null) _ui.getErr().println(e.toString());
+        }
+    }
+    
+    /**
+     * measures time spent in rest of the chain, mostly waiting on the server
+     */
+    private static class TimedClient implements HTTPClient {
+        
+        private HTTPClient _in;
+        private long _nanos = 0;
+        
+        TimedClient(HTTPClient in) {
+            _in = in;
+        }
+        
+        public Response fetchResponse(Request request) throws IOException {
+            long start = System.nanoTime();
+            try {
                 return _in.fetchResponse(request);
+            } finally {
+                _nanos += System.nanoTime() - start;
             }
         }
+        
+        long getNanos() {
+            return _nanos;
+        }
     }
     
 }
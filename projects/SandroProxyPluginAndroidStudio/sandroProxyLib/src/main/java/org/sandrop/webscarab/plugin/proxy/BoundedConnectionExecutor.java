@@ -0,0 +1,134 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Runs connections on a fixed number of worker threads. At most poolSize
+ * connections are handled at once and at most queueLimit wait for a worker.
+ * When both are used up the connection is either rejected or the accepting
+ * thread blocks until a slot frees up, so the backlog stays in the kernel.
+ */
+public class BoundedConnectionExecutor implements IConnectionExecutor {
+    
+    private ThreadPoolExecutor _executor;
+    private Semaphore _slots;
+    private boolean _blockWhenFull;
+    private AtomicLong _rejected = new AtomicLong(0);
+    
+    private Logger _logger = Logger.getLogger(getClass().getName());
+    
+    public BoundedConnectionExecutor(final String name, int poolSize, int queueLimit, boolean blockWhenFull) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("pool size must be at least 1");
+        }
+        if (queueLimit < 0) {
+            queueLimit = 0;
+        }
+        _blockWhenFull = blockWhenFull;
+        _slots = new Semaphore(poolSize + queueLimit);
+        ThreadFactory factory = new ThreadFactory() {
+            private AtomicInteger _count = new AtomicInteger(1);
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-worker-" + _count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+        // the semaphore bounds the queue, so an unbounded queue never grows past queueLimit
+        // workers are started on demand and stay, core thread time out is not available on api 8
+        _executor = new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS, 
+                                            new LinkedBlockingQueue<Runnable>(), factory);
+    }
+    
+    public boolean execute(final Runnable handler, final String name) {
+        if (_blockWhenFull) {
+            try {
+                _slots.acquire();
+            } catch (InterruptedException ie) {
+                _rejected.incrementAndGet();
+                return false;
+            }
+        } else if (!_slots.tryAcquire()) {
+            _rejected.incrementAndGet();
+            _logger.fine("Connection " + name + " rejected, " + getActiveCount() + " active and " + getQueuedCount() + " queued");
+            return false;
+        }
+        try {
+            _executor.execute(new Runnable() {
+                public void run() {
+                    Thread current = Thread.currentThread();
+                    String workerName = current.getName();
+                    current.setName(name);
+                    try {
+                        handler.run();
+                    } finally {
+                        current.setName(workerName);
+                        _slots.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // executor is shut down
+            _slots.release();
+            _rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+    
+    public int getActiveCount() {
+        return _executor.getActiveCount();
+    }
+    
+    public int getQueuedCount() {
+        return _executor.getQueue().size();
+    }
+    
+    public long getRejectedCount() {
+        return _rejected.get();
+    }
+    
+    public void shutdown() {
+        _executor.shutdown();
+    }
+    
+}
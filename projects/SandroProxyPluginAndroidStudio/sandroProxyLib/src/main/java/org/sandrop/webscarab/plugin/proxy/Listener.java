@@ -38,14 +38,13 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.io.IOException;
 import java.lang.Thread;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import org.sandrop.webscarab.model.ConnectionDescriptor;
-
 public class Listener implements Runnable {
     
     private Proxy _proxy;
@@ -59,6 +58,8 @@ public class Listener implements Runnable {
     
     private int _count = 1;
     
+    private IConnectionExecutor _executor = null;
+    
     private Logger _logger = Logger.getLogger(this.getClass().getName());
     
     /** Creates a new instance of Listener */
@@ -73,7 +74,9 @@ public class Listener implements Runnable {
         _stopped = false;
         Socket sock;
         ConnectionHandler ch;
-        Thread thread;
+        if (_executor == null){
+            _executor = createExecutor(_spec);
+        }
         if (_serversocket == null || _serversocket.isClosed()) {
             try {
                 listen();
@@ -86,25 +89,16 @@ public class Listener implements Runnable {
         while (! _stop) {
             try {
                 sock = _serversocket.accept();
-                ConnectionDescriptor connectionDescriptor = null;
-                IClientResolver clientResolver = _proxy.getClientResolver();
-                String threadName = Thread.currentThread().getName();
-                if (clientResolver != null){
-                    connectionDescriptor = clientResolver.getClientDescriptorBySocket(sock);
-                    if (connectionDescriptor.getId() > -1){
-                        threadName = connectionDescriptor.getId() + "_" + connectionDescriptor.getNamespace();
-                    }else{
-                        threadName = "conn_" + sock.getInetAddress().getHostAddress() + "_" + sock.getPort();
-                    }
-                    
-                }
+                // client application is resolved by handler, thread gets renamed there
+                String threadName = "conn_" + sock.getInetAddress().getHostAddress() + "_" + sock.getPort();
                 ch = new ConnectionHandler(_proxy, sock, _spec.getBase(), _spec.isTransparentProxy(), _spec.isTransparentProxySecure(),
                                            _spec.mustCaptureData(), _spec.useFakeCerts(), _spec.storeSslAsPcap(),
-                                           _proxy.getTransparentProxyResolver(), connectionDescriptor);
-                thread = new Thread(ch, Thread.currentThread().getName()+"-"+Integer.toString(_count++));
-                thread.setName(threadName);
-                thread.setDaemon(true);
-                thread.start();
+                                           _proxy.getTransparentProxyResolver(), _proxy.getClientResolver());
+                _count++;
+                if (!_executor.execute(ch, threadName)){
+                    _logger.fine("Too many connections on " + _spec + ", closing " + threadName);
+                    sock.close();
+                }
             } catch (SocketTimeoutException stex){
             } catch (SocketException sex){
             } catch (IOException e) {
@@ -115,6 +109,8 @@ public class Listener implements Runnable {
             }
         }
         _stopped = true;
+        _executor.shutdown();
+        _executor = null;
         try {
             _serversocket.close();
         } catch (IOException ioe) {
@@ -123,9 +119,35 @@ public class Listener implements Runnable {
         _logger.info("Not listening on " + _spec);
     }
     
+    private IConnectionExecutor createExecutor(ListenerSpec spec){
+        if (spec.getExecutionMode() == ListenerSpec.EXECUTION_BOUNDED_POOL){
+            _logger.info("Using " + spec.getWorkerPoolSize() + " workers and queue of " + spec.getWorkerQueueLimit() + " on " + spec);
+            return new BoundedConnectionExecutor("Listener-" + spec.getKey(), spec.getWorkerPoolSize(), 
+                                                    spec.getWorkerQueueLimit(), spec.blockWhenBusy());
+        }
+        return new ThreadPerConnectionExecutor();
+    }
+    
+    /**
+     * @return executor running the connections, null if listener is not running
+     */
+    public IConnectionExecutor getConnectionExecutor() {
+        return _executor;
+    }
+    
+    public int getAcceptedCount() {
+        return _count - 1;
+    }
+    
     private void listen() throws IOException {
         InetSocketAddress sa = _spec.getInetSocketAddress();
-        _serversocket = new ServerSocket(sa.getPort(), 5, sa.getAddress());
+        if (_proxy.useNioTunnels()){
+            // accepted sockets have channels so tunnels can be forwarded with selector
+            _serversocket = ServerSocketChannel.open().socket();
+            _serversocket.bind(sa, 5);
+        }else{
+            _serversocket = new ServerSocket(sa.getPort(), 5, sa.getAddress());
+        }
         
         _logger.info("Proxy listening on " + _spec);
         
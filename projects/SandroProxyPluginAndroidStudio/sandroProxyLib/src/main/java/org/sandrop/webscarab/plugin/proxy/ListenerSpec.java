@@ -40,6 +40,9 @@ import org.sandrop.webscarab.model.HttpUrl;
 
 public class ListenerSpec implements Comparable {
 
+    public static final int EXECUTION_THREAD_PER_CONNECTION = 0;
+    public static final int EXECUTION_BOUNDED_POOL = 1;
+
     private String _address;
     private int _port;
     private HttpUrl _base = null;
@@ -49,6 +52,10 @@ public class ListenerSpec implements Comparable {
     private boolean _captureData = true;
     private boolean _useFakeCerts = false;
     private boolean _storeSslAsPcap = false;
+    private int _executionMode = EXECUTION_THREAD_PER_CONNECTION;
+    private int _workerPoolSize = 16;
+    private int _workerQueueLimit = 64;
+    private boolean _blockWhenBusy = false;
 
     private InetSocketAddress _sockAddr = null;
     
@@ -108,6 +115,37 @@ public class ListenerSpec implements Comparable {
         return _storeSslAsPcap;
     }
     
+    /**
+     * selects how accepted connections are run, see EXECUTION_* constants.
+     * poolSize, queueLimit and blockWhenBusy are only used by the bounded pool
+     */
+    public void setConnectionExecution(int mode, int poolSize, int queueLimit, boolean blockWhenBusy){
+        _executionMode = mode;
+        if (poolSize > 0){
+            _workerPoolSize = poolSize;
+        }
+        if (queueLimit >= 0){
+            _workerQueueLimit = queueLimit;
+        }
+        _blockWhenBusy = blockWhenBusy;
+    }
+    
+    public int getExecutionMode(){
+        return _executionMode;
+    }
+    
+    public int getWorkerPoolSize(){
+        return _workerPoolSize;
+    }
+    
+    public int getWorkerQueueLimit(){
+        return _workerQueueLimit;
+    }
+    
+    public boolean blockWhenBusy(){
+        return _blockWhenBusy;
+    }
+    
     public String getKey() {
         return _address + ":" + _port;
     }
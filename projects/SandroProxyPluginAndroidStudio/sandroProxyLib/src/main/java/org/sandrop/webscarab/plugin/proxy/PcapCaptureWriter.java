@@ -0,0 +1,537 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import android.util.Log;
+
+/**
+ * Moves pcap encoding and file io off the forwarding threads. Forwarders copy
+ * each chunk into a slot of a bounded lock free ring and return, one writer 
+ * thread turns slots into packets and writes them to buffered capture files.
+ * 
+ * Packet headers are not built per chunk, every PcapWriter keeps an encoded 
+ * ethernet/ip/tcp header per direction and the writer only patches lengths, 
+ * sequence numbers and checksums. Files are rotated when they grow over the
+ * size limit or get older than the age limit. When the ring is full chunks 
+ * are dropped and counted instead of blocking the tunnel.
+ */
+public class PcapCaptureWriter {
+    
+    private static String TAG = PcapCaptureWriter.class.getSimpleName();
+    private static boolean LOGD = false;
+    
+    private static final int PCAP_RECORD_HEADER_SIZE = 16;
+    
+    // chunks up to this size keep their slot buffer for reuse
+    private static final int SLOT_BUFFER_KEEP = 16 * 1024;
+    
+    private static final long DROP_REPORT_INTERVAL = 10000;
+    
+    static final byte[] PCAP_FILE_HEADER = new byte[]{
+        (byte)0xa1, (byte)0xb2, (byte)0xc3, (byte)0xd4, 0, 2, 0, 4,
+        0, 0, 0, 0, 0, 0, 0, 0,
+        0, 0, (byte)0xff, (byte)0xff, 0, 0, 0, 1 };
+    
+    private Slot[] _slots;
+    private AtomicLongArray _sequences;
+    private int _mask;
+    private AtomicLong _enqueuePos = new AtomicLong();
+    private long _dequeuePos = 0;
+    
+    private ConcurrentLinkedQueue<PcapWriter> _closing = new ConcurrentLinkedQueue<PcapWriter>();
+    
+    private RotatingFile _allFile;
+    private List<RotatingFile> _openFiles = new ArrayList<RotatingFile>();
+    private volatile PcapLiveServer _liveServer;
+    
+    private long _rotateSize;
+    private long _rotateAge;
+    private long _flushInterval;
+    
+    private Thread _thread;
+    private volatile boolean _running = true;
+    private volatile boolean _parked = false;
+    private boolean _finished = false;
+    
+    private byte[] _recordHeader = new byte[PCAP_RECORD_HEADER_SIZE];
+    
+    private AtomicLong _queuedPackets = new AtomicLong();
+    private AtomicLong _droppedPackets = new AtomicLong();
+    private AtomicLong _droppedBytes = new AtomicLong();
+    private AtomicLong _writtenPackets = new AtomicLong();
+    private AtomicLong _writtenBytes = new AtomicLong();
+    private AtomicLong _rotations = new AtomicLong();
+    private long _reportedDrops = 0;
+    private long _lastDropReport = 0;
+    
+    /**
+     * @param ringSize number of chunks that can wait for the writer, rounded up to power of two
+     * @param rotateSize bytes after which capture file is rotated, 0 for no limit
+     * @param rotateAge milliseconds after which capture file is rotated, 0 for no limit
+     * @param flushInterval milliseconds buffered data may wait when there is no traffic
+     */
+    public PcapCaptureWriter(int ringSize, long rotateSize, long rotateAge, long flushInterval){
+        int capacity = 2;
+        while (capacity < ringSize){
+            capacity <<= 1;
+        }
+        _slots = new Slot[capacity];
+        _sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            _slots[i] = new Slot();
+            _sequences.set(i, i);
+        }
+        _mask = capacity - 1;
+        _rotateSize = rotateSize;
+        _rotateAge = rotateAge;
+        _flushInterval = flushInterval > 0 ? flushInterval : 1000;
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "PcapCaptureWriter");
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+    
+    /**
+     * every packet written is also written to this file, rotated with same limits
+     */
+    public synchronized void setAllFile(String fileName){
+        if (_allFile != null){
+            _allFile.close();
+        }
+        _allFile = fileName != null ? new RotatingFile(fileName, 64 * 1024) : null;
+    }
+    
+    /**
+     * packets are also queued to subscribers of live server
+     */
+    public void setLiveServer(PcapLiveServer liveServer){
+        _liveServer = liveServer;
+    }
+    
+    RotatingFile createFile(String fileName){
+        return new RotatingFile(fileName, 8 * 1024);
+    }
+    
+    /**
+     * copies chunk to the ring, never blocks
+     * 
+     * @param skip bytes of this direction dropped since previous queued chunk
+     * @return false if ring was full or writer stopped and chunk was dropped
+     */
+    boolean offer(PcapWriter writer, byte[] data, int offset, int length, long timestamp, boolean flip, long skip){
+        long pos = claim(length);
+        if (pos < 0){
+            return false;
+        }
+        Slot slot = _slots[(int) pos & _mask];
+        System.arraycopy(data, offset, slot.buffer(length), 0, length);
+        publish(pos, slot, writer, length, timestamp, flip, skip);
+        return true;
+    }
+    
+    /**
+     * copies remaining bytes of buffer to the ring, buffer position is not changed
+     */
+    boolean offer(PcapWriter writer, ByteBuffer data, long timestamp, boolean flip, long skip){
+        int length = data.remaining();
+        long pos = claim(length);
+        if (pos < 0){
+            return false;
+        }
+        Slot slot = _slots[(int) pos & _mask];
+        int position = data.position();
+        data.get(slot.buffer(length), 0, length);
+        data.position(position);
+        publish(pos, slot, writer, length, timestamp, flip, skip);
+        return true;
+    }
+    
+    /**
+     * closes writer files once all chunks queued before this call are written
+     */
+    void close(PcapWriter writer){
+        writer.closeAt = _enqueuePos.get();
+        synchronized (this) {
+            if (_finished){
+                // writer thread already gone
+                writer.closeFile();
+                return;
+            }
+            _closing.add(writer);
+        }
+    }
+    
+    private long claim(int length){
+        if (!_running){
+            countDrop(length);
+            return -1;
+        }
+        long pos = _enqueuePos.get();
+        while (true){
+            long diff = _sequences.get((int) pos & _mask) - pos;
+            if (diff == 0){
+                if (_enqueuePos.compareAndSet(pos, pos + 1)){
+                    return pos;
+                }
+                pos = _enqueuePos.get();
+            }else if (diff < 0){
+                countDrop(length);
+                return -1;
+            }else{
+                pos = _enqueuePos.get();
+            }
+        }
+    }
+    
+    private void publish(long pos, Slot slot, PcapWriter writer, int length, long timestamp, boolean flip, long skip){
+        slot._writer = writer;
+        slot._length = length;
+        slot._timestamp = timestamp;
+        slot._flip = flip;
+        slot._skip = skip;
+        _sequences.set((int) pos & _mask, pos + 1);
+        _queuedPackets.incrementAndGet();
+        if (_parked){
+            LockSupport.unpark(_thread);
+        }
+    }
+    
+    private void countDrop(int length){
+        _droppedPackets.incrementAndGet();
+        _droppedBytes.addAndGet(length);
+    }
+    
+    private void writeLoop(){
+        boolean dirty = false;
+        while (_running || hasQueued()){
+            int written = 0;
+            Slot slot;
+            while ((slot = poll()) != null){
+                try {
+                    writeSlot(slot);
+                } catch (IOException e) {
+                    if (LOGD) Log.d(TAG, "Error writing pcap " + e.getMessage());
+                }
+                release(slot);
+                written++;
+                if ((written & 255) == 0){
+                    closeFinished();
+                }
+            }
+            closeFinished();
+            reportDrops();
+            if (written > 0){
+                dirty = true;
+                continue;
+            }
+            if (dirty){
+                flushAll();
+                dirty = false;
+                continue;
+            }
+            _parked = true;
+            if (!hasQueued() && _running){
+                LockSupport.parkNanos(_flushInterval * 1000000L);
+            }
+            _parked = false;
+        }
+        synchronized (this) {
+            PcapWriter writer;
+            while ((writer = _closing.poll()) != null){
+                writer.closeFile();
+            }
+            if (_allFile != null){
+                _allFile.close();
+            }
+            _finished = true;
+        }
+    }
+    
+    private boolean hasQueued(){
+        long pos = _dequeuePos;
+        return _sequences.get((int) pos & _mask) == pos + 1;
+    }
+    
+    private Slot poll(){
+        long pos = _dequeuePos;
+        if (_sequences.get((int) pos & _mask) != pos + 1){
+            return null;
+        }
+        return _slots[(int) pos & _mask];
+    }
+    
+    private void release(Slot slot){
+        long pos = _dequeuePos;
+        slot._writer = null;
+        if (slot._data != null && slot._data.length > SLOT_BUFFER_KEEP){
+            slot._data = null;
+        }
+        _sequences.set((int) pos & _mask, pos + _mask + 1);
+        _dequeuePos = pos + 1;
+    }
+    
+    private void writeSlot(Slot slot) throws IOException {
+        PcapWriter writer = slot._writer;
+        long now = System.currentTimeMillis();
+        int offset = 0;
+        do {
+            int length = Math.min(slot._length - offset, PcapWriter.MAX_PAYLOAD);
+            byte[] header = writer.encodeHeader(slot._data, offset, length, slot._flip, offset == 0 ? slot._skip : 0);
+            int packetLength = header.length + length;
+            setRecordHeader(slot._timestamp, packetLength);
+            RotatingFile file = writer.getFile();
+            if (file != null){
+                file.write(_recordHeader, header, slot._data, offset, length, now);
+            }
+            synchronized (this) {
+                if (_allFile != null){
+                    _allFile.write(_recordHeader, header, slot._data, offset, length, now);
+                }
+            }
+            PcapLiveServer liveServer = _liveServer;
+            if (liveServer != null && liveServer.hasSubscribers()){
+                liveServer.publish(writer, _recordHeader, header, slot._data, offset, length);
+            }
+            _writtenPackets.incrementAndGet();
+            _writtenBytes.addAndGet(packetLength);
+            offset += length;
+        } while (offset < slot._length);
+    }
+    
+    private void setRecordHeader(long timestamp, int packetLength){
+        putInt(_recordHeader, 0, timestamp / 1000000L);
+        putInt(_recordHeader, 4, timestamp % 1000000L);
+        putInt(_recordHeader, 8, packetLength);
+        putInt(_recordHeader, 12, packetLength);
+    }
+    
+    private static void putInt(byte[] buffer, int offset, long value){
+        buffer[offset] = (byte) (value >>> 24);
+        buffer[offset + 1] = (byte) (value >>> 16);
+        buffer[offset + 2] = (byte) (value >>> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+    
+    private void closeFinished(){
+        if (_closing.isEmpty()){
+            return;
+        }
+        Iterator<PcapWriter> it = _closing.iterator();
+        while (it.hasNext()){
+            PcapWriter writer = it.next();
+            if (_dequeuePos >= writer.closeAt){
+                writer.closeFile();
+                it.remove();
+            }
+        }
+    }
+    
+    private void flushAll(){
+        synchronized (this) {
+            for (RotatingFile file : _openFiles) {
+                file.flush();
+            }
+        }
+    }
+    
+    private void reportDrops(){
+        long dropped = _droppedPackets.get();
+        if (dropped == _reportedDrops){
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - _lastDropReport < DROP_REPORT_INTERVAL){
+            return;
+        }
+        Log.i(TAG, "Capture ring full, dropped " + (dropped - _reportedDrops) + " packets, " + dropped + " in total");
+        _reportedDrops = dropped;
+        _lastDropReport = now;
+    }
+    
+    /**
+     * stops accepting chunks, writes what is queued and closes files
+     */
+    public void shutdown(){
+        _running = false;
+        LockSupport.unpark(_thread);
+        try {
+            _thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public boolean isRunning(){
+        return _running;
+    }
+    
+    public int getRingSize(){
+        return _slots.length;
+    }
+    
+    public long getQueuedPackets(){
+        return _queuedPackets.get();
+    }
+    
+    public long getWrittenPackets(){
+        return _writtenPackets.get();
+    }
+    
+    public long getWrittenBytes(){
+        return _writtenBytes.get();
+    }
+    
+    public long getDroppedPackets(){
+        return _droppedPackets.get();
+    }
+    
+    public long getDroppedBytes(){
+        return _droppedBytes.get();
+    }
+    
+    public long getRotations(){
+        return _rotations.get();
+    }
+    
+    private static class Slot {
+        private byte[] _data;
+        private int _length;
+        private long _timestamp;
+        private boolean _flip;
+        private long _skip;
+        private PcapWriter _writer;
+        
+        private byte[] buffer(int length){
+            if (_data == null || _data.length < length){
+                _data = new byte[Math.max(length, 1024)];
+            }
+            return _data;
+        }
+    }
+    
+    /**
+     * buffered capture file that is opened on first write and continues in 
+     * name_1.pcap, name_2.pcap ... when limits are reached
+     */
+    class RotatingFile {
+        
+        private String _fileName;
+        private int _bufferSize;
+        private OutputStream _out;
+        private int _index = 0;
+        private long _size;
+        private long _openedAt;
+        
+        private RotatingFile(String fileName, int bufferSize){
+            _fileName = fileName;
+            _bufferSize = bufferSize;
+        }
+        
+        private void write(byte[] recordHeader, byte[] header, byte[] data, int offset, int length, long now) throws IOException{
+            int recordLength = recordHeader.length + header.length + length;
+            if (_out != null && 
+                    ((_rotateSize > 0 && _size + recordLength > _rotateSize && _size > PCAP_FILE_HEADER.length) ||
+                     (_rotateAge > 0 && now - _openedAt > _rotateAge))){
+                close();
+                _index++;
+                _rotations.incrementAndGet();
+            }
+            if (_out == null){
+                open(now);
+            }
+            _out.write(recordHeader);
+            _out.write(header);
+            _out.write(data, offset, length);
+            _size += recordLength;
+        }
+        
+        private void open(long now) throws IOException{
+            String name = _fileName;
+            if (_index > 0){
+                int dot = name.lastIndexOf('.');
+                if (dot > name.lastIndexOf('/')){
+                    name = name.substring(0, dot) + "_" + _index + name.substring(dot);
+                }else{
+                    name = name + "_" + _index;
+                }
+            }
+            _out = new BufferedOutputStream(new FileOutputStream(name), _bufferSize);
+            _out.write(PCAP_FILE_HEADER);
+            _size = PCAP_FILE_HEADER.length;
+            _openedAt = now;
+            synchronized (PcapCaptureWriter.this) {
+                _openFiles.add(this);
+            }
+        }
+        
+        private void flush(){
+            if (_out != null){
+                try {
+                    _out.flush();
+                } catch (IOException e) {
+                    if (LOGD) Log.d(TAG, "Error flushing " + _fileName + " " + e.getMessage());
+                }
+            }
+        }
+        
+        void close(){
+            if (_out != null){
+                try {
+                    _out.close();
+                } catch (IOException e) {
+                    if (LOGD) Log.d(TAG, "Error closing " + _fileName + " " + e.getMessage());
+                }
+                _out = null;
+                synchronized (PcapCaptureWriter.this) {
+                    _openFiles.remove(this);
+                }
+            }
+        }
+    }
+}
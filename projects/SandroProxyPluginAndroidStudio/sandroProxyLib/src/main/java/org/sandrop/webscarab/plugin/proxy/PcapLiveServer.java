@@ -0,0 +1,461 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Streams captured packets to any number of live subscribers, for example 
+ * nc host 5400 | wireshark -k -i -
+ * 
+ * Every subscriber gets the pcap file header on connect and then records 
+ * from its own queue, bounded in bytes. When a subscriber can not keep up the
+ * oldest records are dropped and counted, the capture writer never waits on 
+ * a socket. All socket io is done on one selector thread.
+ * 
+ * A subscriber may send a filter line at any time, it replaces previous one:
+ * host 10.0.0.2 port 443 uid 10051
+ * Values of same kind are or-ed, different kinds are and-ed, empty line or 
+ * "all" removes the filter.
+ */
+public class PcapLiveServer {
+    
+    private static String TAG = PcapLiveServer.class.getSimpleName();
+    private static boolean LOGD = false;
+    
+    private static final int MAX_FILTER_LINE = 1024;
+    
+    private ServerSocketChannel _serverChannel;
+    private Selector _selector;
+    private Thread _thread;
+    private volatile boolean _running = true;
+    private int _queueLimit;
+    
+    private CopyOnWriteArrayList<Subscriber> _subscribers = new CopyOnWriteArrayList<Subscriber>();
+    private ConcurrentLinkedQueue<Subscriber> _pendingWrites = new ConcurrentLinkedQueue<Subscriber>();
+    
+    private AtomicLong _acceptedCount = new AtomicLong();
+    private AtomicLong _sentPackets = new AtomicLong();
+    private AtomicLong _droppedPackets = new AtomicLong();
+    private AtomicLong _droppedBytes = new AtomicLong();
+    
+    /**
+     * @param port port to listen on all interfaces
+     * @param queueLimit bytes that may wait for one subscriber before oldest are dropped
+     */
+    public PcapLiveServer(int port, int queueLimit) throws IOException{
+        _queueLimit = queueLimit;
+        _selector = Selector.open();
+        try {
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.socket().setReuseAddress(true);
+            _serverChannel.socket().bind(new InetSocketAddress(port));
+            _serverChannel.configureBlocking(false);
+            _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            _selector.close();
+            if (_serverChannel != null){
+                _serverChannel.close();
+            }
+            throw e;
+        }
+        _thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selectLoop();
+            }
+        }, "PcapLiveServer " + port);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+    
+    public boolean hasSubscribers(){
+        return !_subscribers.isEmpty();
+    }
+    
+    /**
+     * called on capture writer thread, queues packet to every subscriber 
+     * whose filter matches the connection
+     */
+    void publish(PcapWriter writer, byte[] recordHeader, byte[] header, byte[] data, int offset, int length){
+        byte[] record = null;
+        for (Subscriber subscriber : _subscribers) {
+            Filter filter = subscriber._filter;
+            if (filter != null && !filter.matches(writer)){
+                continue;
+            }
+            if (record == null){
+                record = new byte[recordHeader.length + header.length + length];
+                System.arraycopy(recordHeader, 0, record, 0, recordHeader.length);
+                System.arraycopy(header, 0, record, recordHeader.length, header.length);
+                System.arraycopy(data, offset, record, recordHeader.length + header.length, length);
+            }
+            subscriber.offer(record);
+        }
+    }
+    
+    private void selectLoop(){
+        while (_running){
+            try {
+                _selector.select();
+                Subscriber pending;
+                while ((pending = _pendingWrites.poll()) != null){
+                    if (pending._key.isValid()){
+                        pending._key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                }
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()){
+                        continue;
+                    }
+                    if (key.isAcceptable()){
+                        accept();
+                        continue;
+                    }
+                    Subscriber subscriber = (Subscriber) key.attachment();
+                    try {
+                        if (key.isReadable()){
+                            subscriber.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()){
+                            subscriber.onWritable();
+                        }
+                    } catch (IOException e) {
+                        if (LOGD) Log.d(TAG, "Subscriber " + subscriber + " gone " + e.getMessage());
+                        subscriber.close();
+                    }
+                }
+            } catch (Exception e) {
+                if (LOGD) Log.d(TAG, "Live capture select error " + e.getMessage());
+            }
+        }
+        for (Subscriber subscriber : _subscribers) {
+            subscriber.close();
+        }
+        try {
+            _serverChannel.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            _selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+    
+    private void accept() throws IOException{
+        SocketChannel channel = _serverChannel.accept();
+        if (channel == null){
+            return;
+        }
+        channel.configureBlocking(false);
+        Subscriber subscriber = new Subscriber(channel);
+        subscriber._key = channel.register(_selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, subscriber);
+        _subscribers.add(subscriber);
+        _acceptedCount.incrementAndGet();
+        if (LOGD) Log.d(TAG, "Live capture subscriber " + subscriber + " connected");
+    }
+    
+    /**
+     * closes all subscribers and stops listening
+     */
+    public void shutdown(){
+        _running = false;
+        _selector.wakeup();
+        try {
+            _thread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public int getSubscriberCount(){
+        return _subscribers.size();
+    }
+    
+    public long getAcceptedCount(){
+        return _acceptedCount.get();
+    }
+    
+    public long getSentPackets(){
+        return _sentPackets.get();
+    }
+    
+    public long getDroppedPackets(){
+        return _droppedPackets.get();
+    }
+    
+    public long getDroppedBytes(){
+        return _droppedBytes.get();
+    }
+    
+    /**
+     * @return one line per connected subscriber with its filter and counters
+     */
+    public List<String> getSubscriberStats(){
+        List<String> stats = new ArrayList<String>();
+        for (Subscriber subscriber : _subscribers) {
+            stats.add(subscriber.toString());
+        }
+        return stats;
+    }
+    
+    private class Subscriber {
+        
+        private SocketChannel _channel;
+        private SelectionKey _key;
+        private String _name;
+        private volatile Filter _filter;
+        private ConcurrentLinkedQueue<byte[]> _queue = new ConcurrentLinkedQueue<byte[]>();
+        private AtomicLong _queuedBytes = new AtomicLong();
+        private AtomicBoolean _writeScheduled = new AtomicBoolean(true);
+        private ByteBuffer _current = ByteBuffer.wrap(PcapCaptureWriter.PCAP_FILE_HEADER);
+        private ByteBuffer _readBuffer = ByteBuffer.allocate(256);
+        private StringBuilder _line = new StringBuilder();
+        private AtomicLong _sent = new AtomicLong();
+        private AtomicLong _dropped = new AtomicLong();
+        private boolean _closed = false;
+        
+        private Subscriber(SocketChannel channel){
+            _channel = channel;
+            _name = String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+        
+        private void offer(byte[] record){
+            _queue.add(record);
+            long queued = _queuedBytes.addAndGet(record.length);
+            while (queued > _queueLimit){
+                byte[] oldest = _queue.poll();
+                if (oldest == null){
+                    break;
+                }
+                queued = _queuedBytes.addAndGet(-oldest.length);
+                _dropped.incrementAndGet();
+                _droppedPackets.incrementAndGet();
+                _droppedBytes.addAndGet(oldest.length);
+            }
+            if (_writeScheduled.compareAndSet(false, true)){
+                _pendingWrites.add(this);
+                _selector.wakeup();
+            }
+        }
+        
+        private void onWritable() throws IOException{
+            while (true){
+                if (_current == null){
+                    byte[] record = _queue.poll();
+                    if (record == null){
+                        _writeScheduled.set(false);
+                        if (_queue.isEmpty() || !_writeScheduled.compareAndSet(false, true)){
+                            _key.interestOps(SelectionKey.OP_READ);
+                            return;
+                        }
+                        continue;
+                    }
+                    _queuedBytes.addAndGet(-record.length);
+                    _current = ByteBuffer.wrap(record);
+                }
+                _channel.write(_current);
+                if (_current.hasRemaining()){
+                    return;
+                }
+                if (_current.array() != PcapCaptureWriter.PCAP_FILE_HEADER){
+                    _sent.incrementAndGet();
+                    _sentPackets.incrementAndGet();
+                }
+                _current = null;
+            }
+        }
+        
+        private void onReadable() throws IOException{
+            _readBuffer.clear();
+            int got = _channel.read(_readBuffer);
+            if (got < 0){
+                close();
+                return;
+            }
+            for (int i = 0; i < got; i++) {
+                char c = (char) (_readBuffer.get(i) & 0xff);
+                if (c == '\n'){
+                    setFilter(_line.toString());
+                    _line.setLength(0);
+                }else if (c != '\r' && _line.length() < MAX_FILTER_LINE){
+                    _line.append(c);
+                }
+            }
+        }
+        
+        private void setFilter(String line){
+            try {
+                _filter = Filter.parse(line);
+                if (LOGD) Log.d(TAG, "Subscriber " + _name + " filter " + _filter);
+            } catch (IllegalArgumentException e) {
+                if (LOGD) Log.d(TAG, "Subscriber " + _name + " invalid filter " + e.getMessage());
+            }
+        }
+        
+        private void close(){
+            if (_closed){
+                return;
+            }
+            _closed = true;
+            _subscribers.remove(this);
+            if (_key != null){
+                _key.cancel();
+            }
+            try {
+                _channel.close();
+            } catch (IOException ignore) {
+            }
+            _queue.clear();
+            if (LOGD) Log.d(TAG, "Live capture subscriber closed " + this);
+        }
+        
+        @Override
+        public String toString() {
+            return _name + " filter: " + (_filter != null ? _filter : "all") + " sent: " + _sent.get() 
+                    + " dropped: " + _dropped.get() + " queued bytes: " + _queuedBytes.get();
+        }
+    }
+    
+    /**
+     * connection filter of a subscriber, missing kinds match anything
+     */
+    public static class Filter {
+        
+        private String _text;
+        private int[] _hosts;
+        private int[] _ports;
+        private int[] _uids;
+        
+        /**
+         * @return null if line selects all connections
+         * @throws IllegalArgumentException if line can not be parsed
+         */
+        public static Filter parse(String line){
+            String text = line.trim().toLowerCase();
+            if (text.length() == 0 || text.equals("all")){
+                return null;
+            }
+            String[] tokens = text.split("\\s+");
+            Filter filter = new Filter();
+            filter._text = text;
+            for (int i = 0; i < tokens.length; i++) {
+                String kind = tokens[i];
+                if (kind.equals("and") || kind.equals("or")){
+                    continue;
+                }
+                if (i + 1 >= tokens.length){
+                    throw new IllegalArgumentException("Missing value for " + kind);
+                }
+                String value = tokens[++i];
+                try {
+                    if (kind.equals("host")){
+                        filter._hosts = add(filter._hosts, parseAddress(value));
+                    }else if (kind.equals("port")){
+                        filter._ports = add(filter._ports, Integer.parseInt(value));
+                    }else if (kind.equals("uid")){
+                        filter._uids = add(filter._uids, Integer.parseInt(value));
+                    }else{
+                        throw new IllegalArgumentException("Unknown filter " + kind);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid value " + value + " for " + kind);
+                }
+            }
+            return filter;
+        }
+        
+        private static int[] add(int[] values, int value){
+            int length = values != null ? values.length : 0;
+            int[] result = new int[length + 1];
+            if (values != null){
+                System.arraycopy(values, 0, result, 0, length);
+            }
+            result[length] = value;
+            return result;
+        }
+        
+        private static int parseAddress(String value){
+            String[] parts = value.split("\\.");
+            if (parts.length != 4){
+                throw new IllegalArgumentException("Only IPv4 addresses are supported " + value);
+            }
+            int address = 0;
+            for (int i = 0; i < 4; i++) {
+                int part = Integer.parseInt(parts[i]);
+                if (part < 0 || part > 255){
+                    throw new IllegalArgumentException("Invalid address " + value);
+                }
+                address = (address << 8) | part;
+            }
+            return address;
+        }
+        
+        private static boolean contains(int[] values, int first, int second){
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] == first || values[i] == second){
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        boolean matches(PcapWriter writer){
+            return (_hosts == null || contains(_hosts, writer.getClientAddress(), writer.getServerAddress()))
+                    && (_ports == null || contains(_ports, writer.getClientPort(), writer.getServerPort()))
+                    && (_uids == null || contains(_uids, writer.getUid(), writer.getUid()));
+        }
+        
+        @Override
+        public String toString() {
+            return _text;
+        }
+    }
+}
@@ -32,142 +32,265 @@
 package org.sandrop.webscarab.plugin.proxy;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
-import android.util.Log;
+import org.sandrop.webscarab.model.Preferences;
+import org.sandroproxy.utils.PreferenceUtils;
 
-import netutils.build.IPv4PacketBuilder;
-import netutils.build.TCPPacketBuilder;
-import netutils.files.pcap.PCapFileWriter;
-import netutils.parse.IPv4Address;
-import netutils.parse.TCPPacket;
+import android.util.Log;
 
+/**
+ * Captures one tunnel as tcp packets. Chunks are handed to the shared 
+ * PcapCaptureWriter, so writeData only copies the data and returns.
+ */
 public class PcapWriter {
     
     private static String TAG = PcapWriter.class.getSimpleName();
     private static boolean LOGD = false;
-    private static PCapFileWriter pcapFileWriterAll;
-    private PCapFileWriter pcapFileWriter;
-    private IPv4Address clientAddress;
-    private IPv4Address serverAddress;
+    
+    private static final int ETHERNET_HEADER_SIZE = 14;
+    private static final int IP_HEADER_SIZE = 20;
+    private static final int TCP_HEADER_SIZE = 20;
+    private static final int HEADER_SIZE = ETHERNET_HEADER_SIZE + IP_HEADER_SIZE + TCP_HEADER_SIZE;
+    static final int MAX_PAYLOAD = 0xffff - IP_HEADER_SIZE - TCP_HEADER_SIZE;
+    
+    private static final byte[] ETHERNET_HEADER = new byte[]{
+        0x00, 0x0d, (byte)0xdd, (byte)0xe1, 0x12, 0x4f,
+        0x11, 0x0d, (byte)0xdd, (byte)0xe1, 0x12, 0x4f,
+        0x08, 0x00 };
+    
+    private static PcapCaptureWriter captureWriter;
+    private static PcapLiveServer liveServer;
+    
+    // header per direction, index 1 is server to client
+    private byte[][] headers = new byte[2][];
+    private int[] ipSums = new int[2];
+    private int[] tcpSums = new int[2];
+    private long[] sequenceNumbers = new long[]{1, 1};
+    // bytes dropped on full ring since last queued chunk, per direction
+    private AtomicLong[] droppedBytes = new AtomicLong[]{new AtomicLong(), new AtomicLong()};
+    private int clientAddress;
+    private int serverAddress;
     private int clientPort;
     private int serverPort;
-    private long sequenceNumber;
+    private int uid;
+    private PcapCaptureWriter writer;
+    private PcapCaptureWriter.RotatingFile file;
+    private boolean closed = false;
+    volatile long closeAt;
+    
+    public static synchronized PcapCaptureWriter getCaptureWriter(){
+        if (captureWriter == null){
+            int ringSize = Preferences.getPreferenceInt(PreferenceUtils.proxyPcapRingSize, 512);
+            long rotateSize = Preferences.getPreferenceInt(PreferenceUtils.proxyPcapRotateSize, 32) * 1024L * 1024L;
+            long rotateAge = Preferences.getPreferenceInt(PreferenceUtils.proxyPcapRotateAge, 60) * 60L * 1000L;
+            captureWriter = new PcapCaptureWriter(ringSize, rotateSize, rotateAge, 1000);
+            int livePort = Preferences.getPreferenceInt(PreferenceUtils.proxyPcapLivePort, 5400);
+            if (livePort > 0){
+                try {
+                    int queueLimit = Preferences.getPreferenceInt(PreferenceUtils.proxyPcapLiveQueueSize, 1024) * 1024;
+                    liveServer = new PcapLiveServer(livePort, queueLimit);
+                    captureWriter.setLiveServer(liveServer);
+                } catch (IOException e) {
+                    Log.i(TAG, "Live capture not available on port " + livePort + " " + e.getMessage());
+                }
+            }
+        }
+        return captureWriter;
+    }
     
     public static void init(String fileName) throws IOException{
-        pcapFileWriterAll = new PCapFileWriter(fileName);
+        getCaptureWriter().setAllFile(fileName);
     }
     
     public static void release() throws IOException{
-        pcapFileWriterAll = null;
-        if (serverThread != null){
-            try {
-                serverThread.stop();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            try {
-                if (serverSocket != null){
-                    serverSocket.close();
-                    serverSocket = null;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            try {
-                if (serverSocketClient != null){
-                    serverSocketClient.close();
-                    serverSocketClient = null;
-                }
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
+        PcapCaptureWriter oldWriter;
+        PcapLiveServer oldServer;
+        synchronized (PcapWriter.class) {
+            oldWriter = captureWriter;
+            oldServer = liveServer;
+            captureWriter = null;
+            liveServer = null;
+        }
+        if (oldWriter != null){
+            oldWriter.shutdown();
+        }
+        if (oldServer != null){
+            oldServer.shutdown();
         }
     }
     
+    /**
+     * @return server streaming capture to live subscribers, null if not running
+     */
+    public static synchronized PcapLiveServer getLiveServer(){
+        return liveServer;
+    }
     
+    public PcapWriter(Socket client, Socket server, String fileName) throws Exception{
+        this(client, server, fileName, -1);
+    }
     
-    public static synchronized void writeToAll(byte[] data, long time) throws IOException{
-        if (pcapFileWriterAll != null){
-            pcapFileWriterAll.addPacket(data, time);
-            if (serverSocketClient != null && serverSocketClient.isConnected() && isClientConnected){
-                if (LOGD) Log.d(TAG, "Send data also to connected client");
-                try{
-                    serverSocketClient.getOutputStream().write(data);
-                }catch(Exception ex){
-                    ex.printStackTrace();
-                }
-            }
+    /**
+     * @param uid application uid owning the connection, used by live capture filters
+     */
+    public PcapWriter(Socket client, Socket server, String fileName, int uid) throws Exception{
+        byte[] clientAddressBytes = getAddress(client.getInetAddress());
+        byte[] serverAddressBytes = getAddress(server.getInetAddress());
+        clientAddress = toInt(clientAddressBytes);
+        serverAddress = toInt(serverAddressBytes);
+        clientPort = client.getPort();
+        serverPort = server.getPort();
+        this.uid = uid;
+        initHeader(0, clientAddressBytes, clientPort, serverAddressBytes, serverPort);
+        initHeader(1, serverAddressBytes, serverPort, clientAddressBytes, clientPort);
+        writer = getCaptureWriter();
+        file = writer.createFile(fileName);
+    }
+    
+    private static int toInt(byte[] address){
+        return ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16) | ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+    }
+    
+    private static byte[] getAddress(InetAddress address) throws IOException{
+        if (!(address instanceof Inet4Address)){
+            throw new IOException("Only IPv4 connections can be stored as pcap " + address);
         }
+        return address.getAddress();
     }
     
-    private static ServerSocket serverSocket;
-    private static Socket serverSocketClient;
-    private static boolean isClientConnected = false;
-    private static Thread serverThread = null;
+    private void initHeader(int direction, byte[] srcAddress, int srcPort, byte[] dstAddress, int dstPort){
+        byte[] header = new byte[HEADER_SIZE];
+        System.arraycopy(ETHERNET_HEADER, 0, header, 0, ETHERNET_HEADER_SIZE);
+        int ip = ETHERNET_HEADER_SIZE;
+        header[ip] = 0x45;
+        header[ip + 8] = 64;
+        header[ip + 9] = 6;
+        System.arraycopy(srcAddress, 0, header, ip + 12, 4);
+        System.arraycopy(dstAddress, 0, header, ip + 16, 4);
+        int tcp = ip + IP_HEADER_SIZE;
+        putShort(header, tcp, srcPort);
+        putShort(header, tcp + 2, dstPort);
+        header[tcp + 12] = 0x50;
+        header[tcp + 14] = (byte) 0xff;
+        header[tcp + 15] = (byte) 0xff;
+        headers[direction] = header;
+        // sums of fields that never change, lengths, sequence and data are added per packet
+        ipSums[direction] = sum(header, ip, IP_HEADER_SIZE, 0);
+        tcpSums[direction] = sum(header, tcp, TCP_HEADER_SIZE, sum(header, ip + 12, 8, 6));
+    }
     
+    /**
+     * called on capture writer thread, fills header of next packet in direction
+     * @param skip bytes dropped before this packet, sequence number jumps over them
+     */
+    byte[] encodeHeader(byte[] data, int offset, int length, boolean flip, long skip){
+        int direction = flip ? 1 : 0;
+        byte[] header = headers[direction];
+        long sequenceNumber = (sequenceNumbers[direction] + skip) & 0xffffffffL;
+        sequenceNumbers[direction] = (sequenceNumber + length) & 0xffffffffL;
+        int ip = ETHERNET_HEADER_SIZE;
+        int tcp = ip + IP_HEADER_SIZE;
+        int tcpLength = TCP_HEADER_SIZE + length;
+        putShort(header, ip + 2, IP_HEADER_SIZE + tcpLength);
+        putShort(header, ip + 10, ~fold(ipSums[direction] + IP_HEADER_SIZE + tcpLength));
+        putShort(header, tcp + 4, (int) (sequenceNumber >>> 16));
+        putShort(header, tcp + 6, (int) sequenceNumber);
+        int tcpSum = tcpSums[direction] + tcpLength 
+                + (int) (sequenceNumber >>> 16) + (int) (sequenceNumber & 0xffff);
+        putShort(header, tcp + 16, ~fold(sum(data, offset, length, tcpSum)));
+        return header;
+    }
     
-    public PcapWriter(Socket client, Socket server, String fileName) throws Exception{
-        pcapFileWriter = new PCapFileWriter(fileName);
-        this.clientAddress = new IPv4Address(client.getInetAddress().getHostAddress());
-        this.serverAddress = new IPv4Address(server.getInetAddress().getHostAddress());
-        clientPort = client.getPort();
-        serverPort = server.getPort();
-        sequenceNumber = 1;
-        if (serverSocket == null){
-            serverSocket = new ServerSocket(5400);
-            serverThread = new Thread(new Runnable() {
-                
-                @Override
-                public void run() {
-                    try{
-                        serverThread.setName("PcapThread waiting for connection");
-                        serverSocketClient = serverSocket.accept();
-                        isClientConnected = true;
-                        serverThread.setName("PcapThread " + serverSocketClient.getInetAddress().getHostAddress());
-                    }catch(Exception ex){
-                        ex.printStackTrace();
-                    }
-                }
-            });
-            serverThread.setName("PcapThread");
-            serverThread.start();
+    private static void putShort(byte[] buffer, int offset, int value){
+        buffer[offset] = (byte) (value >>> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+    
+    private static int sum(byte[] data, int offset, int length, int sum){
+        int end = offset + (length & ~1);
+        long total = sum;
+        for (int i = offset; i < end; i += 2) {
+            total += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        }
+        if ((length & 1) != 0){
+            total += (data[end] & 0xff) << 8;
         }
+        return fold(total);
     }
     
-    public synchronized void writeData(byte[] data, long timestamp, boolean flip) throws Exception{
-        if (pcapFileWriter != null){
-            IPv4PacketBuilder pb = new IPv4PacketBuilder();
-            if (flip){
-                pb.setSrcAddr(serverAddress);
-                pb.setDstAddr(clientAddress);
-            }else{
-                pb.setSrcAddr(clientAddress);
-                pb.setDstAddr(serverAddress);
-            }
-            
-            TCPPacketBuilder tcpbp = new TCPPacketBuilder();
-            tcpbp.setL3(pb);
-            if (flip){
-                tcpbp.setSrcPort(serverPort);
-                tcpbp.setDstPort(clientPort);
-            }else{
-                tcpbp.setSrcPort(clientPort);
-                tcpbp.setDstPort(serverPort);
-            }
-            
-            tcpbp.setSeqNum(sequenceNumber);
-            
-            tcpbp.setPayload(data);
-            sequenceNumber = sequenceNumber + data.length;
-            // tcpbp.setAckNum(sequenceNumber);
-            tcpbp.setACKFlag(false);
-            tcpbp.setSYNFlag(false);
-            TCPPacket packet =  tcpbp.createTCPPacket();
-            byte[] packetData = packet.getRawBytes();
-            pcapFileWriter.addPacket(packetData, timestamp);
-            writeToAll(packetData, timestamp);
+    private static int fold(long sum){
+        while ((sum >>> 16) != 0){
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+    
+    public int getClientAddress(){
+        return clientAddress;
+    }
+    
+    public int getServerAddress(){
+        return serverAddress;
+    }
+    
+    public int getClientPort(){
+        return clientPort;
+    }
+    
+    public int getServerPort(){
+        return serverPort;
+    }
+    
+    public int getUid(){
+        return uid;
+    }
+    
+    PcapCaptureWriter.RotatingFile getFile(){
+        return closed ? null : file;
+    }
+    
+    /**
+     * called on capture writer thread once all chunks of this tunnel are written
+     */
+    void closeFile(){
+        closed = true;
+        file.close();
+    }
+    
+    public void writeData(byte[] data, long timestamp, boolean flip) throws Exception{
+        writeData(data, 0, data.length, timestamp, flip);
+    }
+    
+    public void writeData(byte[] data, int offset, int length, long timestamp, boolean flip) throws Exception{
+        AtomicLong dropped = droppedBytes[flip ? 1 : 0];
+        long skip = dropped.getAndSet(0);
+        if (!writer.offer(this, data, offset, length, timestamp, flip, skip)){
+            dropped.addAndGet(skip + length);
+            if (LOGD) Log.d(TAG, "Capture ring full, dropped " + length + " bytes");
+        }
+    }
+    
+    /**
+     * captures remaining bytes of buffer without changing its position
+     */
+    public void writeData(ByteBuffer data, long timestamp, boolean flip) throws Exception{
+        AtomicLong dropped = droppedBytes[flip ? 1 : 0];
+        long skip = dropped.getAndSet(0);
+        if (!writer.offer(this, data, timestamp, flip, skip)){
+            dropped.addAndGet(skip + data.remaining());
+            if (LOGD) Log.d(TAG, "Capture ring full, dropped " + data.remaining() + " bytes");
         }
     }
+    
+    /**
+     * closes capture file after data already passed to writeData is written
+     */
+    public void close(){
+        writer.close(this);
+    }
 }
@@ -0,0 +1,160 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+/**
+ * Connected socket with bytes already read from it put back in front of its
+ * input. Used when client sends data (tls client hello) before CONNECT is 
+ * answered and head reader has already taken it from the socket.
+ * Socket has no channel, so tunnels over it are forwarded by threads.
+ */
+public class PrefixedSocket extends Socket {
+    
+    private Socket _sock;
+    private InputStream _in;
+    
+    public PrefixedSocket(Socket sock, byte[] prefix) throws IOException {
+        _sock = sock;
+        _in = new SequenceInputStream(new ByteArrayInputStream(prefix), sock.getInputStream());
+    }
+    
+    public InputStream getInputStream() throws IOException {
+        return _in;
+    }
+    
+    public OutputStream getOutputStream() throws IOException {
+        return _sock.getOutputStream();
+    }
+    
+    public synchronized void close() throws IOException {
+        _sock.close();
+    }
+    
+    public boolean isConnected() {
+        return _sock.isConnected();
+    }
+    
+    public boolean isBound() {
+        return _sock.isBound();
+    }
+    
+    public boolean isClosed() {
+        return _sock.isClosed();
+    }
+    
+    public InetAddress getInetAddress() {
+        return _sock.getInetAddress();
+    }
+    
+    public int getPort() {
+        return _sock.getPort();
+    }
+    
+    public InetAddress getLocalAddress() {
+        return _sock.getLocalAddress();
+    }
+    
+    public int getLocalPort() {
+        return _sock.getLocalPort();
+    }
+    
+    public SocketAddress getRemoteSocketAddress() {
+        return _sock.getRemoteSocketAddress();
+    }
+    
+    public SocketAddress getLocalSocketAddress() {
+        return _sock.getLocalSocketAddress();
+    }
+    
+    public synchronized void setSoTimeout(int timeout) throws SocketException {
+        _sock.setSoTimeout(timeout);
+    }
+    
+    public synchronized int getSoTimeout() throws SocketException {
+        return _sock.getSoTimeout();
+    }
+    
+    public void setTcpNoDelay(boolean on) throws SocketException {
+        _sock.setTcpNoDelay(on);
+    }
+    
+    public boolean getTcpNoDelay() throws SocketException {
+        return _sock.getTcpNoDelay();
+    }
+    
+    public void setKeepAlive(boolean on) throws SocketException {
+        _sock.setKeepAlive(on);
+    }
+    
+    public boolean getKeepAlive() throws SocketException {
+        return _sock.getKeepAlive();
+    }
+    
+    public void setSoLinger(boolean on, int linger) throws SocketException {
+        _sock.setSoLinger(on, linger);
+    }
+    
+    public int getSoLinger() throws SocketException {
+        return _sock.getSoLinger();
+    }
+    
+    public void shutdownInput() throws IOException {
+        _sock.shutdownInput();
+    }
+    
+    public void shutdownOutput() throws IOException {
+        _sock.shutdownOutput();
+    }
+    
+    public boolean isInputShutdown() {
+        return _sock.isInputShutdown();
+    }
+    
+    public boolean isOutputShutdown() {
+        return _sock.isOutputShutdown();
+    }
+    
+    public String toString() {
+        return "PrefixedSocket on " + _sock.toString();
+    }
+}
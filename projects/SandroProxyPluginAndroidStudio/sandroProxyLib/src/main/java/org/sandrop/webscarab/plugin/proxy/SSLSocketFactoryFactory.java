@@ -59,7 +59,14 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -133,10 +140,23 @@ public class SSLSocketFactoryFactory {
     private char[] passwordCerts;
 
     private boolean reuseKeys = false;
+    
+    private LeafKeyPairPool keyPairPool = null;
 
-    private Map<String, SSLContext> contextCache = new HashMap<String, SSLContext>();
+    // only callers for the same host wait while its certificate is generated
+    private ConcurrentHashMap<String, FutureTask<SSLContext>> contextCache = new ConcurrentHashMap<String, FutureTask<SSLContext>>();
 
     private Set<BigInteger> serials = new HashSet<BigInteger>();
+    
+    // new certificates are written to keystore file in batches from timer thread
+    private static final long KEYSTORE_SAVE_DELAY = 2000;
+    private Timer keystoreSaveTimer = null;
+    private boolean keystoreSaveScheduled = false;
+    
+    private AtomicLong cacheHits = new AtomicLong(0);
+    private AtomicLong cacheMisses = new AtomicLong(0);
+    private AtomicLong certsGenerated = new AtomicLong(0);
+    private AtomicLong certGenerationTime = new AtomicLong(0);
 
     public SSLSocketFactoryFactory(String fileNameCA, String fileNameCert, String type,
             char[] password)
@@ -242,6 +262,62 @@ public class SSLSocketFactoryFactory {
     public void setReuseKeys(boolean reuse) {
         reuseKeys = reuse;
     }
+    
+    /**
+     * Keeps key pairs for host certificates generated in advance, used when
+     * keys are not reused.
+     * 
+     * @param algorithm
+     *            LeafKeyPairPool.ALGORITHM_RSA or LeafKeyPairPool.ALGORITHM_EC
+     * @param keySize
+     *            key size in bits
+     * @param size
+     *            number of key pairs kept ready, 0 to generate key on demand
+     */
+    public void setKeyPairPool(String algorithm, int keySize, int size) throws GeneralSecurityException {
+        if (size < 1) {
+            keyPairPool = null;
+            return;
+        }
+        keyPairPool = new LeafKeyPairPool(algorithm, keySize, size);
+    }
+    
+    public LeafKeyPairPool getKeyPairPool() {
+        return keyPairPool;
+    }
+    
+    public long getCacheHitCount() {
+        return cacheHits.get();
+    }
+    
+    public long getCacheMissCount() {
+        return cacheMisses.get();
+    }
+    
+    public long getGeneratedCertCount() {
+        return certsGenerated.get();
+    }
+    
+    /**
+     * @return average time in ms to create key material for a new host
+     */
+    public long getAverageCertGenerationTime() {
+        long generated = certsGenerated.get();
+        return generated == 0 ? 0 : certGenerationTime.get() / generated;
+    }
+    
+    /**
+     * writes certificates that are waiting for batched save to keystore file
+     */
+    public void flushKeystore() {
+        synchronized (keystoreCert) {
+            if (!keystoreSaveScheduled) {
+                return;
+            }
+            keystoreSaveScheduled = false;
+            saveKeystore(keystoreCert, filenameCert, passwordCerts);
+        }
+    }
 
     /*
      * (non-Javadoc)
@@ -250,52 +326,94 @@ public class SSLSocketFactoryFactory {
      * org.owasp.proxy.daemon.CertificateProvider#getSocketFactory(java.lang
      * .String, int)
      */
-    public synchronized SSLSocketFactory getSocketFactory(SiteData hostData)
+    public SSLSocketFactory getSocketFactory(final SiteData hostData)
             throws IOException, GeneralSecurityException {
-    	String certEntry = hostData.tcpAddress != null ? hostData.tcpAddress + "_" + hostData.destPort: hostData.name;
-        SSLContext sslContext = (SSLContext) contextCache.get(certEntry);
-        if (sslContext == null) {
-            X509KeyManager km;
-            if (!keystoreCert.containsAlias(certEntry)) {
-                km = createKeyMaterial(hostData);
+        String certEntry = hostData.getCertEntry();
+        FutureTask<SSLContext> contextTask = contextCache.get(certEntry);
+        if (contextTask == null) {
+            FutureTask<SSLContext> newTask = new FutureTask<SSLContext>(new Callable<SSLContext>() {
+                public SSLContext call() throws Exception {
+                    return createContext(hostData);
+                }
+            });
+            contextTask = contextCache.putIfAbsent(certEntry, newTask);
+            if (contextTask == null) {
+                cacheMisses.incrementAndGet();
+                contextTask = newTask;
+                contextTask.run();
             } else {
-                km = loadKeyMaterial(hostData);
+                cacheHits.incrementAndGet();
             }
-            
-            // here, trust managers is a single trust-all manager
-            TrustManager[] trustManagers = new TrustManager[] {
-                new X509TrustManager() {
-                    public X509Certificate[] getAcceptedIssuers() {
-                        return null;
-                    }
+        } else {
+            cacheHits.incrementAndGet();
+        }
+        try {
+            return contextTask.get().getSocketFactory();
+        } catch (InterruptedException ie) {
+            throw new IOException("Interrupted while waiting for certificate of " + certEntry);
+        } catch (ExecutionException ee) {
+            // next caller tries again
+            contextCache.remove(certEntry, contextTask);
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new GeneralSecurityException("Error creating certificate for " + certEntry + ": " + cause);
+        }
+    }
+    
+    private SSLContext createContext(SiteData hostData) throws IOException, GeneralSecurityException {
+        String certEntry = hostData.getCertEntry();
+        X509KeyManager km;
+        boolean haveEntry;
+        synchronized (keystoreCert) {
+            haveEntry = keystoreCert.containsAlias(certEntry);
+        }
+        if (!haveEntry) {
+            long start = System.currentTimeMillis();
+            km = createKeyMaterial(hostData);
+            certGenerationTime.addAndGet(System.currentTimeMillis() - start);
+            certsGenerated.incrementAndGet();
+        } else {
+            km = loadKeyMaterial(hostData);
+        }
+        
+        // here, trust managers is a single trust-all manager
+        TrustManager[] trustManagers = new TrustManager[] {
+            new X509TrustManager() {
+                public X509Certificate[] getAcceptedIssuers() {
+                    return null;
+                }
 
-                    public void checkClientTrusted(
-                        X509Certificate[] certs, String authType) {
-                        _logger.fine("trust manager checkClientTrusted authType:" + authType);
-                        if (certs != null){
-                            for (int i = 0; i < certs.length; i++) {
-                                _logger.fine("trust manager checkClientTrusted:" + certs[i]);
-                            }
+                public void checkClientTrusted(
+                    X509Certificate[] certs, String authType) {
+                    _logger.fine("trust manager checkClientTrusted authType:" + authType);
+                    if (certs != null){
+                        for (int i = 0; i < certs.length; i++) {
+                            _logger.fine("trust manager checkClientTrusted:" + certs[i]);
                         }
                     }
+                }
 
-                    public void checkServerTrusted(
-                        X509Certificate[] certs, String authType) {
-                        _logger.fine("trust manager checkServerTrusted authType:" + authType);
-                        if (certs != null){
-                            for (int i = 0; i < certs.length; i++) {
-                                _logger.fine("trust manager checkServerTrusted:" + certs[i]);
-                            }
+                public void checkServerTrusted(
+                    X509Certificate[] certs, String authType) {
+                    _logger.fine("trust manager checkServerTrusted authType:" + authType);
+                    if (certs != null){
+                        for (int i = 0; i < certs.length; i++) {
+                            _logger.fine("trust manager checkServerTrusted:" + certs[i]);
                         }
                     }
                 }
-            };
-            sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(new KeyManager[] { km }, trustManagers, null);
-            // sslcontext.init(new KeyManager[] { km }, null, null);
-            contextCache.put(certEntry, sslContext);
-        }
-        return sslContext.getSocketFactory();
+            }
+        };
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(new KeyManager[] { km }, trustManagers, null);
+        // sslcontext.init(new KeyManager[] { km }, null, null);
+        return sslContext;
     }
 
     private X509Certificate[] cast(Certificate[] chain) {
@@ -308,8 +426,13 @@ public class SSLSocketFactoryFactory {
     
     private X509KeyManager loadKeyMaterial(SiteData hostData) throws GeneralSecurityException, IOException {
         X509Certificate[] certs = null;
-        String certEntry = hostData.tcpAddress != null ? hostData.tcpAddress + "_" + hostData.destPort : hostData.name;
-        Certificate[] chain = keystoreCert.getCertificateChain(certEntry);
+        String certEntry = hostData.getCertEntry();
+        Certificate[] chain;
+        PrivateKey pk;
+        synchronized (keystoreCert) {
+            chain = keystoreCert.getCertificateChain(certEntry);
+            pk = (PrivateKey) keystoreCert.getKey(certEntry, passwordCerts);
+        }
         if (chain != null) {
             certs = cast(chain);
         } else {
@@ -318,7 +441,6 @@ public class SSLSocketFactoryFactory {
                             + " not found!");
         }
 
-        PrivateKey pk = (PrivateKey) keystoreCert.getKey(certEntry, passwordCerts);
         if (pk == null) {
             throw new GeneralSecurityException(
                     "Internal error: private key for " + hostData.name + " not found!");
@@ -327,13 +449,42 @@ public class SSLSocketFactoryFactory {
         return new HostKeyManager(hostData, pk, certs);
     }
 
+    /**
+     * saves keystore with new certificates later, so certificates created
+     * close together are written to file once
+     */
+    private void saveKeystoreLater() {
+        synchronized (keystoreCert) {
+            if (keystoreSaveScheduled) {
+                return;
+            }
+            keystoreSaveScheduled = true;
+            if (keystoreSaveTimer == null) {
+                keystoreSaveTimer = new Timer("KeystoreSave", true);
+            }
+            keystoreSaveTimer.schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    flushKeystore();
+                }
+            }, KEYSTORE_SAVE_DELAY);
+        }
+    }
+
     private void saveKeystore(KeyStore keystore, String filename, char[] password) {
         if (filename == null)
             return;
         try {
-            OutputStream out = new FileOutputStream(filename);
+            // write to temp file first so keystore file is never left half written
+            File file = new File(filename);
+            File tempFile = new File(filename + ".tmp");
+            OutputStream out = new FileOutputStream(tempFile);
             keystore.store(out, password);
             out.close();
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                tempFile.renameTo(file);
+            }
         } catch (IOException ioe) {
             ioe.printStackTrace();
         } catch (GeneralSecurityException gse) {
@@ -385,10 +536,10 @@ public class SSLSocketFactoryFactory {
         return new X500Principal("cn=" + host + ",ou=UNTRUSTED SandroProxy,o=UNTRUSTED SandroProxy");
     }
 
-    protected BigInteger getNextSerialNo() {
+    protected synchronized BigInteger getNextSerialNo() {
         BigInteger serial = BigInteger.valueOf(System.currentTimeMillis());
         while (serials.contains(serial))
-            serial.add(BigInteger.ONE);
+            serial = serial.add(BigInteger.ONE);
         serials.add(serial);
         return serial;
     }
@@ -399,6 +550,8 @@ public class SSLSocketFactoryFactory {
 
         if (reuseKeys) {
             keyPair = new KeyPair(caCerts[0].getPublicKey(), caKey);
+        } else if (keyPairPool != null) {
+            keyPair = keyPairPool.take();
         } else {
             KeyPairGenerator keygen = KeyPairGenerator.getInstance("RSA");
             keygen.initialize(1024);
@@ -440,6 +593,10 @@ public class SSLSocketFactoryFactory {
                 GeneralNames subjectAltName = new GeneralNames(sequence);
                 certGen.addExtension(X509Extensions.SubjectAlternativeName, false, subjectAltName);
             }
+        }else if (hostData.serverName != null){
+            // name from client hello without upstream certificate, clients match only on alternative names
+            GeneralNames subjectAltName = new GeneralNames(new GeneralName(GeneralName.dNSName, hostData.serverName));
+            certGen.addExtension(X509Extensions.SubjectAlternativeName, false, subjectAltName);
         }
         
         certGen.addExtension(X509Extensions.AuthorityKeyIdentifier, false,
@@ -454,10 +611,12 @@ public class SSLSocketFactoryFactory {
 
         PrivateKey pk = keyPair.getPrivate();
 
-        String certEntry = hostData.tcpAddress != null ? hostData.tcpAddress + "_" + hostData.destPort : hostData.name;
+        String certEntry = hostData.getCertEntry();
         
-        keystoreCert.setKeyEntry(certEntry, pk, passwordCerts, chain);
-        saveKeystore(keystoreCert, filenameCert, passwordCerts);
+        synchronized (keystoreCert) {
+            keystoreCert.setKeyEntry(certEntry, pk, passwordCerts, chain);
+        }
+        saveKeystoreLater();
         return new HostKeyManager(hostData, pk, chain);
     }
 
@@ -484,8 +643,19 @@ public class SSLSocketFactoryFactory {
 
         public String chooseServerAlias(String keyType, Principal[] issuers,
                 Socket socket) {
+            if (!matchesKeyType(keyType)) {
+                return null;
+            }
             return hostData.name;
         }
+        
+        private boolean matchesKeyType(String keyType) {
+            // ec key can only be used with ec cipher suites, rsa key is offered for all as before
+            if (keyType == null || !pk.getAlgorithm().startsWith("EC")) {
+                return true;
+            }
+            return keyType.startsWith("EC");
+        }
 
         public X509Certificate[] getCertificateChain(String alias) {
             return certs;
@@ -507,6 +677,9 @@ public class SSLSocketFactoryFactory {
 //            }
 //            
 //            return (String[]) hostData.alternativeNames.toArray();
+            if (!matchesKeyType(keyType)) {
+                return null;
+            }
             return new String[]{hostData.name};
         }
 
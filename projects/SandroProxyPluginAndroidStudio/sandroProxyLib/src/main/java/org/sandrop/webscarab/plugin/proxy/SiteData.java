@@ -10,4 +10,17 @@ public class SiteData{
     public int destPort;
     public int sourcePort;
     public int appUID;
+    /** host name client sent in tls server_name extension, null if not known */
+    public String serverName;
+    
+    /**
+     * name under which generated certificate is stored, per server name when
+     * client sent one so virtual hosts behind same address get own certificates
+     */
+    public String getCertEntry(){
+        if (serverName != null){
+            return serverName + "_" + destPort;
+        }
+        return tcpAddress != null ? tcpAddress + "_" + destPort : name;
+    }
 }
\ No newline at end of file
@@ -50,8 +50,25 @@ public class SocketForwarder extends Thread {
     private PcapWriter pcapWriter;
     private boolean flip;
     
+    private static NioSocketForwarder nioForwarder = null;
+    
+    /**
+     * when set, tunnels over channel based sockets are handed over to selector
+     * threads and connect returns without waiting for the tunnel to finish
+     */
+    public static void setNioForwarder(NioSocketForwarder forwarder){
+        nioForwarder = forwarder;
+    }
+    
+    public static NioSocketForwarder getNioForwarder(){
+        return nioForwarder;
+    }
 
-    public static void connect(String name, Socket clientSocket, Socket serverSocket, boolean captureAsPcap, File storageDir, ConnectionDescriptor connDesc) throws Exception {
+    /**
+     * @return true if tunnel was handed over to NioSocketForwarder, sockets are 
+     * then still in use and must not be closed by caller
+     */
+    public static boolean connect(String name, Socket clientSocket, Socket serverSocket, boolean captureAsPcap, File storageDir, ConnectionDescriptor connDesc) throws Exception {
         if (clientSocket != null && serverSocket != null && clientSocket.isConnected() && serverSocket.isConnected()){
             clientSocket.setSoTimeout(0);
             serverSocket.setSoTimeout(0);
@@ -65,11 +82,16 @@ public class SocketForwarder extends Thread {
                 }
                 String pcapFileName = storageFile + "/" + name + "_" + uid + "_" + System.currentTimeMillis() +  ".pcap";
                 pcapFileName = pcapFileName.replace("*", "_").replace(":", "_");
-                pcapWriter = new PcapWriter(clientSocket, serverSocket, pcapFileName);
+                pcapWriter = new PcapWriter(clientSocket, serverSocket, pcapFileName, connDesc != null ? connDesc.getId() : -1);
+            }
+            NioSocketForwarder forwarder = nioForwarder;
+            if (forwarder != null && forwarder.forward(name, clientSocket, serverSocket, pcapWriter)){
+                return true;
             }
-            // we could also pass OutputStream on which wireshark listens
-            SocketForwarder clientServer = new SocketForwarder(name + "_clientServer", clientSocket.getInputStream(), serverSocket.getOutputStream(), pcapWriter, false);
-            SocketForwarder serverClient = new SocketForwarder(name + "_serverClient", serverSocket.getInputStream(), clientSocket.getOutputStream(), pcapWriter, true);
+            try {
+                // we could also pass OutputStream on which wireshark listens
+                SocketForwarder clientServer = new SocketForwarder(name + "_clientServer", clientSocket.getInputStream(), serverSocket.getOutputStream(), pcapWriter, false);
+                SocketForwarder serverClient = new SocketForwarder(name + "_serverClient", serverSocket.getInputStream(), clientSocket.getOutputStream(), pcapWriter, true);
                 clientServer.start();
                 serverClient.start();
                 
@@ -87,6 +109,11 @@ public class SocketForwarder extends Thread {
                             ie.printStackTrace();
                         }
                 }
+            } finally {
+                if (pcapWriter != null){
+                    pcapWriter.close();
+                }
+            }
         }else{
             if (LOGD) Log.d(TAG, "skipping socket forwarding because of invalid sockets");
             if (clientSocket != null && clientSocket.isConnected()){
@@ -96,7 +123,7 @@ public class SocketForwarder extends Thread {
                 serverSocket.close();
             }
         }
-        
+        return false;
     }
 
     public SocketForwarder(String name, InputStream in, OutputStream out, PcapWriter pcapWriter, boolean flip) {
@@ -115,9 +142,7 @@ public class SocketForwarder extends Thread {
                     while ((got = in.read(buff)) > -1){
                         out.write(buff, 0, got);
                         if (pcapWriter != null){
-                            byte[] readData = new byte[got];
-                            System.arraycopy(buff, 0, readData, 0, got);
-                            pcapWriter.writeData(readData, System.currentTimeMillis() * 1000, flip);
+                            pcapWriter.writeData(buff, 0, got, System.currentTimeMillis() * 1000, flip);
                         }
                     }
             } catch (Exception ignore) {
@@ -0,0 +1,76 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandrop.webscarab.plugin.proxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts a new daemon thread for every connection. This is how the Listener
+ * always worked and stays the default.
+ */
+public class ThreadPerConnectionExecutor implements IConnectionExecutor {
+    
+    private AtomicInteger _active = new AtomicInteger(0);
+    
+    public boolean execute(final Runnable handler, String name) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                _active.incrementAndGet();
+                try {
+                    handler.run();
+                } finally {
+                    _active.decrementAndGet();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+    
+    public int getActiveCount() {
+        return _active.get();
+    }
+    
+    public int getQueuedCount() {
+        return 0;
+    }
+    
+    public long getRejectedCount() {
+        return 0;
+    }
+    
+    public void shutdown() {
+        // running connections are daemon threads and finish on their own
+    }
+    
+}
@@ -48,9 +48,11 @@
  */
 package org.sandrop.websockets;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 
@@ -72,22 +74,32 @@ public class WebSocketListener implements Runnable {
 	/**
 	 * Write/Forward frames to the other side.
 	 */
-	private final OutputStream out;
+	protected final OutputStream out;
 
 	/**
 	 * This proxy object is used to process the read.
 	 */
-	private final WebSocketProxy wsProxy;
+	protected final WebSocketProxy wsProxy;
 
 	/**
 	 * Name of this thread (in-, or outgoing)
 	 */
-	private final String name;
+	protected final String name;
 
 	/**
 	 * Indicates if it still listens.
 	 */
-	private boolean isFinished = false;
+	protected volatile boolean isFinished = false;
+
+	/**
+	 * Number of frames read on this side.
+	 */
+	protected final AtomicLong frameCount = new AtomicLong(0);
+
+	/**
+	 * Number of bytes read on this side.
+	 */
+	protected final AtomicLong byteCount = new AtomicLong(0);
 
 	/**
 	 * Create listener, that calls the WebSocketsProxy instance to process read
@@ -100,7 +112,7 @@ public class WebSocketListener implements Runnable {
 	 */
 	public WebSocketListener(WebSocketProxy wsProxy, InputStream in, OutputStream out, String name) {
 		this.wsProxy = wsProxy;
-		this.in = in;
+		this.in = (in != null) ? new CountingInputStream(in) : null;
 		this.out = out;
 		this.name = name;
 	}
@@ -118,6 +130,7 @@ public class WebSocketListener implements Runnable {
 				while (in.read(buffer) != -1) {
 					// there is something to read => process in WebSockets version specific message
 					wsProxy.processRead(in, out, buffer[0]);
+					frameCount.incrementAndGet();
 				}
 			}
 		} catch (IOException e) {
@@ -187,4 +200,63 @@ public class WebSocketListener implements Runnable {
 	public OutputStream getOutputStream() {
 		return out;
 	}
+
+	/**
+	 * @return number of frames read so far
+	 */
+	public long getFrameCount() {
+		return frameCount.get();
+	}
+
+	/**
+	 * @return number of bytes read so far
+	 */
+	public long getByteCount() {
+		return byteCount.get();
+	}
+
+	/**
+	 * Blocking listeners hand each read straight to the proxy, so nothing is
+	 * queued between socket and {@link WebSocketProxy#processRead(InputStream, OutputStream, byte)}.
+	 * 
+	 * @return number of bytes read but not processed yet
+	 */
+	public int getQueuedBytes() {
+		return 0;
+	}
+
+	/**
+	 * @return true if this listener is driven by a selector
+	 */
+	public boolean isSelectorDriven() {
+		return false;
+	}
+
+	/**
+	 * Counts bytes read by {@link WebSocketProxy} from the socket.
+	 */
+	private class CountingInputStream extends FilterInputStream {
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b != -1) {
+				byteCount.incrementAndGet();
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			int count = super.read(buffer, offset, length);
+			if (count > 0) {
+				byteCount.addAndGet(count);
+			}
+			return count;
+		}
+	}
 }
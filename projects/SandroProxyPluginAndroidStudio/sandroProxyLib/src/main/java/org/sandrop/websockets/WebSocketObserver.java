@@ -78,7 +78,8 @@ public interface WebSocketObserver {
 	 * <p>
 	 * Use {@link WebSocketMessage#isFinished()} to determine if it is ready to
 	 * process. If false is returned, the given message part will not be further
-	 * processed (i.e. forwarded).
+	 * processed (i.e. forwarded). Use {@link WebSocketMessage#getPayloadBuffer()}
+	 * to inspect the payload without copying it.
 	 * 
 	 * @param channelId
 	 * @param message
@@ -49,11 +49,14 @@
 package org.sandrop.websockets;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.SocketChannel;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.util.Calendar;
@@ -64,6 +67,7 @@ import java.util.Map;
 import java.util.Vector;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -291,6 +295,21 @@ public abstract class WebSocketProxy {
      * @throws WebSocketException
      */
     public void startListeners(ExecutorService listenerThreadPool, InputStream remoteReader) throws WebSocketException {
+        startListeners(listenerThreadPool, null, remoteReader);
+    }
+    
+    /**
+     * Start listening to the WebSocket-connection. If a reader pool is given
+     * and both sockets were created from channels, the channel is read by the
+     * pool's selector threads. Otherwise two threads from the given thread
+     * pool do blocking reads.
+     * 
+     * @param listenerThreadPool Thread pool is provided by {@link ExtensionWebSocket}.
+     * @param readerPool Selector threads, might be null.
+     * @param remoteReader This {@link InputStream} that contained the handshake response.
+     * @throws WebSocketException
+     */
+    public void startListeners(ExecutorService listenerThreadPool, WebSocketReaderPool readerPool, InputStream remoteReader) throws WebSocketException {
         setState(State.CONNECTING);
         
         // check if both sockets are open, otherwise no need for listening
@@ -319,11 +338,19 @@ public abstract class WebSocketProxy {
         
         logger.info("Start listeners for channel '" + toString() + "'.");
         
+        if (readerPool != null) {
+            remoteReader = createChannelListeners(remoteReader);
+        }
+        
         try {
-            // use existing InputStream for remote socket,
-            // as it may already contain first WebSocket-frames
-            remoteListener = createListener(remoteSocket, remoteReader, "remote");
-            localListener = createListener(localSocket, "local");
+            if (remoteListener == null) {
+                // use existing InputStream for remote socket,
+                // as it may already contain first WebSocket-frames
+                remoteListener = createListener(remoteSocket, remoteReader, "remote");
+            }
+            if (localListener == null) {
+                localListener = createListener(localSocket, "local");
+            }
         } catch (WebSocketException e) {
             shutdown();
             throw e;
@@ -334,8 +361,80 @@ public abstract class WebSocketProxy {
         // before they are informed about a new channel state.
         setState(State.OPEN);
         
-        listenerThreadPool.execute(remoteListener);
-        listenerThreadPool.execute(localListener);
+        if (remoteListener.isSelectorDriven()) {
+            readerPool.register((WebSocketChannelListener) remoteListener,
+                    localListener.isSelectorDriven() ? (WebSocketChannelListener) localListener : null);
+        } else {
+            listenerThreadPool.execute(remoteListener);
+        }
+        if (!localListener.isSelectorDriven()) {
+            listenerThreadPool.execute(localListener);
+        }
+    }
+    
+    /**
+     * Creates listeners driven by {@link WebSocketReaderPool} if sockets were
+     * created from channels. Frames that came along with the handshake
+     * response are taken from the remote reader first, as the channel is read
+     * directly afterwards.
+     * 
+     * @param remoteReader
+     * @return stream to use for remote side if blocking listeners are needed
+     */
+    private InputStream createChannelListeners(InputStream remoteReader) {
+        SocketChannel remoteChannel = remoteSocket.getChannel();
+        SocketChannel localChannel = (localSocket != null) ? localSocket.getChannel() : null;
+        if (remoteChannel == null || (localSocket != null && localChannel == null)) {
+            // e.g. SSL sockets
+            return remoteReader;
+        }
+        
+        byte[] prefix = null;
+        try {
+            if (remoteReader != null) {
+                prefix = new byte[remoteReader.available()];
+                int read = 0;
+                while (read < prefix.length) {
+                    int count = remoteReader.read(prefix, read, prefix.length - read);
+                    if (count == -1) {
+                        break;
+                    }
+                    read += count;
+                }
+                if (read < prefix.length) {
+                    byte[] shortPrefix = new byte[read];
+                    System.arraycopy(prefix, 0, shortPrefix, 0, read);
+                    prefix = shortPrefix;
+                }
+            }
+            remoteChannel.configureBlocking(false);
+            if (localChannel != null) {
+                localChannel.configureBlocking(false);
+            }
+        } catch (IOException e) {
+            logger.info("Using blocking listeners for channel '" + toString() + "': " + e.getMessage());
+            try {
+                remoteChannel.configureBlocking(true);
+                if (localChannel != null) {
+                    localChannel.configureBlocking(true);
+                }
+            } catch (IOException ignore) {
+            }
+            if (prefix != null && prefix.length > 0) {
+                return new SequenceInputStream(new ByteArrayInputStream(prefix), remoteReader);
+            }
+            return remoteReader;
+        }
+        
+        String name = toString();
+        // each side writes to the stream of the other side's channel
+        WebSocketChannelListener.ChannelOutputStream remoteOut = new WebSocketChannelListener.ChannelOutputStream(remoteChannel);
+        WebSocketChannelListener.ChannelOutputStream localOut = (localChannel != null) ? new WebSocketChannelListener.ChannelOutputStream(localChannel) : null;
+        remoteListener = new WebSocketChannelListener(this, remoteOut, localOut, prefix, "WS-Listener (remote) '" + name + "'");
+        if (localChannel != null) {
+            localListener = new WebSocketChannelListener(this, localOut, remoteOut, null, "WS-Listener (local) '" + name + "'");
+        }
+        return null;
     }
     
     /**
@@ -353,7 +452,10 @@ public abstract class WebSocketProxy {
         try {
             OutputStream writer = null;
             Socket writeSocket = getOppositeSocket(readEnd);
-            if (writeSocket != null) {
+            if (writeSocket == remoteSocket && remoteListener != null && remoteListener.isSelectorDriven()) {
+                // client mode, remote channel is in non-blocking mode
+                writer = ((WebSocketChannelListener) remoteListener).createOutputStream();
+            } else if (writeSocket != null) {
                 writer = writeSocket.getOutputStream();
             }
 
@@ -460,9 +562,10 @@ public abstract class WebSocketProxy {
         WebSocketMessage message = null;
     
         int opcode = (frameHeader & 0x0F); // last 4 bits represent opcode
-        String readableOpcode = WebSocketMessage.opcode2string(opcode);
         
-        logger.info("Process WebSocket frame: " + opcode + " (" + readableOpcode + ")");
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Process WebSocket frame: " + opcode + " (" + WebSocketMessage.opcode2string(opcode) + ")");
+        }
         
         if (WebSocketMessage.isControl(opcode)) {
             // control messages may interrupt non-control messages
@@ -503,7 +606,12 @@ public abstract class WebSocketProxy {
         if (isForwardOnly || notifyMessageObservers(message)) {
             // skip forwarding only if observer told us to skip this message (frame)
             message.forward(out);
-        }    
+        }
+        
+        if (message.isFinished()) {
+            // frames are not needed any more, reuse their buffers
+            message.release();
+        }
     }
 
     /**
@@ -525,6 +633,7 @@ public abstract class WebSocketProxy {
             }
         }
         message.forward(out);
+        message.release();
     }
 
     /**
@@ -695,6 +804,25 @@ public abstract class WebSocketProxy {
         this.handshakeReference = handshakeReference;
     }
 
+    /**
+     * @return traffic counters of both sides of this channel
+     */
+    public WebSocketChannelStatsDTO getStats() {
+        WebSocketChannelStatsDTO stats = new WebSocketChannelStatsDTO();
+        stats.id = getChannelId();
+        stats.name = toString();
+        WebSocketListener[] listeners = {localListener, remoteListener};
+        for (WebSocketListener listener : listeners) {
+            if (listener != null) {
+                stats.frames += listener.getFrameCount();
+                stats.bytes += listener.getByteCount();
+                stats.queuedBytes += listener.getQueuedBytes();
+                stats.isSelectorDriven |= listener.isSelectorDriven();
+            }
+        }
+        return stats;
+    }
+
     public WebSocketChannelDTO getDTO() {
         WebSocketChannelDTO dto = new WebSocketChannelDTO();
         dto.id = getChannelId();
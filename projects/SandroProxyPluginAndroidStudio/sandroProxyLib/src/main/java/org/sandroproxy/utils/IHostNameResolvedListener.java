@@ -0,0 +1,11 @@
+package org.sandroproxy.utils;
+
+import org.sandrop.webscarab.plugin.proxy.SiteData;
+
+public interface IHostNameResolvedListener {
+    /**
+     * called from resolver thread when upstream certificate lookup is finished,
+     * siteData is null when lookup failed
+     */
+    void onHostNameResolved(String ipPort, SiteData siteData);
+}
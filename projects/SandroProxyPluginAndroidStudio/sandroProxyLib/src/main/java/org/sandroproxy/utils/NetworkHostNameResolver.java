@@ -1,13 +1,23 @@
 package org.sandroproxy.utils;
 
-import java.io.OutputStream;
 import java.net.Socket;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
@@ -17,6 +27,7 @@ import javax.net.ssl.X509TrustManager;
 
 import org.sandrop.webscarab.httpclient.HTTPClientFactory;
 import org.sandrop.webscarab.model.HttpUrl;
+import org.sandrop.webscarab.model.Preferences;
 import org.sandrop.webscarab.plugin.proxy.ITransparentProxyResolver;
 import org.sandrop.webscarab.plugin.proxy.SiteData;
 import org.sandroproxy.utils.PreferenceUtils;
@@ -27,22 +38,40 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 
 public class NetworkHostNameResolver implements ITransparentProxyResolver{
-
+    
     
     private Context mContext;
     private String mHostName;
     private boolean mListenerStarted = false;
-    private Map<Integer, SiteData> siteData;
-    private Map<String, SiteData> ipPortSiteData;
-    private List<SiteData> unresolvedSiteData;
-    private HostNameResolver hostNameResolver;
+    private boolean mSniEnabled = true;
+    private volatile boolean mPeekAvailable = true;
+    private int mResolveTimeout;
+    private long mCacheTtl;
+    private ThreadPoolExecutor mExecutor;
+    private ConcurrentHashMap<String, ResolveTask> mPending = new ConcurrentHashMap<String, ResolveTask>();
+    private Map<String, CachedSite> mCache = new ConcurrentHashMap<String, CachedSite>();
+    private List<IHostNameResolvedListener> mListeners = new CopyOnWriteArrayList<IHostNameResolvedListener>();
     
     public static String DEFAULT_SITE_NAME = "sandroproxy.untrusted";
     private static String TAG = NetworkHostNameResolver.class.getSimpleName();
     private static boolean LOGD = false;
     
+    private static int DEFAULT_THREADS = 4;
+    private static int DEFAULT_TIMEOUT = 10000;
+    private static int DEFAULT_CACHE_TTL = 600;
+    private static int MAX_CACHE_SIZE = 512;
+    private static int SNI_PEEK_TIMEOUT = 1000;
+    private static int SNI_PEEK_BUFFER = 8192;
+    
     private native String getOriginalDest(Socket socket);
     
+    /**
+     * copies data waiting on socket into buffer without removing it from socket queue,
+     * blocks until length bytes are there or timeout ms passed
+     * @return number of bytes copied, less than length on timeout and -1 on error
+     */
+    private native int peekData(Socket socket, byte[] buffer, int length, int timeout);
+    
     static
     {
         System.loadLibrary("socketdest");
@@ -52,10 +81,13 @@ public class NetworkHostNameResolver implements ITransparentProxyResolver{
         mContext = context;
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(mContext);
         String hostName = pref.getString(PreferenceUtils.proxyTransparentHostNameKey, null);
+        mSniEnabled = pref.getBoolean(PreferenceUtils.proxyTransparentSniEnabled, true);
+        mResolveTimeout = Preferences.getPreferenceInt(mContext, PreferenceUtils.proxyTransparentResolverTimeout, DEFAULT_TIMEOUT);
+        mCacheTtl = Preferences.getPreferenceInt(mContext, PreferenceUtils.proxyTransparentResolverCacheTtl, DEFAULT_CACHE_TTL) * 1000L;
         if (hostName != null && hostName.length() > 0){
             mHostName = hostName;
         }else{
-            startListenerForEvents();
+            startListenerForEvents(Preferences.getPreferenceInt(mContext, PreferenceUtils.proxyTransparentResolverThreads, DEFAULT_THREADS));
         }
     }
     
@@ -65,86 +97,233 @@ public class NetworkHostNameResolver implements ITransparentProxyResolver{
         }
     }
     
+    public void addListener(IHostNameResolvedListener listener){
+        mListeners.add(listener);
+    }
+    
+    public void removeListener(IHostNameResolvedListener listener){
+        mListeners.remove(listener);
+    }
     
-    private class HostNameResolver implements Runnable{
-        public boolean running = false;
-
-        public void stop() {
-          running = false;
+    private static class CachedSite{
+        SiteData siteData;
+        long expires;
+    
+        CachedSite(SiteData siteData, long expires){
+            this.siteData = siteData;
+            this.expires = expires;
         }
-
+    }
+    
+    /**
+     * lookup of upstream certificate for one ip:port, all connections to same
+     * destination wait on same task
+     */
+    private class ResolveTask extends FutureTask<SiteData>{
+        private String key;
+    
+        ResolveTask(String key, Callable<SiteData> callable){
+            super(callable);
+            this.key = key;
+        }
+    
         @Override
-        public void run() {
-          running = true;
-          while(running) {
-              if (unresolvedSiteData.size() > 0){
-                  final SiteData siteDataCurrent = unresolvedSiteData.remove(0);
-                  TrustManager[] trustAllCerts = new TrustManager[] {
-                      new X509TrustManager() {
-                          public X509Certificate[] getAcceptedIssuers() {
-                              return null;
-                          }
-                          public void checkClientTrusted(X509Certificate[] certs, String authType) {
-                          }
-                          public void checkServerTrusted(X509Certificate[] certs, String authType) {
-                              try{
-                                  if (certs != null && certs.length > 0 && certs[0].getSubjectDN() != null){
-                                      // getting subject common name 
-                                      String cnValue = certs[0].getSubjectDN().getName();
-                                      String[] cnValues = cnValue.split(",");
-                                      for (String  val : cnValues) {
-                                        String[] parts = val.split("=");
-                                        if (parts != null && parts.length == 2 && parts[0].equalsIgnoreCase("cn") && parts[1] != null && parts[1].length() > 0){
-                                            siteDataCurrent.name = parts[1].trim();
-                                            if (LOGD) Log.d(TAG, "Adding hostname to dictionary " + siteDataCurrent.name + " port:" + siteDataCurrent.sourcePort);
-                                            siteDataCurrent.certs = certs;
-                                            siteData.put(siteDataCurrent.sourcePort, siteDataCurrent);
-                                            ipPortSiteData.put(siteDataCurrent.tcpAddress + ":" + siteDataCurrent.destPort, siteDataCurrent);
-                                            break;
-                                        }
-                                      }
-                                  }
-                              }catch(Exception e){
-                                  if (LOGD) Log.d(TAG, e.getMessage());
-                              }
-                          }
-                      }
-                  };
-                try {
-                  if (!ipPortSiteData.containsKey(siteDataCurrent.tcpAddress + ":" + siteDataCurrent.destPort)){
-                      String hostName = siteDataCurrent.hostName != null ? siteDataCurrent.hostName : siteDataCurrent.tcpAddress;
-                      if (LOGD) Log.d(TAG, "Connect to " + hostName + " on port:" + siteDataCurrent.destPort);
-                      HttpUrl base = new HttpUrl("https://" + hostName + ":" + siteDataCurrent.destPort);
-                      Socket socket = HTTPClientFactory.getValidInstance().getConnectedSocket(base, false);
-                      SSLContext sslContext = SSLContext.getInstance("TLS");
-                      sslContext.init(null, trustAllCerts, new SecureRandom());
-                      SSLSocketFactory factory = sslContext.getSocketFactory();
-                      SSLSocket sslsocket=(SSLSocket)factory.createSocket(socket,socket.getInetAddress().getHostAddress(),socket.getPort(),true);
-                      // sslsocket.setEnabledProtocols(new String[] {"SSLv3"});
-                      sslsocket.setUseClientMode(true);
-                      OutputStream os = sslsocket.getOutputStream();
-                      if (LOGD) Log.d(TAG, "Creating ssl session " + siteDataCurrent.tcpAddress + " on port:" + siteDataCurrent.destPort);
-                      sslsocket.getSession();
-                      // TODO what would be more appropriate to send to server...
-                      if (LOGD) Log.d(TAG, "Sending http get request " + siteDataCurrent.tcpAddress + " on port:" + siteDataCurrent.destPort);
-                      os.write("GET / HTTP1.0\n\n".getBytes());
-                  }else{
-                      SiteData siteDataCached = ipPortSiteData.get(siteDataCurrent.tcpAddress + ":" + siteDataCurrent.destPort);
-                      if (LOGD) Log.d(TAG, "Already have candidate for " + siteDataCached.name + ". No need to fetch " + siteDataCurrent.tcpAddress + " on port:" + siteDataCurrent.destPort);
-                      siteData.put(siteDataCurrent.sourcePort, siteDataCached);
-                  }
-                } catch (Exception e) {
-                    if (LOGD) Log.d(TAG, e.getMessage());
+        protected void done() {
+            SiteData result = null;
+            try{
+                result = get();
+            }catch (Exception e){
+                if (LOGD) Log.d(TAG, "Resolving " + key + " failed " + e.getMessage());
+            }
+            if (result != null){
+                putCached(key, result);
+            }
+            mPending.remove(key);
+            for (IHostNameResolvedListener listener : mListeners) {
+                try{
+                    listener.onHostNameResolved(key, result);
+                }catch (Exception e){
+                    Log.w(TAG, "Listener failed on " + key + " " + e.getMessage());
+                }
+            }
+        }
+    }
+    
+    private class UpstreamCertificateProbe implements Callable<SiteData>{
+        private String tcpAddress;
+        private String hostName;
+        private int destPort;
+    
+        UpstreamCertificateProbe(String tcpAddress, String hostName, int destPort){
+            this.tcpAddress = tcpAddress;
+            this.hostName = hostName;
+            this.destPort = destPort;
+        }
+    
+        @Override
+        public SiteData call() throws Exception {
+            final X509Certificate[][] serverCerts = new X509Certificate[1][];
+            TrustManager[] trustAllCerts = new TrustManager[] {
+                new X509TrustManager() {
+                    public X509Certificate[] getAcceptedIssuers() {
+                        return null;
+                    }
+                    public void checkClientTrusted(X509Certificate[] certs, String authType) {
+                    }
+                    public void checkServerTrusted(X509Certificate[] certs, String authType) {
+                        serverCerts[0] = certs;
+                    }
+                }
+            };
+            String connectName = hostName != null ? hostName : tcpAddress;
+            if (LOGD) Log.d(TAG, "Connect to " + connectName + " on port:" + destPort);
+            HttpUrl base = new HttpUrl("https://" + connectName + ":" + destPort);
+            Socket socket = HTTPClientFactory.getValidInstance().getConnectedSocket(base, false);
+            try{
+                socket.setSoTimeout(mResolveTimeout);
+                SSLContext sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, trustAllCerts, new SecureRandom());
+                SSLSocketFactory factory = sslContext.getSocketFactory();
+                SSLSocket sslsocket = (SSLSocket)factory.createSocket(socket, connectName, socket.getPort(), true);
+                sslsocket.setUseClientMode(true);
+                if (LOGD) Log.d(TAG, "Creating ssl session " + tcpAddress + " on port:" + destPort);
+                sslsocket.startHandshake();
+            }finally{
+                try{
+                    socket.close();
+                }catch (Exception e){
+                }
+            }
+            String name = getCommonName(serverCerts[0]);
+            if (name == null){
+                return null;
+            }
+            if (LOGD) Log.d(TAG, "Adding hostname to cache " + name + " for " + tcpAddress + ":" + destPort);
+            SiteData result = new SiteData();
+            result.name = name;
+            result.certs = serverCerts[0];
+            result.tcpAddress = tcpAddress;
+            result.hostName = hostName;
+            result.destPort = destPort;
+            return result;
+        }
+    }
+    
+    private static String getCommonName(X509Certificate[] certs){
+        if (certs == null || certs.length == 0 || certs[0].getSubjectDN() == null){
+            return null;
+        }
+        // getting subject common name
+        String cnValue = certs[0].getSubjectDN().getName();
+        String[] cnValues = cnValue.split(",");
+        for (String  val : cnValues) {
+            String[] parts = val.split("=");
+            if (parts != null && parts.length == 2 && parts[0].trim().equalsIgnoreCase("cn") && parts[1] != null && parts[1].trim().length() > 0){
+                return parts[1].trim();
+            }
+        }
+        return null;
+    }
+    
+    private SiteData getCached(String key){
+        CachedSite cached = mCache.get(key);
+        if (cached == null){
+            return null;
+        }
+        if (cached.expires < System.currentTimeMillis()){
+            mCache.remove(key);
+            return null;
+        }
+        return cached.siteData;
+    }
+    
+    private void putCached(String key, SiteData siteData){
+        if (mCache.size() >= MAX_CACHE_SIZE){
+            long now = System.currentTimeMillis();
+            Iterator<CachedSite> it = mCache.values().iterator();
+            while (it.hasNext()){
+                if (it.next().expires < now){
+                    it.remove();
+                }
+            }
+            // still full, drop some entry to keep memory bounded
+            it = mCache.values().iterator();
+            while (mCache.size() >= MAX_CACHE_SIZE && it.hasNext()){
+                it.next();
+                it.remove();
+            }
+        }
+        mCache.put(key, new CachedSite(siteData, System.currentTimeMillis() + mCacheTtl));
+    }
+    
+    /**
+     * starts lookup of upstream certificate for destination of siteData or joins
+     * lookup already running for same ip:port
+     * @return future with name and certificates of upstream server, result is null
+     * when lookup failed. Null if resolver is not running.
+     */
+    public Future<SiteData> resolveAsync(SiteData siteData){
+        if (mExecutor == null || siteData.tcpAddress == null){
+            return null;
+        }
+        final String key = siteData.tcpAddress + ":" + siteData.destPort;
+        final SiteData cached = getCached(key);
+        if (cached != null){
+            if (LOGD) Log.d(TAG, "Already have candidate for " + cached.name + ". No need to fetch " + key);
+            FutureTask<SiteData> done = new FutureTask<SiteData>(new Callable<SiteData>() {
+                @Override
+                public SiteData call() throws Exception {
+                    return cached;
                 }
-              }else{
-                  try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            });
+            done.run();
+            return done;
+        }
+        ResolveTask task = mPending.get(key);
+        if (task == null){
+            ResolveTask newTask = new ResolveTask(key, new UpstreamCertificateProbe(siteData.tcpAddress, siteData.hostName, siteData.destPort));
+            task = mPending.putIfAbsent(key, newTask);
+            if (task == null){
+                task = newTask;
+                if (LOGD) Log.d(TAG, "Add hostname to resolve :" + key + " source port " + siteData.sourcePort);
+                try{
+                    mExecutor.execute(newTask);
+                }catch (RejectedExecutionException e){
+                    newTask.cancel(false);
                 }
-              }
-          }
+            }
         }
+        return task;
+    }
+    
+    /**
+     * reads server name from ClientHello waiting on socket, data stays in socket
+     * for ssl handshake that follows
+     */
+    private String readServerName(Socket socket){
+        if (!mPeekAvailable){
+            return null;
+        }
+        byte[] buffer = new byte[SNI_PEEK_BUFFER];
+        long deadline = System.currentTimeMillis() + SNI_PEEK_TIMEOUT;
+        try{
+            // record header first, it tells how much to wait for
+            int read = peekData(socket, buffer, ClientHelloParser.RECORD_HEADER_LENGTH, SNI_PEEK_TIMEOUT);
+            int recordLength = ClientHelloParser.getRecordLength(buffer, read);
+            if (recordLength <= 0){
+                return null;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait > 0){
+                read = peekData(socket, buffer, Math.min(recordLength, buffer.length), (int) wait);
+            }
+            // on timeout part of hello may still hold server name
+            return ClientHelloParser.getServerName(buffer, read);
+        }catch (UnsatisfiedLinkError e){
+            Log.w(TAG, "Native peek not available, server name will be resolved from upstream");
+            mPeekAvailable = false;
+        }
+        return null;
     }
     
     private SiteData parseData(Socket socket, int _destPort){
@@ -164,28 +343,26 @@ public class NetworkHostNameResolver implements ITransparentProxyResolver{
             newSiteData.hostName = hostName;
             newSiteData.name = "";
         }else{
-            
-        }
-        return newSiteData;
-    }
     
-    private void getCertificateData(SiteData newSiteData){
-        if (!siteData.containsKey(newSiteData.sourcePort)){
-            if (LOGD) Log.d(TAG, "Add hostname to resolve :" + 
-                    newSiteData.tcpAddress + " source port " + 
-                    newSiteData.sourcePort + " uid " + 
-                    newSiteData.appUID);
-            unresolvedSiteData.add(newSiteData);
         }
+        return newSiteData;
     }
     
-    private void startListenerForEvents(){
+    private void startListenerForEvents(int threads){
         try{
-            siteData = new HashMap<Integer, SiteData>();
-            ipPortSiteData = new HashMap<String, SiteData>();
-            unresolvedSiteData = new ArrayList<SiteData>();
-            hostNameResolver = new HostNameResolver();
-            new Thread(hostNameResolver, "hostNameResolver").start();
+            if (threads < 1){
+                threads = 1;
+            }
+            final AtomicInteger threadCount = new AtomicInteger();
+            mExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hostNameResolver-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
             mListenerStarted = true;
         }catch (Exception ex){
             ex.printStackTrace();
@@ -193,15 +370,17 @@ public class NetworkHostNameResolver implements ITransparentProxyResolver{
     }
     
     private void stopListenerForEvents(){
-        if (hostNameResolver != null){
-            hostNameResolver.stop();
+        if (mExecutor != null){
+            mExecutor.shutdownNow();
+            mExecutor = null;
         }
+        mPending.clear();
+        mCache.clear();
         mListenerStarted = false;
     }
     
     @Override
     public SiteData getSecureHost(Socket socket, int _destPort, boolean _getCertificateData) {
-        SiteData secureHost = null;
         int port =  socket.getPort();
         int localport =  socket.getLocalPort();
         if (LOGD) Log.d(TAG, "Search site for port " + port + " local:" + localport);
@@ -209,37 +388,47 @@ public class NetworkHostNameResolver implements ITransparentProxyResolver{
         if (!_getCertificateData){
             return secureHostInit;
         }
-        getCertificateData(secureHostInit);
-        if (siteData.size() == 0 || !siteData.containsKey(port)){
-            try {
-                for(int i=0; i < 100; i++){
-                    Thread.sleep(100);
-                    if (siteData.containsKey(port)){
-                        secureHost = siteData.get(port);
-                        break;
-                    }
+        if (mSniEnabled){
+            String serverName = readServerName(socket);
+            if (serverName != null){
+                if (LOGD) Log.d(TAG, "Having server name from client hello for port " + port + " " + serverName);
+                secureHostInit.serverName = serverName;
+                secureHostInit.name = serverName;
+                if (secureHostInit.hostName == null){
+                    secureHostInit.hostName = serverName;
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                return secureHostInit;
             }
         }
-        if (secureHost == null && siteData.containsKey(port)){
-            secureHost = siteData.get(port);
-        }
-        if (secureHost == null && mHostName != null && mHostName.length() > 0){
-            secureHost =  new SiteData();
+        if (mHostName != null && mHostName.length() > 0){
+            SiteData secureHost =  new SiteData();
             secureHost.name = mHostName;
+            return secureHost;
+        }
+        SiteData secureHost = null;
+        Future<SiteData> future = resolveAsync(secureHostInit);
+        if (future != null){
+            try {
+                secureHost = future.get(mResolveTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (LOGD) Log.d(TAG, "Timeout resolving site for port " + port);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                if (LOGD) Log.d(TAG, "Error resolving site for port " + port + " " + e.getMessage());
+            }
         }
         if (secureHost == null){
             if (LOGD) Log.d(TAG, "Nothing found for site for port " + port);
             return secureHostInit;
-        }else{
-            if (LOGD) Log.d(TAG, "Having site for port " + port + " " 
-                    +  secureHost.name + " addr: " 
-                    + secureHost.tcpAddress 
-                    + " port " + secureHost.destPort);
         }
-        return secureHost;
+        if (LOGD) Log.d(TAG, "Having site for port " + port + " "
+                +  secureHost.name + " addr: "
+                + secureHost.tcpAddress
+                + " port " + secureHost.destPort);
+        secureHostInit.name = secureHost.name;
+        secureHostInit.certs = secureHost.certs;
+        return secureHostInit;
     }
     
 }
@@ -48,6 +48,11 @@ public class PreferenceUtils {
     public static String proxyTransparentKey = "preference_proxy_transparent";
     public static String proxyTransparentActiveKey = "preference_proxy_transparent_active";
     public static String proxyTransparentHostNameKey = "preference_proxy_transparent_hostname";
+    public static String proxyTransparentResolverThreads = "preference_proxy_transparent_resolver_threads";
+    public static String proxyTransparentResolverTimeout = "preference_proxy_transparent_resolver_timeout";
+    public static String proxyTransparentResolverCacheTtl = "preference_proxy_transparent_resolver_cache_ttl";
+    public static String proxyTransparentSniEnabled = "preference_proxy_transparent_sni_enabled";
+    public static String proxyClientResolverRefreshInterval = "preference_proxy_client_resolver_refresh_interval";
     public static String proxyCustomPluginKey = "preference_proxy_custom_plugins";
     public static String proxyCustomPluginKeyActiveSetting = "preference_proxy_custom_plugins_active_setting";
     public static String proxyPort = "preference_proxy_port";
@@ -55,6 +60,63 @@ public class PreferenceUtils {
     public static String proxyCaptureData = "preference_proxy_capture_data";
     public static String proxyFakeCerts = "preference_proxy_use_fake_certificates";
     public static String proxyStoreSslAsPcap = "preference_proxy_store_ssl_flow_as_pcap";
+    public static String proxyPcapRingSize = "preference_proxy_pcap_ring_size";
+    public static String proxyPcapRotateSize = "preference_proxy_pcap_rotate_size_mb";
+    public static String proxyPcapRotateAge = "preference_proxy_pcap_rotate_age_minutes";
+    public static String proxyPcapLivePort = "preference_proxy_pcap_live_port";
+    public static String proxyPcapLiveQueueSize = "preference_proxy_pcap_live_queue_size_kb";
+    public static String proxySslKeyLog = "preference_proxy_ssl_key_log";
+    public static String proxySslKeyLogPcapng = "preference_proxy_ssl_key_log_pcapng";
+    public static String pcapImportMemoryLimit = "preference_pcap_import_memory_limit_mb";
+    public static String pcapImportIdleTimeout = "preference_pcap_import_idle_timeout_seconds";
+    public static String pcapImportBodyLimit = "preference_pcap_import_body_limit_kb";
+    public static String pcapImportStreamWindow = "preference_pcap_import_stream_window_kb";
+    public static String pcapImportBatchSize = "preference_pcap_import_batch_size";
+    public static String scriptEnginePoolSize = "preference_script_engine_pool_size";
+    public static String scriptEngineMaxCount = "preference_script_engine_max_count";
+    public static String scriptEngineWaitTimeout = "preference_script_engine_wait_timeout_seconds";
+    public static String proxyConnectionPoolEnabled = "preference_proxy_connection_pool_enabled";
+    public static String proxyConnectionPoolSize = "preference_proxy_connection_pool_size";
+    public static String proxyConnectionQueueLimit = "preference_proxy_connection_queue_limit";
+    public static String proxyConnectionBlockWhenBusy = "preference_proxy_connection_block_when_busy";
+    public static String proxyNioTunnels = "preference_proxy_nio_tunnels";
+    public static String proxyNioTunnelThreads = "preference_proxy_nio_tunnel_threads";
+    public static String storeWriteBehind = "preference_store_write_behind";
+    public static String storeHeadersAsBlob = "preference_store_headers_as_blob";
+    public static String storeContentInPacks = "preference_store_content_in_packs";
+    public static String storeRetentionEnabled = "preference_store_retention_enabled";
+    public static String storeRetentionMaxAgeHours = "preference_store_retention_max_age_hours";
+    public static String storeRetentionMaxSizeMb = "preference_store_retention_max_size_mb";
+    public static String storeRetentionMaxConversations = "preference_store_retention_max_conversations";
+    public static String storeRetentionHostQuota = "preference_store_retention_host_quota";
+    public static String storeRetentionAppQuota = "preference_store_retention_app_quota";
+    public static String storeRetentionInterval = "preference_store_retention_interval_seconds";
+    public static String storeSearchIndex = "preference_store_search_index";
+    public static String storeSearchIndexBodyLimitKb = "preference_store_search_index_body_limit_kb";
+    public static String storeWriteQueueLimit = "preference_store_write_queue_limit";
+    public static String storeWriteBatchSize = "preference_store_write_batch_size";
+    public static String storeWriteFlushInterval = "preference_store_write_flush_interval";
+    public static String storeWriteBlockWhenFull = "preference_store_write_block_when_full";
+    public static String websocketWriteQueueLimit = "preference_websocket_write_queue_limit";
+    public static String websocketWriteBatchSize = "preference_websocket_write_batch_size";
+    public static String websocketWriteFlushInterval = "preference_websocket_write_flush_interval";
+    public static String websocketWriteDropOldest = "preference_websocket_write_drop_oldest";
+    public static String websocketSelectorIo = "preference_websocket_selector_io";
+    public static String websocketSelectorThreads = "preference_websocket_selector_threads";
+    public static String upstreamPoolEnabled = "preference_upstream_pool_enabled";
+    public static String upstreamPoolMaxPerHost = "preference_upstream_pool_max_per_host";
+    public static String upstreamPoolMaxIdle = "preference_upstream_pool_max_idle";
+    public static String upstreamPoolIdleTimeout = "preference_upstream_pool_idle_timeout";
+    public static String httpMaxHeaderCount = "preference_http_max_header_count";
+    public static String httpMaxHeadSize = "preference_http_max_head_size";
+    public static String captureLargeContentTypes = "preference_capture_large_content_types";
+    public static String captureLargeContentSize = "preference_capture_large_content_size";
+    public static String captureLargeContentMode = "preference_capture_large_content_mode";
+    public static String captureHeadSize = "preference_capture_head_size";
+    public static String proxyCertReuseKeys = "preference_proxy_cert_reuse_keys";
+    public static String proxyCertKeyAlgorithm = "preference_proxy_cert_key_algorithm";
+    public static String proxyCertKeySize = "preference_proxy_cert_key_size";
+    public static String proxyCertKeyPoolSize = "preference_proxy_cert_key_pool_size";
     public static String caFileNamePath = "preference_ca_cert_file_path";
     public static String caFilePassword = "preference_ca_cert_password";
     public static String dataCaptureWhiteListRegEx = "preference_data_capture_whitelist";
@@ -91,6 +153,9 @@ public class PreferenceUtils {
     public static String dnsProxyCustomUrlKey = "preference_dns_proxy_custom_url_key";
     // public static String dnsProxyCustomUrlActiveKey = "preference_dns_proxy_custom_url_key_active";
     
+    public static String dnsProxyCacheSizeKey = "preference_dns_proxy_cache_size_key";
+    public static String dnsProxyPrefetchKey = "preference_dns_proxy_prefetch_key";
+    
     public static String getProxyPort(Context context){
         SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
         return pref.getString(proxyPort, "8008");
@@ -0,0 +1,368 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+package org.sandroproxy.utils.network;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Entries of /proc/net/tcp6 and /proc/net/tcp indexed by ports. Files are read
+ * again only when lookup needs connections newer than last read and not more
+ * often than refresh interval, so connections accepted in a burst share one read.
+ */
+public class ProcNetTcpTable {
+    
+    private static boolean LOGD = false;
+    private static String TAG = ProcNetTcpTable.class.getSimpleName();
+    
+    private static int STATUS_TIME_WAIT = 0x06;
+    private static int READ_BUFFER_SIZE = 16 * 1024;
+    
+    public static class Entry {
+        private long localAddressHigh;
+        private long localAddressLow;
+        private long remoteAddressHigh;
+        private long remoteAddressLow;
+        private int addressLength;
+        public String type;
+        public int localPort;
+        public int remotePort;
+        public int status;
+        public int uid;
+        
+        /**
+         * @return address as hex string like it is in file
+         */
+        public String getLocalAddress(){
+            return toHex(localAddressHigh, localAddressLow, addressLength);
+        }
+        
+        public String getRemoteAddress(){
+            return toHex(remoteAddressHigh, remoteAddressLow, addressLength);
+        }
+    }
+    
+    private String[] mFiles;
+    private String[] mTypes;
+    private long mRefreshInterval;
+    private Object mReadLock = new Object();
+    private volatile Map<Integer, Entry> mByPorts = new HashMap<Integer, Entry>();
+    private volatile Map<Integer, Entry> mByLocalPort = new HashMap<Integer, Entry>();
+    private volatile long mReadTime = 0;
+    private AtomicLong mReads = new AtomicLong(0);
+    
+    public ProcNetTcpTable(long refreshInterval){
+        this(NetworkInfo.TCP_6_FILE_PATH, NetworkInfo.TCP_4_FILE_PATH, refreshInterval);
+    }
+    
+    public ProcNetTcpTable(String tcp6Path, String tcp4Path, long refreshInterval){
+        mFiles = new String[]{tcp6Path, tcp4Path};
+        mTypes = new String[]{NetworkInfo.TCP6_TYPE, NetworkInfo.TCP_TYPE};
+        mRefreshInterval = refreshInterval;
+    }
+    
+    /**
+     * @param localPort port of connection on its owner side
+     * @param remotePort port on other side, used to pick exact connection when 
+     * several share local port
+     * @param since time connection was known to exist, table read before that 
+     * time is not trusted for misses
+     * @return entry or null if no connection with local port exists
+     */
+    public Entry find(int localPort, int remotePort, long since){
+        Entry entry = mByPorts.get(portsKey(localPort, remotePort));
+        if (entry != null && System.currentTimeMillis() - mReadTime < mRefreshInterval){
+            return entry;
+        }
+        if (mReadTime > since){
+            return lookup(localPort, remotePort);
+        }
+        synchronized (mReadLock) {
+            // somebody else could read it while we were waiting
+            if (mReadTime <= since){
+                long wait = mReadTime + mRefreshInterval - System.currentTimeMillis();
+                if (wait > 0){
+                    try {
+                        Thread.sleep(wait);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                read();
+            }
+        }
+        return lookup(localPort, remotePort);
+    }
+    
+    /**
+     * @return number of times files were read
+     */
+    public long getReadCount(){
+        return mReads.get();
+    }
+    
+    private Entry lookup(int localPort, int remotePort){
+        Entry entry = mByPorts.get(portsKey(localPort, remotePort));
+        if (entry == null){
+            // transparent connections have original destination as remote port
+            entry = mByLocalPort.get(localPort);
+        }
+        return entry;
+    }
+    
+    private static Integer portsKey(int localPort, int remotePort){
+        return Integer.valueOf((localPort << 16) | remotePort);
+    }
+    
+    private void read(){
+        long readTime = System.currentTimeMillis();
+        Map<Integer, Entry> byPorts = new HashMap<Integer, Entry>(Math.max(16, mByPorts.size() * 2));
+        Map<Integer, Entry> byLocalPort = new HashMap<Integer, Entry>(Math.max(16, mByLocalPort.size() * 2));
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        for (int i = 0; i < mFiles.length; i++){
+            FileInputStream in = null;
+            try{
+                in = new FileInputStream(mFiles[i]);
+                boolean header = true;
+                int length = 0;
+                int got;
+                // lines are parsed from bytes, creating strings for each would cost more than parsing
+                while ((got = in.read(buffer, length, buffer.length - length)) > 0){
+                    length += got;
+                    int lineStart = 0;
+                    for (int pos = 0; pos < length; pos++){
+                        if (buffer[pos] != '\n'){
+                            continue;
+                        }
+                        if (header){
+                            header = false;
+                        }else{
+                            addEntry(byPorts, byLocalPort, parseLine(buffer, lineStart, pos, mTypes[i]));
+                        }
+                        lineStart = pos + 1;
+                    }
+                    if (lineStart == 0 && length == buffer.length){
+                        // line longer than buffer, not something we know how to parse
+                        length = 0;
+                        continue;
+                    }
+                    System.arraycopy(buffer, lineStart, buffer, 0, length - lineStart);
+                    length -= lineStart;
+                }
+                if (length > 0 && !header){
+                    addEntry(byPorts, byLocalPort, parseLine(buffer, 0, length, mTypes[i]));
+                }
+            }catch (IOException e){
+                if (LOGD) Log.d(TAG, "reading " + mFiles[i] + " failed " + e.getMessage());
+            }finally{
+                if (in != null){
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        }
+        mByPorts = byPorts;
+        mByLocalPort = byLocalPort;
+        mReadTime = readTime;
+        mReads.incrementAndGet();
+    }
+    
+    private static void addEntry(Map<Integer, Entry> byPorts, Map<Integer, Entry> byLocalPort, Entry entry){
+        // closed connections have no owner uid anymore
+        if (entry == null || entry.status == STATUS_TIME_WAIT){
+            return;
+        }
+        Integer key = portsKey(entry.localPort, entry.remotePort);
+        if (!byPorts.containsKey(key)){
+            byPorts.put(key, entry);
+        }
+        Integer localKey = Integer.valueOf(entry.localPort);
+        if (!byLocalPort.containsKey(localKey)){
+            byLocalPort.put(localKey, entry);
+        }
+    }
+    
+    public static Entry parseLine(String line, String type){
+        byte[] data = line.getBytes();
+        return parseLine(data, 0, data.length, type);
+    }
+    
+    /**
+     * parses line like
+     * "  12: 0100007F:1F90 0100007F:C350 01 00000000:00000000 00:00000000 00000000 10061 0 ..."
+     * @return entry or null if line is not valid
+     */
+    public static Entry parseLine(byte[] line, int start, int end, String type){
+        // slot number
+        int pos = skipSpaces(line, start, end);
+        pos = skipToken(line, pos, end);
+        // local address and port
+        pos = skipSpaces(line, pos, end);
+        int localStart = pos;
+        pos = skipToken(line, pos, end);
+        int localEnd = pos;
+        int localColon = lastColon(line, localStart, localEnd);
+        // remote address and port
+        pos = skipSpaces(line, pos, end);
+        int remoteStart = pos;
+        pos = skipToken(line, pos, end);
+        int remoteEnd = pos;
+        int remoteColon = lastColon(line, remoteStart, remoteEnd);
+        if (localColon <= localStart || remoteColon <= remoteStart){
+            return null;
+        }
+        // status
+        pos = skipSpaces(line, pos, end);
+        int statusStart = pos;
+        pos = skipToken(line, pos, end);
+        int statusEnd = pos;
+        // tx_queue:rx_queue, tr:tm->when, retrnsmt
+        for (int i = 0; i < 3; i++){
+            pos = skipSpaces(line, pos, end);
+            pos = skipToken(line, pos, end);
+        }
+        pos = skipSpaces(line, pos, end);
+        int uidStart = pos;
+        pos = skipToken(line, pos, end);
+        
+        int localPort = parseNumber(line, localColon + 1, localEnd, 16);
+        int remotePort = parseNumber(line, remoteColon + 1, remoteEnd, 16);
+        int status = parseNumber(line, statusStart, statusEnd, 16);
+        int uid = parseNumber(line, uidStart, pos, 10);
+        if (localPort < 0 || remotePort < 0 || status < 0 || uid < 0){
+            return null;
+        }
+        int addressLength = localColon - localStart;
+        if ((addressLength != 8 && addressLength != 32) || remoteColon - remoteStart != addressLength){
+            return null;
+        }
+        // addresses are kept as numbers so nothing of the line is kept
+        Entry entry = new Entry();
+        entry.type = type;
+        entry.addressLength = addressLength;
+        entry.localAddressHigh = parseHexLong(line, localStart, localColon - 16);
+        entry.localAddressLow = parseHexLong(line, Math.max(localStart, localColon - 16), localColon);
+        entry.remoteAddressHigh = parseHexLong(line, remoteStart, remoteColon - 16);
+        entry.remoteAddressLow = parseHexLong(line, Math.max(remoteStart, remoteColon - 16), remoteColon);
+        entry.localPort = localPort;
+        entry.remotePort = remotePort;
+        entry.status = status;
+        entry.uid = uid;
+        return entry;
+    }
+    
+    private static int skipSpaces(byte[] line, int pos, int end){
+        while (pos < end && line[pos] == ' '){
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int skipToken(byte[] line, int pos, int end){
+        while (pos < end && line[pos] != ' ' && line[pos] != '\r'){
+            pos++;
+        }
+        return pos;
+    }
+    
+    private static int lastColon(byte[] line, int start, int end){
+        for (int i = end - 1; i >= start; i--){
+            if (line[i] == ':'){
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static int digit(byte c, int radix){
+        int value;
+        if (c >= '0' && c <= '9'){
+            value = c - '0';
+        }else if (c >= 'A' && c <= 'F'){
+            value = c - 'A' + 10;
+        }else if (c >= 'a' && c <= 'f'){
+            value = c - 'a' + 10;
+        }else{
+            return -1;
+        }
+        return value < radix ? value : -1;
+    }
+    
+    /**
+     * @return parsed value or -1 if there are no digits or some are invalid
+     */
+    private static int parseNumber(byte[] line, int start, int end, int radix){
+        if (start >= end || end - start > (radix == 16 ? 8 : 9)){
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++){
+            int digit = digit(line[i], radix);
+            if (digit < 0){
+                return -1;
+            }
+            value = value * radix + digit;
+        }
+        return value < 0 ? -1 : value;
+    }
+    
+    /**
+     * @return bits of hex digits, 0 for empty range and invalid digits
+     */
+    private static long parseHexLong(byte[] line, int start, int end){
+        long value = 0;
+        for (int i = start; i < end; i++){
+            int digit = digit(line[i], 16);
+            value = (value << 4) | (digit < 0 ? 0 : digit);
+        }
+        return value;
+    }
+    
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    private static String toHex(long high, long low, int length){
+        char[] chars = new char[length];
+        for (int i = length - 1; i >= 0; i--){
+            int shift = (length - 1 - i) * 4;
+            long value = shift < 64 ? low >>> shift : high >>> (shift - 64);
+            chars[i] = HEX_DIGITS[(int) (value & 0xF)];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,159 @@
+/***********************************************************************
+ *
+ * This file is part of SandroProxy, 
+ * For details, please see http://code.google.com/p/sandrop/
+ *
+ * Copyright (c) 2012 supp.sandrob@gmail.com
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Getting Source
+ * ==============
+ *
+ * Source for this application is maintained at
+ * http://code.google.com/p/sandrop/
+ *
+ * Software is build from sources of WebScarab project
+ * For details, please see http://www.sourceforge.net/projects/owasp
+ *
+ */
+
+package org.sandroproxy.webscarab.store.sql;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Fills search index of store on own low priority thread. Conversations 
+ * are indexed in id order some time after they are finished, so proxy 
+ * threads never wait for text extraction. Indexing resumes from newest 
+ * indexed conversation after restart.
+ */
+public class SearchIndexer {
+    
+    private static final String LOGTAG = "SearchIndexer";
+    private static final boolean LOGD = false;
+    
+    private static final int INDEX_BATCH = 100;
+    private static final long BATCH_PAUSE = 20;
+    private static final long IDLE_PAUSE = 2000;
+    
+    // index segments are merged after this many new documents
+    private static final long OPTIMIZE_AFTER = 10000;
+    
+    private SqlLiteStore mStore;
+    private int mBodyLimit;
+    
+    private Thread mThread;
+    private volatile boolean mStopped;
+    
+    private long mLastIndexedId = -1;
+    private long mSinceOptimize;
+    private final AtomicLong mIndexedConversations = new AtomicLong();
+    
+    /**
+     * @param bodyLimit bytes of decoded body indexed per message
+     */
+    public SearchIndexer(SqlLiteStore store, int bodyLimit){
+        mStore = store;
+        mBodyLimit = bodyLimit;
+    }
+    
+    public synchronized void start(){
+        if (mThread != null){
+            return;
+        }
+        mStopped = false;
+        mThread = new Thread("SearchIndexer"){
+            @Override
+            public void run() {
+                while (!mStopped){
+                    try{
+                        int indexed = indexOnce();
+                        Thread.sleep(indexed > 0 ? BATCH_PAUSE : IDLE_PAUSE);
+                    }catch (InterruptedException ex){
+                        break;
+                    }catch (Exception ex){
+                        Log.e(LOGTAG, "Error indexing conversations " + ex.getMessage());
+                        try {
+                            Thread.sleep(IDLE_PAUSE);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+            }
+        };
+        mThread.setPriority(Thread.MIN_PRIORITY);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+    
+    public synchronized void stop(){
+        mStopped = true;
+        if (mThread != null){
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+    
+    /**
+     * indexes one batch of finished conversations
+     * @return number of conversations indexed
+     */
+    public synchronized int indexOnce(){
+        if (mLastIndexedId < 0){
+            mLastIndexedId = mStore.getSearchIndexedId();
+        }
+        List<Long> ids = mStore.indexConversations(mLastIndexedId, INDEX_BATCH, mBodyLimit);
+        int indexed = ids.size();
+        if (indexed > 0){
+            mLastIndexedId = ids.get(indexed - 1);
+        }
+        mIndexedConversations.addAndGet(indexed);
+        mSinceOptimize += indexed;
+        if (mSinceOptimize >= OPTIMIZE_AFTER || (indexed == 0 && mSinceOptimize > 0)){
+            if (LOGD) Log.d(LOGTAG, "Optimizing search index after " + mSinceOptimize + " documents");
+            mStore.optimizeSearchIndex();
+            mSinceOptimize = 0;
+        }
+        return indexed;
+    }
+    
+    /**
+     * drops index and starts again from first conversation
+     */
+    public synchronized void rebuild(){
+        mStore.clearSearchIndex();
+        mLastIndexedId = 0;
+        mSinceOptimize = 0;
+    }
+    
+    /**
+     * @return conversations indexed since start, counting ones indexed again after rebuild
+     */
+    public long getIndexedConversations(){
+        return mIndexedConversations.get();
+    }
+    
+    /**
+     * @return id of newest indexed conversation, -1 before first batch
+     */
+    public synchronized long getLastIndexedId(){
+        return mLastIndexedId;
+    }
+}
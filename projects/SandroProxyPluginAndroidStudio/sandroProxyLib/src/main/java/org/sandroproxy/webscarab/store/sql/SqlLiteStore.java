@@ -1,16 +1,31 @@
 package org.sandroproxy.webscarab.store.sql;
 
+import java.io.EOFException;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
+import org.sandrop.webscarab.model.BatchSiteModelStore;
 import org.sandrop.webscarab.model.ConnectionDescriptor;
 import org.sandrop.webscarab.model.ConversationID;
 import org.sandrop.webscarab.model.Cookie;
@@ -18,6 +33,7 @@ import org.sandrop.webscarab.model.FrameworkModel;
 import org.sandrop.webscarab.model.HttpUrl;
 import org.sandrop.webscarab.model.Message;
 import org.sandrop.webscarab.model.NamedValue;
+import org.sandrop.webscarab.model.Preferences;
 import org.sandrop.webscarab.model.Request;
 import org.sandrop.webscarab.model.Response;
 import org.sandrop.webscarab.model.SiteModelStore;
@@ -29,15 +45,17 @@ import org.sandrop.websockets.WebSocketChannelDTO;
 import org.sandrop.websockets.WebSocketMessage;
 import org.sandrop.websockets.WebSocketMessageDTO;
 import org.sandroproxy.utils.DNSResponseDto;
+import org.sandroproxy.utils.PreferenceUtils;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
+import android.preference.PreferenceManager;
 import android.util.Log;
 
-public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore{
+public class SqlLiteStore implements SiteModelStore, BatchSiteModelStore, FragmentsStore, SpiderStore{
     
     private Context mContext;
     
@@ -50,7 +68,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     
     protected static final boolean LOGD = false;
     
-    private static final int DATABASE_VERSION = 5;
+    private static final int DATABASE_VERSION = 11;
     
     private static SqlLiteStore mInstance = null;
     
@@ -58,10 +76,27 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     
     private static boolean mFirstTableCreation = false;
     
+    // headers are written as one blob on message row instead of row per header
+    private static boolean mHeadersAsBlob = true;
+    
+    private static final int HEADER_ROWS_CONVERT_BATCH = 256;
+    
+    // conversation that did not finish in this time is not written to any more
+    private static final long UNFINISHED_CONVERSATION_AGE = 60 * 60 * 1000;
+    
+    // bodies are kept once per digest in pack files instead of file per message
+    private static boolean mContentInPacks = true;
+    
+    private ContentStore mContentStore;
+    
+    private StoreRetention mRetention;
+    
+    private SearchIndexer mSearchIndexer;
+    
     private Map<String, IStoreEventListener> listOfEventListeners = new LinkedHashMap<String, IStoreEventListener>();
     
     public static final String mTableNames[] = {
-        "conversation", "request", "response", "content", "headers", "cookies", "urls", "websocket_channel", "websocket_message", "dns_responses"
+        "conversation", "request", "response", "content", "headers", "cookies", "urls", "websocket_channel", "websocket_message", "dns_responses", "content_blob", "conversation_fts"
     };
     
     // Table ids (they are index to mTableNames)
@@ -78,6 +113,10 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     
     public static final int TABLE_DNS_RESPONSES = 9;
     
+    public static final int TABLE_CONTENT_BLOB = 10;
+    
+    public static final int TABLE_SEARCH = 11;
+    
     // column id strings for "_id" which can be used by any table
     public static final String ID_COL = "_id";
     
@@ -131,6 +170,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     public static final String REQUEST_GZIPED = "gziped";
     public static final String REQUEST_CHUNKED = "chunked";
     public static final String REQUEST_DEFLATED = "deflate";
+    public static final String REQUEST_HEADERS_BLOB = "headers_blob";
     
     // response table
     public static final String RESPONSE_UNIQUE_ID = ID_COL;
@@ -144,6 +184,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     public static final String RESPONSE_GZIPED = "gziped";
     public static final String RESPONSE_CHUNKED = "chunked";
     public static final String RESPONSE_DEFLATED = "deflate";
+    public static final String RESPONSE_HEADERS_BLOB = "headers_blob";
     
     // headers table
     public static final String HEADERS_UNIQUE_ID = ID_COL;
@@ -165,6 +206,28 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     public static final String CONTENT_FILE_STORE = "file_store";
     public static final String CONTENT_DATA = "data";
     public static final String CONTENT_FILE_NAME = "file_name";
+    public static final String CONTENT_BLOB_ID = "blob_id";
+    public static final String CONTENT_TRUNCATED = "truncated";
+    
+    // content blob table, one row per distinct body in packs
+    public static final String CONTENT_BLOB_UNIQUE_ID = ID_COL;
+    public static final String CONTENT_BLOB_DIGEST = "digest";
+    public static final String CONTENT_BLOB_PACK = "pack";
+    public static final String CONTENT_BLOB_OFFSET = "pack_offset";
+    public static final String CONTENT_BLOB_LENGTH = "length";
+    public static final String CONTENT_BLOB_STORED_LENGTH = "stored_length";
+    public static final String CONTENT_BLOB_CODEC = "codec";
+    public static final String CONTENT_BLOB_REFS = "refs";
+    
+    // search index, one document per conversation with conversation id as docid
+    public static final String SEARCH_URL = "url";
+    public static final String SEARCH_HEADERS = "headers";
+    public static final String SEARCH_BODY = "body";
+    
+    // weight of match in url, headers and body column
+    private static final double[] SEARCH_WEIGHTS = new double[]{3, 2, 1};
+    
+    private static final int SEARCH_RANK_CANDIDATES = 5000;
     
     // socket channel
     public static final String SOCKET_CHANNEL_UNIQUE_ID = ID_COL;
@@ -203,6 +266,10 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     public static synchronized SqlLiteStore getInstance(Context context, String rootDirName) {
         if (mInstance == null) {
             mInstance = new SqlLiteStore(context, rootDirName);
+            mHeadersAsBlob = PreferenceManager.getDefaultSharedPreferences(context)
+                    .getBoolean(PreferenceUtils.storeHeadersAsBlob, true);
+            mContentInPacks = PreferenceManager.getDefaultSharedPreferences(context)
+                    .getBoolean(PreferenceUtils.storeContentInPacks, true);
             try {
                 mDatabase = context
                         .openOrCreateDatabase(DATABASE_FILE, 0, null);
@@ -222,16 +289,24 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 }
             }
             if (mDatabase != null && mDatabase.getVersion() != DATABASE_VERSION) {
-                mDatabase.beginTransaction();
-                try {
-                    upgradeDatabase();
-                    mDatabase.setTransactionSuccessful();
-                } finally {
-                    mDatabase.endTransaction();
-                }
+                upgradeDatabase();
             }
             if (mDatabase != null) {
                 mDatabase.setLockingEnabled(false);
+                mInstance.initConversationIds();
+                if (mHeadersAsBlob){
+                    mInstance.startHeaderRowsConversion();
+                }
+                if (PreferenceManager.getDefaultSharedPreferences(context)
+                        .getBoolean(PreferenceUtils.storeSearchIndex, true)){
+                    mInstance.mSearchIndexer = new SearchIndexer(mInstance, 
+                            Preferences.getPreferenceInt(context, PreferenceUtils.storeSearchIndexBodyLimitKb, 64) * 1024);
+                    mInstance.mSearchIndexer.start();
+                }
+                if (PreferenceManager.getDefaultSharedPreferences(context)
+                        .getBoolean(PreferenceUtils.storeRetentionEnabled, false)){
+                    mInstance.startRetention(context);
+                }
             }
         }
         if (rootDirName != null && rootDirName.length() > 0 &&  mRootDirName == null){
@@ -267,6 +342,11 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
 
     }
     
+    private static void upgradeHtmlTables4(){
+        mDatabase.execSQL("ALTER TABLE " + mTableNames[TABLE_CONTENT_ID]
+                + " ADD COLUMN " + CONTENT_TRUNCATED + " INTEGER DEFAULT 0;");
+    }
+    
     private static void upgradeHtmlTables2(){
         mDatabase.execSQL("ALTER TABLE " + mTableNames[TABLE_REQUEST_ID]
                 + " ADD COLUMN " + REQUEST_DEFLATED + " INTEGER;");
@@ -300,54 +380,6 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 + CONVERSATION_RESP_APPLICATION_TYPE + " TEXT"
                 + ");");
         
-//        
-//        // add index for timestamp
-//        String conversation_index1 = "CREATE INDEX idx_1_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_TS_START 
-//                + ");";
-//        mDatabase.execSQL(conversation_index1);
-//        
-//        String conversation_index2 = "CREATE INDEX idx_2_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_TS_END 
-//                + ");";
-//        mDatabase.execSQL(conversation_index2);
-//        
-//        String conversation_index3 = "CREATE INDEX idx_3_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_RESP_STATUS_CODE 
-//                + ");";
-//        mDatabase.execSQL(conversation_index3);
-//        
-//        // schema index
-//        String conversation_index4 = "CREATE INDEX idx_4_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_REQ_SCHEMA
-//                + ");";
-//        mDatabase.execSQL(conversation_index4);
-//        
-//        // TODO client address index
-//        String conversation_index5 = "CREATE INDEX idx_5_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_CLIENT_ADDRESS
-//                + ");";
-//        mDatabase.execSQL(conversation_index5);
-//        
-//        // status index
-//        String conversation_index6 = "CREATE INDEX idx_6_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_STATUS
-//                + ");";
-//        mDatabase.execSQL(conversation_index6);
-//        
-//        // req host index
-//        String conversation_index7 = "CREATE INDEX idx_7_" + mTableNames[TABLE_COVERSATION_ID]  + 
-//                " ON " + mTableNames[TABLE_COVERSATION_ID] + "(" 
-//                + CONVERSATION_REQ_HOST
-//                + ");";
-//        mDatabase.execSQL(conversation_index7);
-        
         // request
         mDatabase.execSQL("CREATE TABLE " + mTableNames[TABLE_REQUEST_ID]
                 + " (" + REQUEST_UNIQUE_ID + " INTEGER PRIMARY KEY, "
@@ -364,28 +396,6 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 + REQUEST_CHUNKED  + " INTEGER, "
                 + REQUEST_GZIPED  + " INTEGER"
                 + ");");
-//        // add index
-//        String request_index1 = "CREATE INDEX idx_1_" + mTableNames[TABLE_REQUEST_ID]  + 
-//                " ON " + mTableNames[TABLE_REQUEST_ID] + "(" 
-//                + REQUEST_HOST 
-//                + ");";
-//        mDatabase.execSQL(request_index1);
-//        String request_index2 = "CREATE INDEX idx_2_" + mTableNames[TABLE_REQUEST_ID]  + 
-//                " ON " + mTableNames[TABLE_REQUEST_ID] + "(" 
-//                + REQUEST_CONTENT_TYPE 
-//                + ");";
-//        mDatabase.execSQL(request_index2);
-//        String request_index3 = "CREATE INDEX idx_3_" + mTableNames[TABLE_REQUEST_ID]  + 
-//                " ON " + mTableNames[TABLE_REQUEST_ID] + "(" 
-//                + REQUEST_TS 
-//                + ");";
-//        mDatabase.execSQL(request_index3);
-//        String request_index4 = "CREATE INDEX idx_4_" + mTableNames[TABLE_REQUEST_ID]  + 
-//                " ON " + mTableNames[TABLE_REQUEST_ID] + "(" 
-//                + REQUEST_CONTENT_TYPE
-//                + ");";
-//        mDatabase.execSQL(request_index4);
-        
         
         // response
         mDatabase.execSQL("CREATE TABLE " + mTableNames[TABLE_RESPONSE_ID]
@@ -401,23 +411,6 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 + RESPONSE_CONTENT_LENGTH  + " INTEGER"
                 + ");");
         
-//        // add index
-//        String response_index1 = "CREATE INDEX idx_1_" + mTableNames[TABLE_RESPONSE_ID]  + 
-//                " ON " + mTableNames[TABLE_RESPONSE_ID] + "(" 
-//                + RESPONSE_CONTENT_TYPE
-//                + ");";
-//        mDatabase.execSQL(response_index1);
-//        String response_index2 = "CREATE INDEX idx_2_" + mTableNames[TABLE_RESPONSE_ID]  + 
-//                " ON " + mTableNames[TABLE_RESPONSE_ID] + "(" 
-//                + RESPONSE_STATUS_CODE
-//                + ");";
-//        mDatabase.execSQL(response_index2);
-//        String response_index3 = "CREATE INDEX idx_3_" + mTableNames[TABLE_RESPONSE_ID]  + 
-//                " ON " + mTableNames[TABLE_RESPONSE_ID] + "(" 
-//                + RESPONSE_TS
-//                + ");";
-//        mDatabase.execSQL(response_index3);
-
         // headers
         mDatabase.execSQL("CREATE TABLE " + mTableNames[TABLE_HEADERS_ID]
                 + " (" + HEADERS_UNIQUE_ID + " INTEGER PRIMARY KEY, "
@@ -426,27 +419,6 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 + HEADERS_NAME  + " TEXT, " 
                 + HEADERS_VALUE  + " TEXT"
                 + ");");
-//        // add index
-//        String headers_index1 = "CREATE INDEX idx_1_" + mTableNames[TABLE_HEADERS_ID]  + 
-//                " ON " + mTableNames[TABLE_HEADERS_ID] + "(" 
-//                + HEADERS_PARENT_ID
-//                + ", "
-//                + HEADERS_PARENT_TYPE
-//                + ");";
-//        mDatabase.execSQL(headers_index1);
-//        String headers_index2 = "CREATE INDEX idx_2_" + mTableNames[TABLE_HEADERS_ID]  + 
-//                " ON " + mTableNames[TABLE_HEADERS_ID] + "(" 
-//                + HEADERS_NAME
-//                + ", "
-//                + HEADERS_VALUE
-//                + ");";
-//        mDatabase.execSQL(headers_index2);
-//        String headers_index3 = "CREATE INDEX idx_3_" + mTableNames[TABLE_HEADERS_ID]  + 
-//                " ON " + mTableNames[TABLE_HEADERS_ID] + "(" 
-//                + HEADERS_NAME
-//                + ");";
-//        mDatabase.execSQL(headers_index3);
-
         
         // content
         mDatabase.execSQL("CREATE TABLE " + mTableNames[TABLE_CONTENT_ID]
@@ -459,15 +431,6 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 + CONTENT_FILE_NAME  + " INTEGER, "
                 + CONTENT_DATA  + " BLOB DEFAULT NULL"
                 + ");");
-//        // add index
-//        String content_index1 = "CREATE INDEX idx_1_" + mTableNames[TABLE_CONTENT_ID]  + 
-//                " ON " + mTableNames[TABLE_CONTENT_ID] + "(" 
-//                + CONTENT_PARENT_ID
-//                + ", "
-//                + CONTENT_PARENT_TYPE
-//                + ");";
-//        mDatabase.execSQL(content_index1);
-
     }
     
     private static void createWebSocketsTables(){
@@ -497,42 +460,158 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 + ");");
     }
     
-    private static void upgradeDatabase() {
-        int oldVersion = mDatabase.getVersion();
-        if (oldVersion < 2) {
-            Log.i(LOGTAG, "Upgrading database from version "
-                    + oldVersion + " to "
-                    + DATABASE_VERSION);
-            createWebSocketsTables();
-        }
-        if (oldVersion < 1){
-        	Log.i(LOGTAG, "Upgrading database from version "
-                    + oldVersion + " to "
-                    + DATABASE_VERSION);
+    private static void upgradeHtmlTables3(){
+        mDatabase.execSQL("ALTER TABLE " + mTableNames[TABLE_REQUEST_ID]
+                + " ADD COLUMN " + REQUEST_HEADERS_BLOB + " BLOB;");
+        mDatabase.execSQL("ALTER TABLE " + mTableNames[TABLE_RESPONSE_ID]
+                + " ADD COLUMN " + RESPONSE_HEADERS_BLOB + " BLOB;");
+        // content type and length are projected from headers, response 
+        // content type is already indexed on conversation
+        createIndex(TABLE_REQUEST_ID, "content_type", REQUEST_CONTENT_TYPE);
+    }
+    
+    private static void createContentBlobTable(){
+        mDatabase.execSQL("CREATE TABLE " + mTableNames[TABLE_CONTENT_BLOB]
+                + " (" + CONTENT_BLOB_UNIQUE_ID + " INTEGER PRIMARY KEY, "
+                + CONTENT_BLOB_DIGEST + " TEXT NOT NULL, "
+                + CONTENT_BLOB_PACK + " INTEGER, "
+                + CONTENT_BLOB_OFFSET + " INTEGER, "
+                + CONTENT_BLOB_LENGTH + " INTEGER, "
+                + CONTENT_BLOB_STORED_LENGTH + " INTEGER, "
+                + CONTENT_BLOB_CODEC + " INTEGER, "
+                + CONTENT_BLOB_REFS + " INTEGER"
+                + ");");
+        mDatabase.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS idx_" + mTableNames[TABLE_CONTENT_BLOB] + "_digest" 
+                + " ON " + mTableNames[TABLE_CONTENT_BLOB] + " (" + CONTENT_BLOB_DIGEST + ");");
+        mDatabase.execSQL("ALTER TABLE " + mTableNames[TABLE_CONTENT_ID]
+                + " ADD COLUMN " + CONTENT_BLOB_ID + " INTEGER;");
+    }
+    
+    /**
+     * quotas count conversations per host and app, pack compaction walks 
+     * bodies of one pack in file order
+     */
+    private static void createRetentionIndexes(){
+        createIndex(TABLE_COVERSATION_ID, "host", CONVERSATION_REQ_HOST);
+        createIndex(TABLE_COVERSATION_ID, "app", CONVERSATION_CLIENT_APP_NAME);
+        createIndex(TABLE_CONTENT_BLOB, "pack", CONTENT_BLOB_PACK + ", " + CONTENT_BLOB_OFFSET);
+    }
+    
+    private static void createSearchTable(){
+        // fts3 is in sqlite of all supported android versions
+        mDatabase.execSQL("CREATE VIRTUAL TABLE " + mTableNames[TABLE_SEARCH] + " USING fts3("
+                + SEARCH_URL + ", " + SEARCH_HEADERS + ", " + SEARCH_BODY + ");");
+    }
+    
+    /**
+     * indexes for lookups done by read api, conversation and message tables 
+     * are filtered on time and parents, headers and content always by parent
+     */
+    private static void createQueryIndexes(){
+        createIndex(TABLE_COVERSATION_ID, "ts_end", CONVERSATION_TS_END);
+        createIndex(TABLE_COVERSATION_ID, "status_code", CONVERSATION_RESP_STATUS_CODE + ", " + CONVERSATION_TS_END);
+        createIndex(TABLE_COVERSATION_ID, "content_type", CONVERSATION_RESP_CONTENT_TYPE + ", " + CONVERSATION_TS_END);
+        createIndex(TABLE_COVERSATION_ID, "request", CONVERSATION_REQUEST_ID);
+        // rows of one parent are written together so they share pages, 
+        // covering index would double size of headers for no gain
+        createIndex(TABLE_HEADERS_ID, "parent", HEADERS_PARENT_ID + ", " + HEADERS_PARENT_TYPE);
+        createIndex(TABLE_CONTENT_ID, "parent", CONTENT_PARENT_ID + ", " + CONTENT_PARENT_TYPE);
+        createIndex(TABLE_SOCKET_CHANNEL, "id", SOCKET_CHANNEL_ID);
+        createIndex(TABLE_SOCKET_CHANNEL, "conv", SOCKET_CHANNEL_CONV_ID);
+        createIndex(TABLE_SOCKET_CHANNEL, "start", SOCKET_CHANNEL_START_TIMESTAMP);
+        createIndex(TABLE_SOCKET_MESSAGE, "channel", SOCKET_MSG_CHANNEL_ID + ", " + SOCKET_MSG_ID);
+        createIndex(TABLE_SOCKET_MESSAGE, "handshake", SOCKET_MSG_HANDSHAKE_ID + ", " + SOCKET_MSG_ID);
+        createIndex(TABLE_SOCKET_MESSAGE, "ts", SOCKET_MSG_TIMESTAMP);
+        createIndex(TABLE_DNS_RESPONSES, "request", DNS_RESPONSE_REQUEST);
+    }
+    
+    private static void createIndex(int table, String name, String columns){
+        mDatabase.execSQL("CREATE INDEX IF NOT EXISTS idx_" + mTableNames[table] + "_" + name 
+                + " ON " + mTableNames[table] + " (" + columns + ");");
+    }
+    
+    /**
+     * brings schema from version - 1 to version, existing rows are kept
+     */
+    private static void migrate(int version){
+        switch (version) {
+        case 1:
             createHtmlTables();
             mFirstTableCreation = true;
-        }
-        if (oldVersion < 3){
-        	Log.i(LOGTAG, "Upgrading database from version "
-                    + oldVersion + " to "
-                    + DATABASE_VERSION);
+            break;
+        case 2:
+            createWebSocketsTables();
+            break;
+        case 3:
             upgradeHtmlTables1();
-        }
-        if (oldVersion < 4){
-            Log.i(LOGTAG, "Upgrading database from version "
-                    + oldVersion + " to "
-                    + DATABASE_VERSION);
+            break;
+        case 4:
             createDnsTable();
-        }
-        if (oldVersion < 5){
-            Log.i(LOGTAG, "Upgrading database from version "
-                    + oldVersion + " to "
-                    + DATABASE_VERSION);
+            break;
+        case 5:
             upgradeHtmlTables2();
+            break;
+        case 6:
+            createQueryIndexes();
+            break;
+        case 7:
+            upgradeHtmlTables3();
+            break;
+        case 8:
+            createContentBlobTable();
+            break;
+        case 9:
+            createRetentionIndexes();
+            break;
+        case 10:
+            createSearchTable();
+            break;
+        case 11:
+            upgradeHtmlTables4();
+            break;
+        default:
+            throw new IllegalStateException("No migration to database version " + version);
+        }
+    }
+    
+    /**
+     * Runs migrations one version at a time, each in own transaction that 
+     * also stores reached version. Interrupted upgrade continues on next 
+     * start from last finished step.
+     */
+    private static void upgradeDatabase() {
+        int oldVersion = mDatabase.getVersion();
+        Log.i(LOGTAG, "Upgrading database from version "
+                + oldVersion + " to "
+                + DATABASE_VERSION);
+        for (int version = oldVersion + 1; version <= DATABASE_VERSION; version++) {
+            long start = System.currentTimeMillis();
+            mDatabase.beginTransaction();
+            try {
+                migrate(version);
+                mDatabase.setVersion(version);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            if (LOGD) Log.d(LOGTAG, "Migrated to version " + version + " in " + (System.currentTimeMillis() - start) + " ms");
         }
-        mDatabase.setVersion(DATABASE_VERSION);
     }
 
+    private void initConversationIds(){
+        Cursor cs = null;
+        try{
+            cs = mDatabase.rawQuery("SELECT MAX(" + CONVERSATION_UNIQUE_ID + ") FROM " + mTableNames[TABLE_COVERSATION_ID], null);
+            if (cs.moveToFirst()){
+                mLastConversationId.set(cs.getLong(0));
+            }
+        }catch (Exception ex){
+            Log.e(LOGTAG, "Error reading last conversation id " + ex.getMessage());
+        } finally{
+            if (cs != null) cs.close();
+        }
+    }
+    
     SqlLiteStore(Context context, String rootDirName){
         mContext = context;
         mRootDirName = rootDirName;
@@ -552,6 +631,10 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     }
     
     private void eventNewConversation(long conversationId, int type, long timestamp){
+        if (inBatch()){
+            mBatchEvents.add(new BatchEvent(true, conversationId, type, false, timestamp));
+            return;
+        }
         if (listOfEventListeners != null){
             for (Iterator<IStoreEventListener> iterator = listOfEventListeners.values().iterator(); iterator.hasNext();) {
                 IStoreEventListener storeEventListener = (IStoreEventListener) iterator.next();
@@ -561,6 +644,10 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     }
     
     private void eventUpdateConversation(long conversationId,  int status, boolean haveProtocolSwitch, long timestamp){
+        if (inBatch()){
+            mBatchEvents.add(new BatchEvent(false, conversationId, status, haveProtocolSwitch, timestamp));
+            return;
+        }
         if (listOfEventListeners != null){
             for (Iterator<IStoreEventListener> iterator = listOfEventListeners.values().iterator(); iterator.hasNext();) {
                 IStoreEventListener storeEventListener = (IStoreEventListener) iterator.next();
@@ -933,13 +1020,134 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     }
     
     public void purgeChannel(Long channelId) throws SQLException {
-        // TODO 
-        if (LOGD) Log.d(LOGTAG, "purge websocket channels");
+        if (LOGD) Log.d(LOGTAG, "purge websocket channel " + channelId);
+        String[] args = new String[] {String.valueOf(channelId)};
+        synchronized (this) {
+            mDatabase.beginTransaction();
+            try {
+                mDatabase.delete(mTableNames[TABLE_SOCKET_MESSAGE], SOCKET_MSG_CHANNEL_ID + " = ?", args);
+                mDatabase.delete(mTableNames[TABLE_SOCKET_CHANNEL], SOCKET_CHANNEL_ID + " = ?", args);
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+            channelsIds.remove(channelId);
+        }
     }
     
     private final Object mConversationLock = new Object();
     
+    private final AtomicLong mLastConversationId = new AtomicLong(0);
+    
+    // batch is bound to thread that started it, other threads write as before
+    // conversation and websocket writers batch from their own threads, so one batch at a time
+    private final ReentrantLock mBatchLock = new ReentrantLock();
+    private Thread mBatchThread = null;
+    private boolean mBatchFailed = false;
+    private List<BatchEvent> mBatchEvents = new ArrayList<BatchEvent>();
+    
+    private static class BatchEvent{
+        boolean newConversation;
+        long conversationId;
+        int typeOrStatus;
+        boolean haveProtocolSwitch;
+        long timestamp;
+        
+        BatchEvent(boolean newConversation, long conversationId, int typeOrStatus, boolean haveProtocolSwitch, long timestamp){
+            this.newConversation = newConversation;
+            this.conversationId = conversationId;
+            this.typeOrStatus = typeOrStatus;
+            this.haveProtocolSwitch = haveProtocolSwitch;
+            this.timestamp = timestamp;
+        }
+    }
+    
+    private boolean inBatch(){
+        return mBatchThread == Thread.currentThread();
+    }
+    
+    private void markBatchFailed(){
+        if (inBatch()){
+            mBatchFailed = true;
+        }
+    }
+    
+    @Override
+    public void beginBatch(){
+        mBatchLock.lock();
+        try{
+            mDatabase.beginTransaction();
+        } catch (RuntimeException ex){
+            mBatchLock.unlock();
+            throw ex;
+        }
+        mBatchThread = Thread.currentThread();
+        mBatchFailed = false;
+        mBatchEvents.clear();
+    }
+    
+    @Override
+    public boolean endBatch(){
+        if (!inBatch()){
+            return false;
+        }
+        boolean committed = !mBatchFailed;
+        List<BatchEvent> events = new ArrayList<BatchEvent>(mBatchEvents);
+        mBatchThread = null;
+        mBatchEvents.clear();
+        try{
+            if (committed){
+                mDatabase.setTransactionSuccessful();
+            }
+        } finally {
+            mDatabase.endTransaction();
+            mBatchLock.unlock();
+        }
+        // listeners are told only about data that is really in database
+        if (committed){
+            for (BatchEvent event : events) {
+                if (event.newConversation){
+                    eventNewConversation(event.conversationId, event.typeOrStatus, event.timestamp);
+                }else{
+                    eventUpdateConversation(event.conversationId, event.typeOrStatus, event.haveProtocolSwitch, event.timestamp);
+                }
+            }
+        }
+        if (LOGD) Log.d(LOGTAG, "batch with " + events.size() + " events committed:" + committed);
+        return committed;
+    }
+    
+    @Override
+    public long reserveConversationId(){
+        return mLastConversationId.incrementAndGet();
+    }
+    
+    /**
+     * puts headers blob and columns projected from headers to message row
+     */
+    private void putHeaders(ContentValues cv, Message message, int headersParentType){
+        boolean request = headersParentType == HEADERS_PARENT_TYPE_REQUEST;
+        if (mHeadersAsBlob){
+            cv.put(request ? REQUEST_HEADERS_BLOB : RESPONSE_HEADERS_BLOB, HeaderBlock.encode(message.getHeaders()));
+        }
+        String contentType = message.getHeader("Content-Type");
+        if (contentType != null){
+            cv.put(request ? REQUEST_CONTENT_TYPE : RESPONSE_CONTENT_TYPE, contentType);
+        }
+        String contentLength = message.getHeader("Content-Length");
+        if (contentLength != null){
+            try{
+                cv.put(request ? REQUEST_CONTENT_LENGTH : RESPONSE_CONTENT_LENGTH, Long.valueOf(contentLength.trim()));
+            }catch (NumberFormatException ex){
+                // left empty
+            }
+        }
+    }
+    
     private void addHeaders(long id, Message message, int headersParentType){
+        if (mHeadersAsBlob){
+            return;
+        }
         NamedValue[] requestHeaders =  message.getHeaders();
         if (requestHeaders != null && requestHeaders.length > 0){
             for (NamedValue namedValue : requestHeaders) {
@@ -948,12 +1156,650 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 reqHeadersCV.put(HEADERS_PARENT_ID, id);
                 reqHeadersCV.put(HEADERS_NAME, namedValue.getName());
                 reqHeadersCV.put(HEADERS_VALUE, namedValue.getValue());
-                long headerId = mDatabase.insertOrThrow(mTableNames[TABLE_HEADERS_ID], 
+                mDatabase.insertOrThrow(mTableNames[TABLE_HEADERS_ID], 
                         null, reqHeadersCV);
             }
         }
     }
     
+    private void startHeaderRowsConversion(){
+        Thread converter = new Thread("HeaderRowsConverter"){
+            @Override
+            public void run() {
+                long start = System.currentTimeMillis();
+                int converted = 0;
+                try{
+                    int count;
+                    while ((count = convertHeaderRows(HEADER_ROWS_CONVERT_BATCH)) > 0){
+                        converted += count;
+                        // leave database to proxy writers between batches
+                        Thread.sleep(20);
+                    }
+                }catch (Exception ex){
+                    Log.e(LOGTAG, "Error converting header rows " + ex.getMessage());
+                }
+                if (converted > 0){
+                    Log.i(LOGTAG, "Converted headers of " + converted + " messages in " + (System.currentTimeMillis() - start) + " ms");
+                }
+            }
+        };
+        converter.setDaemon(true);
+        converter.setPriority(Thread.MIN_PRIORITY);
+        converter.start();
+    }
+    
+    /**
+     * Moves headers of up to batchSize messages written in row per header 
+     * layout into headers blob. Blob is set and rows removed in same 
+     * transaction so readers see either one or the other.
+     * @return number of converted messages, 0 when nothing is left
+     */
+    public int convertHeaderRows(int batchSize){
+        mBatchLock.lock();
+        try{
+            mDatabase.beginTransaction();
+            try{
+                List<long[]> parents = new ArrayList<long[]>(batchSize);
+                Cursor cs = null;
+                try{
+                    // answered from parent index, converted rows are gone so it starts at the front again
+                    String[] columns = new String[] {HEADERS_PARENT_ID, HEADERS_PARENT_TYPE};
+                    String groupBy = HEADERS_PARENT_ID + ", " + HEADERS_PARENT_TYPE;
+                    cs = mDatabase.query(mTableNames[TABLE_HEADERS_ID], columns, null, null, groupBy, null, null, String.valueOf(batchSize));
+                    while (cs.moveToNext()){
+                        parents.add(new long[]{cs.getLong(0), cs.getLong(1)});
+                    }
+                } finally{
+                    if (cs != null) cs.close();
+                }
+                String where = HEADERS_PARENT_ID + " = ? AND " + HEADERS_PARENT_TYPE + " = ?";
+                for (long[] parent : parents) {
+                    long parentId = parent[0];
+                    int parentType = (int) parent[1];
+                    boolean request = parentType == HEADERS_PARENT_TYPE_REQUEST;
+                    ContentValues cv = new ContentValues();
+                    cv.put(request ? REQUEST_HEADERS_BLOB : RESPONSE_HEADERS_BLOB, HeaderBlock.encode(getHeaderRows(parentId, parentType)));
+                    mDatabase.update(mTableNames[request ? TABLE_REQUEST_ID : TABLE_RESPONSE_ID], cv, ID_COL + " = ?", new String[] {String.valueOf(parentId)});
+                    mDatabase.delete(mTableNames[TABLE_HEADERS_ID], where, new String[] {String.valueOf(parentId), String.valueOf(parentType)});
+                }
+                mDatabase.setTransactionSuccessful();
+                return parents.size();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } finally {
+            mBatchLock.unlock();
+        }
+    }
+    
+    /**
+     * @return ids of oldest conversations that are finished, or were left 
+     * unfinished long ago, and were started before given time
+     * @param column conversation column to match, null for all conversations
+     */
+    public List<Long> getOldestConversationIds(String column, String value, long startedBefore, int limit){
+        List<Long> ids = new ArrayList<Long>();
+        Cursor cs = null;
+        try{
+            String where = "(" + CONVERSATION_STATUS + " IN (" + FrameworkModel.CONVERSATION_STATUS_RESP_RECEIVED 
+                    + ", " + FrameworkModel.CONVERSATION_STATUS_ABORTED + ") OR " + CONVERSATION_TS_START + " < ?)";
+            String[] args = new String[] {String.valueOf(System.currentTimeMillis() - UNFINISHED_CONVERSATION_AGE)};
+            if (column != null){
+                where = where + " AND " + column + " = ?";
+                args = new String[] {args[0], value};
+            }
+            String[] columns = new String[] {CONVERSATION_UNIQUE_ID, CONVERSATION_TS_START};
+            cs = mDatabase.query(mTableNames[TABLE_COVERSATION_ID], columns, where, args, null, null, CONVERSATION_UNIQUE_ID, String.valueOf(limit));
+            while (cs.moveToNext()){
+                // ids are handed out in time order, first newer one ends the run
+                if (!cs.isNull(1) && cs.getLong(1) >= startedBefore){
+                    break;
+                }
+                ids.add(cs.getLong(0));
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        return ids;
+    }
+    
+    /**
+     * @return start time of oldest conversation, -1 if there is none
+     */
+    public long getOldestConversationStart(){
+        return longForQuery("SELECT " + CONVERSATION_TS_START + " FROM " + mTableNames[TABLE_COVERSATION_ID] 
+                + " ORDER BY " + CONVERSATION_UNIQUE_ID + " LIMIT 1", -1);
+    }
+    
+    public long getConversationCount(){
+        return longForQuery("SELECT COUNT(*) FROM " + mTableNames[TABLE_COVERSATION_ID], 0);
+    }
+    
+    /**
+     * @param column conversation column to group by, as host or app name
+     * @return values with more than quota conversations and number of conversations over it
+     */
+    public Map<String, Long> getConversationGroupsOver(String column, int quota){
+        Map<String, Long> groups = new HashMap<String, Long>();
+        Cursor cs = null;
+        try{
+            cs = mDatabase.rawQuery("SELECT " + column + ", COUNT(*) FROM " + mTableNames[TABLE_COVERSATION_ID]
+                    + " WHERE " + column + " IS NOT NULL GROUP BY " + column + " HAVING COUNT(*) > " + quota, null);
+            while (cs.moveToNext()){
+                groups.put(cs.getString(0), cs.getLong(1) - quota);
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        return groups;
+    }
+    
+    /**
+     * @return bytes used by database pages that hold data and by bodies in 
+     * packs that are still referenced
+     */
+    public long getStoreUsedBytes(){
+        long pageSize = longForQuery("PRAGMA page_size", 0);
+        long usedPages = longForQuery("PRAGMA page_count", 0) - longForQuery("PRAGMA freelist_count", 0);
+        long content = longForQuery("SELECT SUM(" + CONTENT_BLOB_STORED_LENGTH + ") FROM " + mTableNames[TABLE_CONTENT_BLOB], 0);
+        return pageSize * usedPages + content;
+    }
+    
+    private long longForQuery(String sql, long defaultValue){
+        Cursor cs = null;
+        try{
+            cs = mDatabase.rawQuery(sql, null);
+            if (cs.moveToFirst() && !cs.isNull(0)){
+                return cs.getLong(0);
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        return defaultValue;
+    }
+    
+    private static String inList(Collection<Long> ids){
+        StringBuilder sb = new StringBuilder("(");
+        for (Long id : ids) {
+            if (sb.length() > 1){
+                sb.append(',');
+            }
+            sb.append(id.longValue());
+        }
+        return sb.append(')').toString();
+    }
+    
+    private static String parentsWhere(String idColumn, String typeColumn, List<Long> requestIds, List<Long> responseIds){
+        return "(" + typeColumn + " = " + HEADERS_PARENT_TYPE_REQUEST + " AND " + idColumn + " IN " + inList(requestIds) 
+                + ") OR (" + typeColumn + " = " + HEADERS_PARENT_TYPE_RESPONSE + " AND " + idColumn + " IN " + inList(responseIds) + ")";
+    }
+    
+    /**
+     * Deletes conversations with their messages, headers, content and 
+     * websocket channels in one transaction. Bodies shared with other 
+     * conversations stay in packs until their last reference is gone.
+     * @return bytes of content that is no longer referenced
+     */
+    public long evictConversations(List<Long> conversationIds){
+        if (conversationIds.isEmpty()){
+            return 0;
+        }
+        String conversations = inList(conversationIds);
+        List<String> files = new ArrayList<String>();
+        long released = 0;
+        mBatchLock.lock();
+        try{
+            mDatabase.beginTransaction();
+            Cursor cs = null;
+            try {
+                List<Long> requestIds = new ArrayList<Long>();
+                List<Long> responseIds = new ArrayList<Long>();
+                cs = mDatabase.rawQuery("SELECT " + CONVERSATION_REQUEST_ID + ", " + CONVERSATION_REQUEST_CHANGED_ID + ", " + CONVERSATION_RESPONSE_ID
+                        + " FROM " + mTableNames[TABLE_COVERSATION_ID] + " WHERE " + CONVERSATION_UNIQUE_ID + " IN " + conversations, null);
+                while (cs.moveToNext()){
+                    if (!cs.isNull(0)) requestIds.add(cs.getLong(0));
+                    if (!cs.isNull(1)) requestIds.add(cs.getLong(1));
+                    if (!cs.isNull(2)) responseIds.add(cs.getLong(2));
+                }
+                cs.close();
+                String parents = parentsWhere(CONTENT_PARENT_ID, CONTENT_PARENT_TYPE, requestIds, responseIds);
+                Map<Long, Integer> blobRefs = new HashMap<Long, Integer>();
+                cs = mDatabase.rawQuery("SELECT " + CONTENT_BLOB_ID + ", " + CONTENT_FILE_NAME + " FROM " + mTableNames[TABLE_CONTENT_ID] + " WHERE " + parents, null);
+                while (cs.moveToNext()){
+                    if (!cs.isNull(0)){
+                        Long blobId = cs.getLong(0);
+                        Integer refs = blobRefs.get(blobId);
+                        blobRefs.put(blobId, refs == null ? 1 : refs + 1);
+                    }else if (!cs.isNull(1)){
+                        files.add(cs.getString(1));
+                    }
+                }
+                cs.close();
+                if (!blobRefs.isEmpty()){
+                    for (Map.Entry<Long, Integer> entry : blobRefs.entrySet()) {
+                        mDatabase.execSQL("UPDATE " + mTableNames[TABLE_CONTENT_BLOB] + " SET " + CONTENT_BLOB_REFS + " = " + CONTENT_BLOB_REFS + " - " + entry.getValue()
+                                + " WHERE " + CONTENT_BLOB_UNIQUE_ID + " = " + entry.getKey());
+                    }
+                    String unreferenced = CONTENT_BLOB_UNIQUE_ID + " IN " + inList(blobRefs.keySet()) + " AND " + CONTENT_BLOB_REFS + " <= 0";
+                    released += longForQuery("SELECT SUM(" + CONTENT_BLOB_STORED_LENGTH + ") FROM " + mTableNames[TABLE_CONTENT_BLOB] + " WHERE " + unreferenced, 0);
+                    mDatabase.delete(mTableNames[TABLE_CONTENT_BLOB], unreferenced, null);
+                }
+                mDatabase.delete(mTableNames[TABLE_CONTENT_ID], parents, null);
+                // headers table only has rows of messages stored before headers blob
+                mDatabase.delete(mTableNames[TABLE_HEADERS_ID], parentsWhere(HEADERS_PARENT_ID, HEADERS_PARENT_TYPE, requestIds, responseIds), null);
+                mDatabase.delete(mTableNames[TABLE_REQUEST_ID], REQUEST_UNIQUE_ID + " IN " + inList(requestIds), null);
+                mDatabase.delete(mTableNames[TABLE_RESPONSE_ID], RESPONSE_UNIQUE_ID + " IN " + inList(responseIds), null);
+                mDatabase.delete(mTableNames[TABLE_SOCKET_MESSAGE], SOCKET_MSG_HANDSHAKE_ID + " IN " + conversations, null);
+                mDatabase.delete(mTableNames[TABLE_SOCKET_CHANNEL], SOCKET_CHANNEL_CONV_ID + " IN " + conversations, null);
+                mDatabase.delete(mTableNames[TABLE_COVERSATION_ID], CONVERSATION_UNIQUE_ID + " IN " + conversations, null);
+                for (Long id : conversationIds) {
+                    mDatabase.delete(mTableNames[TABLE_SEARCH], "docid = ?", new String[] {String.valueOf(id)});
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                if (cs != null) cs.close();
+                mDatabase.endTransaction();
+            }
+        } finally {
+            mBatchLock.unlock();
+        }
+        // files of content stored before packs, removed only when rows are gone
+        for (String fileName : files) {
+            File file = new File(fileName);
+            long length = file.length();
+            if (file.delete()){
+                released += length;
+            }
+        }
+        if (LOGD) Log.d(LOGTAG, "Evicted " + conversationIds.size() + " conversations, released " + released + " bytes");
+        return released;
+    }
+    
+    /**
+     * Moves bodies that are still referenced out of packs where most bytes 
+     * are dead and deletes those packs. Bodies are copied outside of database 
+     * lock, rows are pointed to copies in short transactions.
+     * @param maxLiveRatio packs with smaller share of live bytes are compacted
+     * @return bytes of pack files given back to file system
+     */
+    public long compactPacks(double maxLiveRatio, int batchSize){
+        if (mRootDirName == null){
+            return 0;
+        }
+        ContentStore contentStore = getContentStore();
+        Map<Integer, Long> live = new HashMap<Integer, Long>();
+        Cursor cs = null;
+        try{
+            cs = mDatabase.rawQuery("SELECT " + CONTENT_BLOB_PACK + ", SUM(" + CONTENT_BLOB_STORED_LENGTH + ") FROM " + mTableNames[TABLE_CONTENT_BLOB] 
+                    + " GROUP BY " + CONTENT_BLOB_PACK, null);
+            while (cs.moveToNext()){
+                live.put(cs.getInt(0), cs.getLong(1));
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        long reclaimed = 0;
+        int current = contentStore.getCurrentPack();
+        for (Integer pack : contentStore.getPacks()) {
+            if (pack.intValue() >= current){
+                continue;
+            }
+            long length = contentStore.getPackLength(pack);
+            Long liveBytes = live.get(pack);
+            if (liveBytes != null && liveBytes > length * maxLiveRatio){
+                continue;
+            }
+            try{
+                long copied = movePackBodies(contentStore, pack, batchSize);
+                if (contentStore.deletePack(pack)){
+                    reclaimed += length - copied;
+                }
+            }catch (Exception ex){
+                Log.e(LOGTAG, "Error compacting pack " + pack + " " + ex.getMessage());
+            }
+        }
+        return reclaimed;
+    }
+    
+    private long movePackBodies(ContentStore contentStore, int pack, int batchSize) throws IOException, InterruptedException{
+        long copied = 0;
+        String where = CONTENT_BLOB_PACK + " = ?";
+        String[] args = new String[] {String.valueOf(pack)};
+        String[] columns = new String[] {CONTENT_BLOB_UNIQUE_ID, CONTENT_BLOB_OFFSET, CONTENT_BLOB_STORED_LENGTH};
+        while (true){
+            List<long[]> moved = new ArrayList<long[]>();
+            Cursor cs = null;
+            try{
+                cs = mDatabase.query(mTableNames[TABLE_CONTENT_BLOB], columns, where, args, null, null, CONTENT_BLOB_OFFSET, String.valueOf(batchSize));
+                while (cs.moveToNext()){
+                    long[] location = contentStore.copy(pack, cs.getLong(1), cs.getLong(2));
+                    moved.add(new long[]{cs.getLong(0), location[0], location[1]});
+                    copied += cs.getLong(2);
+                }
+            } finally{
+                if (cs != null) cs.close();
+            }
+            if (moved.isEmpty()){
+                return copied;
+            }
+            mBatchLock.lock();
+            try{
+                mDatabase.beginTransaction();
+                try {
+                    for (long[] row : moved) {
+                        ContentValues cv = new ContentValues();
+                        cv.put(CONTENT_BLOB_PACK, row[1]);
+                        cv.put(CONTENT_BLOB_OFFSET, row[2]);
+                        mDatabase.update(mTableNames[TABLE_CONTENT_BLOB], cv, CONTENT_BLOB_UNIQUE_ID + " = ? AND " + where, 
+                                new String[] {String.valueOf(row[0]), String.valueOf(pack)});
+                    }
+                    mDatabase.setTransactionSuccessful();
+                } finally {
+                    mDatabase.endTransaction();
+                }
+            } finally {
+                mBatchLock.unlock();
+            }
+            Thread.sleep(20);
+        }
+    }
+    
+    /**
+     * Gives free pages of database file back to file system when their 
+     * share is over given ratio. Database is switched to incremental vacuum 
+     * by one full VACUUM, after that pages are freed in small steps.
+     * @return bytes the database file got smaller
+     */
+    public long compactDatabase(double minFreeRatio, int pagesPerStep) throws InterruptedException{
+        long pageSize = longForQuery("PRAGMA page_size", 0);
+        long pages = longForQuery("PRAGMA page_count", 0);
+        long free = longForQuery("PRAGMA freelist_count", 0);
+        if (free == 0 || free < pages * minFreeRatio){
+            return 0;
+        }
+        if (longForQuery("PRAGMA auto_vacuum", 0) != 2){
+            long start = System.currentTimeMillis();
+            mBatchLock.lock();
+            try{
+                mDatabase.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                mDatabase.execSQL("VACUUM");
+            } finally {
+                mBatchLock.unlock();
+            }
+            Log.i(LOGTAG, "Database switched to incremental vacuum in " + (System.currentTimeMillis() - start) + " ms");
+        }else{
+            while (longForQuery("PRAGMA freelist_count", 0) > 0){
+                mBatchLock.lock();
+                try{
+                    // pages are freed while statement is stepped, cursor has to be read through
+                    Cursor cs = mDatabase.rawQuery("PRAGMA incremental_vacuum(" + pagesPerStep + ")", null);
+                    cs.getCount();
+                    cs.close();
+                } finally {
+                    mBatchLock.unlock();
+                }
+                Thread.sleep(20);
+            }
+        }
+        return (pages - longForQuery("PRAGMA page_count", 0)) * pageSize;
+    }
+    
+    /**
+     * @return id of newest conversation in search index, 0 for empty index
+     */
+    public long getSearchIndexedId(){
+        // docid of fts content table is its primary key, max over virtual table would scan
+        return longForQuery("SELECT MAX(docid) FROM " + mTableNames[TABLE_SEARCH] + "_content", 0);
+    }
+    
+    /**
+     * Adds text of conversations after given id to search index. Text is 
+     * read before database lock is taken. Stops at first conversation still 
+     * in progress so none is skipped.
+     * @param bodyLimit bytes of decoded body indexed per message
+     * @return ids of indexed conversations in id order
+     */
+    public List<Long> indexConversations(long afterId, int batchSize, int bodyLimit){
+        List<long[]> rows = new ArrayList<long[]>();
+        Cursor cs = null;
+        try{
+            String[] columns = new String[] {CONVERSATION_UNIQUE_ID, CONVERSATION_REQUEST_ID, CONVERSATION_REQUEST_CHANGED_ID, 
+                    CONVERSATION_RESPONSE_ID, CONVERSATION_STATUS, CONVERSATION_TS_START};
+            cs = mDatabase.query(mTableNames[TABLE_COVERSATION_ID], columns, CONVERSATION_UNIQUE_ID + " > ?", new String[] {String.valueOf(afterId)}, 
+                    null, null, CONVERSATION_UNIQUE_ID, String.valueOf(batchSize));
+            long unfinishedBefore = System.currentTimeMillis() - UNFINISHED_CONVERSATION_AGE;
+            while (cs.moveToNext()){
+                int status = cs.getInt(4);
+                if (status != FrameworkModel.CONVERSATION_STATUS_RESP_RECEIVED && status != FrameworkModel.CONVERSATION_STATUS_ABORTED
+                        && !cs.isNull(5) && cs.getLong(5) >= unfinishedBefore){
+                    break;
+                }
+                rows.add(new long[]{cs.getLong(0), cs.isNull(1) ? -1 : cs.getLong(1), cs.isNull(2) ? -1 : cs.getLong(2), cs.isNull(3) ? -1 : cs.getLong(3)});
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        List<Long> ids = new ArrayList<Long>(rows.size());
+        if (rows.isEmpty()){
+            return ids;
+        }
+        List<String[]> documents = new ArrayList<String[]>(rows.size());
+        for (long[] row : rows) {
+            StringBuilder url = new StringBuilder();
+            StringBuilder headers = new StringBuilder();
+            StringBuilder body = new StringBuilder();
+            for (int i = 1; i < 3; i++) {
+                if (row[i] >= 0 && (i == 1 || row[i] != row[1])){
+                    appendSearchText(getRequest(row[i]), url, headers, body, bodyLimit);
+                }
+            }
+            if (row[3] >= 0){
+                appendSearchText(getResponse(row[3]), null, headers, body, bodyLimit);
+            }
+            ids.add(row[0]);
+            documents.add(new String[]{String.valueOf(row[0]), url.toString(), headers.toString(), body.toString(), String.valueOf(row[0])});
+        }
+        mBatchLock.lock();
+        try{
+            mDatabase.beginTransaction();
+            try {
+                // conversation could be evicted while its text was read
+                String sql = "INSERT INTO " + mTableNames[TABLE_SEARCH] + " (docid, " + SEARCH_URL + ", " + SEARCH_HEADERS + ", " + SEARCH_BODY + ")"
+                        + " SELECT ?, ?, ?, ? WHERE EXISTS (SELECT 1 FROM " + mTableNames[TABLE_COVERSATION_ID] + " WHERE " + CONVERSATION_UNIQUE_ID + " = ?)";
+                for (String[] document : documents) {
+                    mDatabase.execSQL(sql, document);
+                }
+                mDatabase.setTransactionSuccessful();
+            } finally {
+                mDatabase.endTransaction();
+            }
+        } finally {
+            mBatchLock.unlock();
+        }
+        return ids;
+    }
+    
+    private static void appendSearchText(Message message, StringBuilder url, StringBuilder headers, StringBuilder body, int bodyLimit){
+        if (message == null){
+            return;
+        }
+        try{
+            if (url != null && message instanceof Request){
+                Request request = (Request) message;
+                url.append(request.getMethod()).append(' ').append(request.getURL()).append('\n');
+            }
+            for (NamedValue header : message.getHeaders()) {
+                headers.append(header.getName()).append(": ").append(header.getValue()).append('\n');
+            }
+            String contentType = message.getHeader("Content-Type");
+            if (bodyLimit > 0 && isTextContent(contentType) && (message.isContentPending() || message.getContentFileName() != null)){
+                body.append(readBodyText(message, contentType, bodyLimit)).append('\n');
+            }
+        }catch (Exception ex){
+            Log.e(LOGTAG, "Error reading text for search index " + ex.getMessage());
+        }finally{
+            message.clean();
+        }
+    }
+    
+    private static boolean isTextContent(String contentType){
+        if (contentType == null){
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript") 
+                || type.contains("x-www-form-urlencoded") || type.contains("graphql");
+    }
+    
+    /**
+     * @return start of body with content encoding removed, body is not read further than limit
+     */
+    private static String readBodyText(Message message, String contentType, int limit) throws IOException{
+        InputStream is = message.getContentStream();
+        try{
+            if (message.isCompressed()){
+                is = new GZIPInputStream(is);
+            }else if (message.isDeflated()){
+                is = new InflaterInputStream(is, new Inflater(true));
+            }
+            byte[] buffer = new byte[limit];
+            int length = 0;
+            int got;
+            try{
+                while (length < limit && (got = is.read(buffer, length, limit - length)) != -1){
+                    length += got;
+                }
+            }catch (EOFException ex){
+                // truncated body ends inside compressed stream, text read so far is kept
+            }
+            String charset = "UTF-8";
+            int index = contentType.toLowerCase().indexOf("charset=");
+            if (index >= 0){
+                charset = contentType.substring(index + 8).split(";")[0].replace("\"", "").trim();
+            }
+            try{
+                return new String(buffer, 0, length, charset);
+            }catch (UnsupportedEncodingException ex){
+                return new String(buffer, 0, length, "ISO-8859-1");
+            }
+        }finally{
+            is.close();
+        }
+    }
+    
+    /**
+     * Finds conversations by full text query over urls, header values and 
+     * textual bodies. Query uses sqlite fts syntax, text that is not valid 
+     * query is searched as phrase. Matches are ranked by how rare matched 
+     * terms are, url matches weigh more than header and body ones, newer 
+     * conversation first on same rank. Only newest SEARCH_RANK_CANDIDATES 
+     * matches are ranked.
+     * @return ids of conversations of requested page
+     */
+    public List<Long> searchConversations(String query, int offset, int limit){
+        List<long[]> matches;
+        try{
+            matches = matchSearch(query);
+        }catch (SQLiteException ex){
+            if (LOGD) Log.d(LOGTAG, "Searching as phrase, invalid query " + query + " " + ex.getMessage());
+            matches = matchSearch("\"" + query.replace("\"", " ") + "\"");
+        }
+        Collections.sort(matches, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                if (lhs[1] != rhs[1]){
+                    return lhs[1] > rhs[1] ? -1 : 1;
+                }
+                return lhs[0] > rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+        List<Long> ids = new ArrayList<Long>();
+        for (int i = Math.max(offset, 0); i < matches.size() && ids.size() < limit; i++) {
+            ids.add(matches.get(i)[0]);
+        }
+        return ids;
+    }
+    
+    /**
+     * @return conversation id and score scaled to long for each match
+     */
+    private List<long[]> matchSearch(String query){
+        List<long[]> matches = new ArrayList<long[]>();
+        Cursor cs = null;
+        try{
+            cs = mDatabase.rawQuery("SELECT docid, matchinfo(" + mTableNames[TABLE_SEARCH] + ") FROM " + mTableNames[TABLE_SEARCH] 
+                    + " WHERE " + mTableNames[TABLE_SEARCH] + " MATCH ? ORDER BY docid DESC LIMIT " + SEARCH_RANK_CANDIDATES, new String[] {query});
+            while (cs.moveToNext()){
+                matches.add(new long[]{cs.getLong(0), (long) (searchScore(cs.getBlob(1)) * 1000000)});
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        return matches;
+    }
+    
+    /**
+     * score from default matchinfo, for each phrase and column hits in this 
+     * row, hits in all rows and rows with hits
+     */
+    private static double searchScore(byte[] matchInfo){
+        ByteBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder());
+        int phrases = info.getInt(0);
+        int columns = info.getInt(4);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns && column < SEARCH_WEIGHTS.length; column++) {
+                int base = (2 + 3 * (phrase * columns + column)) * 4;
+                long hits = info.getInt(base) & 0xffffffffL;
+                long allHits = info.getInt(base + 4) & 0xffffffffL;
+                if (hits > 0 && allHits > 0){
+                    score += SEARCH_WEIGHTS[column] * hits / allHits;
+                }
+            }
+        }
+        return score;
+    }
+    
+    /**
+     * starts indexing conversations from the beginning, index is empty 
+     * until indexer catches up again
+     */
+    public void rebuildSearchIndex(){
+        if (mSearchIndexer != null){
+            mSearchIndexer.rebuild();
+        }else{
+            clearSearchIndex();
+        }
+    }
+    
+    void clearSearchIndex(){
+        mBatchLock.lock();
+        try{
+            mDatabase.delete(mTableNames[TABLE_SEARCH], null, null);
+        } finally {
+            mBatchLock.unlock();
+        }
+    }
+    
+    /**
+     * merges index segments, queries are faster after larger changes
+     */
+    void optimizeSearchIndex(){
+        mBatchLock.lock();
+        try{
+            mDatabase.execSQL("INSERT INTO " + mTableNames[TABLE_SEARCH] + "(" + mTableNames[TABLE_SEARCH] + ") VALUES('optimize')");
+        } finally {
+            mBatchLock.unlock();
+        }
+    }
+    
+    /**
+     * @return indexer filling search index, null if it is not enabled
+     */
+    public SearchIndexer getSearchIndexer(){
+        return mSearchIndexer;
+    }
+    
     public void clearHttpDatabase(){
         // clear all tables
         synchronized (mConversationLock) {
@@ -963,6 +1809,11 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             mDatabase.delete(mTableNames[TABLE_REQUEST_ID], where, null);
             mDatabase.delete(mTableNames[TABLE_RESPONSE_ID], where, null);
             mDatabase.delete(mTableNames[TABLE_CONTENT_ID], where, null);
+            mDatabase.delete(mTableNames[TABLE_CONTENT_BLOB], where, null);
+            mDatabase.delete(mTableNames[TABLE_SEARCH], null, null);
+            if (mContentStore != null){
+                mContentStore.clear();
+            }
         }
     }
     
@@ -990,6 +1841,13 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
         reqContentCV.put(CONTENT_GZIPED, message.isCompressed());
         reqContentCV.put(CONTENT_CHUNKED, message.isChunked());
         reqContentCV.put(CONTENT_DEFLATED, message.isDeflated());
+        if (mContentInPacks){
+            reqContentCV.put(CONTENT_FILE_STORE, false);
+            reqContentCV.put(CONTENT_BLOB_ID, addContentBlob(message));
+            // known only after body was read
+            reqContentCV.put(CONTENT_TRUNCATED, message.isContentTruncated());
+            return mDatabase.insertOrThrow(mTableNames[TABLE_CONTENT_ID], null, reqContentCV);
+        }
         // TODO we need that message object return if we have file store or memory store
         String contentFileName = fileName;
         if (message.moveContentToFile(new File(contentFileName))){
@@ -998,6 +1856,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
         }else{
             reqContentCV.put(CONTENT_FILE_STORE, false);
         }
+        reqContentCV.put(CONTENT_TRUNCATED, message.isContentTruncated());
         
         long contentId = mDatabase.insertOrThrow(mTableNames[TABLE_CONTENT_ID], 
                 null, reqContentCV);
@@ -1005,10 +1864,89 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     }
     
 
+    private void startRetention(Context context){
+        long hour = 60 * 60 * 1000L;
+        mRetention = new StoreRetention(this,
+                Preferences.getPreferenceInt(context, PreferenceUtils.storeRetentionMaxAgeHours, 0) * hour,
+                Preferences.getPreferenceInt(context, PreferenceUtils.storeRetentionMaxSizeMb, 0) * 1024L * 1024L,
+                Preferences.getPreferenceInt(context, PreferenceUtils.storeRetentionMaxConversations, 0),
+                Preferences.getPreferenceInt(context, PreferenceUtils.storeRetentionHostQuota, 0),
+                Preferences.getPreferenceInt(context, PreferenceUtils.storeRetentionAppQuota, 0),
+                Preferences.getPreferenceInt(context, PreferenceUtils.storeRetentionInterval, 60) * 1000L);
+        mRetention.start();
+    }
+    
+    /**
+     * @return retention running on this store, null if it is not enabled
+     */
+    public StoreRetention getRetention(){
+        return mRetention;
+    }
+    
+    private synchronized ContentStore getContentStore(){
+        if (mContentStore == null){
+            mContentStore = new ContentStore(new File(mRootDirName));
+        }
+        return mContentStore;
+    }
+    
+    /**
+     * stores body in packs unless same body is already there
+     * @return id of content blob row, null for message without body
+     */
+    private Long addContentBlob(Message message) throws IOException{
+        InputStream is = message.openContentStream();
+        if (is == null){
+            return null;
+        }
+        ContentStore contentStore = getContentStore();
+        boolean compress = ContentStore.isCompressible(message.getHeader("Content-Type"), message.getHeader("Content-Encoding"));
+        // digest lookup and write of new body must not interleave with other writer
+        synchronized (contentStore) {
+            ContentStore.Blob blob;
+            try{
+                blob = contentStore.prepare(is, compress);
+            }finally{
+                is.close();
+            }
+            Cursor cs = null;
+            try{
+                String[] columns = new String[] {CONTENT_BLOB_UNIQUE_ID};
+                cs = mDatabase.query(mTableNames[TABLE_CONTENT_BLOB], columns, CONTENT_BLOB_DIGEST + " = ?", new String[] {blob.digest}, null, null, null);
+                if (cs.moveToFirst()){
+                    long blobId = cs.getLong(0);
+                    contentStore.discard(blob);
+                    mDatabase.execSQL("UPDATE " + mTableNames[TABLE_CONTENT_BLOB] + " SET " + CONTENT_BLOB_REFS + " = " + CONTENT_BLOB_REFS + " + 1"
+                            + " WHERE " + CONTENT_BLOB_UNIQUE_ID + " = " + blobId);
+                    return blobId;
+                }
+            }finally{
+                if (cs != null) cs.close();
+            }
+            contentStore.write(blob);
+            ContentValues cv = new ContentValues();
+            cv.put(CONTENT_BLOB_DIGEST, blob.digest);
+            cv.put(CONTENT_BLOB_PACK, blob.pack);
+            cv.put(CONTENT_BLOB_OFFSET, blob.offset);
+            cv.put(CONTENT_BLOB_LENGTH, blob.length);
+            cv.put(CONTENT_BLOB_STORED_LENGTH, blob.storedLength);
+            cv.put(CONTENT_BLOB_CODEC, blob.codec);
+            cv.put(CONTENT_BLOB_REFS, 1);
+            return mDatabase.insertOrThrow(mTableNames[TABLE_CONTENT_BLOB], null, cv);
+        }
+    }
+    
     @Override
     public long createNewConversation(Date when, int type, ConnectionDescriptor connectionDescriptor){
+        // ids are handed out from counter so they do not clash with reserved ones
+        return createNewConversation(reserveConversationId(), when, type, connectionDescriptor);
+    }
+    
+    @Override
+    public long createNewConversation(long conversationId, Date when, int type, ConnectionDescriptor connectionDescriptor){
         ContentValues convCV = new ContentValues();
         long timestamp = when.getTime();
+        convCV.put(CONVERSATION_UNIQUE_ID, conversationId);
         convCV.put(CONVERSATION_STATUS, FrameworkModel.CONVERSATION_STATUS_NEW);
         convCV.put(CONVERSATION_TYPE, type);
         convCV.put(CONVERSATION_TS_START, timestamp);
@@ -1018,8 +1956,14 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             convCV.put(CONVERSATION_CLIENT_APP_NAME, connectionDescriptor.getNamespace());
             convCV.put(CONVERSATION_CLIENT_UID, connectionDescriptor.getId());
         }
-        long conversationId = mDatabase.insertOrThrow(mTableNames[TABLE_COVERSATION_ID], 
-                null, convCV);
+        try{
+            mDatabase.insertOrThrow(mTableNames[TABLE_COVERSATION_ID], 
+                    null, convCV);
+        }catch(RuntimeException e){
+            markBatchFailed();
+            Log.e(LOGTAG, "Error on createNewConversation" + e.getMessage());
+            throw e;
+        }
         eventNewConversation(conversationId, type, timestamp);
         return conversationId;
     }
@@ -1055,6 +1999,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             haveValidData = true;
             return updatedRows;
         }catch(Exception e){
+            markBatchFailed();
             Log.e(LOGTAG, "Error on addConversation" + e.getMessage());
         } finally {
             mDatabase.endTransaction();
@@ -1092,6 +2037,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             haveValidData = true;
             return updatedRows;
         }catch(Exception e){
+            markBatchFailed();
             Log.e(LOGTAG, "Error on updateGotRequestConversation" + e.getMessage());
         } finally {
             mDatabase.endTransaction();
@@ -1158,6 +2104,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             haveValidData = true;
             return updatedRows;
         }catch(Exception e){
+            markBatchFailed();
             Log.e(LOGTAG, "Error on addConversation" + e.getMessage());
         } finally {
             mDatabase.endTransaction();
@@ -1182,6 +2129,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
         reqCV.put(REQUEST_GZIPED, request.isCompressed());
         reqCV.put(REQUEST_CHUNKED, request.isChunked());
         reqCV.put(REQUEST_DEFLATED, request.isDeflated());
+        putHeaders(reqCV, request, HEADERS_PARENT_TYPE_REQUEST);
         
         long requestId = mDatabase.insertOrThrow(mTableNames[TABLE_REQUEST_ID], 
                                         null, reqCV);
@@ -1201,6 +2149,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
         resCV.put(RESPONSE_CHUNKED, response.isChunked());
         resCV.put(RESPONSE_GZIPED, response.isCompressed());
         resCV.put(RESPONSE_DEFLATED, response.isDeflated());
+        putHeaders(resCV, response, HEADERS_PARENT_TYPE_RESPONSE);
         
         long responseId = mDatabase.insertOrThrow(mTableNames[TABLE_RESPONSE_ID], 
                 null, resCV);
@@ -1229,6 +2178,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 reqCV.put(REQUEST_GZIPED, request.isCompressed());
                 reqCV.put(REQUEST_CHUNKED, request.isChunked());
                 reqCV.put(REQUEST_DEFLATED, request.isDeflated());
+                putHeaders(reqCV, request, HEADERS_PARENT_TYPE_REQUEST);
                 
                 mDatabase.beginTransaction();
                 long requestId = mDatabase.insertOrThrow(mTableNames[TABLE_REQUEST_ID], 
@@ -1243,6 +2193,7 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 resCV.put(RESPONSE_CHUNKED, response.isChunked());
                 resCV.put(RESPONSE_GZIPED, response.isCompressed());
                 resCV.put(RESPONSE_DEFLATED, response.isDeflated());
+                putHeaders(resCV, response, HEADERS_PARENT_TYPE_RESPONSE);
                 
                 long responseId = mDatabase.insertOrThrow(mTableNames[TABLE_RESPONSE_ID], 
                         null, resCV);
@@ -1254,7 +2205,9 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
                 addContent(responseId, response, CONTENT_PARENT_TYPE_RESPONSE, fileName);
                 
                 // create conversation row
+                // id from counter, autoincrement could take one reserved by write queue
                 ContentValues convCV = new ContentValues();
+                convCV.put(CONVERSATION_UNIQUE_ID, reserveConversationId());
                 convCV.put(CONVERSATION_REQUEST_ID, requestId);
                 convCV.put(CONVERSATION_RESPONSE_ID, responseId);
                 convCV.put(CONVERSATION_RESP_STATUS_CODE, response.getStatus());
@@ -1298,11 +2251,9 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             if (cs.moveToFirst()){
                 Request request = createRequest(cs);
                 // fill headers
-                NamedValue[] headers = getHeaders(requestId, HEADERS_PARENT_TYPE_REQUEST);
+                NamedValue[] headers = getHeaders(cs, requestId, HEADERS_PARENT_TYPE_REQUEST);
                 request.setHeaders(headers);
-                // get content fileName
-                String fileName = geContentFileName(requestId, HEADERS_PARENT_TYPE_REQUEST);
-                request.setContentFileName(fileName);
+                setStoredContent(request, requestId, HEADERS_PARENT_TYPE_REQUEST);
                 return request;
             }
         }catch (Exception ex){
@@ -1337,11 +2288,9 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             if (cs.moveToFirst()){
                 Response response = createResponse(cs);
                 // fill headers
-                NamedValue[] headers = getHeaders(responseId, HEADERS_PARENT_TYPE_RESPONSE);
+                NamedValue[] headers = getHeaders(cs, responseId, HEADERS_PARENT_TYPE_RESPONSE);
                 response.setHeaders(headers);
-                // get content fileName
-                String fileName = geContentFileName(responseId, HEADERS_PARENT_TYPE_RESPONSE);
-                response.setContentFileName(fileName);
+                setStoredContent(response, responseId, HEADERS_PARENT_TYPE_RESPONSE);
                 return response;
             }
         }catch (Exception ex){
@@ -1362,11 +2311,9 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
             if (cs.moveToFirst()){
                 Response response = createResponse(cs);
                 // fill headers
-                NamedValue[] headers = getHeaders(responseId, HEADERS_PARENT_TYPE_RESPONSE);
+                NamedValue[] headers = getHeaders(cs, responseId, HEADERS_PARENT_TYPE_RESPONSE);
                 response.setHeaders(headers);
-                // get content fileName
-                String fileName = geContentFileName(responseId, HEADERS_PARENT_TYPE_RESPONSE);
-                response.setContentFileName(fileName);
+                setStoredContent(response, responseId, HEADERS_PARENT_TYPE_RESPONSE);
                 return response;
             }
         }catch (Exception ex){
@@ -1378,16 +2325,51 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
     }
     
     public NamedValue[] getHeaders(long parentId, int parentType){
+        Cursor cs = null;
+        try{
+            int table = parentType == HEADERS_PARENT_TYPE_REQUEST ? TABLE_REQUEST_ID : TABLE_RESPONSE_ID;
+            String where = ID_COL + " = ?";
+            String[] arg = new String[] {String.valueOf(parentId)};
+            String[] columns = new String[] {REQUEST_HEADERS_BLOB};
+            cs = mDatabase.query(mTableNames[table], columns, where, arg, null, null, null);
+            if (cs.moveToFirst()){
+                return getHeaders(cs, parentId, parentType);
+            }
+        } finally{
+            if (cs != null) cs.close();
+        }
+        return getHeaderRows(parentId, parentType);
+    }
+    
+    /**
+     * headers from blob of message row under cursor, rows written before 
+     * blob layout are read from headers table
+     */
+    private NamedValue[] getHeaders(Cursor cs, long parentId, int parentType){
+        int blobIndex = cs.getColumnIndex(parentType == HEADERS_PARENT_TYPE_REQUEST ? REQUEST_HEADERS_BLOB : RESPONSE_HEADERS_BLOB);
+        if (blobIndex >= 0 && !cs.isNull(blobIndex)){
+            NamedValue[] headers = HeaderBlock.decode(cs.getBlob(blobIndex));
+            if (headers != null){
+                return headers;
+            }
+            Log.e(LOGTAG, "Invalid headers blob of " + parentId);
+        }
+        return getHeaderRows(parentId, parentType);
+    }
+    
+    private NamedValue[] getHeaderRows(long parentId, int parentType){
         Cursor cs = null;
         try{
             String where = HEADERS_PARENT_ID + " = ? AND " + HEADERS_PARENT_TYPE + " = ?";
             String[] arg = new String[] {String.valueOf(parentId), String.valueOf(parentType)};
-            cs = mDatabase.query(mTableNames[TABLE_HEADERS_ID], null, where, arg, null, null, null);
+            String[] columns = new String[] {HEADERS_NAME, HEADERS_VALUE};
+            // in order they were written, parent index returns them that way already
+            cs = mDatabase.query(mTableNames[TABLE_HEADERS_ID], columns, where, arg, null, null, HEADERS_UNIQUE_ID);
             NamedValue[] values = new NamedValue[cs.getCount()];
             int i = 0;
             while(cs.moveToNext()){
-                String name = cs.getString(cs.getColumnIndex(HEADERS_NAME));
-                String value = cs.getString(cs.getColumnIndex(HEADERS_VALUE));
+                String name = cs.getString(0);
+                String value = cs.getString(1);
                 values[i++] = new NamedValue(name, value);
             }
             return values;
@@ -1396,20 +2378,37 @@ public class SqlLiteStore implements SiteModelStore, FragmentsStore, SpiderStore
         }
     }
     
-    private String geContentFileName(long parentId, int parentType){
+    /**
+     * sets body of message from its pack blob, or from its own file 
+     * when it was stored before packs
+     */
+    private void setStoredContent(Message message, long parentId, int parentType) throws IOException{
         Cursor cs = null;
         try{
             String where = CONTENT_PARENT_ID + " = ? AND " + CONTENT_PARENT_TYPE + " = ?";
             String[] arg = new String[] {String.valueOf(parentId), String.valueOf(parentType)};
-            cs = mDatabase.query(mTableNames[TABLE_CONTENT_ID], null, where, arg, null, null, null);
-            if(cs.moveToFirst()){
-                String fileName = cs.getString(cs.getColumnIndex(CONTENT_FILE_NAME));
-                return fileName;
+            String[] columns = new String[] {CONTENT_FILE_NAME, CONTENT_BLOB_ID, CONTENT_TRUNCATED};
+            cs = mDatabase.query(mTableNames[TABLE_CONTENT_ID], columns, where, arg, null, null, null);
+            if(!cs.moveToFirst()){
+                return;
+            }
+            message.setContentTruncated(!cs.isNull(2) && cs.getInt(2) != 0);
+            if (cs.isNull(1)){
+                message.setContentFileName(cs.getString(0));
+                return;
+            }
+            long blobId = cs.getLong(1);
+            cs.close();
+            String[] blobColumns = new String[] {CONTENT_BLOB_PACK, CONTENT_BLOB_OFFSET, CONTENT_BLOB_STORED_LENGTH, CONTENT_BLOB_CODEC};
+            cs = mDatabase.query(mTableNames[TABLE_CONTENT_BLOB], blobColumns, CONTENT_BLOB_UNIQUE_ID + " = ?", new String[] {String.valueOf(blobId)}, null, null, null);
+            if (cs.moveToFirst()){
+                message.setContentStream(getContentStore().open(cs.getInt(0), cs.getLong(1), cs.getLong(2), cs.getInt(3)));
+            }else{
+                Log.e(LOGTAG, "Missing content blob " + blobId + " of " + parentId);
             }
         } finally{
             if (cs != null) cs.close();
         }
-        return null;
     }
     
     
@@ -17,8 +17,10 @@
  *
  */
 
+#include <errno.h>
 #include <limits.h>
 #include <sys/socket.h>
+#include <sys/time.h>
 #include <arpa/inet.h>
 #include <linux/netfilter_ipv4.h>
 #include <stdio.h>
@@ -79,3 +81,54 @@ JNIEXPORT jstring JNICALL Java_org_sandroproxy_utils_NetworkHostNameResolver_get
 
     return (*env)->NewStringUTF(env, ret);
 }
+
+// copies data without consuming it, so ssl handshake can still read ClientHello.
+// waits until length bytes are there or timeout ms passed
+JNIEXPORT jint JNICALL Java_org_sandroproxy_utils_NetworkHostNameResolver_peekData(
+    JNIEnv* env, jobject obj, jobject sock, jbyteArray buffer, jint length, jint timeout)
+{
+    int ret = -1;
+    int fd = 0;
+    struct timeval tv;
+    struct timeval old_tv;
+    socklen_t old_tv_len = sizeof(old_tv);
+    jbyte* data = 0;
+
+    if (-1 == (fd = getFd(env, sock)))
+    {
+        return -1;
+    }
+    if (length > (*env)->GetArrayLength(env, buffer))
+    {
+        length = (*env)->GetArrayLength(env, buffer);
+    }
+    if (length <= 0 || timeout <= 0)
+    {
+        return 0;
+    }
+
+    // java keeps its own timeout, receive timeout of fd is restored after peek
+    if (0 != getsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &old_tv, &old_tv_len))
+    {
+        return -1;
+    }
+    tv.tv_sec = timeout / 1000;
+    tv.tv_usec = (timeout % 1000) * 1000;
+    if (0 != setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &tv, sizeof(tv)))
+    {
+        return -1;
+    }
+
+    if ((data = (*env)->GetByteArrayElements(env, buffer, NULL)))
+    {
+        ret = recv(fd, data, length, MSG_PEEK | MSG_WAITALL);
+        if (ret < 0 && (errno == EAGAIN || errno == EWOULDBLOCK))
+        {
+            ret = 0;
+        }
+        (*env)->ReleaseByteArrayElements(env, buffer, data, ret > 0 ? 0 : JNI_ABORT);
+    }
+    setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, &old_tv, old_tv_len);
+
+    return ret;
+}
@@ -58,7 +58,7 @@ public class PCapFileHeader
 	public void readHeader(InputStream in) throws IOException
 	{
 		byte[] tmp = new byte[24];
-		in.read(tmp);
+		PCapFileReader.readFully(in, tmp);
 		uint32MagicNum = ByteUtils.getByteNetOrderTo_unit32(tmp, 0);
 		ushort16VersionMajor = ByteUtils.getByteNetOrderTo_uint16(tmp, 4);
 		ushort16VersionMinor = ByteUtils.getByteNetOrderTo_uint16(tmp, 6);
@@ -152,4 +152,12 @@ public class PCapFileHeader
 		return isflip;
 	}
 
+	/**
+	 * @return link type of packets in file, 1 for Ethernet
+	 */
+	public long getLinkType()
+	{
+		return uint32LinkType;
+	}
+
 }
@@ -1,5 +1,6 @@
 package netutils.files.pcap;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -70,7 +71,7 @@ public class PCapFileReader implements CaptureFileReader,CaptureFileValid
 	 */
 	private void initStream(String theFileName) throws IOException
 	{
-		myInStrm = new FileInputStream(new File(theFileName));
+		myInStrm = new BufferedInputStream(new FileInputStream(new File(theFileName)), 64 * 1024);
 		try
 		{
 			readHeader(myInStrm);
@@ -124,11 +125,12 @@ public class PCapFileReader implements CaptureFileReader,CaptureFileValid
 
 		if (myPHDR != null)
 		{
-			if (myPHDR.pktlenUint32 > MAX_PACKET_SIZE)
-				throw new IOException("Corrupted file !!! illegal packet size : "+myPHDR.pktlenUint32);
+			if (myPHDR.caplen32Uint > MAX_PACKET_SIZE)
+				throw new IOException("Corrupted file !!! illegal packet size : "+myPHDR.caplen32Uint);
 			
-			byte[] toReturn = new byte[(int) myPHDR.pktlenUint32];
-			if (in.read(toReturn) != toReturn.length)
+			// only captured bytes are stored, packet may have been longer on the wire
+			byte[] toReturn = new byte[(int) myPHDR.caplen32Uint];
+			if (readFully(in, toReturn) != toReturn.length)
 			{
 				throw new IOException("Corrputed file!!!");
 			}
@@ -151,7 +153,7 @@ public class PCapFileReader implements CaptureFileReader,CaptureFileValid
 		InputStream in = null;
 		try
 		{
-			in = new FileInputStream(new File(fileName));
+			in = new BufferedInputStream(new FileInputStream(new File(fileName)), 64 * 1024);
 			readHeader(in);
 			ArrayList<byte[]> tmp = new ArrayList<byte[]>();
 			byte[] pkt = null;
@@ -189,7 +191,7 @@ public class PCapFileReader implements CaptureFileReader,CaptureFileValid
 		InputStream in = null;
 		try
 		{
-			in = new FileInputStream(new File(fileName));
+			in = new BufferedInputStream(new FileInputStream(new File(fileName)), 64 * 1024);
 			readHeader(in);
 			ArrayList<PCapPacketHeader> tmp = new ArrayList<PCapPacketHeader>();
 			
@@ -197,7 +199,7 @@ public class PCapFileReader implements CaptureFileReader,CaptureFileValid
 			while ((ph = ph.readNextPcktHeader(in, myPcapFileHeader.isflip)) != null)
 			{
 				tmp.add(ph);
-				in.skip(ph.pktlenUint32);
+				skipFully(in, ph.caplen32Uint);
 				ph = new PCapPacketHeader();
 			}
 			return (PCapPacketHeader[]) tmp.toArray(new PCapPacketHeader[] {});
@@ -262,6 +264,45 @@ public class PCapFileReader implements CaptureFileReader,CaptureFileValid
 		close();
 	}
 
+	/**
+	 * read until array is full or stream ends, streams may return less than asked.
+	 * @param in
+	 * @param theBuffer
+	 * @return bytes read, less than array length only at end of stream
+	 * @throws IOException
+	 */
+	protected static int readFully(InputStream in, byte[] theBuffer) throws IOException
+	{
+		int total = 0;
+		while (total < theBuffer.length)
+		{
+			int got = in.read(theBuffer, total, theBuffer.length - total);
+			if (got < 0)
+			{
+				break;
+			}
+			total += got;
+		}
+		return total;
+	}
+
+	private static void skipFully(InputStream in, long theBytes) throws IOException
+	{
+		while (theBytes > 0)
+		{
+			long skipped = in.skip(theBytes);
+			if (skipped <= 0)
+			{
+				if (in.read() < 0)
+				{
+					return;
+				}
+				skipped = 1;
+			}
+			theBytes -= skipped;
+		}
+	}
+
 	/**
 	 * for switching big/small indian
 	 * @param num
@@ -0,0 +1,539 @@
+package netutils.files.pcap;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import netutils.files.CaptureFileReader;
+import netutils.files.CaptureFileValid;
+import netutils.parse.flyweight.PacketDecoder;
+
+/**
+ * Reader for large libcap files.<br>
+ * The file is memory mapped and indexed once when opened, the index keeps 
+ * offset, timestamp and lengths of every packet in primitive arrays 
+ * (about 24 bytes per packet). After that packets can be read in any order, 
+ * by number or by time, as read only slices of the mapping without copying.<br>
+ * <br>
+ * split() divides the packets into ranges with roughly equal bytes, every 
+ * range is a reader of its own sharing mapping and index, so ranges can be 
+ * scanned in parallel, for example one CaptureIterator per fork/join task.
+ * A reader and the slices it returns must be used by one thread.<br>
+ * <br>
+ * A record cut short at the end of file, as in a capture that is still being
+ * written, is not indexed.
+ * 
+ * @see PCapFileReader
+ */
+public class PCapMappedFileReader implements CaptureFileReader, CaptureFileValid
+{
+	private static final int FILE_HEADER_SIZE = 24;
+
+	private static final int PACKET_HEADER_SIZE = 16;
+
+	private static final int MAX_PACKET_SIZE = 0x40000;
+
+	// records never cross a segment end because segments overlap by the largest record
+	private static final long SEGMENT_SIZE = 1L << 28;
+
+	private static final long SEGMENT_OVERLAP = PACKET_HEADER_SIZE + MAX_PACKET_SIZE;
+
+	private static final int INITIAL_INDEX_SIZE = 1024;
+
+	private RandomAccessFile myFile = null;
+
+	private ByteBuffer[] mySegments = null;
+
+	private PCapFileHeader myPcapFileHeader = null;
+
+	private Index myIndex = null;
+
+	private boolean _isValid = true;
+
+	// packets of this reader are [myFrom, myTo)
+	private int myFrom = 0;
+
+	private int myTo = 0;
+
+	// next packet to read
+	private int myCursor = 0;
+
+	// last packet read, -1 before first read
+	private int myLast = -1;
+
+	/**
+	 * map and index cap file.
+	 * @param theFileName
+	 * @throws IOException
+	 */
+	public PCapMappedFileReader(String theFileName) throws IOException
+	{
+		this(new File(theFileName));
+	}
+
+	/**
+	 * map and index cap file.
+	 * @param theFile
+	 * @throws IOException
+	 */
+	public PCapMappedFileReader(File theFile) throws IOException
+	{
+		myFile = new RandomAccessFile(theFile, "r");
+		try
+		{
+			FileChannel channel = myFile.getChannel();
+			long size = channel.size();
+			int count = (int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			mySegments = new ByteBuffer[Math.max(count, 1)];
+			for (int i = 0; i < count; i++)
+			{
+				long start = i * SEGMENT_SIZE;
+				long length = Math.min(size - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+				MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				mySegments[i] = segment;
+			}
+			if (count == 0)
+			{
+				mySegments[0] = ByteBuffer.allocate(0);
+			}
+			myIndex = new Index();
+			if (!readHeader(size))
+			{
+				_isValid = false;
+			}
+			else
+			{
+				buildIndex(size);
+			}
+		}
+		catch (IOException e)
+		{
+			close();
+			throw e;
+		}
+		myTo = myIndex.myCount;
+	}
+
+	/**
+	 * range of another reader, shares mapping and index.
+	 */
+	private PCapMappedFileReader(PCapMappedFileReader theParent, int theFrom, int theTo)
+	{
+		mySegments = new ByteBuffer[theParent.mySegments.length];
+		for (int i = 0; i < mySegments.length; i++)
+		{
+			mySegments[i] = theParent.mySegments[i].duplicate();
+		}
+		myPcapFileHeader = theParent.myPcapFileHeader;
+		myIndex = theParent.myIndex;
+		_isValid = theParent._isValid;
+		myFrom = theFrom;
+		myTo = theTo;
+		myCursor = theFrom;
+	}
+
+	private boolean readHeader(long theSize) throws IOException
+	{
+		if (theSize < FILE_HEADER_SIZE)
+		{
+			return false;
+		}
+		byte[] header = new byte[FILE_HEADER_SIZE];
+		ByteBuffer segment = mySegments[0];
+		for (int i = 0; i < FILE_HEADER_SIZE; i++)
+		{
+			header[i] = segment.get(i);
+		}
+		long magic = ((header[0] & 0xffL) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+		if (magic != PCapFileReader.MAGIC_NUMBER_DONT_FLIP && magic != PCapFileReader.MAGIC_NUMBER_FLIP)
+		{
+			return false;
+		}
+		PCapFileHeader fh = new PCapFileHeader();
+		fh.readHeader(new ByteArrayInputStream(header));
+		myPcapFileHeader = fh;
+		ByteOrder order = fh.isflip() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		for (int i = 0; i < mySegments.length; i++)
+		{
+			mySegments[i].order(order);
+		}
+		return true;
+	}
+
+	private void buildIndex(long theSize) throws IOException
+	{
+		Index index = myIndex;
+		long offset = FILE_HEADER_SIZE;
+		while (offset + PACKET_HEADER_SIZE <= theSize)
+		{
+			ByteBuffer segment = mySegments[(int) (offset / SEGMENT_SIZE)];
+			int pos = (int) (offset % SEGMENT_SIZE);
+			long seconds = segment.getInt(pos) & 0xffffffffL;
+			long micros = segment.getInt(pos + 4) & 0xffffffffL;
+			int capturedLength = segment.getInt(pos + 8);
+			int originalLength = segment.getInt(pos + 12);
+			if (capturedLength < 0 || capturedLength > MAX_PACKET_SIZE)
+			{
+				throw new IOException("Corrupted file, illegal packet size " + capturedLength + " at offset " + offset);
+			}
+			if (offset + PACKET_HEADER_SIZE + capturedLength > theSize)
+			{
+				break;
+			}
+			index.add(offset + PACKET_HEADER_SIZE, seconds * 1000000 + micros, capturedLength, originalLength);
+			offset += PACKET_HEADER_SIZE + capturedLength;
+		}
+		index.trim();
+	}
+
+	/**
+	 * split packets of this reader into ranges with about equal bytes.
+	 * @param theParts - number of ranges wanted
+	 * @return readers positioned at the start of each range, fewer than asked if there are not enough packets
+	 */
+	public PCapMappedFileReader[] split(int theParts)
+	{
+		int packets = myTo - myFrom;
+		int parts = Math.max(1, Math.min(theParts, packets));
+		PCapMappedFileReader[] ranges = new PCapMappedFileReader[parts];
+		if (packets == 0)
+		{
+			ranges[0] = new PCapMappedFileReader(this, myFrom, myTo);
+			return ranges;
+		}
+		long startOffset = myIndex.myOffsets[myFrom];
+		long bytes = myIndex.myOffsets[myTo - 1] + myIndex.myLengths[myTo - 1] - startOffset;
+		int from = myFrom;
+		for (int i = 0; i < parts; i++)
+		{
+			int to;
+			if (i == parts - 1)
+			{
+				to = myTo;
+			}
+			else
+			{
+				to = firstAtOffset(startOffset + bytes * (i + 1) / parts);
+				// every range gets at least one packet and leaves one for each remaining range
+				to = Math.max(to, from + 1);
+				to = Math.min(to, myTo - (parts - 1 - i));
+			}
+			ranges[i] = new PCapMappedFileReader(this, from, to);
+			from = to;
+		}
+		return ranges;
+	}
+
+	private int firstAtOffset(long theOffset)
+	{
+		int low = myFrom;
+		int high = myTo;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (myIndex.myOffsets[mid] < theOffset)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * position reader so next read returns given packet.
+	 * @param thePacketNo - number of packet in file, starting with 0
+	 * @return false if packet is not in this reader
+	 */
+	public boolean seek(long thePacketNo)
+	{
+		if (thePacketNo < myFrom || thePacketNo > myTo)
+		{
+			return false;
+		}
+		myCursor = (int) thePacketNo;
+		return true;
+	}
+
+	/**
+	 * position reader on the first packet with timestamp not before given time.
+	 * Assumes packets are stored in time order, as capture tools write them.
+	 * @param theTimestamp - microseconds, as returned by getTimeStamp
+	 * @return number of the packet, or end of range if all packets are older
+	 */
+	public long seekTime(long theTimestamp)
+	{
+		int low = myFrom;
+		int high = myTo;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (myIndex.myTimestamps[mid] < theTimestamp)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		myCursor = low;
+		return low;
+	}
+
+	/**
+	 * @return next packet as read only slice of the mapping, null at end of range.
+	 */
+	public ByteBuffer nextPacket()
+	{
+		if (myCursor >= myTo)
+		{
+			return null;
+		}
+		myLast = myCursor++;
+		return getPacket(myLast);
+	}
+
+	/**
+	 * decode next packet without copying or allocating.
+	 * @param theDecoder - decoder created with getLinkType()
+	 * @return false at end of range, true if a packet was read, check result of decoder for its content
+	 */
+	public boolean nextPacket(PacketDecoder theDecoder)
+	{
+		if (myCursor >= myTo)
+		{
+			return false;
+		}
+		myLast = myCursor++;
+		decode(myLast, theDecoder);
+		return true;
+	}
+
+	/**
+	 * @param thePacketNo
+	 * @return packet as read only slice of the mapping, the slice uses big endian order
+	 */
+	public ByteBuffer getPacket(long thePacketNo)
+	{
+		int i = checkPacket(thePacketNo);
+		long offset = myIndex.myOffsets[i];
+		ByteBuffer slice = mySegments[(int) (offset / SEGMENT_SIZE)].duplicate();
+		int pos = (int) (offset % SEGMENT_SIZE);
+		slice.limit(pos + myIndex.myLengths[i]).position(pos);
+		return slice.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * decode packet in place.
+	 * @param thePacketNo
+	 * @param theDecoder
+	 * @return result of theDecoder.decode
+	 */
+	public boolean decode(long thePacketNo, PacketDecoder theDecoder)
+	{
+		int i = checkPacket(thePacketNo);
+		long offset = myIndex.myOffsets[i];
+		return theDecoder.decode(mySegments[(int) (offset / SEGMENT_SIZE)], (int) (offset % SEGMENT_SIZE), myIndex.myLengths[i]);
+	}
+
+	private int checkPacket(long thePacketNo)
+	{
+		if (thePacketNo < 0 || thePacketNo >= myIndex.myCount)
+		{
+			throw new IndexOutOfBoundsException("Packet " + thePacketNo + " of " + myIndex.myCount);
+		}
+		return (int) thePacketNo;
+	}
+
+	/**
+	 * @return next packet copied to a new array, null at end of range.
+	 */
+	@Override
+	public byte[] ReadNextPacket() throws IOException
+	{
+		ByteBuffer packet = nextPacket();
+		if (packet == null)
+		{
+			return null;
+		}
+		byte[] toReturn = new byte[packet.remaining()];
+		packet.get(toReturn);
+		return toReturn;
+	}
+
+	/**
+	 * @return timestamp in microseconds of the last packet read
+	 */
+	@Override
+	public long getTimeStamp()
+	{
+		return myLast >= 0 ? myIndex.myTimestamps[myLast] : 0;
+	}
+
+	/**
+	 * @return number of packets read from this reader
+	 */
+	@Override
+	public long getCurrentPacket()
+	{
+		return myCursor - myFrom;
+	}
+
+	/**
+	 * @return number of the last packet read in the file, -1 before first read
+	 */
+	public long getLastPacketNo()
+	{
+		return myLast;
+	}
+
+	/**
+	 * @param thePacketNo
+	 * @return timestamp in microseconds
+	 */
+	public long getTimeStamp(long thePacketNo)
+	{
+		return myIndex.myTimestamps[checkPacket(thePacketNo)];
+	}
+
+	/**
+	 * @param thePacketNo
+	 * @return bytes stored in file for the packet
+	 */
+	public int getCapturedLength(long thePacketNo)
+	{
+		return myIndex.myLengths[checkPacket(thePacketNo)];
+	}
+
+	/**
+	 * @param thePacketNo
+	 * @return length of the packet on the wire
+	 */
+	public int getOriginalLength(long thePacketNo)
+	{
+		return myIndex.myOriginalLengths[checkPacket(thePacketNo)];
+	}
+
+	/**
+	 * @return number of packets in the file
+	 */
+	public long getPacketCount()
+	{
+		return myIndex.myCount;
+	}
+
+	/**
+	 * @return first packet of this reader
+	 */
+	public long getFirstPacketNo()
+	{
+		return myFrom;
+	}
+
+	/**
+	 * @return packet after the last packet of this reader
+	 */
+	public long getEndPacketNo()
+	{
+		return myTo;
+	}
+
+	/**
+	 * @return link type from the file header, see PacketDecoder.LINK_ constants
+	 */
+	public int getLinkType()
+	{
+		return myPcapFileHeader != null ? (int) myPcapFileHeader.getLinkType() : 0;
+	}
+
+	public PCapFileHeader getPcapFileHeader()
+	{
+		return myPcapFileHeader;
+	}
+
+	@Override
+	public boolean isValid()
+	{
+		return _isValid;
+	}
+
+	/**
+	 * close the file, mapping is released when the reader and its slices are collected.
+	 * Ranges created by split do not own the file.
+	 */
+	public void close()
+	{
+		if (myFile != null)
+		{
+			try
+			{
+				myFile.close();
+			}
+			catch (IOException e)
+			{}
+			myFile = null;
+		}
+	}
+
+	/**
+	 * packet index in parallel primitive arrays.
+	 */
+	private static class Index
+	{
+		private int myCount = 0;
+
+		private long[] myOffsets = new long[INITIAL_INDEX_SIZE];
+
+		private long[] myTimestamps = new long[INITIAL_INDEX_SIZE];
+
+		private int[] myLengths = new int[INITIAL_INDEX_SIZE];
+
+		private int[] myOriginalLengths = new int[INITIAL_INDEX_SIZE];
+
+		private void add(long theOffset, long theTimestamp, int theLength, int theOriginalLength)
+		{
+			if (myCount == myOffsets.length)
+			{
+				resize(myCount * 2);
+			}
+			myOffsets[myCount] = theOffset;
+			myTimestamps[myCount] = theTimestamp;
+			myLengths[myCount] = theLength;
+			myOriginalLengths[myCount] = theOriginalLength;
+			myCount++;
+		}
+
+		private void trim()
+		{
+			if (myCount < myOffsets.length)
+			{
+				resize(myCount);
+			}
+		}
+
+		private void resize(int theSize)
+		{
+			long[] offsets = new long[theSize];
+			long[] timestamps = new long[theSize];
+			int[] lengths = new int[theSize];
+			int[] originalLengths = new int[theSize];
+			System.arraycopy(myOffsets, 0, offsets, 0, myCount);
+			System.arraycopy(myTimestamps, 0, timestamps, 0, myCount);
+			System.arraycopy(myLengths, 0, lengths, 0, myCount);
+			System.arraycopy(myOriginalLengths, 0, originalLengths, 0, myCount);
+			myOffsets = offsets;
+			myTimestamps = timestamps;
+			myLengths = lengths;
+			myOriginalLengths = originalLengths;
+		}
+	}
+}
@@ -46,7 +46,7 @@ public class PCapPacketHeader
 	public PCapPacketHeader readNextPcktHeader(InputStream in, boolean flip) throws IOException
 	{
 		byte[] tmp = new byte[16];
-		if (in.read(tmp) != tmp.length) return null;
+		if (PCapFileReader.readFully(in, tmp) != tmp.length) return null;
 		
 		myOriginalCopy = tmp;
 		
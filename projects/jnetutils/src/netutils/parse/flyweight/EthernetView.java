@@ -0,0 +1,82 @@
+package netutils.parse.flyweight;
+
+import netutils.parse.EthernetFrame;
+
+/**
+ * Flyweight Ethernet header, optionally with one vlan tag.
+ * 
+ * @see HeaderView
+ * @see netutils.parse.EthernetFrame
+ */
+public class EthernetView extends HeaderView
+{
+	private static final int DST_MAC_POS = 0;
+
+	private static final int SRC_MAC_POS = 6;
+
+	private static final int TYPE_POS = 12;
+
+	private static final int VLAN_TAG_LENGTH = 4;
+
+	@Override
+	protected boolean validate()
+	{
+		return myLength >= getHeaderLength();
+	}
+
+	/**
+	 * @return true if header includes vlan tag
+	 */
+	public boolean isVlan()
+	{
+		return myLength >= EthernetFrame.ETHERNET_HEADER_LENGTH 
+			&& (uint16(TYPE_POS) & 0xff00) == EthernetFrame.ETHERNET_OVER_VLAN;
+	}
+
+	@Override
+	public int getHeaderLength()
+	{
+		return isVlan() ? EthernetFrame.ETHERNET_HEADER_LENGTH + VLAN_TAG_LENGTH : EthernetFrame.ETHERNET_HEADER_LENGTH;
+	}
+
+	/**
+	 * @return the type of the payload, after vlan tag if there is one
+	 * @see netutils.parse.EthernetFrameType
+	 */
+	public int getPacketType()
+	{
+		return isVlan() ? uint16(TYPE_POS + VLAN_TAG_LENGTH) : uint16(TYPE_POS);
+	}
+
+	/**
+	 * @return true if payload is IPv4
+	 */
+	public boolean isIpv4()
+	{
+		return getPacketType() == EthernetFrame.ETHERNET_IP_PKT_TYPE;
+	}
+
+	/**
+	 * @return true if payload is IPv6
+	 */
+	public boolean isIpv6()
+	{
+		return getPacketType() == EthernetFrame.ETHERNET_IPv6_PKT_TYPE;
+	}
+
+	/**
+	 * @return source mac in lower 48 bits
+	 */
+	public long getSrcMac()
+	{
+		return ((long) uint16(SRC_MAC_POS) << 32) | (int32(SRC_MAC_POS + 2) & 0xffffffffL);
+	}
+
+	/**
+	 * @return destination mac in lower 48 bits
+	 */
+	public long getDstMac()
+	{
+		return ((long) uint16(DST_MAC_POS) << 32) | (int32(DST_MAC_POS + 2) & 0xffffffffL);
+	}
+}
@@ -0,0 +1,209 @@
+package netutils.parse.flyweight;
+
+/**
+ * Primitive five tuple usable as hash key.<br>
+ * Addresses are held as two longs, IPv4 addresses in IPv4 mapped form 
+ * (::ffff:a.b.c.d), so IPv4 and IPv6 keys never collide and no IPAddress 
+ * objects or strings are created.<br>
+ * <br>
+ * Like FiveTuple, equals and hashCode ignore direction, a key matches the 
+ * key of the opposite direction. A decoder can fill one key per packet and 
+ * use it for lookups, copy() it only when inserting into a map.
+ * 
+ * @see netutils.parse.FiveTuple
+ */
+public final class FiveTupleKey
+{
+	private static final long IPV4_MAPPED_PREFIX = 0x0000ffff00000000L;
+
+	private long mySrcHigh = 0;
+
+	private long mySrcLow = 0;
+
+	private long myDstHigh = 0;
+
+	private long myDstLow = 0;
+
+	private int mySrcPort = 0;
+
+	private int myDstPort = 0;
+
+	private int myProtocol = 0;
+
+	public FiveTupleKey()
+	{
+	}
+
+	/**
+	 * set IPv4 tuple.
+	 * @param theSrcAddress - in network order
+	 * @param theSrcPort
+	 * @param theDstAddress - in network order
+	 * @param theDstPort
+	 * @param theProtocol
+	 * @return this key
+	 */
+	public FiveTupleKey setIPv4(int theSrcAddress, int theSrcPort, int theDstAddress, int theDstPort, int theProtocol)
+	{
+		return set(0, IPV4_MAPPED_PREFIX | (theSrcAddress & 0xffffffffL), theSrcPort, 
+				0, IPV4_MAPPED_PREFIX | (theDstAddress & 0xffffffffL), theDstPort, theProtocol);
+	}
+
+	/**
+	 * set IPv6 tuple, addresses as upper and lower 64 bits.
+	 * @return this key
+	 */
+	public FiveTupleKey set(long theSrcHigh, long theSrcLow, int theSrcPort, long theDstHigh, long theDstLow, int theDstPort, int theProtocol)
+	{
+		mySrcHigh = theSrcHigh;
+		mySrcLow = theSrcLow;
+		mySrcPort = theSrcPort;
+		myDstHigh = theDstHigh;
+		myDstLow = theDstLow;
+		myDstPort = theDstPort;
+		myProtocol = theProtocol;
+		return this;
+	}
+
+	/**
+	 * @return new key with same values, for storing in maps
+	 */
+	public FiveTupleKey copy()
+	{
+		return new FiveTupleKey().set(mySrcHigh, mySrcLow, mySrcPort, myDstHigh, myDstLow, myDstPort, myProtocol);
+	}
+
+	/**
+	 * @return true if both addresses are IPv4
+	 */
+	public boolean isIPv4()
+	{
+		return mySrcHigh == 0 && (mySrcLow >>> 32) == 0xffff && myDstHigh == 0 && (myDstLow >>> 32) == 0xffff;
+	}
+
+	/**
+	 * @return IPv4 source address, valid if isIPv4
+	 */
+	public int getSrcIPv4()
+	{
+		return (int) mySrcLow;
+	}
+
+	/**
+	 * @return IPv4 destination address, valid if isIPv4
+	 */
+	public int getDstIPv4()
+	{
+		return (int) myDstLow;
+	}
+
+	public long getSrcHigh()
+	{
+		return mySrcHigh;
+	}
+
+	public long getSrcLow()
+	{
+		return mySrcLow;
+	}
+
+	public long getDstHigh()
+	{
+		return myDstHigh;
+	}
+
+	public long getDstLow()
+	{
+		return myDstLow;
+	}
+
+	public int getSrcPort()
+	{
+		return mySrcPort;
+	}
+
+	public int getDstPort()
+	{
+		return myDstPort;
+	}
+
+	public int getProtocol()
+	{
+		return myProtocol;
+	}
+
+	/**
+	 * @param theOther
+	 * @return true if same addresses and ports in the same direction
+	 */
+	public boolean isSameDirection(FiveTupleKey theOther)
+	{
+		return mySrcLow == theOther.mySrcLow && myDstLow == theOther.myDstLow 
+			&& mySrcPort == theOther.mySrcPort && myDstPort == theOther.myDstPort
+			&& mySrcHigh == theOther.mySrcHigh && myDstHigh == theOther.myDstHigh 
+			&& myProtocol == theOther.myProtocol;
+	}
+
+	/**
+	 * @param theOther
+	 * @return true if same addresses and ports in opposite direction
+	 */
+	public boolean isOpposite(FiveTupleKey theOther)
+	{
+		return mySrcLow == theOther.myDstLow && myDstLow == theOther.mySrcLow 
+			&& mySrcPort == theOther.myDstPort && myDstPort == theOther.mySrcPort
+			&& mySrcHigh == theOther.myDstHigh && myDstHigh == theOther.mySrcHigh 
+			&& myProtocol == theOther.myProtocol;
+	}
+
+	@Override
+	public boolean equals(Object theOther)
+	{
+		if (!(theOther instanceof FiveTupleKey))
+		{
+			return false;
+		}
+		FiveTupleKey other = (FiveTupleKey) theOther;
+		return isSameDirection(other) || isOpposite(other);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		// sum of both endpoints so both directions hash the same
+		return mix(mySrcHigh, mySrcLow, mySrcPort) + mix(myDstHigh, myDstLow, myDstPort) + myProtocol * 31;
+	}
+
+	private static int mix(long theHigh, long theLow, int thePort)
+	{
+		long h = (theHigh * 0x9e3779b97f4a7c15L) ^ theLow ^ ((long) thePort << 48);
+		h *= 0xc2b2ae3d27d4eb4fL;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	@Override
+	public String toString()
+	{
+		return addressToString(mySrcHigh, mySrcLow) + ":" + mySrcPort + " -> " 
+			+ addressToString(myDstHigh, myDstLow) + ":" + myDstPort + " proto " + myProtocol;
+	}
+
+	private static String addressToString(long theHigh, long theLow)
+	{
+		if (theHigh == 0 && (theLow >>> 32) == 0xffff)
+		{
+			return ((theLow >> 24) & 0xff) + "." + ((theLow >> 16) & 0xff) + "." + ((theLow >> 8) & 0xff) + "." + (theLow & 0xff);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 8; i++)
+		{
+			long word = i < 4 ? theHigh >>> (48 - i * 16) : theLow >>> (48 - (i - 4) * 16);
+			if (i > 0)
+			{
+				sb.append(':');
+			}
+			sb.append(Long.toHexString(word & 0xffff));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,198 @@
+package netutils.parse.flyweight;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Base of the flyweight decoders.<br>
+ * A view does not own or copy packet bytes, it is pointed at a header inside
+ * a shared byte array or ByteBuffer and reads fields on demand. The same view
+ * can be re-pointed at the next packet, so scanning a capture does not 
+ * allocate per packet.<br>
+ * <br>
+ * Views are not thread safe, use one set of views per thread.
+ * 
+ */
+public abstract class HeaderView
+{
+	protected byte[] myArray = null;
+
+	protected ByteBuffer myBuffer = null;
+
+	// absolute position of the header in array or buffer
+	protected int myOffset = 0;
+
+	// bytes available from offset to the end of the packet
+	protected int myLength = 0;
+
+	/**
+	 * point the view at a header inside an array.
+	 * @param theArray
+	 * @param theOffset - first byte of the header
+	 * @param theLength - bytes from offset to end of packet
+	 * @return true if there is a valid header at the offset
+	 */
+	public boolean wrap(byte[] theArray, int theOffset, int theLength)
+	{
+		myArray = theArray;
+		myBuffer = null;
+		myOffset = theOffset;
+		myLength = theLength;
+		return theOffset >= 0 && theLength >= 0 && theOffset + theLength <= theArray.length && validate();
+	}
+
+	/**
+	 * point the view at a header inside a buffer, buffer position and limit are not used or changed.
+	 * @param theBuffer
+	 * @param theOffset - absolute index of the first byte of the header
+	 * @param theLength - bytes from offset to end of packet
+	 * @return true if there is a valid header at the offset
+	 */
+	public boolean wrap(ByteBuffer theBuffer, int theOffset, int theLength)
+	{
+		if (theBuffer.hasArray())
+		{
+			return wrap(theBuffer.array(), theBuffer.arrayOffset() + theOffset, theLength);
+		}
+		myArray = null;
+		myBuffer = theBuffer;
+		myOffset = theOffset;
+		myLength = theLength;
+		return theOffset >= 0 && theLength >= 0 && theOffset + theLength <= theBuffer.capacity() && validate();
+	}
+
+	/**
+	 * point the view at the payload of another view.
+	 * @param theOuter
+	 * @return true if there is a valid header in the payload
+	 */
+	public boolean wrap(HeaderView theOuter)
+	{
+		int offset = theOuter.getPayloadOffset();
+		int length = theOuter.getPayloadLength();
+		if (theOuter.myArray != null)
+		{
+			return wrap(theOuter.myArray, offset, length);
+		}
+		return wrap(theOuter.myBuffer, offset, length);
+	}
+
+	/**
+	 * @return true if bytes at offset hold a complete header of this kind
+	 */
+	protected abstract boolean validate();
+
+	/**
+	 * @return header length in bytes
+	 */
+	public abstract int getHeaderLength();
+
+	/**
+	 * @return absolute offset of the payload in the underlying array or buffer
+	 */
+	public int getPayloadOffset()
+	{
+		return myOffset + getHeaderLength();
+	}
+
+	/**
+	 * @return payload length in bytes
+	 */
+	public int getPayloadLength()
+	{
+		return Math.max(0, myLength - getHeaderLength());
+	}
+
+	/**
+	 * @return absolute offset of the header in the underlying array or buffer
+	 */
+	public int getOffset()
+	{
+		return myOffset;
+	}
+
+	/**
+	 * @return the underlying array or null if view is on a direct buffer
+	 */
+	public byte[] getArray()
+	{
+		return myArray;
+	}
+
+	/**
+	 * @return the underlying buffer or null if view is on an array
+	 */
+	public ByteBuffer getBuffer()
+	{
+		return myBuffer;
+	}
+
+	/**
+	 * copy payload bytes to caller owned array.
+	 * @param theDst
+	 * @param theDstOffset
+	 * @return number of bytes copied
+	 */
+	public int copyPayload(byte[] theDst, int theDstOffset)
+	{
+		int length = Math.min(getPayloadLength(), theDst.length - theDstOffset);
+		int offset = getPayloadOffset();
+		if (myArray != null)
+		{
+			System.arraycopy(myArray, offset, theDst, theDstOffset, length);
+		}
+		else
+		{
+			for (int i = 0; i < length; i++)
+			{
+				theDst[theDstOffset + i] = myBuffer.get(offset + i);
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @param thePos - position relative to header start
+	 * @return unsigned byte
+	 */
+	protected final int uint8(int thePos)
+	{
+		int index = myOffset + thePos;
+		if (myArray != null)
+		{
+			return myArray[index] & 0xff;
+		}
+		return myBuffer.get(index) & 0xff;
+	}
+
+	/**
+	 * @param thePos - position relative to header start
+	 * @return unsigned 16 bit in network order
+	 */
+	protected final int uint16(int thePos)
+	{
+		int index = myOffset + thePos;
+		if (myArray != null)
+		{
+			return ((myArray[index] & 0xff) << 8) | (myArray[index + 1] & 0xff);
+		}
+		return ((myBuffer.get(index) & 0xff) << 8) | (myBuffer.get(index + 1) & 0xff);
+	}
+
+	/**
+	 * @param thePos - position relative to header start
+	 * @return 32 bit in network order as int, use & 0xffffffffL for unsigned value
+	 */
+	protected final int int32(int thePos)
+	{
+		return (uint16(thePos) << 16) | uint16(thePos + 2);
+	}
+
+	/**
+	 * @param thePos - position relative to header start
+	 * @return 64 bit in network order
+	 */
+	protected final long int64(int thePos)
+	{
+		return ((long) int32(thePos) << 32) | (int32(thePos + 4) & 0xffffffffL);
+	}
+}
@@ -0,0 +1,66 @@
+package netutils.parse.flyweight;
+
+/**
+ * Flyweight ICMP (and ICMPv6) header, type, code, checksum and the 4 byte 
+ * rest of header that holds id and sequence for echo messages.
+ * 
+ * @see HeaderView
+ * @see netutils.parse.ICMPPacket
+ */
+public class ICMPView extends HeaderView
+{
+	private static final int HEADER_LENGTH = 8;
+
+	private static final int TYPE_POS = 0;
+
+	private static final int CODE_POS = 1;
+
+	private static final int CHKSUM_POS = 2;
+
+	private static final int ID_POS = 4;
+
+	private static final int SEQ_POS = 6;
+
+	@Override
+	protected boolean validate()
+	{
+		return myLength >= HEADER_LENGTH;
+	}
+
+	@Override
+	public int getHeaderLength()
+	{
+		return HEADER_LENGTH;
+	}
+
+	public int getType()
+	{
+		return uint8(TYPE_POS);
+	}
+
+	public int getCode()
+	{
+		return uint8(CODE_POS);
+	}
+
+	public int getChecksum()
+	{
+		return uint16(CHKSUM_POS);
+	}
+
+	/**
+	 * @return identifier of echo request or reply
+	 */
+	public int getId()
+	{
+		return uint16(ID_POS);
+	}
+
+	/**
+	 * @return sequence of echo request or reply
+	 */
+	public int getSequence()
+	{
+		return uint16(SEQ_POS);
+	}
+}
@@ -0,0 +1,157 @@
+package netutils.parse.flyweight;
+
+import netutils.parse.IPPacketType;
+
+/**
+ * Flyweight IPv4 header.<br>
+ * Payload ends at the total length of the packet, so Ethernet padding of 
+ * short frames is not part of it.
+ * 
+ * @see HeaderView
+ * @see netutils.parse.IPv4Packet
+ */
+public class IPv4View extends HeaderView
+{
+	private static final int MIN_HEADER_LENGTH = 20;
+
+	private static final int IP_LEN_POS = 2;
+
+	private static final int IP_ID_POS = 4;
+
+	private static final int IP_FRAG_POS = 6;
+
+	private static final int IP_TTL_POS = 8;
+
+	private static final int IP_PROTO_POS = 9;
+
+	private static final int IP_CHKSUM_POS = 10;
+
+	private static final int IP_SRC_POS = 12;
+
+	private static final int IP_DST_POS = 16;
+
+	@Override
+	protected boolean validate()
+	{
+		if (myLength < MIN_HEADER_LENGTH || (uint8(0) >> 4) != 4)
+		{
+			return false;
+		}
+		int headerLength = getHeaderLength();
+		return headerLength >= MIN_HEADER_LENGTH && headerLength <= myLength;
+	}
+
+	@Override
+	public int getHeaderLength()
+	{
+		return (uint8(0) & 0x0f) * 4;
+	}
+
+	/**
+	 * @return total length field
+	 */
+	public int getTotalLength()
+	{
+		return uint16(IP_LEN_POS);
+	}
+
+	@Override
+	public int getPayloadLength()
+	{
+		int total = getTotalLength();
+		// captured length may be shorter than total, and total is 0 on tso frames
+		int length = total >= getHeaderLength() && total <= myLength ? total : myLength;
+		return length - getHeaderLength();
+	}
+
+	/**
+	 * @return type of service
+	 */
+	public int getTos()
+	{
+		return uint8(1);
+	}
+
+	/**
+	 * @return packet id
+	 */
+	public int getId()
+	{
+		return uint16(IP_ID_POS);
+	}
+
+	/**
+	 * @return 3 bit flags
+	 */
+	public int getFragFlags()
+	{
+		return uint8(IP_FRAG_POS) >> 5;
+	}
+
+	/**
+	 * @return fragment offset in 8 byte units
+	 */
+	public int getFragmentOffset()
+	{
+		return uint16(IP_FRAG_POS) & 0x1fff;
+	}
+
+	/**
+	 * @return true if packet is a fragment, more fragments flag or non zero offset
+	 */
+	public boolean isFragment()
+	{
+		return (getFragFlags() & 0x01) != 0 || getFragmentOffset() != 0;
+	}
+
+	public int getTTL()
+	{
+		return uint8(IP_TTL_POS);
+	}
+
+	/**
+	 * @return protocol of payload
+	 * @see IPPacketType
+	 */
+	public int getProtocol()
+	{
+		return uint8(IP_PROTO_POS);
+	}
+
+	public int getChecksum()
+	{
+		return uint16(IP_CHKSUM_POS);
+	}
+
+	/**
+	 * @return source address in network order
+	 */
+	public int getSrcAddress()
+	{
+		return int32(IP_SRC_POS);
+	}
+
+	/**
+	 * @return destination address in network order
+	 */
+	public int getDstAddress()
+	{
+		return int32(IP_DST_POS);
+	}
+
+	/**
+	 * @return true if payload is tcp
+	 */
+	public boolean isTcp()
+	{
+		return getProtocol() == IPPacketType.TCP;
+	}
+
+	/**
+	 * @return true if payload is udp
+	 */
+	public boolean isUdp()
+	{
+		return getProtocol() == IPPacketType.UDP;
+	}
+}
@@ -0,0 +1,197 @@
+package netutils.parse.flyweight;
+
+import netutils.parse.IPPacketType;
+
+/**
+ * Flyweight IPv6 header.<br>
+ * Extension headers are walked when the view is wrapped, header length 
+ * includes them and getProtocol returns the protocol after the last one, 
+ * so the payload is the transport header.
+ * 
+ * @see HeaderView
+ * @see netutils.parse.IPv6Packet
+ */
+public class IPv6View extends HeaderView
+{
+	private static final int FIXED_HEADER_LENGTH = 40;
+
+	private static final int IP_PAYLOAD_LENGTH_POS = 4;
+
+	private static final int IP_NEXT_HEADER_POS = 6;
+
+	private static final int IP_HOP_LIMIT_POS = 7;
+
+	private static final int IP_SRC_POS = 8;
+
+	private static final int IP_DST_POS = 24;
+
+	private static final int EXT_HOP_BY_HOP = 0;
+
+	private static final int EXT_ROUTING = 43;
+
+	private static final int EXT_FRAGMENT = 44;
+
+	private static final int EXT_AUTH = 51;
+
+	private static final int EXT_DEST_OPTIONS = 60;
+
+	private int myHeaderLength = FIXED_HEADER_LENGTH;
+
+	private int myProtocol = 0;
+
+	private boolean myIsFragment = false;
+
+	@Override
+	protected boolean validate()
+	{
+		if (myLength < FIXED_HEADER_LENGTH || (uint8(0) >> 4) != 6)
+		{
+			return false;
+		}
+		int pos = FIXED_HEADER_LENGTH;
+		int next = uint8(IP_NEXT_HEADER_POS);
+		myIsFragment = false;
+		while (true)
+		{
+			int extLength;
+			if (next == EXT_HOP_BY_HOP || next == EXT_ROUTING || next == EXT_DEST_OPTIONS)
+			{
+				if (pos + 2 > myLength) return false;
+				extLength = (uint8(pos + 1) + 1) * 8;
+			}
+			else if (next == EXT_FRAGMENT)
+			{
+				if (pos + 8 > myLength) return false;
+				myIsFragment = (uint16(pos + 2) & 0xfff9) != 0;
+				extLength = 8;
+			}
+			else if (next == EXT_AUTH)
+			{
+				if (pos + 2 > myLength) return false;
+				extLength = (uint8(pos + 1) + 2) * 4;
+			}
+			else
+			{
+				break;
+			}
+			if (pos + extLength > myLength) return false;
+			next = uint8(pos);
+			pos += extLength;
+		}
+		myHeaderLength = pos;
+		myProtocol = next;
+		return true;
+	}
+
+	/**
+	 * @return fixed header and extension headers length
+	 */
+	@Override
+	public int getHeaderLength()
+	{
+		return myHeaderLength;
+	}
+
+	@Override
+	public int getPayloadLength()
+	{
+		int length = Math.min(FIXED_HEADER_LENGTH + uint16(IP_PAYLOAD_LENGTH_POS), myLength);
+		return Math.max(0, length - myHeaderLength);
+	}
+
+	/**
+	 * @return payload length field, includes extension headers
+	 */
+	public int getPayloadLengthField()
+	{
+		return uint16(IP_PAYLOAD_LENGTH_POS);
+	}
+
+	public int getTrafficClass()
+	{
+		return (uint16(0) >> 4) & 0xff;
+	}
+
+	public int getFlowLabel()
+	{
+		return int32(0) & 0xfffff;
+	}
+
+	public int getHopLimit()
+	{
+		return uint8(IP_HOP_LIMIT_POS);
+	}
+
+	/**
+	 * @return next header field of fixed header
+	 */
+	public int getNextHeader()
+	{
+		return uint8(IP_NEXT_HEADER_POS);
+	}
+
+	/**
+	 * @return protocol after extension headers
+	 * @see IPPacketType
+	 */
+	public int getProtocol()
+	{
+		return myProtocol;
+	}
+
+	/**
+	 * @return true if there is a fragment header with offset or more fragments flag
+	 */
+	public boolean isFragment()
+	{
+		return myIsFragment;
+	}
+
+	/**
+	 * @return upper 64 bits of source address
+	 */
+	public long getSrcAddressHigh()
+	{
+		return int64(IP_SRC_POS);
+	}
+
+	/**
+	 * @return lower 64 bits of source address
+	 */
+	public long getSrcAddressLow()
+	{
+		return int64(IP_SRC_POS + 8);
+	}
+
+	/**
+	 * @return upper 64 bits of destination address
+	 */
+	public long getDstAddressHigh()
+	{
+		return int64(IP_DST_POS);
+	}
+
+	/**
+	 * @return lower 64 bits of destination address
+	 */
+	public long getDstAddressLow()
+	{
+		return int64(IP_DST_POS + 8);
+	}
+
+	/**
+	 * @return true if payload is tcp
+	 */
+	public boolean isTcp()
+	{
+		return myProtocol == IPPacketType.TCP;
+	}
+
+	/**
+	 * @return true if payload is udp
+	 */
+	public boolean isUdp()
+	{
+		return myProtocol == IPPacketType.UDP;
+	}
+}
@@ -0,0 +1,306 @@
+package netutils.parse.flyweight;
+
+import java.nio.ByteBuffer;
+
+import netutils.parse.IPPacketType;
+
+/**
+ * Decodes a captured frame into reusable flyweight views.<br>
+ * One decoder holds one view per layer, decode re-points them at the next 
+ * packet, so a capture can be scanned without allocating per packet:<br>
+ * <pre>
+ * PacketDecoder decoder = new PacketDecoder(PacketDecoder.LINK_ETHERNET);
+ * FiveTupleKey key = new FiveTupleKey();
+ * while (...)
+ * {
+ *     if (decoder.decode(buffer, offset, length) &amp;&amp; decoder.getFiveTuple(key))
+ *     {
+ *         Flow flow = flows.get(key);
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * Transport headers are decoded only for unfragmented packets or the first 
+ * fragment, like FiveTuple that refuses fragments.
+ * 
+ */
+public class PacketDecoder
+{
+	/**
+	 * pcap link type of Ethernet frames
+	 */
+	public static final int LINK_ETHERNET = 1;
+
+	/**
+	 * pcap link type of frames that start with ip header
+	 */
+	public static final int LINK_RAW = 101;
+
+	private static final int ICMPV6 = 58;
+
+	private int myLinkType;
+
+	private EthernetView myEthernet = new EthernetView();
+
+	private IPv4View myIPv4 = new IPv4View();
+
+	private IPv6View myIPv6 = new IPv6View();
+
+	private TCPView myTcp = new TCPView();
+
+	private UDPView myUdp = new UDPView();
+
+	private ICMPView myIcmp = new ICMPView();
+
+	private HeaderView myNetwork = null;
+
+	private HeaderView myTransport = null;
+
+	/**
+	 * @param theLinkType - LINK_ETHERNET or LINK_RAW
+	 */
+	public PacketDecoder(int theLinkType)
+	{
+		if (theLinkType != LINK_ETHERNET && theLinkType != LINK_RAW)
+		{
+			throw new IllegalArgumentException("Unsupported link type " + theLinkType);
+		}
+		myLinkType = theLinkType;
+	}
+
+	/**
+	 * decode a frame in an array.
+	 * @param theArray
+	 * @param theOffset
+	 * @param theLength
+	 * @return true if frame holds an IPv4 or IPv6 packet
+	 */
+	public boolean decode(byte[] theArray, int theOffset, int theLength)
+	{
+		reset();
+		if (myLinkType == LINK_ETHERNET)
+		{
+			if (!myEthernet.wrap(theArray, theOffset, theLength))
+			{
+				return false;
+			}
+			return decodeNetwork(myEthernet);
+		}
+		if (theLength < 1 || theOffset < 0 || theOffset >= theArray.length)
+		{
+			return false;
+		}
+		int version = (theArray[theOffset] & 0xff) >> 4;
+		if (version == 4 ? myIPv4.wrap(theArray, theOffset, theLength) : version == 6 && myIPv6.wrap(theArray, theOffset, theLength))
+		{
+			return decodeTransport(version == 4 ? myIPv4 : myIPv6);
+		}
+		return false;
+	}
+
+	/**
+	 * decode a frame in a buffer, position and limit of buffer are not changed.
+	 * @param theBuffer
+	 * @param theOffset - absolute index of first byte of frame
+	 * @param theLength
+	 * @return true if frame holds an IPv4 or IPv6 packet
+	 */
+	public boolean decode(ByteBuffer theBuffer, int theOffset, int theLength)
+	{
+		if (theBuffer.hasArray())
+		{
+			return decode(theBuffer.array(), theBuffer.arrayOffset() + theOffset, theLength);
+		}
+		reset();
+		if (myLinkType == LINK_ETHERNET)
+		{
+			if (!myEthernet.wrap(theBuffer, theOffset, theLength))
+			{
+				return false;
+			}
+			return decodeNetwork(myEthernet);
+		}
+		if (theLength < 1 || theOffset < 0 || theOffset >= theBuffer.capacity())
+		{
+			return false;
+		}
+		int version = (theBuffer.get(theOffset) & 0xff) >> 4;
+		if (version == 4 ? myIPv4.wrap(theBuffer, theOffset, theLength) : version == 6 && myIPv6.wrap(theBuffer, theOffset, theLength))
+		{
+			return decodeTransport(version == 4 ? myIPv4 : myIPv6);
+		}
+		return false;
+	}
+
+	private void reset()
+	{
+		myNetwork = null;
+		myTransport = null;
+	}
+
+	private boolean decodeNetwork(EthernetView theEthernet)
+	{
+		if (theEthernet.isIpv4())
+		{
+			return myIPv4.wrap(theEthernet) && decodeTransport(myIPv4);
+		}
+		if (theEthernet.isIpv6())
+		{
+			return myIPv6.wrap(theEthernet) && decodeTransport(myIPv6);
+		}
+		return false;
+	}
+
+	private boolean decodeTransport(HeaderView theNetwork)
+	{
+		myNetwork = theNetwork;
+		int protocol;
+		if (theNetwork == myIPv4)
+		{
+			if (myIPv4.getFragmentOffset() != 0)
+			{
+				return true;
+			}
+			protocol = myIPv4.getProtocol();
+		}
+		else
+		{
+			protocol = myIPv6.getProtocol();
+		}
+		if (protocol == IPPacketType.TCP)
+		{
+			if (myTcp.wrap(theNetwork)) myTransport = myTcp;
+		}
+		else if (protocol == IPPacketType.UDP)
+		{
+			if (myUdp.wrap(theNetwork)) myTransport = myUdp;
+		}
+		else if (protocol == IPPacketType.ICMP || protocol == ICMPV6)
+		{
+			if (myIcmp.wrap(theNetwork)) myTransport = myIcmp;
+		}
+		return true;
+	}
+
+	/**
+	 * fill key from last decoded packet, ports are 0 if there is no tcp or udp header.
+	 * @param theKey
+	 * @return false if last packet was not an ip packet
+	 */
+	public boolean getFiveTuple(FiveTupleKey theKey)
+	{
+		int srcPort = 0;
+		int dstPort = 0;
+		if (myTransport == myTcp)
+		{
+			srcPort = myTcp.getSrcPort();
+			dstPort = myTcp.getDstPort();
+		}
+		else if (myTransport == myUdp)
+		{
+			srcPort = myUdp.getSrcPort();
+			dstPort = myUdp.getDstPort();
+		}
+		if (myNetwork == myIPv4)
+		{
+			theKey.setIPv4(myIPv4.getSrcAddress(), srcPort, myIPv4.getDstAddress(), dstPort, myIPv4.getProtocol());
+			return true;
+		}
+		if (myNetwork == myIPv6)
+		{
+			theKey.set(myIPv6.getSrcAddressHigh(), myIPv6.getSrcAddressLow(), srcPort, 
+					myIPv6.getDstAddressHigh(), myIPv6.getDstAddressLow(), dstPort, myIPv6.getProtocol());
+			return true;
+		}
+		return false;
+	}
+
+	public boolean isIPv4()
+	{
+		return myNetwork == myIPv4;
+	}
+
+	public boolean isIPv6()
+	{
+		return myNetwork == myIPv6;
+	}
+
+	public boolean isTcp()
+	{
+		return myTransport == myTcp;
+	}
+
+	public boolean isUdp()
+	{
+		return myTransport == myUdp;
+	}
+
+	public boolean isIcmp()
+	{
+		return myTransport == myIcmp;
+	}
+
+	/**
+	 * @return Ethernet view, valid only for LINK_ETHERNET
+	 */
+	public EthernetView getEthernet()
+	{
+		return myEthernet;
+	}
+
+	/**
+	 * @return IPv4 view, valid if isIPv4
+	 */
+	public IPv4View getIPv4()
+	{
+		return myIPv4;
+	}
+
+	/**
+	 * @return IPv6 view, valid if isIPv6
+	 */
+	public IPv6View getIPv6()
+	{
+		return myIPv6;
+	}
+
+	/**
+	 * @return ip view of last packet or null
+	 */
+	public HeaderView getNetwork()
+	{
+		return myNetwork;
+	}
+
+	/**
+	 * @return transport view of last packet or null, its payload is the application data
+	 */
+	public HeaderView getTransport()
+	{
+		return myTransport;
+	}
+
+	/**
+	 * @return TCP view, valid if isTcp
+	 */
+	public TCPView getTcp()
+	{
+		return myTcp;
+	}
+
+	/**
+	 * @return UDP view, valid if isUdp
+	 */
+	public UDPView getUdp()
+	{
+		return myUdp;
+	}
+
+	/**
+	 * @return ICMP view, valid if isIcmp
+	 */
+	public ICMPView getIcmp()
+	{
+		return myIcmp;
+	}
+}
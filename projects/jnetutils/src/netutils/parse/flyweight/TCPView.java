@@ -0,0 +1,128 @@
+package netutils.parse.flyweight;
+
+/**
+ * Flyweight TCP header.
+ * 
+ * @see HeaderView
+ * @see netutils.parse.TCPPacket
+ */
+public class TCPView extends HeaderView
+{
+	private static final int MIN_HEADER_LENGTH = 20;
+
+	private static final int SRC_PORT_POS = 0;
+
+	private static final int DST_PORT_POS = 2;
+
+	private static final int SEQ_POS = 4;
+
+	private static final int ACK_POS = 8;
+
+	private static final int DATA_OFFSET_POS = 12;
+
+	private static final int FLAGS_POS = 13;
+
+	private static final int WINDOW_POS = 14;
+
+	private static final int CHKSUM_POS = 16;
+
+	private static final int URGENT_POS = 18;
+
+	public static final int FLAG_FIN = 0x01;
+
+	public static final int FLAG_SYN = 0x02;
+
+	public static final int FLAG_RST = 0x04;
+
+	public static final int FLAG_PSH = 0x08;
+
+	public static final int FLAG_ACK = 0x10;
+
+	public static final int FLAG_URG = 0x20;
+
+	@Override
+	protected boolean validate()
+	{
+		if (myLength < MIN_HEADER_LENGTH)
+		{
+			return false;
+		}
+		int headerLength = getHeaderLength();
+		return headerLength >= MIN_HEADER_LENGTH && headerLength <= myLength;
+	}
+
+	@Override
+	public int getHeaderLength()
+	{
+		return (uint8(DATA_OFFSET_POS) >> 4) * 4;
+	}
+
+	public int getSrcPort()
+	{
+		return uint16(SRC_PORT_POS);
+	}
+
+	public int getDstPort()
+	{
+		return uint16(DST_PORT_POS);
+	}
+
+	/**
+	 * @return sequence number as unsigned 32 bit
+	 */
+	public long getSeqNum()
+	{
+		return int32(SEQ_POS) & 0xffffffffL;
+	}
+
+	/**
+	 * @return ack number as unsigned 32 bit
+	 */
+	public long getAckNum()
+	{
+		return int32(ACK_POS) & 0xffffffffL;
+	}
+
+	/**
+	 * @return 6 bit flags, see FLAG_ constants
+	 */
+	public int getFlags()
+	{
+		return uint8(FLAGS_POS) & 0x3f;
+	}
+
+	public boolean isSyn()
+	{
+		return (getFlags() & FLAG_SYN) != 0;
+	}
+
+	public boolean isFin()
+	{
+		return (getFlags() & FLAG_FIN) != 0;
+	}
+
+	public boolean isRst()
+	{
+		return (getFlags() & FLAG_RST) != 0;
+	}
+
+	public boolean isAck()
+	{
+		return (getFlags() & FLAG_ACK) != 0;
+	}
+
+	public int getWindowSize()
+	{
+		return uint16(WINDOW_POS);
+	}
+
+	public int getChecksum()
+	{
+		return uint16(CHKSUM_POS);
+	}
+
+	public int getUrgentPointer()
+	{
+		return uint16(URGENT_POS);
+	}
+}
@@ -0,0 +1,66 @@
+package netutils.parse.flyweight;
+
+/**
+ * Flyweight UDP header.
+ * 
+ * @see HeaderView
+ * @see netutils.parse.UDPPacket
+ */
+public class UDPView extends HeaderView
+{
+	private static final int HEADER_LENGTH = 8;
+
+	private static final int SRC_PORT_POS = 0;
+
+	private static final int DST_PORT_POS = 2;
+
+	private static final int LENGTH_POS = 4;
+
+	private static final int CHKSUM_POS = 6;
+
+	@Override
+	protected boolean validate()
+	{
+		return myLength >= HEADER_LENGTH;
+	}
+
+	@Override
+	public int getHeaderLength()
+	{
+		return HEADER_LENGTH;
+	}
+
+	@Override
+	public int getPayloadLength()
+	{
+		int length = getLength();
+		if (length >= HEADER_LENGTH && length <= myLength)
+		{
+			return length - HEADER_LENGTH;
+		}
+		return myLength - HEADER_LENGTH;
+	}
+
+	public int getSrcPort()
+	{
+		return uint16(SRC_PORT_POS);
+	}
+
+	public int getDstPort()
+	{
+		return uint16(DST_PORT_POS);
+	}
+
+	/**
+	 * @return length field, header and data
+	 */
+	public int getLength()
+	{
+		return uint16(LENGTH_POS);
+	}
+
+	public int getChecksum()
+	{
+		return uint16(CHKSUM_POS);
+	}
+}